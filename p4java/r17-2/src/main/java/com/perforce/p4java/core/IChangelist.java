@@ -14,6 +14,7 @@ import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.option.changelist.ParallelSubmitOptions;
 import com.perforce.p4java.option.changelist.SubmitOptions;
 import com.perforce.p4java.option.server.GetChangelistDiffsOptions;
 import com.perforce.p4java.server.callback.IStreamingCallback;
@@ -367,4 +368,49 @@ public interface IChangelist extends IServerResource, IChangelistSummary {
 	 */
 	
 	void submit(SubmitOptions opts, IStreamingCallback callback, int key) throws P4JavaException;
+
+	/**
+	 * Submit this changelist as for submit(SubmitOptions), but letting the
+	 * server transfer the submitted files over several connections at once
+	 * (the submit command's --parallel flag). Whether the transfer is actually
+	 * done in parallel is up to the server, and depends on its
+	 * net.parallel.* configurables and the number and size of the files.<p>
+	 *
+	 * Messages from the parallel transfers, and any failure to run them, are
+	 * returned along with the submit's own results.
+	 *
+	 * @since 2017.2
+	 *
+	 * @param opts SubmitOptions object describing optional parameters; if null, no
+	 * 				options are set.
+	 * @param pSubmitOpts options related to the parallel transfer; if null,
+	 * 				the server's defaults are used with the default callback.
+	 * @return list of affected file specs and / or info / error messages from the Perforce server.
+	 * @throws P4JavaException if any error occurs in the processing of this method.
+	 */
+
+	List<IFileSpec> submitParallel(SubmitOptions opts, ParallelSubmitOptions pSubmitOpts)
+			throws P4JavaException;
+
+	/**
+	 * Submit this changelist as for submit(SubmitOptions, IStreamingCallback, int),
+	 * but letting the server transfer the submitted files in parallel; see
+	 * submitParallel(SubmitOptions, ParallelSubmitOptions).
+	 *
+	 * @since 2017.2
+	 *
+	 * @param opts SubmitOptions object describing optional parameters; if null, no
+	 * 				options are set.
+	 * @param callback a non-null IStreamingCallback to be used to process the incoming
+	 * 				results.
+	 * @param key an opaque integer key that is passed to the IStreamingCallback callback
+	 * 				methods to identify the action as being associated with this specific
+	 * 				call.
+	 * @param pSubmitOpts options related to the parallel transfer; if null,
+	 * 				the server's defaults are used with the default callback.
+	 * @throws P4JavaException if any error occurs in the processing of this method.
+	 */
+
+	void submitParallel(SubmitOptions opts, IStreamingCallback callback, int key,
+			ParallelSubmitOptions pSubmitOpts) throws P4JavaException;
 }
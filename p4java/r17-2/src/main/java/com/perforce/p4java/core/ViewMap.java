@@ -20,10 +20,10 @@ import com.perforce.p4java.exception.P4JavaError;
  * for the basic client view, but in summary, map entries can be inclusive,
  * exclusive, or overlays, and map entry order is (of course) deeply significant.<p>
  * 
- * This implementation of view maps does not (yet) include advanced Perforce
- * functionality (such as translation or testing the map to see whether a
- * path is mapped or not), but future versions will; the emphasis here is on
- * setting up a common basis for P4Java view maps.
+ * This class only holds the map entries; the emphasis here is on setting up
+ * a common basis for P4Java view maps. To translate paths or test the map to
+ * see whether a path is mapped or not, compile it into a
+ * com.perforce.p4java.impl.generic.core.MapApi.
  */
 
 public class ViewMap<E extends IMapEntry> implements Iterable<E> {
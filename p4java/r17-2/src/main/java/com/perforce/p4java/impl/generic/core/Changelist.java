@@ -24,6 +24,7 @@ import com.perforce.p4java.impl.mapbased.server.Parameters;
 import com.perforce.p4java.impl.mapbased.server.Server;
 import com.perforce.p4java.impl.mapbased.server.cmd.ResultListBuilder;
 import com.perforce.p4java.option.Options;
+import com.perforce.p4java.option.changelist.ParallelSubmitOptions;
 import com.perforce.p4java.option.changelist.SubmitOptions;
 import com.perforce.p4java.option.server.ChangelistOptions;
 import com.perforce.p4java.option.server.GetChangelistDiffsOptions;
@@ -490,6 +491,36 @@ public class Changelist extends ChangelistSummary implements IChangelist {
 						opts, null, "-i", this.serverImpl),
 				inMap);
 
+		return processSubmitResults(retMaps);
+	}
+
+	/**
+	 * @see com.perforce.p4java.core.IChangelist#submitParallel(com.perforce.p4java.option.changelist.SubmitOptions,
+	 * com.perforce.p4java.option.changelist.ParallelSubmitOptions)
+	 */
+	public List<IFileSpec> submitParallel(SubmitOptions opts, ParallelSubmitOptions pSubmitOpts)
+			throws P4JavaException {
+
+		if (this.serverImpl == null) {
+			throw new RequestException("Changelist not associated with a Perforce server");
+		}
+
+		if (pSubmitOpts == null) {
+			pSubmitOpts = new ParallelSubmitOptions();
+		}
+		Map<String, Object> inMap = getInMap(opts);
+		List<Map<String, Object>> retMaps = this.serverImpl.execMapCmdList(
+				CmdSpec.SUBMIT.toString(),
+				buildParallelSubmitArgs(opts, pSubmitOpts),
+				inMap,
+				null,
+				pSubmitOpts.getCallback());
+
+		return processSubmitResults(retMaps);
+	}
+
+	private List<IFileSpec> processSubmitResults(List<Map<String, Object>> retMaps)
+			throws P4JavaException {
 		List<IFileSpec> fileList = new ArrayList<IFileSpec>();
 
 		// Note the special-casing going on below; this is an artefact of
@@ -535,6 +566,40 @@ public class Changelist extends ChangelistSummary implements IChangelist {
 				key);
 	}
 
+	/**
+	 * @see com.perforce.p4java.core.IChangelist#submitParallel(com.perforce.p4java.option.changelist.SubmitOptions,
+	 * com.perforce.p4java.server.callback.IStreamingCallback, int,
+	 * com.perforce.p4java.option.changelist.ParallelSubmitOptions)
+	 */
+	public void submitParallel(SubmitOptions opts, IStreamingCallback callback, int key,
+			ParallelSubmitOptions pSubmitOpts) throws P4JavaException {
+
+		if (this.serverImpl == null) {
+			throw new RequestException("Changelist not associated with a Perforce server");
+		}
+
+		if (pSubmitOpts == null) {
+			pSubmitOpts = new ParallelSubmitOptions();
+		}
+		Map<String, Object> inMap = getInMap(opts);
+		this.serverImpl.execStreamingMapCommand(
+				CmdSpec.SUBMIT.toString(),
+				buildParallelSubmitArgs(opts, pSubmitOpts),
+				inMap,
+				callback,
+				key,
+				pSubmitOpts.getCallback());
+	}
+
+	private String[] buildParallelSubmitArgs(SubmitOptions opts, ParallelSubmitOptions pSubmitOpts)
+			throws P4JavaException {
+		String[] submitArgs = Parameters.processParameters(opts, null, "-i", this.serverImpl);
+		String[] args = new String[submitArgs.length + 1];
+		args[0] = pSubmitOpts.toParallelOption();
+		System.arraycopy(submitArgs, 0, args, 1, submitArgs.length);
+		return args;
+	}
+
 	/**
 	 * @see com.perforce.p4java.core.IChangelist#submit(boolean)
 	 */
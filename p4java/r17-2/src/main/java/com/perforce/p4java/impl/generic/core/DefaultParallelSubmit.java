@@ -0,0 +1,38 @@
+package com.perforce.p4java.impl.generic.core;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Provides capability to transfer the files of a submit in parallel, in the
+ * same way as the native client's "p4 submit --parallel".<p>
+ *
+ * When the server decides a submit's files should be sent in parallel it
+ * asks the client to start a number of "transmit -r" commands, each on its
+ * own connection; the server then pulls a share of the files over each one
+ * using the normal client-SendFile exchange. The transmits are run exactly
+ * as for a parallel sync; see DefaultParallelSync for how workers,
+ * connections and results are managed.
+ */
+public class DefaultParallelSubmit extends DefaultParallelSync {
+
+	/**
+	 * Default constructor
+	 */
+	public DefaultParallelSubmit() {
+		super();
+	}
+
+	/**
+	 * @see DefaultParallelSync#DefaultParallelSync(int)
+	 */
+	public DefaultParallelSubmit(int maxIdleConnections) {
+		super(maxIdleConnections);
+	}
+
+	/**
+	 * @see DefaultParallelSync#DefaultParallelSync(ExecutorService, int, long)
+	 */
+	public DefaultParallelSubmit(ExecutorService executor, int maxIdleConnections, long maxIdleMillis) {
+		super(executor, maxIdleConnections, maxIdleMillis);
+	}
+}
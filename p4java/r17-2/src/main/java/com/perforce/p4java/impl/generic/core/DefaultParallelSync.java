@@ -1,117 +1,544 @@
 package com.perforce.p4java.impl.generic.core;
 
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.MessageSeverityCode;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
+import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
+import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientMessage.ClientMessageId;
+import com.perforce.p4java.impl.mapbased.rpc.msg.RpcMessage;
 import com.perforce.p4java.server.IOptionsServer;
 import com.perforce.p4java.server.ServerFactory;
 import com.perforce.p4java.server.callback.IParallelCallback;
+import com.perforce.p4java.server.callback.IStreamingCallback;
 
+import java.io.Closeable;
+import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.Objects.requireNonNull;
 
 /**
  * Provides capability to perform sync in parallel.
- * The actual functionality is implemented as a server callback.
+ * The actual functionality is implemented as a server callback.<p>
+ *
+ * Each of the transmits the server asks for is run as a task on an executor
+ * (by default a shared pool of daemon threads), over its own connection to
+ * the server. Results from the workers are put on a queue and handed to the
+ * originating command by the calling thread, so the originating CommandEnv
+ * is only ever used from one thread.<p>
+ *
+ * An instance may also keep a number of authenticated worker connections
+ * open between calls; keep the same instance (for example in a
+ * ParallelSyncOptions object) across syncs to reuse them, and call close()
+ * when done. Idle connections are only reused for the same server, user,
+ * client, working directory and ticket, and are dropped once they've been
+ * idle for longer than the configured limit. A call's connections only
+ * become idle once all of that call's transmits are done, so no two
+ * transmits of the same call ever share a connection. By default no connections are
+ * kept, and each worker connection is closed when its transmit is done.<p>
+ *
+ * Per-worker statistics are kept in WorkerStats objects; see getWorkerStats().
  */
-public class DefaultParallelSync implements IParallelCallback {
+public class DefaultParallelSync implements IParallelCallback, Closeable {
+
+	/**
+	 * Default time an idle worker connection is kept for reuse.
+	 */
+	public static final long DEFAULT_MAX_IDLE_MILLIS = 30000;
+
+	private static final String THREAD_NAME_PREFIX = "P4Java parallel transfer ";
 
 	/**
-	 * Default constructor
+	 * Marks the end of a worker's results on the results queue.
+	 */
+	private static final Object WORKER_DONE = new Object();
+
+	private final ExecutorService executor;
+	private final int maxIdleConnections;
+	private final long maxIdleMillis;
+
+	private final ConcurrentHashMap<String, Deque<IdleConnection>> idleConnections =
+			new ConcurrentHashMap<String, Deque<IdleConnection>>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+	private final ConcurrentHashMap<Integer, WorkerStats> workerStats =
+			new ConcurrentHashMap<Integer, WorkerStats>();
+
+	/**
+	 * Default constructor; runs transmits on the shared pool and doesn't keep
+	 * any worker connections open between calls.
 	 */
 	public DefaultParallelSync() {
+		this(0);
+	}
 
+	/**
+	 * Runs transmits on the shared pool, keeping up to maxIdleConnections
+	 * worker connections open between calls.
+	 *
+	 * @param maxIdleConnections maximum number of connections kept for reuse
+	 */
+	public DefaultParallelSync(int maxIdleConnections) {
+		this(null, maxIdleConnections, DEFAULT_MAX_IDLE_MILLIS);
+	}
+
+	/**
+	 * Runs transmits on the passed-in executor, keeping up to maxIdleConnections
+	 * worker connections open for at most maxIdleMillis between calls. The
+	 * executor is not shut down by close().
+	 *
+	 * @param executor executor to run transmits on; if null, the shared pool is used
+	 * @param maxIdleConnections maximum number of connections kept for reuse
+	 * @param maxIdleMillis maximum time a connection is kept unused
+	 */
+	public DefaultParallelSync(ExecutorService executor, int maxIdleConnections, long maxIdleMillis) {
+		this.executor = executor != null ? executor : SharedExecutorHolder.EXECUTOR;
+		this.maxIdleConnections = Math.max(0, maxIdleConnections);
+		this.maxIdleMillis = maxIdleMillis;
 	}
 
 	/**
 	 * This function notifies the server that the sync can be done in parallel.
 	 * <p>
-	 * Invocation of this method spawns the threads required to support parallelism
+	 * Invocation of this method submits one transmit per thread to the executor,
+	 * then passes their results to the originating command until all of them
+	 * are done.
 	 *
 	 * @param cmdEnv
 	 * @param threads
 	 * @param flags
 	 * @param args
-	 * @return
+	 * @return false if any transmit failed; the failure is also reported to
+	 *         the originating command as an error message.
 	 */
 	@Override
 	public boolean transmit(CommandEnv cmdEnv, int threads, HashMap<String, String> flags, ArrayList<String> args) {
-		Thread[] parallelSyncThreads = new Thread[threads];
-		try {
-			for (int x = 0; x < threads; x++) {
-				parallelSyncThreads[x] = new Thread(createRunnable(cmdEnv, x, flags, args));
-				parallelSyncThreads[x].start();
+		BlockingQueue<Object> results = new LinkedBlockingQueue<Object>();
+		ConnectionGroup connections = new ConnectionGroup(cmdEnv, threads);
+		TransmitWorker[] workers = new TransmitWorker[threads];
+		int started = 0;
+		boolean succeeded = true;
+
+		for (int x = 0; x < threads; x++) {
+			workers[x] = new TransmitWorker(cmdEnv, x, args, results, connections);
+			try {
+				this.executor.execute(workers[x]);
+				started++;
+			} catch (RejectedExecutionException exc) {
+				workers[x].failure = exc;
+				connections.workerDone(null, false);
+			}
+		}
+
+		// Hand results over on this thread until every started worker is done:
+		int done = 0;
+		while (done < started) {
+			Object result;
+			try {
+				result = results.take();
+			} catch (InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				reportFailure(cmdEnv, -1, exc);
+				return false;
+			}
+			if (result == WORKER_DONE) {
+				done++;
+			} else {
+				@SuppressWarnings("unchecked")
+				Map<String, Object> resultMap = (Map<String, Object>) result;
+				cmdEnv.handleResult(resultMap);
+			}
+		}
+
+		for (int x = 0; x < threads; x++) {
+			if (workers[x].failure != null) {
+				succeeded = false;
+				reportFailure(cmdEnv, x, workers[x].failure);
+			}
+		}
+		return succeeded;
+	}
+
+	/**
+	 * Returns the statistics for each worker slot used so far, in slot order.
+	 */
+	public List<WorkerStats> getWorkerStats() {
+		List<WorkerStats> stats = new ArrayList<WorkerStats>();
+		for (int x = 0; x < this.workerStats.size(); x++) {
+			WorkerStats workerStat = this.workerStats.get(x);
+			if (workerStat != null) {
+				stats.add(workerStat);
 			}
-			for (int x = 0; x < threads; x++) {
-				parallelSyncThreads[x].join();
+		}
+		return stats;
+	}
+
+	/**
+	 * Returns the number of worker connections currently kept for reuse.
+	 */
+	public int getIdleConnectionCount() {
+		return this.idleCount.get();
+	}
+
+	/**
+	 * Disconnects any worker connections kept for reuse. The instance can
+	 * still be used afterwards.
+	 */
+	@Override
+	public void close() {
+		for (Deque<IdleConnection> connections : this.idleConnections.values()) {
+			IdleConnection idle;
+			while ((idle = connections.pollFirst()) != null) {
+				this.idleCount.decrementAndGet();
+				disconnectQuietly(idle.server);
 			}
-		} catch (Exception ex) {
-			return false;
 		}
-		return true;
 	}
 
 	/**
-	 * Helper method which creates a Runnable that performs the sync
+	 * Open a new connection to the originating command's server, for the
+	 * same user, client and working directory, on which to run a transmit.
 	 *
-	 * @param cmdEnv
-	 * @param thread
-	 * @param flags
-	 * @param args
-	 * @return
+	 * @param cmdEnv the originating command's environment
+	 * @return a connected server object; the caller must disconnect it
 	 */
-	private Runnable createRunnable(final CommandEnv cmdEnv, int thread,
-	                                HashMap<String, String> flags, final List<String> args) {
+	protected static IOptionsServer connectWorker(CommandEnv cmdEnv) throws P4JavaException, URISyntaxException {
+		Properties props = new Properties(cmdEnv.getServer().getProperties());
+		IOptionsServer server = ServerFactory.getOptionsServer(cmdEnv.getServer().getServerAddressDetails().getUri(), props);
 
-		class RunnableSync implements Runnable {
-			@Override
-			public void run() {
-				IOptionsServer server = null;
-				try {
-					Properties props = new Properties(cmdEnv.getServer().getProperties());
-					server = ServerFactory.getOptionsServer(cmdEnv.getServer().getServerAddressDetails().getUri(), props);
-
-					server.setCurrentServerInfo(cmdEnv.getServer().getCurrentServerInfo());
-					server.setUserName(cmdEnv.getServer().getUserName());
-					server.setAuthTicket(cmdEnv.getServer().getAuthTicket());
-					server.setCurrentClient(cmdEnv.getServer().getCurrentClient());
-					server.setWorkingDirectory(cmdEnv.getServer().getWorkingDirectory());
-					server.setTrustFilePath(cmdEnv.getServer().getTrustFilePath());
-					server.setTicketsFilePath(cmdEnv.getServer().getTicketsFilePath());
-					server.connect();
-
-					//pass the result to the handle result
-					Map<String, Object>[] results = server.execMapCmd("transmit", args.toArray(new String[]{}), null);
-					handleResults(results, cmdEnv);
-				} catch (Throwable e) {
-					throw new RuntimeException(e);
-				} finally {
-					if (server != null && server.isConnected()) {
-						try {
-							server.disconnect();
-						} catch (P4JavaException ex) {
-							throw new RuntimeException(ex);
-						}
+		server.setCurrentServerInfo(cmdEnv.getServer().getCurrentServerInfo());
+		server.setUserName(cmdEnv.getServer().getUserName());
+		server.setAuthTicket(cmdEnv.getServer().getAuthTicket());
+		server.setCurrentClient(cmdEnv.getServer().getCurrentClient());
+		server.setWorkingDirectory(cmdEnv.getServer().getWorkingDirectory());
+		server.setTrustFilePath(cmdEnv.getServer().getTrustFilePath());
+		server.setTicketsFilePath(cmdEnv.getServer().getTicketsFilePath());
+		server.connect();
+		return server;
+	}
+
+	/**
+	 * Open a new worker connection for the originating command; by default
+	 * this is done by connectWorker.
+	 */
+	protected IOptionsServer openConnection(CommandEnv cmdEnv) throws P4JavaException, URISyntaxException {
+		return connectWorker(cmdEnv);
+	}
+
+	/**
+	 * Get a worker connection for the originating command, reusing an idle one
+	 * if there is a suitable one, or opening a new one with connectWorker.
+	 */
+	protected IOptionsServer acquireConnection(CommandEnv cmdEnv, WorkerStats stats)
+			throws P4JavaException, URISyntaxException {
+		if (this.maxIdleConnections > 0) {
+			Deque<IdleConnection> connections = this.idleConnections.get(connectionKey(cmdEnv));
+			IdleConnection idle;
+			while (connections != null && (idle = connections.pollLast()) != null) {
+				this.idleCount.decrementAndGet();
+				if (idle.server.isConnected()
+						&& (System.currentTimeMillis() - idle.idleSince) <= this.maxIdleMillis) {
+					idle.server.setCurrentClient(cmdEnv.getServer().getCurrentClient());
+					stats.connectionsReused.incrementAndGet();
+					return idle.server;
+				}
+				disconnectQuietly(idle.server);
+			}
+		}
+		IOptionsServer server = openConnection(cmdEnv);
+		stats.connectionsOpened.incrementAndGet();
+		return server;
+	}
+
+	/**
+	 * Return a worker connection after a transmit; it's kept for reuse if
+	 * the transmit succeeded and there's room, and disconnected otherwise.
+	 */
+	protected void releaseConnection(CommandEnv cmdEnv, IOptionsServer server, boolean reusable) {
+		if (reusable && server.isConnected()) {
+			if (this.idleCount.incrementAndGet() <= this.maxIdleConnections) {
+				String key = connectionKey(cmdEnv);
+				Deque<IdleConnection> connections = this.idleConnections.get(key);
+				if (connections == null) {
+					this.idleConnections.putIfAbsent(key, new ConcurrentLinkedDeque<IdleConnection>());
+					connections = this.idleConnections.get(key);
+				}
+				connections.addLast(new IdleConnection(server));
+				evictExpired();
+				return;
+			}
+			this.idleCount.decrementAndGet();
+		}
+		disconnectQuietly(server);
+	}
+
+	/**
+	 * Report a failed transmit to the originating command as an error message.
+	 */
+	protected void reportFailure(CommandEnv cmdEnv, int thread, Throwable failure) {
+		Log.error("parallel transfer " + thread + " failed: " + failure.getLocalizedMessage());
+		Log.exception(failure);
+		String reason = failure.getLocalizedMessage() != null
+				? failure.getLocalizedMessage() : failure.getClass().getSimpleName();
+		cmdEnv.handleResult(new RpcMessage(
+				ClientMessageId.PARALLEL_TRANSFER_FAILED,
+				MessageSeverityCode.E_FAILED,
+				MessageGenericCode.EV_CLIENT,
+				new String[] {String.valueOf(thread), reason}).toMap());
+	}
+
+	private void evictExpired() {
+		long now = System.currentTimeMillis();
+		for (Deque<IdleConnection> connections : this.idleConnections.values()) {
+			Iterator<IdleConnection> iter = connections.iterator();
+			while (iter.hasNext()) {
+				IdleConnection idle = iter.next();
+				if ((now - idle.idleSince) > this.maxIdleMillis && connections.remove(idle)) {
+					this.idleCount.decrementAndGet();
+					disconnectQuietly(idle.server);
+				}
+			}
+		}
+	}
+
+	private static String connectionKey(CommandEnv cmdEnv) {
+		RpcServer origin = cmdEnv.getServer();
+		return origin.getServerAddressDetails().getUri()
+				+ "\n" + origin.getUserName()
+				+ "\n" + (origin.getCurrentClient() != null ? origin.getCurrentClient().getName() : "")
+				+ "\n" + origin.getWorkingDirectory()
+				+ "\n" + origin.getAuthTicket();
+	}
+
+	private static void disconnectQuietly(IOptionsServer server) {
+		if (server != null && server.isConnected()) {
+			try {
+				server.disconnect();
+			} catch (P4JavaException exc) {
+				Log.warn("error disconnecting parallel transfer connection: " + exc.getLocalizedMessage());
+			}
+		}
+	}
+
+	private WorkerStats statsFor(int thread) {
+		WorkerStats stats = this.workerStats.get(thread);
+		if (stats == null) {
+			this.workerStats.putIfAbsent(thread, new WorkerStats(thread));
+			stats = this.workerStats.get(thread);
+		}
+		return stats;
+	}
+
+	/**
+	 * Cumulative statistics for one worker slot (the n'th transmit of each call).
+	 */
+	public static class WorkerStats {
+		private final int thread;
+
+		public AtomicLong transmits = new AtomicLong();
+		public AtomicLong failures = new AtomicLong();
+		public AtomicLong results = new AtomicLong();
+		public AtomicLong bytesSent = new AtomicLong();
+		public AtomicLong bytesRecv = new AtomicLong();
+		public AtomicLong busyTime = new AtomicLong();
+		public AtomicLong connectionsOpened = new AtomicLong();
+		public AtomicLong connectionsReused = new AtomicLong();
+
+		public WorkerStats(int thread) {
+			this.thread = thread;
+		}
+
+		public int getThread() {
+			return this.thread;
+		}
+
+		/**
+		 * Returns the bytes sent and received per second of busy time, or
+		 * zero if the worker hasn't done anything yet.
+		 */
+		public long getBytesPerSecond() {
+			long busy = this.busyTime.get();
+			if (busy <= 0) {
+				return 0;
+			}
+			return (this.bytesSent.get() + this.bytesRecv.get()) * 1000 / busy;
+		}
+
+		@Override
+		public String toString() {
+			return "worker " + this.thread
+					+ ": transmits=" + this.transmits
+					+ ", failures=" + this.failures
+					+ ", results=" + this.results
+					+ ", bytesSent=" + this.bytesSent
+					+ ", bytesRecv=" + this.bytesRecv
+					+ ", busyTime=" + this.busyTime + "ms"
+					+ ", connectionsOpened=" + this.connectionsOpened
+					+ ", connectionsReused=" + this.connectionsReused;
+		}
+	}
+
+	/**
+	 * Holds on to the connections of one transmit() call's workers until all
+	 * of them are done, then releases them together. Releasing each as soon
+	 * as its worker finished would let a sibling worker that's still
+	 * acquiring its connection pick it up, and run its transmit after the
+	 * first one instead of alongside it.
+	 */
+	private class ConnectionGroup {
+		private final CommandEnv cmdEnv;
+		private final AtomicInteger remaining;
+		private final List<IOptionsServer> reusable = new ArrayList<IOptionsServer>();
+
+		ConnectionGroup(CommandEnv cmdEnv, int workers) {
+			this.cmdEnv = cmdEnv;
+			this.remaining = new AtomicInteger(workers);
+		}
+
+		/**
+		 * Called once by each worker when it's done, before it posts
+		 * WORKER_DONE; the last one releases the group's connections.
+		 *
+		 * @param server the worker's connection, or null if it didn't get one
+		 * @param reusable whether the connection may be kept for reuse
+		 */
+		void workerDone(IOptionsServer server, boolean reusable) {
+			if (server != null) {
+				if (reusable) {
+					synchronized (this.reusable) {
+						this.reusable.add(server);
 					}
+				} else {
+					releaseConnection(this.cmdEnv, server, false);
+				}
+			}
+			if (this.remaining.decrementAndGet() == 0) {
+				synchronized (this.reusable) {
+					for (IOptionsServer held : this.reusable) {
+						releaseConnection(this.cmdEnv, held, true);
+					}
+					this.reusable.clear();
 				}
 			}
 		}
-		return new RunnableSync();
 	}
 
 	/**
-	 * Handles results on a per thread basis
-	 *
-	 * @param results
-	 * @param cmdEnv
+	 * Runs a single "transmit" on a worker connection, queueing its results
+	 * for the originating command.
 	 */
-	private synchronized void handleResults(Map<String, Object>[] results, CommandEnv cmdEnv) {
-		if (results != null) {
-			for (Map<String, Object> item : results) {
-				cmdEnv.handleResult(item);
+	private class TransmitWorker implements Runnable, IStreamingCallback {
+		private final CommandEnv cmdEnv;
+		private final int thread;
+		private final List<String> args;
+		private final BlockingQueue<Object> results;
+		private final ConnectionGroup connections;
+		private final WorkerStats stats;
+		private volatile Throwable failure = null;
+
+		TransmitWorker(CommandEnv cmdEnv, int thread, List<String> args, BlockingQueue<Object> results,
+				ConnectionGroup connections) {
+			this.cmdEnv = cmdEnv;
+			this.thread = thread;
+			this.args = args;
+			this.results = results;
+			this.connections = connections;
+			this.stats = statsFor(thread);
+		}
+
+		@Override
+		public void run() {
+			long start = System.currentTimeMillis();
+			IOptionsServer server = null;
+			ServerStats serverStats = null;
+			long sentBefore = 0;
+			long recvBefore = 0;
+			this.stats.transmits.incrementAndGet();
+			try {
+				server = acquireConnection(this.cmdEnv, this.stats);
+				if (server instanceof RpcServer) {
+					serverStats = ((RpcServer) server).getServerStats();
+				}
+				if (serverStats != null) {
+					sentBefore = serverStats.totalBytesSent.get();
+					recvBefore = serverStats.totalBytesRecv.get();
+				}
+				server.execStreamingMapCommand("transmit", this.args.toArray(new String[this.args.size()]),
+						null, this, this.thread);
+			} catch (Throwable thr) {
+				this.failure = thr;
+				this.stats.failures.incrementAndGet();
+			} finally {
+				if (serverStats != null) {
+					this.stats.bytesSent.addAndGet(serverStats.totalBytesSent.get() - sentBefore);
+					this.stats.bytesRecv.addAndGet(serverStats.totalBytesRecv.get() - recvBefore);
+				}
+				this.connections.workerDone(server, this.failure == null);
+				this.stats.busyTime.addAndGet(System.currentTimeMillis() - start);
+				this.results.add(WORKER_DONE);
 			}
 		}
+
+		@Override
+		public boolean startResults(int key) throws P4JavaException {
+			return true;
+		}
+
+		@Override
+		public boolean endResults(int key) throws P4JavaException {
+			return true;
+		}
+
+		@Override
+		public boolean handleResult(Map<String, Object> resultMap, int key) throws P4JavaException {
+			this.stats.results.incrementAndGet();
+			this.results.add(resultMap);
+			return !this.cmdEnv.isUserCanceled();
+		}
+	}
+
+	private static class IdleConnection {
+		private final IOptionsServer server;
+		private final long idleSince;
+
+		IdleConnection(IOptionsServer server) {
+			this.server = requireNonNull(server);
+			this.idleSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Lazily-created pool shared by all instances that don't supply their own
+	 * executor; its threads are daemons, so it never holds up JVM exit.
+	 */
+	private static class SharedExecutorHolder {
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 }
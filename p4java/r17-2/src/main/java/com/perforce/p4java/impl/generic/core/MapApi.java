@@ -0,0 +1,508 @@
+package com.perforce.p4java.impl.generic.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.IMapEntry.EntryType;
+import com.perforce.p4java.core.ViewMap;
+
+/**
+ * A compiled Perforce view map, able to translate paths from one side of
+ * the map to the other and to test whether a path is mapped, without going
+ * to the server (i.e. what "p4 where" does for a client view).<p>
+ *
+ * The usual view semantics apply:
+ * <ul>
+ * <li>"..." matches any sequence of characters, including '/'; "*" and
+ * "%%n" (n = 0 to 9) match any sequence of characters other than '/'.
+ * "*" and "..." on one side are paired in order with those on the other;
+ * "%%n" are paired by number, so may be reordered.</li>
+ * <li>Later lines take precedence over earlier ones. A path is mapped by
+ * the last line whose source side matches it, unless that line is an
+ * exclusion ("-"), or the translated path is taken by (or excluded on) the
+ * target side of a later line.</li>
+ * <li>Overlay ("+") lines map in the same way, but don't take target-side
+ * paths away from earlier lines when translating left to right, so several
+ * left-hand paths can map to the same right-hand path; translating right to
+ * left gives the last of them.</li>
+ * </ul>
+ * One-sided entries (such as a stream's paths, or the mapTable the server
+ * sends with reconcile) map each path to itself.<p>
+ *
+ * Lines are indexed by the literal text before their first wildcard, so a
+ * translation only looks at the lines that could match; instances are
+ * immutable and may be shared between threads.
+ */
+public class MapApi {
+
+	/**
+	 * Translation direction: left to right is, for example, depot to client
+	 * for a client view.
+	 */
+	public enum Direction {
+		LEFT_TO_RIGHT,
+		RIGHT_TO_LEFT
+	}
+
+	private final boolean caseSensitive;
+	private final MapLine[] lines;
+	private final PrefixIndex leftIndex;
+	private final PrefixIndex rightIndex;
+
+	/**
+	 * Compile the passed-in view map.
+	 *
+	 * @param viewMap non-null view map.
+	 * @param caseSensitive whether paths are compared case-sensitively; this
+	 * 			should follow the server's case handling.
+	 * @throws IllegalArgumentException if an entry's wildcards don't match
+	 * 			on the two sides.
+	 */
+	public MapApi(ViewMap<? extends IMapEntry> viewMap, boolean caseSensitive) {
+		this(viewMap.getEntryList(), caseSensitive);
+	}
+
+	/**
+	 * Compile the passed-in view map entries, in order.
+	 *
+	 * @see #MapApi(ViewMap, boolean)
+	 */
+	public MapApi(List<? extends IMapEntry> entries, boolean caseSensitive) {
+		this.caseSensitive = caseSensitive;
+		List<MapLine> mapLines = new ArrayList<MapLine>(entries.size());
+		for (IMapEntry entry : entries) {
+			if (entry != null && entry.getLeft() != null) {
+				mapLines.add(new MapLine(entry, caseSensitive));
+			}
+		}
+		this.lines = mapLines.toArray(new MapLine[mapLines.size()]);
+		this.leftIndex = new PrefixIndex();
+		this.rightIndex = new PrefixIndex();
+		for (int i = 0; i < this.lines.length; i++) {
+			this.leftIndex.add(this.lines[i].left.prefix, i);
+			this.rightIndex.add(this.lines[i].right.prefix, i);
+		}
+	}
+
+	/**
+	 * Return the number of lines in the map.
+	 */
+	public int getSize() {
+		return this.lines.length;
+	}
+
+	public boolean isCaseSensitive() {
+		return this.caseSensitive;
+	}
+
+	/**
+	 * Translate a path from one side of the map to the other.
+	 *
+	 * @param path path in the source side's syntax; if null, null is returned.
+	 * @param direction direction to translate in.
+	 * @return the translated path, or null if the path isn't mapped.
+	 */
+	public String translate(String path, Direction direction) {
+		if (path == null) {
+			return null;
+		}
+		boolean leftToRight = direction != Direction.RIGHT_TO_LEFT;
+		PrefixIndex sourceIndex = leftToRight ? this.leftIndex : this.rightIndex;
+		int[] candidates = sourceIndex.candidates(path, this.caseSensitive);
+
+		// Last matching line first
+		for (int c = candidates.length - 1; c >= 0; c--) {
+			MapLine line = this.lines[candidates[c]];
+			MapPattern source = leftToRight ? line.left : line.right;
+			int[] captures = source.match(path);
+			if (captures == null) {
+				continue;
+			}
+			if (line.type == EntryType.EXCLUDE) {
+				return null;
+			}
+			MapPattern target = leftToRight ? line.right : line.left;
+			String translated = target.substitute(path, captures, line.wildcardMap(leftToRight));
+			if (isTakenByLaterLine(translated, candidates[c], leftToRight)) {
+				return null;
+			}
+			return translated;
+		}
+		return null;
+	}
+
+	/**
+	 * Translate a number of paths in one go; the result has a translated
+	 * path (or null) for each passed-in path, in the same order.
+	 */
+	public String[] translate(List<String> paths, Direction direction) {
+		String[] translated = new String[paths.size()];
+		int i = 0;
+		for (String path : paths) {
+			translated[i++] = translate(path, direction);
+		}
+		return translated;
+	}
+
+	/**
+	 * Return true if the passed-in path is mapped, i.e. if it's in the
+	 * source side of the map for the passed-in direction.
+	 */
+	public boolean includes(String path, Direction direction) {
+		return translate(path, direction) != null;
+	}
+
+	/**
+	 * Test a number of paths in one go; the result has an entry for each
+	 * passed-in path, in the same order.
+	 */
+	public boolean[] includes(List<String> paths, Direction direction) {
+		boolean[] included = new boolean[paths.size()];
+		int i = 0;
+		for (String path : paths) {
+			included[i++] = includes(path, direction);
+		}
+		return included;
+	}
+
+	/**
+	 * Check whether a later line claims the passed-in translated path on the
+	 * target side. Left to right, overlay lines don't count; right to left,
+	 * a later line of any kind takes precedence.
+	 */
+	private boolean isTakenByLaterLine(String translated, int lineIndex, boolean leftToRight) {
+		PrefixIndex targetIndex = leftToRight ? this.rightIndex : this.leftIndex;
+		int[] candidates = targetIndex.candidates(translated, this.caseSensitive);
+		for (int c = candidates.length - 1; c >= 0 && candidates[c] > lineIndex; c--) {
+			MapLine later = this.lines[candidates[c]];
+			if (leftToRight && later.type == EntryType.OVERLAY) {
+				continue;
+			}
+			MapPattern target = leftToRight ? later.right : later.left;
+			if (target.match(translated) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static char fold(char c, boolean caseSensitive) {
+		return caseSensitive ? c : Character.toLowerCase(c);
+	}
+
+	/**
+	 * Fold a string a character at a time, so its length doesn't change.
+	 */
+	private static String fold(String str, boolean caseSensitive) {
+		if (caseSensitive) {
+			return str;
+		}
+		char[] chars = str.toCharArray();
+		for (int i = 0; i < chars.length; i++) {
+			chars[i] = Character.toLowerCase(chars[i]);
+		}
+		return new String(chars);
+	}
+
+	/**
+	 * One compiled map line.
+	 */
+	private static class MapLine {
+		private final EntryType type;
+		private final MapPattern left;
+		private final MapPattern right;
+		/** For each left wildcard, the index of the right wildcard it pairs with. */
+		private final int[] leftToRightWildcards;
+		/** For each right wildcard, the index of the left wildcard it pairs with. */
+		private final int[] rightToLeftWildcards;
+
+		MapLine(IMapEntry entry, boolean caseSensitive) {
+			this.type = entry.getType() == null ? EntryType.INCLUDE : entry.getType();
+			this.left = new MapPattern(entry.getLeft(), caseSensitive);
+			this.right = entry.getRight() == null ? this.left : new MapPattern(entry.getRight(), caseSensitive);
+			this.leftToRightWildcards = pairWildcards(this.left, this.right, entry);
+			this.rightToLeftWildcards = pairWildcards(this.right, this.left, entry);
+		}
+
+		int[] wildcardMap(boolean leftToRight) {
+			// Maps each target wildcard to the source capture it takes
+			return leftToRight ? this.rightToLeftWildcards : this.leftToRightWildcards;
+		}
+
+		/**
+		 * For each wildcard in 'from', find the matching wildcard in 'to':
+		 * the n'th "*" or "..." pairs with the n'th in the other side, and
+		 * "%%n" pairs with the same "%%n".
+		 */
+		private static int[] pairWildcards(MapPattern from, MapPattern to, IMapEntry entry) {
+			int[] pairs = new int[from.wildcards.length];
+			for (int i = 0; i < from.wildcards.length; i++) {
+				int kind = from.wildcards[i];
+				int pair = -1;
+				if (kind >= MapPattern.POSITIONAL) {
+					for (int j = 0; j < to.wildcards.length; j++) {
+						if (to.wildcards[j] == kind) {
+							pair = j;
+							break;
+						}
+					}
+				} else {
+					int ordinal = from.ordinals[i];
+					for (int j = 0; j < to.wildcards.length; j++) {
+						if (to.wildcards[j] < MapPattern.POSITIONAL && to.ordinals[j] == ordinal) {
+							pair = to.wildcards[j] == kind ? j : -1;
+							break;
+						}
+					}
+				}
+				if (pair < 0) {
+					throw new IllegalArgumentException("Wildcards don't match in view map entry '"
+							+ entry + "'");
+				}
+				pairs[i] = pair;
+			}
+			return pairs;
+		}
+	}
+
+	/**
+	 * One side of a map line, compiled to a sequence of literals and
+	 * wildcards.
+	 */
+	private static class MapPattern {
+		private static final int LITERAL = 0;
+		private static final int STAR = 1;
+		private static final int DOTS = 2;
+		/** "%%n" is POSITIONAL + n. */
+		private static final int POSITIONAL = 10;
+
+		private final boolean caseSensitive;
+		/** Token kinds; LITERAL tokens have their text in 'texts'. */
+		private final int[] tokens;
+		/** Literal text as written, for building translated paths. */
+		private final String[] texts;
+		/** Literal text folded for matching. */
+		private final String[] literals;
+		/** Kind of each wildcard, in order. */
+		private final int[] wildcards;
+		/** Ordinal of each "*" or "..." wildcard among those two kinds. */
+		private final int[] ordinals;
+		/** Folded literal text before the first wildcard. */
+		private final String prefix;
+
+		MapPattern(String pattern, boolean caseSensitive) {
+			this.caseSensitive = caseSensitive;
+			List<Integer> tokenList = new ArrayList<Integer>();
+			List<String> textList = new ArrayList<String>();
+			List<Integer> wildcardList = new ArrayList<Integer>();
+			StringBuilder literal = new StringBuilder();
+			int i = 0;
+			while (i < pattern.length()) {
+				int wildcard = -1;
+				int length = 0;
+				if (pattern.startsWith("...", i)) {
+					wildcard = DOTS;
+					length = 3;
+				} else if (pattern.charAt(i) == '*') {
+					wildcard = STAR;
+					length = 1;
+				} else if (pattern.startsWith("%%", i) && i + 2 < pattern.length()
+						&& Character.isDigit(pattern.charAt(i + 2))) {
+					wildcard = POSITIONAL + (pattern.charAt(i + 2) - '0');
+					length = 3;
+				}
+				if (wildcard < 0) {
+					literal.append(pattern.charAt(i));
+					i++;
+					continue;
+				}
+				if (literal.length() > 0) {
+					tokenList.add(LITERAL);
+					textList.add(literal.toString());
+					literal.setLength(0);
+				}
+				tokenList.add(wildcard);
+				textList.add(null);
+				wildcardList.add(wildcard);
+				i += length;
+			}
+			if (literal.length() > 0) {
+				tokenList.add(LITERAL);
+				textList.add(literal.toString());
+			}
+
+			this.tokens = new int[tokenList.size()];
+			for (int t = 0; t < this.tokens.length; t++) {
+				this.tokens[t] = tokenList.get(t);
+			}
+			this.texts = textList.toArray(new String[textList.size()]);
+			this.literals = new String[this.texts.length];
+			for (int t = 0; t < this.texts.length; t++) {
+				this.literals[t] = this.texts[t] == null ? null : fold(this.texts[t], caseSensitive);
+			}
+			this.wildcards = new int[wildcardList.size()];
+			this.ordinals = new int[wildcardList.size()];
+			int ordinal = 0;
+			for (int w = 0; w < this.wildcards.length; w++) {
+				this.wildcards[w] = wildcardList.get(w);
+				this.ordinals[w] = this.wildcards[w] < POSITIONAL ? ordinal++ : -1;
+			}
+			this.prefix = this.tokens.length > 0 && this.tokens[0] == LITERAL ? this.literals[0] : "";
+		}
+
+		/**
+		 * Match the whole of the passed-in path; returns the start and end of
+		 * each wildcard's match (two entries per wildcard), or null if the
+		 * path doesn't match.
+		 */
+		int[] match(String path) {
+			int[] captures = new int[this.wildcards.length * 2];
+			return match(path, 0, 0, 0, captures) ? captures : null;
+		}
+
+		private boolean match(String path, int pos, int token, int wildcard, int[] captures) {
+			if (token == this.tokens.length) {
+				return pos == path.length();
+			}
+			int kind = this.tokens[token];
+			if (kind == LITERAL) {
+				String literal = this.literals[token];
+				if (!regionMatches(path, pos, literal)) {
+					return false;
+				}
+				return match(path, pos + literal.length(), token + 1, wildcard, captures);
+			}
+
+			// Wildcards match as much as possible, backing off as needed
+			int limit = path.length();
+			if (kind != DOTS) {
+				int slash = path.indexOf('/', pos);
+				if (slash >= 0) {
+					limit = slash;
+				}
+			}
+			for (int end = limit; end >= pos; end--) {
+				if (match(path, end, token + 1, wildcard + 1, captures)) {
+					captures[wildcard * 2] = pos;
+					captures[wildcard * 2 + 1] = end;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean regionMatches(String path, int pos, String literal) {
+			if (pos + literal.length() > path.length()) {
+				return false;
+			}
+			for (int i = 0; i < literal.length(); i++) {
+				if (fold(path.charAt(pos + i), this.caseSensitive) != literal.charAt(i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Build a path from this pattern, filling its wildcards from another
+		 * side's captures (taken from the original, unfolded, source path).
+		 */
+		String substitute(String sourcePath, int[] sourceCaptures, int[] wildcardSources) {
+			StringBuilder result = new StringBuilder(sourcePath.length() + 16);
+			int wildcard = 0;
+			for (int t = 0; t < this.tokens.length; t++) {
+				if (this.tokens[t] == LITERAL) {
+					result.append(this.texts[t]);
+				} else {
+					int source = wildcardSources[wildcard++];
+					result.append(sourcePath, sourceCaptures[source * 2], sourceCaptures[source * 2 + 1]);
+				}
+			}
+			return result.toString();
+		}
+	}
+
+	/**
+	 * Character trie over the lines' literal prefixes; looking up a path
+	 * returns (in line order) the lines whose prefix is a prefix of the path.
+	 */
+	private static class PrefixIndex {
+		private final Node root = new Node();
+
+		void add(String prefix, int line) {
+			Node node = this.root;
+			for (int i = 0; i < prefix.length(); i++) {
+				node = node.child(prefix.charAt(i), true);
+			}
+			node.addLine(line);
+		}
+
+		int[] candidates(String path, boolean caseSensitive) {
+			int[] found = new int[8];
+			int count = 0;
+			Node node = this.root;
+			int i = 0;
+			while (node != null) {
+				if (node.lineCount > 0) {
+					if (count + node.lineCount > found.length) {
+						found = Arrays.copyOf(found, Math.max(found.length * 2, count + node.lineCount));
+					}
+					System.arraycopy(node.lines, 0, found, count, node.lineCount);
+					count += node.lineCount;
+				}
+				if (i == path.length()) {
+					break;
+				}
+				node = node.child(fold(path.charAt(i++), caseSensitive), false);
+			}
+			int[] candidates = Arrays.copyOf(found, count);
+			Arrays.sort(candidates);
+			return candidates;
+		}
+
+		private static class Node {
+			/** Child keys, sorted, and the corresponding children. */
+			private char[] keys = null;
+			private Node[] children = null;
+			private int[] lines = null;
+			private int lineCount = 0;
+
+			Node child(char c, boolean create) {
+				int i = this.keys == null ? -1 : Arrays.binarySearch(this.keys, c);
+				if (i >= 0) {
+					return this.children[i];
+				}
+				if (!create) {
+					return null;
+				}
+				int insert = this.keys == null ? 0 : -(i + 1);
+				int length = this.keys == null ? 0 : this.keys.length;
+				char[] newKeys = new char[length + 1];
+				Node[] newChildren = new Node[length + 1];
+				if (length > 0) {
+					System.arraycopy(this.keys, 0, newKeys, 0, insert);
+					System.arraycopy(this.children, 0, newChildren, 0, insert);
+					System.arraycopy(this.keys, insert, newKeys, insert + 1, length - insert);
+					System.arraycopy(this.children, insert, newChildren, insert + 1, length - insert);
+				}
+				Node child = new Node();
+				newKeys[insert] = c;
+				newChildren[insert] = child;
+				this.keys = newKeys;
+				this.children = newChildren;
+				return child;
+			}
+
+			void addLine(int line) {
+				if (this.lines == null) {
+					this.lines = new int[2];
+				} else if (this.lineCount == this.lines.length) {
+					this.lines = Arrays.copyOf(this.lines, this.lineCount * 2);
+				}
+				this.lines[this.lineCount++] = line;
+			}
+		}
+	}
+}
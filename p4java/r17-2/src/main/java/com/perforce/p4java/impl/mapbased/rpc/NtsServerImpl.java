@@ -17,6 +17,7 @@ import com.perforce.p4java.impl.generic.core.TempFileInputStream;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
+import com.perforce.p4java.impl.mapbased.rpc.func.proto.FlowControl;
 import com.perforce.p4java.impl.mapbased.rpc.func.proto.ProtocolCommand;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
@@ -24,6 +25,7 @@ import com.perforce.p4java.impl.mapbased.rpc.stream.RpcStreamConnection;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
 import com.perforce.p4java.impl.mapbased.server.ServerAddressBuilder;
 import com.perforce.p4java.option.UsageOptions;
+import com.perforce.p4java.server.BatchCommand;
 import com.perforce.p4java.server.CmdSpec;
 import com.perforce.p4java.server.IServerAddress;
 import com.perforce.p4java.server.IServerAddress.Protocol;
@@ -36,11 +38,19 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.BufferOverflowException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 /**
  * NTS (non-thread-safe) version of the P4Java RPC implementation.<p>
@@ -97,8 +107,18 @@ public class NtsServerImpl extends RpcServer {
 	 */
 	public static final String TRACE_PREFIX = "NtsServerImpl";
 	
+	/**
+	 * Output-only commands that never need the client to reply mid-command,
+	 * and so can be sent ahead of earlier commands' results in a batch.
+	 */
+	protected static final Set<String> PIPELINED_COMMANDS = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(
+					"branches", "changes", "clients", "counters", "depots", "describe",
+					"dirs", "filelog", "files", "fixes", "fstat", "groups", "have",
+					"info", "jobs", "labels", "opened", "streams", "users", "where")));
+	
 	private boolean currentUseTags = true;
-	private boolean haveSentProtocolSpecs = false;
+	protected boolean haveSentProtocolSpecs = false;
 	protected ProtocolCommand protocolSpecs = null;
 	
 	protected RpcPacketDispatcher dispatcher = null;
@@ -280,6 +300,12 @@ public class NtsServerImpl extends RpcServer {
 			IParallelCallback parallelCallback) throws P4JavaException {
 		return this.execMapCmdList(cmdName, cmdArgs, null, null, true, null, 0, filterCallback, parallelCallback);
 	}
+
+	@Override
+	public List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs, Map<String, Object> inMap,
+			IFilterCallback filterCallback, IParallelCallback parallelCallback) throws P4JavaException {
+		return this.execMapCmdList(cmdName, cmdArgs, inMap, null, false, null, 0, filterCallback, parallelCallback);
+	}
 	
 	/**
 	 * @see com.perforce.p4java.impl.mapbased.server.Server#execInputStringStreamingMapComd(java.lang.String, java.lang.String[], java.lang.String, com.perforce.p4java.server.callback.IStreamingCallback, int)
@@ -309,7 +335,7 @@ public class NtsServerImpl extends RpcServer {
 				throws ConnectionException, AccessException, RequestException {
 		List<Map<String, Object>> results = execMapCmdList(cmdName, cmdArgs, inMap, inString, ignoreCallbacks, callback, callbackKey, filterCallback, null);
 		if (results != null) {
-			return results.toArray(new HashMap[results.size()]);
+			return results.toArray(new Map[results.size()]);
 		}
 		
 		return null;
@@ -324,75 +350,10 @@ public class NtsServerImpl extends RpcServer {
 		CommandEnv cmdEnv = null;
 		
 		try {
-			int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
 			long startTime = System.currentTimeMillis();
-			if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
-				ClientLineEnding.convertMap(inMap);
-			}
-			ExternalEnv env = setupCmd(cmdName.toLowerCase(Locale.ENGLISH), cmdArgs, inMap, ignoreCallbacks, cmdCallBackKey, false);
-			cmdEnv = new CommandEnv(
-					this,
-					new RpcCmdSpec(
-							cmdName,
-							cmdArgs,
-							getAuthTicket(),
-							inMap,
-							inString,
-							env),
-					this.rpcConnection,
-					this.protocolSpecs,
-					this.serverProtocolMap,
-					this.progressCallback,
-					cmdCallBackKey,
-					writeInPlace(cmdName),
-					this.isNonCheckedSyncs());
-			cmdEnv.setDontWriteTicket(isDontWriteTicket(cmdName.toLowerCase(Locale.ENGLISH), cmdArgs));
-			cmdEnv.setFieldRule(getRpcPacketFieldRule(inMap, CmdSpec.getValidP4JCmdSpec(cmdName)));
-			cmdEnv.setStreamingCallback(callback);
-			cmdEnv.setStreamingCallbackKey(callbackKey);
-			cmdEnv.setFilterCallback(filterCallback);
-			cmdEnv.setParallelCallback(parallelCallback);
-			if (callback != null) {
-				try {
-					callback.startResults(callbackKey);
-				} catch (P4JavaException exc) {
-					Log.error("streaming callback startResults method threw exception: " + exc.getLocalizedMessage());
-					Log.exception(exc);
-				}
-			}
-			List<Map<String, Object>> resultMaps = this.dispatcher.dispatch(cmdEnv);
-			long endTime = System.currentTimeMillis();
-			if (callback != null) {
-				try {
-					callback.endResults(callbackKey);
-				} catch (P4JavaException exc) {
-					Log.error("streaming callback endResults method threw exception: " + exc.getLocalizedMessage());
-					Log.exception(exc);
-				}
-			}
-			
-			// Check if currently case sensitive so the map search for the no
-			// case key is only performed when necessary. Once a server is
-			// marked as case insensitive this check will never look at the
-			// server protocol specs map.
-			if (this.caseSensitive
-					&& cmdEnv.getServerProtocolSpecsMap().containsKey(
-							RpcFunctionMapKey.NOCASE)) {
-				this.caseSensitive = false;
-			}
-
-			if (!ignoreCallbacks && (this.commandCallback != null)) {
-				this.processCmdCallbacks(cmdCallBackKey, endTime - startTime, resultMaps);
-			}
-			
-			// Close RPC output stream
-			RpcOutputStream outStream = (RpcOutputStream) cmdEnv.getStateMap().get(
-					RpcServer.RPC_TMP_OUTFILE_STREAM_KEY);
-			if (outStream != null) {
-				outStream.close();
-			}
-			
-			return resultMaps;
+			cmdEnv = startMapCmd(cmdName, cmdArgs, inMap, inString, ignoreCallbacks,
+					callback, callbackKey, filterCallback, parallelCallback);
+			return finishMapCmd(cmdEnv, ignoreCallbacks, startTime);
 			
 		} catch (BufferOverflowException exc) {
 			Log.error("RPC Buffer overflow: " + exc.getLocalizedMessage());
@@ -425,6 +386,247 @@ public class NtsServerImpl extends RpcServer {
 		}
 	}
 	
+	/**
+	 * Set up a map command and send it to the server, returning the command
+	 * environment that finishMapCmd uses to process the server's response.
+	 */
+	protected CommandEnv startMapCmd(String cmdName,
+			String[] cmdArgs, Map<String, Object> inMap, String inString, boolean ignoreCallbacks,
+			IStreamingCallback callback, int callbackKey, IFilterCallback filterCallback,
+			IParallelCallback parallelCallback)
+				throws ConnectionException, AccessException, RequestException {
+		
+		int cmdCallBackKey = this.nextCmdCallBackKey.incrementAndGet();
+		if (inMap != null && ClientLineEnding.CONVERT_TEXT) {
+			ClientLineEnding.convertMap(inMap);
+		}
+		ExternalEnv env = setupCmd(cmdName.toLowerCase(Locale.ENGLISH), cmdArgs, inMap, ignoreCallbacks, cmdCallBackKey, false);
+		CommandEnv cmdEnv = new CommandEnv(
+				this,
+				new RpcCmdSpec(
+						cmdName,
+						cmdArgs,
+						getAuthTicket(),
+						inMap,
+						inString,
+						env),
+				this.rpcConnection,
+				this.protocolSpecs,
+				this.serverProtocolMap,
+				this.progressCallback,
+				cmdCallBackKey,
+				writeInPlace(cmdName),
+				this.isNonCheckedSyncs());
+		cmdEnv.setDontWriteTicket(isDontWriteTicket(cmdName.toLowerCase(Locale.ENGLISH), cmdArgs));
+		cmdEnv.setFieldRule(getRpcPacketFieldRule(inMap, CmdSpec.getValidP4JCmdSpec(cmdName)));
+		cmdEnv.setStreamingCallback(callback);
+		cmdEnv.setStreamingCallbackKey(callbackKey);
+		cmdEnv.setFilterCallback(filterCallback);
+		cmdEnv.setParallelCallback(parallelCallback);
+		if (callback != null) {
+			try {
+				callback.startResults(callbackKey);
+			} catch (P4JavaException exc) {
+				Log.error("streaming callback startResults method threw exception: " + exc.getLocalizedMessage());
+				Log.exception(exc);
+			}
+		}
+		return cmdEnv;
+	}
+	
+	/**
+	 * Process the server's response to a command sent by startMapCmd,
+	 * returning its results once the server has released the command.
+	 */
+	protected List<Map<String, Object>> finishMapCmd(CommandEnv cmdEnv, boolean ignoreCallbacks,
+			long startTime) throws ConnectionException, AccessException, IOException {
+		
+		IStreamingCallback callback = cmdEnv.getStreamingCallback();
+		int callbackKey = cmdEnv.getStreamingCallbackKey();
+		List<Map<String, Object>> resultMaps = this.dispatcher.dispatch(cmdEnv);
+		long endTime = System.currentTimeMillis();
+		if (callback != null) {
+			try {
+				callback.endResults(callbackKey);
+			} catch (P4JavaException exc) {
+				Log.error("streaming callback endResults method threw exception: " + exc.getLocalizedMessage());
+				Log.exception(exc);
+			}
+		}
+		
+		// Check if currently case sensitive so the map search for the no
+		// case key is only performed when necessary. Once a server is
+		// marked as case insensitive this check will never look at the
+		// server protocol specs map.
+		if (this.caseSensitive
+				&& cmdEnv.getServerProtocolSpecsMap().containsKey(
+						RpcFunctionMapKey.NOCASE)) {
+			this.caseSensitive = false;
+		}
+
+		if (!ignoreCallbacks && (this.commandCallback != null)) {
+			this.processCmdCallbacks(cmdEnv.getCmdCallBackKey(), endTime - startTime, resultMaps);
+		}
+		
+		// Close RPC output stream
+		RpcOutputStream outStream = (RpcOutputStream) cmdEnv.getStateMap().get(
+				RpcServer.RPC_TMP_OUTFILE_STREAM_KEY);
+		if (outStream != null) {
+			outStream.close();
+		}
+		
+		return resultMaps;
+	}
+	
+	/**
+	 * Pipelined batch implementation. Commands in PIPELINED_COMMANDS are
+	 * sent to the server ahead of reading the results of earlier commands,
+	 * subject to the dispatcher's flow control limits (see the
+	 * RPC_BATCH_WINDOW_NICK and RPC_BATCH_HI_MARK_NICK properties); the
+	 * server still runs them strictly in order, and their responses are
+	 * dispatched in order off the one connection. Any other command waits
+	 * until everything sent before it has been answered and is then run on
+	 * its own, as the server may need the client to reply to it mid-command.
+	 * 
+	 * @see com.perforce.p4java.server.IOptionsServer#execMapCmdBatch(java.util.List)
+	 */
+	@Override
+	public List<Future<List<Map<String, Object>>>> execMapCmdBatch(List<BatchCommand> commands)
+			throws P4JavaException {
+		if (commands == null) {
+			throw new NullPointerError("Null command list passed to execMapCmdBatch");
+		}
+		if ((this.rpcConnection == null) || (this.dispatcher == null)) {
+			return super.execMapCmdBatch(commands);
+		}
+		
+		List<CompletableFuture<List<Map<String, Object>>>> futures = new ArrayList<>(commands.size());
+		for (int i = 0; i < commands.size(); i++) {
+			futures.add(new CompletableFuture<List<Map<String, Object>>>());
+		}
+		
+		FlowControl flowControl = this.dispatcher.getFlowController();
+		LinkedList<PipelinedCommand> inFlight = new LinkedList<>();
+		int next = 0;
+		
+		try {
+			while ((next < commands.size()) || !inFlight.isEmpty()) {
+				// Send as many commands ahead as flow control allows
+				while ((next < commands.size()) && isPipelinedCommand(commands.get(next).getCmdName())
+						&& flowControl.canSendPipelined()) {
+					BatchCommand command = commands.get(next);
+					long startTime = System.currentTimeMillis();
+					long bytesSentBefore = this.serverStats.totalBytesSent.get();
+					try {
+						CommandEnv cmdEnv = startMapCmd(command.getCmdName(), command.getCmdArgs(),
+								null, null, false, null, 0, command.getFilterCallback(), null);
+						long bytesSent = this.serverStats.totalBytesSent.get() - bytesSentBefore;
+						flowControl.pipelinedCommandSent(bytesSent);
+						inFlight.add(new PipelinedCommand(next, cmdEnv, startTime, bytesSent));
+					} catch (AccessException | RequestException exc) {
+						// Rejected before anything was sent
+						futures.get(next).completeExceptionally(exc);
+					}
+					next++;
+				}
+				
+				if (inFlight.isEmpty()) {
+					// Not safe to pipeline; run it on its own
+					BatchCommand command = commands.get(next);
+					try {
+						futures.get(next).complete(execMapCmdList(command.getCmdName(),
+								command.getCmdArgs(), null, null, false, null, 0,
+								command.getFilterCallback(), null));
+					} catch (AccessException | RequestException | P4JavaError exc) {
+						futures.get(next).completeExceptionally(exc);
+					}
+					next++;
+					continue;
+				}
+				
+				PipelinedCommand pending = inFlight.removeFirst();
+				try {
+					futures.get(pending.index).complete(
+							finishMapCmd(pending.cmdEnv, false, pending.startTime));
+				} catch (AccessException exc) {
+					futures.get(pending.index).completeExceptionally(exc);
+				} catch (IOException ioexc) {
+					Log.error("I/O error encountered in batched command: " + ioexc.getLocalizedMessage());
+					Log.exception(ioexc);
+					futures.get(pending.index).completeExceptionally(new RequestException(
+							"I/O error encountered in batched command: "
+							+ ioexc.getLocalizedMessage(), ioexc));
+				} finally {
+					flowControl.pipelinedCommandDone(pending.bytesSent);
+				}
+				
+				if (pending.cmdEnv.isUserCanceled()) {
+					// The rest of this command's response (and those of any
+					// commands sent after it) are still on the wire
+					flowControl.resetPipeline();
+					failRemaining(futures, new RequestException(
+							"Batched command not run: an earlier command in the batch was canceled"));
+					rpcConnection.disconnect(dispatcher);
+					try {
+						connect();
+					} catch (ConfigException cfe) {
+						this.connected = false;
+						this.status = ServerStatus.ERROR;
+						throw new ConnectionNotConnectedException(cfe);
+					}
+					break;
+				}
+			}
+		} catch (ConnectionException exc) {
+			if (exc instanceof ConnectionNotConnectedException) {
+				this.connected = false;
+				this.status = ServerStatus.ERROR;
+			}
+			flowControl.resetPipeline();
+			failRemaining(futures, exc);
+		} catch (BufferOverflowException exc) {
+			Log.error("RPC Buffer overflow: " + exc.getLocalizedMessage());
+			Log.exception(exc);
+			flowControl.resetPipeline();
+			failRemaining(futures, new P4JavaError("RPC Buffer overflow: " + exc.getLocalizedMessage(), exc));
+		}
+		
+		return new ArrayList<Future<List<Map<String, Object>>>>(futures);
+	}
+	
+	/**
+	 * Return true if the named command can safely be pipelined in a batch.
+	 */
+	protected boolean isPipelinedCommand(String cmdName) {
+		return (cmdName != null) && PIPELINED_COMMANDS.contains(cmdName.toLowerCase(Locale.ENGLISH));
+	}
+	
+	private static void failRemaining(List<CompletableFuture<List<Map<String, Object>>>> futures,
+			Throwable thr) {
+		for (CompletableFuture<List<Map<String, Object>>> future : futures) {
+			if (!future.isDone()) {
+				future.completeExceptionally(thr);
+			}
+		}
+	}
+	
+	/**
+	 * A batched command that's been sent but not yet dispatched.
+	 */
+	private static class PipelinedCommand {
+		final int index;
+		final CommandEnv cmdEnv;
+		final long startTime;
+		final long bytesSent;
+		
+		PipelinedCommand(int index, CommandEnv cmdEnv, long startTime, long bytesSent) {
+			this.index = index;
+			this.cmdEnv = cmdEnv;
+			this.startTime = startTime;
+			this.bytesSent = bytesSent;
+		}
+	}
+	
 	/**
 	 * @see com.perforce.p4java.impl.mapbased.server.Server#execStreamingMapCommand(java.lang.String, java.lang.String[], java.util.Map, com.perforce.p4java.server.callback.IStreamingCallback, int)
 	 */
@@ -12,8 +12,17 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.perforce.p4java.Log;
+import com.perforce.p4java.PropertyDefs;
 import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConfigException;
 import com.perforce.p4java.exception.ConnectionException;
@@ -34,6 +43,7 @@ import com.perforce.p4java.impl.mapbased.rpc.stream.RpcSocketPool;
 import com.perforce.p4java.impl.mapbased.rpc.stream.RpcSocketPool.ShutdownHandler;
 import com.perforce.p4java.impl.mapbased.rpc.stream.RpcStreamConnection;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcStreamPipe;
 import com.perforce.p4java.impl.mapbased.server.ServerAddress;
 import com.perforce.p4java.impl.mapbased.server.ServerAddressBuilder;
 import com.perforce.p4java.option.UsageOptions;
@@ -142,7 +152,7 @@ public class OneShotServerImpl extends RpcServer {
 				}
 			};
 			this.socketPool = new RpcSocketPool(poolSize, this.serverHost,
-					this.serverPort, this.props, handler, this.secure);
+					this.serverPort, this.props, handler, this.secure, this.serverStats);
 		}
 		
 		return status;
@@ -261,6 +271,12 @@ public class OneShotServerImpl extends RpcServer {
 			IParallelCallback parallelCallback) throws P4JavaException {
 		return this.execMapCmdList(cmdName, cmdArgs, null, null, true, null, 0, filterCallback, parallelCallback);
 	}
+
+	@Override
+	public List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs, Map<String, Object> inMap,
+			IFilterCallback filterCallback, IParallelCallback parallelCallback) throws P4JavaException {
+		return this.execMapCmdList(cmdName, cmdArgs, inMap, null, false, null, 0, filterCallback, parallelCallback);
+	}
 	
 	/**
 	 * @see com.perforce.p4java.impl.mapbased.server.Server#execInputStringStreamingMapComd(java.lang.String, java.lang.String[], java.lang.String, com.perforce.p4java.server.callback.IStreamingCallback, int)
@@ -291,7 +307,7 @@ public class OneShotServerImpl extends RpcServer {
 		
 		List<Map<String, Object>> results = execMapCmdList(cmdName, cmdArgs, inMap, inString, ignoreCallbacks, callback, callbackKey, null, null);
 		if (results != null) {
-			return results.toArray(new HashMap[results.size()]);
+			return results.toArray(new Map[results.size()]);
 		}
 		
 		return null;
@@ -482,12 +498,20 @@ public class OneShotServerImpl extends RpcServer {
 	/**
 	 * Note that this method does the access / request exception processing here rather
 	 * than passing things up the stack; we may introduce an extended version of this
-	 * method to take the map array as an output parameter in later releases.
+	 * method to take the map array as an output parameter in later releases.<p>
+	 *
+	 * If the RPC_STREAM_CMD_BUFFER_SIZE_NICK property is set, the command runs
+	 * in the background and the stream is returned as soon as output starts
+	 * arriving. Errors reported before then are thrown here as usual; errors
+	 * reported after it are thrown by the stream as IOExceptions once the
+	 * output before them has been read.
 	 */
 	protected InputStream execStreamCmd(String cmdName, String[] cmdArgs, Map<String, Object> inMap, String inString, boolean ignoreCallbacks)
 						throws ConnectionException, RequestException, AccessException {
 		RpcPacketDispatcher dispatcher = null;
 		RpcConnection rpcConnection = null;
+		RpcStreamPipe pipe = null;
+		boolean pipeReturned = false;
 		if (cmdName == null) {
 			throw new NullPointerError(
 					"Null command name passed to execStreamCmd");
@@ -531,34 +555,44 @@ public class OneShotServerImpl extends RpcServer {
 			cmdEnv.setFieldRule(getRpcPacketFieldRule(inMap, CmdSpec.getValidP4JCmdSpec(cmdName)));
 			cmdEnv.setStreamCmd(true);
 
-			List<Map<String, Object>> retMapList = dispatcher.dispatch(cmdEnv);
-			
-			long endTime = System.currentTimeMillis();
-			
-			if (!ignoreCallbacks && (this.commandCallback != null)) {
-				this.processCmdCallbacks(cmdCallBackKey, endTime - startTime, retMapList);
-			}
-
-			if ((retMapList != null) && (retMapList.size() != 0)) {
-				for (Map<String, Object> map : retMapList) {
-					if (map != null) {
-						String errStr = this.getErrorStr(map);
-						if (errStr != null) {
-							if (isAuthFail(errStr)) {
-								throw new AccessException(errStr);
-							} else {
-								throw new RequestException(errStr, (String) map.get("code0"));
-							}
-						}
-					}
+			List<Map<String, Object>> retMapList = null;
+			int bufferSize = RpcPropertyDefs.getPropertyAsInt(this.props,
+					RpcPropertyDefs.RPC_STREAM_CMD_BUFFER_SIZE_NICK,
+					RpcPropertyDefs.RPC_DEFAULT_STREAM_CMD_BUFFER_SIZE);
+			if (bufferSize > 0) {
+				pipe = new RpcStreamPipe(bufferSize, RpcPropertyDefs.getProperty(this.props,
+						PropertyDefs.P4JAVA_TMP_DIR_KEY, System.getProperty("java.io.tmpdir")));
+				cmdEnv.getStateMap().put(RpcServer.RPC_STREAM_PIPE_KEY, pipe);
+				FutureTask<List<Map<String, Object>>> task = startStreamCmd(dispatcher,
+						rpcConnection, cmdEnv, pipe, ignoreCallbacks, cmdCallBackKey, startTime);
+				// The background task owns (and disconnects) the connection now
+				rpcConnection = null;
+				if (pipe.awaitOutput()) {
+					pipeReturned = true;
+					return pipe.getInputStream();
+				}
+				// The command finished before its output started (or very
+				// soon after); report it just as if it had run here
+				retMapList = getStreamCmdResults(task);
+			} else {
+				retMapList = dispatcher.dispatch(cmdEnv);
+				long endTime = System.currentTimeMillis();
+				if (!ignoreCallbacks && (this.commandCallback != null)) {
+					this.processCmdCallbacks(cmdCallBackKey, endTime - startTime, retMapList);
 				}
 			}
 
+			checkStreamCmdResults(retMapList);
+
 			RpcOutputStream outStream = (RpcOutputStream) cmdEnv.getStateMap().get(
 					RpcServer.RPC_TMP_OUTFILE_STREAM_KEY);
 			
 			if (outStream != null) {
 				outStream.close();
+				if (pipe != null) {
+					pipeReturned = true;
+					return pipe.getInputStream();
+				}
 				TempFileInputStream inStream
 								= new TempFileInputStream(outStream.getFile());
 				return inStream;
@@ -584,6 +618,125 @@ public class OneShotServerImpl extends RpcServer {
 			if (rpcConnection != null) {
 				rpcConnection.disconnect(dispatcher);
 			}
+			if ((pipe != null) && !pipeReturned) {
+				pipe.discard();
+			}
+		}
+	}
+
+	/**
+	 * Start running a stream command's dispatch loop in the background, with
+	 * its output going to the passed-in pipe. The task disconnects when the
+	 * command is finished, and ends the pipe's output, with a failure if the
+	 * command failed or reported an error. Its result is the command's
+	 * result maps.
+	 */
+	protected FutureTask<List<Map<String, Object>>> startStreamCmd(
+				final RpcPacketDispatcher dispatcher, final RpcConnection rpcConnection,
+				final CommandEnv cmdEnv, final RpcStreamPipe pipe, final boolean ignoreCallbacks,
+				final int cmdCallBackKey, final long startTime) throws ConnectionException {
+		FutureTask<List<Map<String, Object>>> task = new FutureTask<List<Map<String, Object>>>(
+				new Callable<List<Map<String, Object>>>() {
+			@Override
+			public List<Map<String, Object>> call() throws Exception {
+				try {
+					List<Map<String, Object>> retMapList = dispatcher.dispatch(cmdEnv);
+					long endTime = System.currentTimeMillis();
+					if (!ignoreCallbacks && (commandCallback != null)) {
+						processCmdCallbacks(cmdCallBackKey, endTime - startTime, retMapList);
+					}
+					try {
+						checkStreamCmdResults(retMapList);
+					} catch (P4JavaException exc) {
+						pipe.fail(new IOException(exc.getLocalizedMessage(), exc));
+					}
+					return retMapList;
+				} catch (ConnectionNotConnectedException cnce) {
+					connected = false;
+					status = ServerStatus.ERROR;
+					pipe.fail(new IOException(cnce.getLocalizedMessage(), cnce));
+					throw cnce;
+				} catch (Exception | Error exc) {
+					Log.error("Stream command failed: " + exc.getLocalizedMessage());
+					Log.exception(exc);
+					pipe.fail(new IOException(exc.getLocalizedMessage(), exc));
+					throw exc;
+				} finally {
+					try {
+						rpcConnection.disconnect(dispatcher);
+					} finally {
+						pipe.finish();
+					}
+				}
+			}
+		});
+		try {
+			StreamCmdExecutorHolder.EXECUTOR.execute(task);
+		} catch (RuntimeException exc) {
+			rpcConnection.disconnect(dispatcher);
+			throw exc;
+		}
+		return task;
+	}
+
+	/**
+	 * Wait for a background stream command to finish, and return its
+	 * result maps, or throw what it threw.
+	 */
+	protected List<Map<String, Object>> getStreamCmdResults(Future<List<Map<String, Object>>> task)
+				throws ConnectionException, RequestException, AccessException, IOException {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return task.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException exc) {
+					Throwable cause = exc.getCause();
+					if (cause instanceof ConnectionException) {
+						throw (ConnectionException) cause;
+					} else if (cause instanceof AccessException) {
+						throw (AccessException) cause;
+					} else if (cause instanceof RequestException) {
+						throw (RequestException) cause;
+					} else if (cause instanceof IOException) {
+						throw (IOException) cause;
+					} else if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new P4JavaError("Unexpected exception in stream command: "
+							+ cause.getLocalizedMessage(), cause);
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Throw an AccessException or RequestException for the first error
+	 * message (if any) in a stream command's result maps.
+	 */
+	protected void checkStreamCmdResults(List<Map<String, Object>> retMapList)
+				throws RequestException, AccessException {
+		if ((retMapList != null) && (retMapList.size() != 0)) {
+			for (Map<String, Object> map : retMapList) {
+				if (map != null) {
+					String errStr = this.getErrorStr(map);
+					if (errStr != null) {
+						if (isAuthFail(errStr)) {
+							throw new AccessException(errStr);
+						} else {
+							throw new RequestException(errStr, (String) map.get("code0"));
+						}
+					}
+				}
+			}
 		}
 	}
 
@@ -722,4 +875,21 @@ public class OneShotServerImpl extends RpcServer {
 		
 		return builder.build();
 	}
+
+	/**
+	 * Pool for the background part of streamed stream commands; the
+	 * threads are daemons, and there's one per command in progress.
+	 */
+	private static class StreamCmdExecutorHolder {
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "P4Java stream command " + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
 }
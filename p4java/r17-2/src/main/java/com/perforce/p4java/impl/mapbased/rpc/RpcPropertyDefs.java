@@ -67,7 +67,21 @@ public class RpcPropertyDefs {
 	 * Short form for the RPC_DEFAULT_RECV_BYTE_BUF_SIZE property key.
 	 */
 	public static final String RPC_DEFAULT_RECV_BYTE_BUF_SIZE_NICK = "defByteRecvBufSize";
-	
+
+	/**
+	 * If this property is set to "true", each RPC stream connection reads incoming
+	 * packets into a single reusable, growable receive buffer rather than allocating
+	 * fresh preamble and payload byte arrays for every packet; packet fields are then
+	 * decoded in place from that buffer. Initial buffer size is taken from the
+	 * RPC_DEFAULT_RECV_BYTE_BUF_SIZE_NICK property, if set.
+	 */
+	public static final String RPC_REUSE_RECV_BUFFER_NICK = "reuseRecvBuffer";
+
+	/**
+	 * Default for the RPC_REUSE_RECV_BUFFER_NICK property.
+	 */
+	public static final boolean RPC_DEFAULT_REUSE_RECV_BUFFER = false;
+
 	/**
 	 * Default size in bytes of the "standard" file I/O buffer. Usually interpreted
 	 * by P4Java as a hint for initial allocation, and may be overridden in the face
@@ -174,6 +188,40 @@ public class RpcPropertyDefs {
 	 * Default number of sockets retained in pool
 	 */
 	public static final int RPC_SOCKET_POOL_DEFAULT_SIZE = 0;
+
+	/**
+	 * Maximum number of pooled sockets leased out at any one time; once
+	 * reached, further connections wait for a socket to be released. Zero
+	 * means no limit. Only used if RPC_SOCKET_POOL_SIZE_NICK is set.
+	 */
+	public static final String RPC_SOCKET_POOL_MAX_SIZE_NICK = "socketPoolMaxSize";
+
+	/**
+	 * Default maximum number of leased pooled sockets (no limit).
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_MAX_SIZE = 0;
+
+	/**
+	 * How long, in milliseconds, to wait for a pooled socket to be released
+	 * when the RPC_SOCKET_POOL_MAX_SIZE_NICK limit has been reached.
+	 */
+	public static final String RPC_SOCKET_POOL_ACQUIRE_TIMEOUT_NICK = "socketPoolAcquireTimeout";
+
+	/**
+	 * Default pooled socket acquire timeout (30 seconds).
+	 */
+	public static final int RPC_SOCKET_POOL_DEFAULT_ACQUIRE_TIMEOUT = 30000;
+
+	/**
+	 * If this property is set to "false", don't probe idle pooled sockets for
+	 * a server-side close before reusing them.
+	 */
+	public static final String RPC_SOCKET_POOL_VALIDATE_NICK = "socketPoolValidate";
+
+	/**
+	 * Default for the RPC_SOCKET_POOL_VALIDATE_NICK property.
+	 */
+	public static final boolean RPC_SOCKET_POOL_DEFAULT_VALIDATE = true;
 	
 	/**
 	 * If this property is set and equals "false", do not trust all certificates.
@@ -239,6 +287,136 @@ public class RpcPropertyDefs {
 	 */
 	public static final String RPC_RELAX_CMD_NAME_CHECKS_NICK = "relaxCmdNameChecks";
 	
+	/**
+	 * If this property is set to "true", client connection compression (compress2)
+	 * uses the JDK's native java.util.zip Inflater and Deflater rather than the
+	 * bundled pure-Java JZlib implementation.
+	 */
+	public static final String RPC_USE_NATIVE_COMPRESSION_NICK = "useNativeCompression";
+
+	/**
+	 * Default for the RPC_USE_NATIVE_COMPRESSION_NICK property.
+	 */
+	public static final boolean RPC_DEFAULT_USE_NATIVE_COMPRESSION = false;
+
+	/**
+	 * Number of times the sticky session implementation will transparently
+	 * reconnect and re-issue a read-only command whose connection failed
+	 * before any results were received. Zero disables retries (the connection
+	 * is still re-established for the next command).
+	 */
+	public static final String RPC_STICKY_MAX_RETRIES_NICK = "stickyMaxRetries";
+
+	/**
+	 * Default for the RPC_STICKY_MAX_RETRIES_NICK property.
+	 */
+	public static final int RPC_DEFAULT_STICKY_MAX_RETRIES = 1;
+
+	/**
+	 * If set to a positive value, the sticky session implementation
+	 * re-establishes its connection before a command if the connection has
+	 * been idle for longer than this many milliseconds; useful when a firewall
+	 * or the server silently drops idle connections.
+	 */
+	public static final String RPC_STICKY_IDLE_TIMEOUT_NICK = "stickyIdleTimeout";
+
+	/**
+	 * Default for the RPC_STICKY_IDLE_TIMEOUT_NICK property (never).
+	 */
+	public static final int RPC_DEFAULT_STICKY_IDLE_TIMEOUT = 0;
+
+	/**
+	 * Maximum number of batched commands (see IOptionsServer.execMapCmdBatch)
+	 * sent to the server ahead of the one whose results are being read.
+	 * One disables pipelining.
+	 */
+	public static final String RPC_BATCH_WINDOW_NICK = "batchWindow";
+
+	/**
+	 * Default for the RPC_BATCH_WINDOW_NICK property.
+	 */
+	public static final int RPC_DEFAULT_BATCH_WINDOW = 16;
+
+	/**
+	 * Maximum number of bytes of batched command requests allowed to be
+	 * outstanding (sent but not yet answered) at any one time; this keeps
+	 * pipelined requests well within the socket buffers so neither end can
+	 * block writing while the other is also writing.
+	 */
+	public static final String RPC_BATCH_HI_MARK_NICK = "batchHiMark";
+
+	/**
+	 * Default for the RPC_BATCH_HI_MARK_NICK property.
+	 */
+	public static final int RPC_DEFAULT_BATCH_HI_MARK = 16384;
+
+	/**
+	 * If set to a positive value, files sent by the server (sync, etc.) are
+	 * written, closed and renamed into place by up to this many background
+	 * threads while the command thread goes on reading from the server. Zero
+	 * writes each file on the command thread as it arrives.
+	 */
+	public static final String RPC_SYNC_WRITE_BEHIND_THREADS_NICK = "syncWriteBehindThreads";
+
+	/**
+	 * Default for the RPC_SYNC_WRITE_BEHIND_THREADS_NICK property (off).
+	 */
+	public static final int RPC_DEFAULT_SYNC_WRITE_BEHIND_THREADS = 0;
+
+	/**
+	 * Maximum number of bytes of file data received from the server but not
+	 * yet written when RPC_SYNC_WRITE_BEHIND_THREADS_NICK is set; reading from
+	 * the server waits once this many are outstanding.
+	 */
+	public static final String RPC_SYNC_WRITE_BEHIND_MAX_BYTES_NICK = "syncWriteBehindMaxBytes";
+
+	/**
+	 * Default for the RPC_SYNC_WRITE_BEHIND_MAX_BYTES_NICK property.
+	 */
+	public static final int RPC_DEFAULT_SYNC_WRITE_BEHIND_MAX_BYTES = 8 * 1024 * 1024;
+
+	/**
+	 * If set to a positive value, the local digests the server asks for to
+	 * compare client files with the depot (reconcile, diff -se / -sa, etc.)
+	 * are computed by up to this many background threads, with the replies
+	 * still sent in order. Zero digests each file on the command thread.
+	 */
+	public static final String RPC_DIGEST_THREADS_NICK = "digestThreads";
+
+	/**
+	 * Default for the RPC_DIGEST_THREADS_NICK property (off).
+	 */
+	public static final int RPC_DEFAULT_DIGEST_THREADS = 0;
+
+	/**
+	 * If set, the local digests the server asks for (reconcile, diff -se /
+	 * -sa, revert -a, etc.) are kept in this file between commands, and
+	 * reused for files whose size, modification time and inode are
+	 * unchanged. A relative name is taken relative to the client root.
+	 */
+	public static final String RPC_DIGEST_CACHE_FILE_NICK = "digestCacheFile";
+
+	/**
+	 * Default for the RPC_DIGEST_CACHE_FILE_NICK property (no cache).
+	 */
+	public static final String RPC_DEFAULT_DIGEST_CACHE_FILE = null;
+
+	/**
+	 * If set to a positive value, stream commands (getFileContents,
+	 * execStreamCmd, etc.) on one-shot connections return their output
+	 * stream as soon as the output starts arriving rather than when the
+	 * command has finished, and go on receiving in the background. Up to
+	 * this many bytes not yet read by the caller are held in memory; output
+	 * beyond that is spilled to a temporary file. Zero collects the whole
+	 * output in a temporary file before returning.
+	 */
+	public static final String RPC_STREAM_CMD_BUFFER_SIZE_NICK = "streamCmdBufferSize";
+
+	/**
+	 * Default for the RPC_STREAM_CMD_BUFFER_SIZE_NICK property (off).
+	 */
+	public static final int RPC_DEFAULT_STREAM_CMD_BUFFER_SIZE = 0;
+
 	/**
 	 * If this property is set, attempt to set the underlying RPC protocol 'app'
 	 * tag to the associated value.
@@ -64,6 +64,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 import javax.annotation.Nullable;
 
 import com.perforce.p4java.Log;
@@ -89,6 +91,7 @@ import com.perforce.p4java.option.UsageOptions;
 import com.perforce.p4java.option.server.TrustOptions;
 import com.perforce.p4java.server.AbstractAuthHelper;
 import com.perforce.p4java.server.AuthTicketsHelper;
+import com.perforce.p4java.server.BatchCommand;
 import com.perforce.p4java.server.CmdSpec;
 import com.perforce.p4java.server.Fingerprint;
 import com.perforce.p4java.server.FingerprintsHelper;
@@ -217,6 +220,13 @@ public abstract class RpcServer extends Server {
      */
     public static final String RPC_TMP_OUTFILE_STREAM_KEY = "";
 
+    /**
+     * Used to key the pipe that a stream command's output is written to when
+     * it's being read by the caller while the command runs; see
+     * RpcPropertyDefs.RPC_STREAM_CMD_BUFFER_SIZE_NICK.
+     */
+    public static final String RPC_STREAM_PIPE_KEY = "RPC_STREAM_PIPE_KEY";
+
     /**
      * Use to key converter to use out of state map
      */
@@ -302,6 +312,15 @@ public abstract class RpcServer extends Server {
         this.clientApiLevel = clientApiLevel;
     }
 
+    /**
+     * Get the statistics gathered for this server's RPC connections.
+     *
+     * @return possibly-null server statistics; null until the server has been initialized
+     */
+    public ServerStats getServerStats() {
+        return serverStats;
+    }
+
     public PerformanceMonitor getPerfMonitor() {
         return perfMonitor;
     }
@@ -1150,6 +1169,31 @@ public abstract class RpcServer extends Server {
         return ticketValue;
     }
 
+    /**
+     * Default batch implementation: issues each command in turn and waits
+     * for its results before sending the next. Implementations that keep a
+     * connection open across commands override this to pipeline the batch.
+     *
+     * @see com.perforce.p4java.server.IOptionsServer#execMapCmdBatch(java.util.List)
+     */
+    @Override
+    public List<Future<List<Map<String, Object>>>> execMapCmdBatch(
+            final List<BatchCommand> commands) throws P4JavaException {
+        Validate.notNull(commands, "Null command list passed to execMapCmdBatch");
+        List<Future<List<Map<String, Object>>>> futures = new ArrayList<>(commands.size());
+        for (BatchCommand command : commands) {
+            CompletableFuture<List<Map<String, Object>>> future = new CompletableFuture<>();
+            try {
+                future.complete(execMapCmdList(command.getCmdName(), command.getCmdArgs(),
+                        command.getFilterCallback(), null));
+            } catch (P4JavaException | RuntimeException exc) {
+                future.completeExceptionally(exc);
+            }
+            futures.add(future);
+        }
+        return futures;
+    }
+
     protected void processCmdCallbacks(final int cmdCallBackKey, final long timeTaken,
                                        final List<Map<String, Object>> resultMaps) {
 
@@ -36,7 +36,35 @@ public class ServerStats {
 	public AtomicLong sendBufSize = new AtomicLong();
 	public AtomicLong recvBufSize = new AtomicLong();
 	public AtomicLong incompleteReads = new AtomicLong();
-	
+
+	/**
+	 * Bytes allocated for RPC packet receive buffers (preamble and payload
+	 * arrays, or reusable receive buffer growth).
+	 */
+	public AtomicLong recvBytesAllocated = new AtomicLong();
+	public AtomicLong recvBufferResizes = new AtomicLong();
+
+	/**
+	 * Per-command latency, as seen by implementations that time their
+	 * commands (currently only the sticky session implementation).
+	 */
+	public AtomicLong commandsExecuted = new AtomicLong();
+	public AtomicLong totalCommandLatency = new AtomicLong();
+	public AtomicLong largestCommandLatency = new AtomicLong();
+	public AtomicLong lastCommandLatency = new AtomicLong();
+	public AtomicLong connectionReconnects = new AtomicLong();
+	public AtomicLong commandRetries = new AtomicLong();
+
+	/**
+	 * Socket pool activity; acquire wait time is in milliseconds.
+	 */
+	public AtomicLong socketPoolHits = new AtomicLong();
+	public AtomicLong socketPoolMisses = new AtomicLong();
+	public AtomicLong socketPoolEvictions = new AtomicLong();
+	public AtomicLong socketPoolValidationFailures = new AtomicLong();
+	public AtomicLong socketPoolAcquireWaitTime = new AtomicLong();
+	public AtomicLong socketPoolAcquireTimeouts = new AtomicLong();
+
 	public void clear() {
 		this.serverConnections.set(0);
 		this.streamSends.set(0);
@@ -54,6 +82,33 @@ public class ServerStats {
 		this.sendBufSize.set(0);
 		this.recvBufSize.set(0);
 		this.incompleteReads.set(0);
+		this.recvBytesAllocated.set(0);
+		this.recvBufferResizes.set(0);
+		this.commandsExecuted.set(0);
+		this.totalCommandLatency.set(0);
+		this.largestCommandLatency.set(0);
+		this.lastCommandLatency.set(0);
+		this.connectionReconnects.set(0);
+		this.commandRetries.set(0);
+		this.socketPoolHits.set(0);
+		this.socketPoolMisses.set(0);
+		this.socketPoolEvictions.set(0);
+		this.socketPoolValidationFailures.set(0);
+		this.socketPoolAcquireWaitTime.set(0);
+		this.socketPoolAcquireTimeouts.set(0);
+	}
+
+	/**
+	 * Record the wall-clock latency of a single completed command.
+	 */
+	public void recordCommandLatency(long millis) {
+		this.commandsExecuted.incrementAndGet();
+		this.totalCommandLatency.addAndGet(millis);
+		this.lastCommandLatency.set(millis);
+		long largest = this.largestCommandLatency.get();
+		while (millis > largest && !this.largestCommandLatency.compareAndSet(largest, millis)) {
+			largest = this.largestCommandLatency.get();
+		}
 	}
 	
 	public void logStats() {
@@ -72,5 +127,23 @@ public class ServerStats {
 				+ "; largest socket recv (bytes): " + this.largestRecv);
 		Log.stats("RPC put buffer resizes: " + this.bufferCompacts);
 		Log.stats("RPC read buffer incomplete reads: " + this.incompleteReads);
+		Log.stats("RPC receive bytes allocated: " + this.recvBytesAllocated
+				+ "; receive buffer resizes: " + this.recvBufferResizes);
+		if (this.commandsExecuted.get() > 0) {
+			Log.stats("commands executed: " + this.commandsExecuted
+					+ "; mean command latency (msec): "
+					+ (this.totalCommandLatency.get() / this.commandsExecuted.get())
+					+ "; largest command latency (msec): " + this.largestCommandLatency);
+			Log.stats("connection reconnects: " + this.connectionReconnects
+					+ "; command retries: " + this.commandRetries);
+		}
+		if ((this.socketPoolHits.get() + this.socketPoolMisses.get()) > 0) {
+			Log.stats("socket pool hits: " + this.socketPoolHits
+					+ "; misses: " + this.socketPoolMisses
+					+ "; evictions: " + this.socketPoolEvictions
+					+ "; failed validations: " + this.socketPoolValidationFailures);
+			Log.stats("socket pool acquire wait (msec): " + this.socketPoolAcquireWaitTime
+					+ "; acquire timeouts: " + this.socketPoolAcquireTimeouts);
+		}
 	}
 }
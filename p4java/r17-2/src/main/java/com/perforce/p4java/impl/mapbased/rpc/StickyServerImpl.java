@@ -0,0 +1,357 @@
+package com.perforce.p4java.impl.mapbased.rpc;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.exception.AccessException;
+import com.perforce.p4java.exception.ConfigException;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.stream.RpcStreamConnection;
+import com.perforce.p4java.impl.mapbased.server.ServerAddressBuilder;
+import com.perforce.p4java.option.UsageOptions;
+import com.perforce.p4java.server.BatchCommand;
+import com.perforce.p4java.server.IServerAddress;
+import com.perforce.p4java.server.IServerAddress.Protocol;
+import com.perforce.p4java.server.ServerStatus;
+import com.perforce.p4java.server.callback.IFilterCallback;
+import com.perforce.p4java.server.callback.IParallelCallback;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe "sticky session" version of the P4Java RPC implementation.<p>
+ *
+ * Like the NtsServerImpl class, this keeps a single protocol-negotiated
+ * connection open across commands rather than paying for a socket (and
+ * possibly SSL) handshake per command as OneShotServerImpl does; unlike
+ * NtsServerImpl, calls are serialized internally so the server object
+ * can be shared between threads.<p>
+ *
+ * If the connection is dropped (by the server, a firewall, or a network
+ * failure) it is re-established transparently on the next command. A
+ * read-only command whose connection fails before any results arrive is
+ * re-issued on the new connection up to RPC_STICKY_MAX_RETRIES_NICK times;
+ * other commands report the failure, as the server may already have acted
+ * on them. Authentication survives reconnection as tickets are sent with
+ * each command.<p>
+ *
+ * Per-command latency is recorded in the server's ServerStats object.
+ */
+
+public class StickyServerImpl extends NtsServerImpl {
+	/**
+	 * The short-form name (display name) of this implementation.
+	 */
+	public static final String SCREEN_NAME = "Native RPC (Sticky Session)";
+
+	/**
+	 * Implementation-specific comments (dependencies, limitations, etc.).
+	 */
+	public static final String IMPL_COMMENTS
+					= "Java-native RPC standalone P4Java implementation that keeps"
+					+ " a single thread-safe connection open across commands and"
+					+ " reconnects transparently on failure.";
+
+	/**
+	 * The specific protocol name to be used in URIs for this implementation.
+	 */
+	public static final String PROTOCOL_NAME = Protocol.P4JRPCSTICKY.toString();
+
+	/**
+	 * The specific SSL protocol name to be used in URIs for this implementation.
+	 */
+	public static final String SSL_PROTOCOL_NAME = Protocol.P4JRPCSTICKYSSL.toString();
+
+	/**
+	 * The minimum Perforce server level required by this implementation.
+	 */
+	public static final int MINIMUM_SUPPORTED_SERVER_LEVEL = 20052;
+
+	/**
+	 * True IFF this is the default implementation. There must be only one of
+	 * these...
+	 */
+	public static final boolean DEFAULT_STATUS = false;
+
+	/**
+	 * What we use as a P4JTracer trace prefix for methods here.
+	 */
+	public static final String TRACE_PREFIX = "StickyServerImpl";
+
+	/**
+	 * Commands that don't change server state, and so can safely be
+	 * re-issued after a connection failure.
+	 */
+	protected static final Set<String> RETRYABLE_COMMANDS = Collections.unmodifiableSet(
+			new HashSet<String>(Arrays.asList(
+					"branches", "changes", "clients", "counters", "depots", "describe",
+					"diff2", "dirs", "filelog", "files", "fixes", "fstat", "groups",
+					"have", "info", "jobs", "labels", "opened", "print", "streams",
+					"users", "where")));
+
+	private final ReentrantLock commandLock = new ReentrantLock();
+
+	private int maxRetries = RpcPropertyDefs.RPC_DEFAULT_STICKY_MAX_RETRIES;
+	private long idleTimeout = RpcPropertyDefs.RPC_DEFAULT_STICKY_IDLE_TIMEOUT;
+
+	/**
+	 * True between a successful connect() and the matching disconnect();
+	 * we only reconnect on the consumer's behalf while this is set.
+	 */
+	private boolean sessionOpen = false;
+	private boolean connectionBroken = false;
+	private long lastCommandEnd = 0;
+
+	/**
+	 * Functional shim so map and stream commands share the retry logic.
+	 */
+	private interface StickyCommand<T> {
+		T exec() throws ConnectionException, AccessException, RequestException;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.NtsServerImpl#init(java.lang.String, int, java.util.Properties, com.perforce.p4java.option.UsageOptions, boolean, java.lang.String)
+	 */
+	@Override
+	public ServerStatus init(String host, int port, Properties props, UsageOptions opts,
+				boolean secure, String rsh) throws ConfigException, ConnectionException {
+		ServerStatus retVal = super.init(host, port, props, opts, secure, rsh);
+		this.maxRetries = Math.max(0, RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_STICKY_MAX_RETRIES_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_STICKY_MAX_RETRIES));
+		this.idleTimeout = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_STICKY_IDLE_TIMEOUT_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_STICKY_IDLE_TIMEOUT);
+		return retVal;
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.NtsServerImpl#connect()
+	 */
+	@Override
+	public void connect() throws ConnectionException,
+								AccessException, RequestException, ConfigException {
+		this.commandLock.lock();
+		try {
+			this.connectionBroken = false;
+			this.sessionOpen = true;
+			super.connect();
+		} catch (ConnectionException | AccessException | RequestException | ConfigException exc) {
+			this.sessionOpen = false;
+			throw exc;
+		} finally {
+			this.commandLock.unlock();
+		}
+	}
+
+	/**
+	 * @see com.perforce.p4java.impl.mapbased.rpc.NtsServerImpl#disconnect()
+	 */
+	@Override
+	public void disconnect() throws ConnectionException, AccessException {
+		this.commandLock.lock();
+		try {
+			this.sessionOpen = false;
+			if (this.connectionBroken) {
+				// Nothing to say goodbye to at the other end...
+				this.connectionBroken = false;
+				this.haveSentProtocolSpecs = false;
+				this.protocolSpecs = null;
+				this.connected = false;
+				this.status = ServerStatus.DISCONNECTED;
+				this.serverStats.logStats();
+				getAuthCounter().clearCount();
+			} else {
+				super.disconnect();
+			}
+		} finally {
+			this.commandLock.unlock();
+		}
+	}
+
+	@Override
+	protected List<Map<String, Object>> execMapCmdList(final String cmdName,
+			final String[] cmdArgs, final Map<String, Object> inMap, final String inString,
+			final boolean ignoreCallbacks, final IStreamingCallback callback, final int callbackKey,
+			final IFilterCallback filterCallback, final IParallelCallback parallelCallback)
+				throws ConnectionException, AccessException, RequestException {
+		return execSticky(cmdName, callback == null && parallelCallback == null,
+				new StickyCommand<List<Map<String, Object>>>() {
+					public List<Map<String, Object>> exec()
+							throws ConnectionException, AccessException, RequestException {
+						return StickyServerImpl.super.execMapCmdList(cmdName, cmdArgs, inMap,
+								inString, ignoreCallbacks, callback, callbackKey,
+								filterCallback, parallelCallback);
+					}
+				});
+	}
+
+	@Override
+	protected InputStream execStreamCmd(final String cmdName, final String[] cmdArgs,
+			final Map<String, Object> inMap, final String inString, final boolean ignoreCallbacks)
+				throws ConnectionException, RequestException, AccessException {
+		return execSticky(cmdName, true, new StickyCommand<InputStream>() {
+			public InputStream exec()
+					throws ConnectionException, AccessException, RequestException {
+				return StickyServerImpl.super.execStreamCmd(cmdName, cmdArgs, inMap,
+						inString, ignoreCallbacks);
+			}
+		});
+	}
+
+	/**
+	 * Runs the whole batch under the command lock on the sticky connection,
+	 * re-establishing it first if needed. Batched commands aren't retried;
+	 * a connection failure is reported through the affected commands'
+	 * futures and the connection is re-established for the next command.
+	 *
+	 * @see com.perforce.p4java.impl.mapbased.rpc.NtsServerImpl#execMapCmdBatch(java.util.List)
+	 */
+	@Override
+	public List<Future<List<Map<String, Object>>>> execMapCmdBatch(List<BatchCommand> commands)
+			throws P4JavaException {
+		this.commandLock.lock();
+		try {
+			ensureConnection();
+			List<Future<List<Map<String, Object>>>> futures = super.execMapCmdBatch(commands);
+			this.lastCommandEnd = System.currentTimeMillis();
+			for (Future<List<Map<String, Object>>> future : futures) {
+				try {
+					future.get();
+				} catch (ExecutionException exc) {
+					if (this.sessionOpen && (exc.getCause() instanceof ConnectionException)) {
+						this.connectionBroken = true;
+						break;
+					}
+				} catch (InterruptedException | CancellationException exc) {
+					// Can't happen: the futures are all complete
+				}
+			}
+			return futures;
+		} finally {
+			this.commandLock.unlock();
+		}
+	}
+
+	/**
+	 * Run a single command on the sticky connection, holding the command lock,
+	 * re-establishing the connection first if needed, and retrying read-only
+	 * commands that failed before any results were received.
+	 */
+	protected <T> T execSticky(String cmdName, boolean retryable, StickyCommand<T> command)
+			throws ConnectionException, AccessException, RequestException {
+		this.commandLock.lock();
+		try {
+			int attempt = 0;
+			while (true) {
+				ensureConnection();
+				long startTime = System.currentTimeMillis();
+				long packetsRecvBefore = this.serverStats.packetsRecv.get();
+				try {
+					T result = command.exec();
+					this.lastCommandEnd = System.currentTimeMillis();
+					this.serverStats.recordCommandLatency(this.lastCommandEnd - startTime);
+					return result;
+				} catch (ConnectionException exc) {
+					if (!this.sessionOpen) {
+						throw exc;
+					}
+					this.connectionBroken = true;
+					if (!retryable || (attempt >= this.maxRetries)
+							|| (this.serverStats.packetsRecv.get() != packetsRecvBefore)
+							|| !isRetryableCommand(cmdName)) {
+						throw exc;
+					}
+					attempt++;
+					this.serverStats.commandRetries.incrementAndGet();
+					Log.warn("RPC connection to Perforce server " + this.serverHost + ":"
+							+ this.serverPort + " failed during '" + cmdName
+							+ "' command; reconnecting and retrying: " + exc.getLocalizedMessage());
+				}
+			}
+		} finally {
+			this.commandLock.unlock();
+		}
+	}
+
+	/**
+	 * Return true if the named command can be re-issued after a connection failure.
+	 */
+	protected boolean isRetryableCommand(String cmdName) {
+		return (cmdName != null) && RETRYABLE_COMMANDS.contains(cmdName.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * Re-establish the underlying connection if it has failed or has been
+	 * idle for longer than the configured idle timeout. Unlike connect(),
+	 * this doesn't re-run the superclass login / client setup, as neither
+	 * is tied to the connection.
+	 */
+	protected void ensureConnection() throws ConnectionException {
+		if (!this.sessionOpen) {
+			return;
+		}
+		boolean idleExpired = (this.idleTimeout > 0) && (this.lastCommandEnd > 0)
+				&& ((System.currentTimeMillis() - this.lastCommandEnd) > this.idleTimeout);
+		if (!this.connectionBroken && !idleExpired && (this.rpcConnection != null)) {
+			return;
+		}
+
+		if (this.rpcConnection != null) {
+			try {
+				if (!this.connectionBroken && (this.dispatcher != null)) {
+					this.dispatcher.shutdown(this.rpcConnection);
+				}
+				this.rpcConnection.disconnect(this.dispatcher);
+			} catch (ConnectionException exc) {
+				Log.info("Ignoring error closing stale RPC connection: " + exc.getLocalizedMessage());
+			}
+		}
+
+		this.haveSentProtocolSpecs = false;
+		this.protocolSpecs = null;
+		this.rpcConnection = new RpcStreamConnection(serverHost, serverPort, props,
+				this.serverStats, this.charset, null, null, this.secure, this.rsh);
+		this.dispatcher = new RpcPacketDispatcher(props, this);
+		this.connectionBroken = false;
+		this.connected = true;
+		this.status = ServerStatus.READY;
+		this.serverStats.connectionReconnects.incrementAndGet();
+
+		Log.info("RPC connection to Perforce server "
+				+ serverHost + ":" + serverPort + " re-established");
+	}
+
+	/**
+	 * Get server address object
+	 *
+	 * @return server address object
+	 */
+	@Override
+	public IServerAddress getServerAddressDetails() {
+		ServerAddressBuilder builder = new ServerAddressBuilder();
+		builder.setHost(serverHost);
+		builder.setPort(serverPort);
+		if (secure) {
+			builder.setProtocol(Protocol.P4JRPCSTICKYSSL);
+		} else {
+			builder.setProtocol(Protocol.P4JRPCSTICKY);
+		}
+
+		return builder.build();
+	}
+}
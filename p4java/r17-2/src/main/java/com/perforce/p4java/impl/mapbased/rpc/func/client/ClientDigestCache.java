@@ -0,0 +1,301 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcFileAttributes;
+
+/**
+ * Persistent cache of client file digests, so that repeated reconcile,
+ * diff -se / -sa, etc. runs over an unchanged tree cost a stat per file
+ * rather than a read and digest of every file.<p>
+ *
+ * A digest is keyed by the file's absolute path and is only used while the
+ * file's size, modification time and file key (device and inode on Unix)
+ * are unchanged, and only for the same digest mode (file type, charset and
+ * line ending conversion). Files modified within the last few seconds
+ * aren't cached at all, as a change made within the file system's timestamp
+ * granularity wouldn't be noticed.<p>
+ *
+ * The cache file is append-only: new digests are added at the end as
+ * length-prefixed, checksummed records, and a later record for a path
+ * replaces an earlier one. Loading stops at the first truncated or
+ * corrupt record, keeping everything before it; the file is rewritten
+ * without the bad or superseded records when it's next flushed.<p>
+ *
+ * Not thread safe; it's used on the command thread only.
+ */
+public class ClientDigestCache {
+
+	/** Files modified this recently (in milliseconds) aren't cached. */
+	public static final long RACY_INTERVAL = 2000;
+
+	private static final byte[] MAGIC = {'P', '4', 'J', 'D', 'G', 'S', 'T', '1'};
+	private static final int MAX_RECORD_LENGTH = 64 * 1024;
+	private static final String COMPACT_SUFFIX = ".tmp";
+
+	private final File cacheFile;
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** New records not yet appended to the cache file. */
+	private final ByteArrayOutputStream unwritten = new ByteArrayOutputStream();
+	private int records = 0;
+	private boolean rewrite = false;
+
+	private long hits = 0;
+	private long misses = 0;
+	private long stores = 0;
+
+	private static class Entry {
+		private final long size;
+		private final long lastModified;
+		private final String fileKey;
+		private final String mode;
+		private final String digest;
+
+		Entry(long size, long lastModified, String fileKey, String mode, String digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.fileKey = fileKey;
+			this.mode = mode;
+			this.digest = digest;
+		}
+
+		boolean matches(RpcFileAttributes attrs, String mode) {
+			return (this.size == attrs.size())
+					&& (this.lastModified == attrs.lastModified())
+					&& this.fileKey.equals(fileKeyString(attrs))
+					&& this.mode.equals(mode);
+		}
+	}
+
+	/**
+	 * Open the cache kept in the passed-in file, loading whatever can be
+	 * read of it; a missing or unreadable file gives an empty cache.
+	 */
+	public ClientDigestCache(File cacheFile) {
+		if (cacheFile == null) {
+			throw new IllegalArgumentException("Null cache file passed to ClientDigestCache constructor.");
+		}
+		this.cacheFile = cacheFile.getAbsoluteFile();
+		load();
+	}
+
+	public File getCacheFile() {
+		return this.cacheFile;
+	}
+
+	/**
+	 * True if the passed-in file is the cache file, or its temporary copy,
+	 * which shouldn't be treated as client files.
+	 */
+	public boolean isCacheFile(File file) {
+		if (file == null) {
+			return false;
+		}
+		String path = file.getAbsolutePath();
+		return path.equals(this.cacheFile.getPath())
+				|| path.equals(this.cacheFile.getPath() + COMPACT_SUFFIX);
+	}
+
+	/**
+	 * Return the cached digest of a file with the passed-in attributes and
+	 * digest mode, or null if there isn't a valid one.
+	 */
+	public String lookup(File file, RpcFileAttributes attrs, String mode) {
+		Entry entry = this.entries.get(file.getAbsolutePath());
+		if ((entry != null) && attrs.isRegularFile() && entry.matches(attrs, mode)) {
+			this.hits++;
+			return entry.digest;
+		}
+		this.misses++;
+		return null;
+	}
+
+	/**
+	 * Remember the digest of a file whose attributes were read before it
+	 * was digested. Nothing is stored if the file was modified too recently
+	 * for a later change to be noticed.
+	 */
+	public void store(File file, RpcFileAttributes attrs, String mode, String digest) {
+		if ((digest == null) || !attrs.isRegularFile()
+				|| (System.currentTimeMillis() - attrs.lastModified() < RACY_INTERVAL)) {
+			return;
+		}
+		String path = file.getAbsolutePath();
+		Entry entry = new Entry(attrs.size(), attrs.lastModified(), fileKeyString(attrs), mode, digest);
+		if (isCacheable(path, entry)) {
+			this.entries.put(path, entry);
+			this.stores++;
+			try {
+				writeRecord(this.unwritten, path, entry);
+			} catch (IOException e) {
+				// Can't happen with a byte array stream
+				throw new IllegalStateException(e);
+			}
+			this.records++;
+		}
+	}
+
+	/**
+	 * Write out the digests stored since the last flush, appending them to
+	 * the cache file, or rewriting the whole file if it was found to be
+	 * corrupt or is mostly superseded records.
+	 */
+	public void flush() {
+		if (this.records > 2 * this.entries.size() + 1000) {
+			this.rewrite = true;
+		}
+		if (!this.rewrite && this.unwritten.size() == 0) {
+			return;
+		}
+		try {
+			if (this.rewrite) {
+				compact();
+			} else {
+				boolean exists = this.cacheFile.exists();
+				try (OutputStream out = new FileOutputStream(this.cacheFile, true)) {
+					if (!exists) {
+						out.write(MAGIC);
+					}
+					this.unwritten.writeTo(out);
+				}
+			}
+		} catch (IOException e) {
+			Log.warn("unable to write digest cache %s: %s", this.cacheFile.getPath(),
+					e.getLocalizedMessage());
+		}
+		this.unwritten.reset();
+		Log.stats("digest cache %s: %d hits, %d misses, %d stored",
+				this.cacheFile.getPath(), this.hits, this.misses, this.stores);
+	}
+
+	public long getHits() {
+		return this.hits;
+	}
+
+	public long getMisses() {
+		return this.misses;
+	}
+
+	public long getStores() {
+		return this.stores;
+	}
+
+	private static String fileKeyString(RpcFileAttributes attrs) {
+		return (attrs.fileKey() == null) ? "" : attrs.fileKey().toString();
+	}
+
+	private boolean isCacheable(String path, Entry entry) {
+		// Records have a fixed size limit; modified UTF-8 is at most 3 bytes per char
+		return (path.length() + entry.fileKey.length() + entry.mode.length()
+				+ entry.digest.length()) * 3 + 64 < MAX_RECORD_LENGTH;
+	}
+
+	private void load() {
+		if (!this.cacheFile.exists()) {
+			return;
+		}
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(this.cacheFile)))) {
+			byte[] magic = new byte[MAGIC.length];
+			in.readFully(magic);
+			if (!Arrays.equals(magic, MAGIC)) {
+				Log.warn("ignoring digest cache %s: unrecognized format", this.cacheFile.getPath());
+				this.rewrite = true;
+				return;
+			}
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				if ((length <= 0) || (length > MAX_RECORD_LENGTH)) {
+					throw new IOException("bad record length " + length);
+				}
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+				CRC32 crc = new CRC32();
+				crc.update(payload);
+				if ((int) crc.getValue() != in.readInt()) {
+					throw new IOException("bad record checksum");
+				}
+				readRecord(payload);
+				this.records++;
+			}
+		} catch (IOException e) {
+			// Keep what was read before the damage; the rest is dropped
+			// when the file's next rewritten
+			Log.warn("digest cache %s is damaged after %d records: %s",
+					this.cacheFile.getPath(), this.records, e.getLocalizedMessage());
+			this.rewrite = true;
+		}
+	}
+
+	private void readRecord(byte[] payload) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		String path = in.readUTF();
+		long size = in.readLong();
+		long lastModified = in.readLong();
+		String fileKey = in.readUTF();
+		String mode = in.readUTF();
+		String digest = in.readUTF();
+		this.entries.put(path, new Entry(size, lastModified, fileKey, mode, digest));
+	}
+
+	private static void writeRecord(OutputStream out, String path, Entry entry) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+		DataOutputStream payload = new DataOutputStream(bytes);
+		payload.writeUTF(path);
+		payload.writeLong(entry.size);
+		payload.writeLong(entry.lastModified);
+		payload.writeUTF(entry.fileKey);
+		payload.writeUTF(entry.mode);
+		payload.writeUTF(entry.digest);
+		payload.flush();
+
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		DataOutputStream record = new DataOutputStream(out);
+		record.writeInt(bytes.size());
+		bytes.writeTo(record);
+		record.writeInt((int) crc.getValue());
+		record.flush();
+	}
+
+	/**
+	 * Rewrite the cache file with just the current entries, through a
+	 * temporary file so a reader never sees a half-written cache.
+	 */
+	private void compact() throws IOException {
+		File tmpFile = new File(this.cacheFile.getPath() + COMPACT_SUFFIX);
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+			out.write(MAGIC);
+			for (Map.Entry<String, Entry> entry : this.entries.entrySet()) {
+				writeRecord(out, entry.getKey(), entry.getValue());
+			}
+		}
+		Files.move(tmpFile.toPath(), this.cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		this.records = this.entries.size();
+		this.rewrite = false;
+	}
+}
@@ -0,0 +1,245 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.IMapEntry.EntryType;
+import com.perforce.p4java.core.ViewMap;
+
+/**
+ * Walks a directory tree for reconcile / add, listing the candidate files
+ * (and symbolic links) below it.<p>
+ *
+ * Each directory is read with a DirectoryStream and each entry's attributes
+ * are read once, without following links; subdirectories are walked in
+ * parallel on a fork-join pool. Subdirectories that can't contain anything
+ * in the client view passed in by the server (the mapTable entries, in local
+ * syntax) aren't walked at all; the server still does the real view check on
+ * the files returned, so the pruning only has to be conservative. View paths
+ * are compared without regard to case only if the server is case-insensitive,
+ * as it would compare them.<p>
+ *
+ * Symbolic links are returned as entries in their own right, as are any
+ * other non-directory entries; the walker doesn't follow links. Ignore file
+ * checking is left to the caller.
+ */
+public class ClientDirectoryWalker {
+
+	private final boolean traverse;
+	private final ViewPruner pruner;
+	private final ForkJoinPool pool;
+
+	/**
+	 * @param traverse if true, walk subdirectories; otherwise list only the
+	 * 			immediate contents of the directory.
+	 * @param viewMap if not null or empty, the client view in local syntax,
+	 * 			used to skip directories outside the view.
+	 * @param caseSensitive whether the server compares paths case-sensitively.
+	 */
+	public ClientDirectoryWalker(boolean traverse, ViewMap<IMapEntry> viewMap, boolean caseSensitive) {
+		this(traverse, viewMap, caseSensitive, ForkJoinPool.commonPool());
+	}
+
+	public ClientDirectoryWalker(boolean traverse, ViewMap<IMapEntry> viewMap, boolean caseSensitive,
+			ForkJoinPool pool) {
+		this.traverse = traverse;
+		this.pruner = ViewPruner.create(viewMap, caseSensitive);
+		this.pool = pool;
+	}
+
+	/**
+	 * List the files below the passed-in directory. If the path is a file or
+	 * a symbolic link, it alone is returned; if it doesn't exist, nothing is.
+	 */
+	public List<Path> walk(Path start) {
+		List<Path> files = new ArrayList<Path>();
+		BasicFileAttributes attrs = readAttributes(start);
+		if (attrs == null) {
+			return files;
+		}
+		if (!attrs.isDirectory()) {
+			files.add(start);
+			return files;
+		}
+		return this.pool.invoke(new DirectoryTask(start));
+	}
+
+	private static BasicFileAttributes readAttributes(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		} catch (IOException e) {
+			// Doesn't exist (any more), or can't be read
+			return null;
+		}
+	}
+
+	/**
+	 * Lists one directory, forking a task for each subdirectory to be walked.
+	 */
+	private class DirectoryTask extends RecursiveTask<List<Path>> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final Path dir;
+
+		DirectoryTask(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		protected List<Path> compute() {
+			List<Path> files = new ArrayList<Path>();
+			List<DirectoryTask> subTasks = new ArrayList<DirectoryTask>();
+
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(this.dir)) {
+				for (Path entry : stream) {
+					BasicFileAttributes attrs = readAttributes(entry);
+					if (attrs == null) {
+						continue;
+					}
+					if (attrs.isDirectory()) {
+						if (traverse && pruner.mayContainMapped(entry.toString())) {
+							DirectoryTask subTask = new DirectoryTask(entry);
+							subTask.fork();
+							subTasks.add(subTask);
+						}
+					} else {
+						files.add(entry);
+					}
+				}
+			} catch (IOException | DirectoryIteratorException e) {
+				// Unreadable directory; skipped, as File.listFiles() would
+			}
+
+			for (DirectoryTask subTask : subTasks) {
+				files.addAll(subTask.join());
+			}
+			return files;
+		}
+	}
+
+	/**
+	 * Decides, from the client view's literal path prefixes, whether a
+	 * directory could contain any file in the view. Paths are compared with
+	 * '/' separators, and without regard to case only for a case-insensitive
+	 * server; an exclusion never prunes a directory the server would map.
+	 */
+	static class ViewPruner {
+
+		private static final ViewPruner NONE = new ViewPruner(null, null, null, null, true);
+
+		/** Literal prefix of each line, up to its first wildcard. */
+		private final String[] prefixes;
+		/** Whether each line excludes. */
+		private final boolean[] excludes;
+		/** Whether each line's only wildcard is a trailing "/...". */
+		private final boolean[] wholeTree;
+		/**
+		 * How many directories below its prefix each line can match, or -1
+		 * for any number (a "..." wildcard); '*' and %%n don't span directories.
+		 */
+		private final int[] maxDepths;
+		private final boolean caseSensitive;
+
+		private ViewPruner(String[] prefixes, boolean[] excludes, boolean[] wholeTree, int[] maxDepths,
+				boolean caseSensitive) {
+			this.prefixes = prefixes;
+			this.excludes = excludes;
+			this.wholeTree = wholeTree;
+			this.maxDepths = maxDepths;
+			this.caseSensitive = caseSensitive;
+		}
+
+		static ViewPruner create(ViewMap<IMapEntry> viewMap, boolean caseSensitive) {
+			if (viewMap == null || viewMap.getSize() == 0) {
+				return NONE;
+			}
+			List<IMapEntry> entries = viewMap.getEntryList();
+			String[] prefixes = new String[entries.size()];
+			boolean[] excludes = new boolean[entries.size()];
+			boolean[] wholeTree = new boolean[entries.size()];
+			int[] maxDepths = new int[entries.size()];
+			for (int i = 0; i < entries.size(); i++) {
+				IMapEntry entry = entries.get(i);
+				String path = entry.getLeft() == null ? "" : normalize(entry.getLeft(), caseSensitive);
+				int wildcard = firstWildcard(path);
+				prefixes[i] = wildcard < 0 ? path : path.substring(0, wildcard);
+				excludes[i] = entry.getType() == EntryType.EXCLUDE;
+				wholeTree[i] = path.endsWith("/...") && wildcard == path.length() - 3;
+				String rest = path.substring(prefixes[i].length());
+				maxDepths[i] = rest.contains("...") ? -1 : countSlashes(rest, 0);
+			}
+			return new ViewPruner(prefixes, excludes, wholeTree, maxDepths, caseSensitive);
+		}
+
+		/**
+		 * Return false only if no file at or below the passed-in directory
+		 * can be in the view.
+		 */
+		boolean mayContainMapped(String dirPath) {
+			if (this.prefixes == null) {
+				return true;
+			}
+			String dir = normalize(dirPath, this.caseSensitive);
+			if (!dir.endsWith("/")) {
+				dir = dir + "/";
+			}
+			// Later lines override earlier ones; look for the last line that
+			// could map something here, or that excludes the whole directory.
+			for (int i = this.prefixes.length - 1; i >= 0; i--) {
+				String prefix = this.prefixes[i];
+				if (this.excludes[i]) {
+					if (this.wholeTree[i] && dir.startsWith(prefix)) {
+						return false;
+					}
+				} else if (prefix.startsWith(dir)) {
+					return true;
+				} else if (dir.startsWith(prefix)) {
+					if (this.maxDepths[i] < 0 || countSlashes(dir, prefix.length()) <= this.maxDepths[i]) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+
+		private static int firstWildcard(String path) {
+			int star = path.indexOf('*');
+			int dots = path.indexOf("...");
+			int positional = path.indexOf("%%");
+			int first = -1;
+			for (int i : new int[] {star, dots, positional}) {
+				if (i >= 0 && (first < 0 || i < first)) {
+					first = i;
+				}
+			}
+			return first;
+		}
+
+		private static int countSlashes(String path, int from) {
+			int count = 0;
+			for (int i = from; i < path.length(); i++) {
+				if (path.charAt(i) == '/') {
+					count++;
+				}
+			}
+			return count;
+		}
+
+		private static String normalize(String path, boolean caseSensitive) {
+			String normalized = path.replace('\\', '/');
+			return caseSensitive ? normalized : normalized.toLowerCase(Locale.ROOT);
+		}
+	}
+}
@@ -99,6 +99,37 @@ public static final String TRACE_PREFIX = "ClientFunctionDispatcher";
 			
 			cmdEnv.setUserCanceled(true);
 		}
+
+		// Files may still be being written in the background (see the
+		// syncWriteBehindThreads property); only the functions that write
+		// files or just report back can go ahead without waiting for them.
+		switch (funcSpec) {
+			case CLIENT_OPENFILE:
+			case CLIENT_WRITEFILE:
+			case CLIENT_CLOSEFILE:
+			case CLIENT_MESSAGE:
+			case CLIENT_PROGRESS:
+				this.fileCommands.deliverWriteBehindResults(cmdEnv);
+				break;
+			default:
+				this.fileCommands.awaitWriteBehind(cmdEnv);
+				break;
+		}
+
+		// Replies to earlier checkFile / reconcileEdit calls may be waiting
+		// for digests computed in the background (see the digestThreads
+		// property); anything other than another such call, or a message,
+		// sends them first.
+		switch (funcSpec) {
+			case CLIENT_CHECKFILE:
+			case CLIENT_RECONCILEEDIT:
+			case CLIENT_MESSAGE:
+			case CLIENT_PROGRESS:
+				break;
+			default:
+				this.fileCommands.sendDigestReplies(true);
+				break;
+		}
 			
 		switch (funcSpec) {
 		
@@ -363,5 +394,32 @@ public static final String TRACE_PREFIX = "ClientFunctionDispatcher";
 		
 		return result;
 	}
-	
+
+	/**
+	 * Wait for any files still being written in the background for the
+	 * command to be finished, and deliver any errors from them. Called
+	 * once the command's dispatch loop is done.
+	 */
+	public void finishFileWrites(CommandEnv cmdEnv) {
+		this.fileCommands.awaitWriteBehind(cmdEnv);
+	}
+
+	/**
+	 * Send any replies still waiting for background digests. Called before
+	 * each protocol function (flush1, release, etc.) is dispatched, as the
+	 * server expects to have them by then.
+	 */
+	public void sendPendingReplies() throws ConnectionException {
+		this.fileCommands.sendDigestReplies(true);
+	}
+
+	/**
+	 * Drop any replies still waiting for background digests, and save any
+	 * new digests to the digest cache, once the command's dispatch loop is
+	 * done.
+	 */
+	public void discardPendingReplies() {
+		this.fileCommands.discardDigestReplies();
+		this.fileCommands.flushDigestCache();
+	}
 }
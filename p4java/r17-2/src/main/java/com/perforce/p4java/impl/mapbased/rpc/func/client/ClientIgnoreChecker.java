@@ -12,9 +12,22 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
 
 /**
- * Handle the checking of patterns in ignore files.
+ * Handle the checking of patterns in ignore files.<p>
+ *
+ * Ignore files are parsed once and their patterns compiled; the compiled
+ * rules are kept per directory and reused for as long as the ignore file's
+ * modification time and length are unchanged. By default each ignore file is
+ * checked for changes on every lookup; once startCommand() has been called,
+ * it's checked at most once per command instead, so checking a large number
+ * of files costs a few stats per directory rather than a read of every
+ * ignore file and a regex compile per pattern line for each file.
  */
 public class ClientIgnoreChecker {
 
@@ -26,6 +39,19 @@ public class ClientIgnoreChecker {
 
 	/** The charset. */
 	private Charset charset = null;
+
+	/** The client root directory, as compared against while walking up. */
+	private final File clientRootDir;
+
+	/** Compiled ignore rules by directory path. */
+	private final ConcurrentHashMap<String, IgnoreRules> rulesCache =
+			new ConcurrentHashMap<String, IgnoreRules>();
+
+	/** Current validation period; zero means validate on every lookup. */
+	private final AtomicLong validationPeriod = new AtomicLong();
+
+	/** Number of times an ignore file has been read and compiled. */
+	private final AtomicLong ignoreFileLoads = new AtomicLong();
 	
 	/**
 	 * Instantiates a new ignore file checker.
@@ -53,6 +79,35 @@ public class ClientIgnoreChecker {
 		this.clientRoot = clientRoot;
 		this.ignoreFileName = ignoreFileName;
 		this.charset = charset;
+		this.clientRootDir = new File(clientRoot);
+	}
+
+	/**
+	 * Return true if this checker was created for the passed-in client root,
+	 * ignore file name and charset.
+	 */
+	public boolean isFor(String clientRoot, String ignoreFileName, Charset charset) {
+		return this.clientRoot.equals(clientRoot)
+				&& this.ignoreFileName.equals(ignoreFileName)
+				&& this.charset.equals(charset);
+	}
+
+	/**
+	 * Start a new validation period, typically at the start of a command:
+	 * until the next call, each ignore file is checked for changes at most
+	 * once. Ignore files changed during a period may not be noticed until
+	 * the next one.
+	 */
+	public void startCommand() {
+		this.validationPeriod.incrementAndGet();
+	}
+
+	/**
+	 * Return the number of times an ignore file has been read and compiled
+	 * by this checker.
+	 */
+	public long getIgnoreFileLoads() {
+		return this.ignoreFileLoads.get();
 	}
 
 	/**
@@ -76,7 +131,8 @@ public class ClientIgnoreChecker {
 	}
 
 	/**
-	 * Check all ignore files up to the client root directory.
+	 * Check all ignore files up to the client root directory. The nearest
+	 * ignore file with a matching pattern decides.
 	 * 
 	 * @param file
 	 *            the file
@@ -86,22 +142,22 @@ public class ClientIgnoreChecker {
 	 */
 	private boolean checkIgnoreFiles(File file) throws IOException {
 		if (file != null) {
-			// Signal for inverse match
-			Negate negate = this.new Negate();
-	
-			File clientRootDir = new File(clientRoot);
+			String fileName = file.getName();
+			String absolutePath = null;
+
 			File fileDir = file;
 			do {
 				fileDir = fileDir.getParentFile();
 				if (fileDir != null) {
-					File ignoreFile = new File(fileDir, ignoreFileName);
-					if (ignoreFile.exists()) {
-						if (checkIgnoreFile(ignoreFile, fileDir, file, negate)) {
+					IgnoreRules rules = getIgnoreRules(fileDir);
+					if (rules != null) {
+						if (absolutePath == null) {
+							absolutePath = file.getAbsolutePath();
+						}
+						IgnoreRule rule = rules.match(fileName, absolutePath);
+						if (rule != null) {
 							// Inverse match
-							if (negate.isMatch()) {
-								return false;
-							}
-							return true;
+							return !rule.negation;
 						}
 					}
 				}
@@ -112,39 +168,52 @@ public class ClientIgnoreChecker {
 	}
 
 	/**
-	 * Inversely loop through patterns in an ignore file and check for a match.
-	 * 
-	 * @param ignoreFile
-	 *            the ignore file
-	 * @param currentDir
-	 *            the current directory
-	 * @param file
-	 *            the file
-	 * @param negate
-	 *            the negate
-	 * @return true, if successful
-	 * @throws IOException
-	 *             Signals that an I/O exception has occurred.
+	 * Return the compiled rules of the ignore file in the passed-in directory,
+	 * or null if there is none. Cached rules are reused while the ignore
+	 * file's modification time and length are unchanged.
+	 */
+	private IgnoreRules getIgnoreRules(File dir) throws IOException {
+		String key = dir.getPath();
+		IgnoreRules rules = rulesCache.get(key);
+		long period = validationPeriod.get();
+		if (rules != null && period != 0 && rules.validatedPeriod == period) {
+			return rules.exists ? rules : null;
+		}
+
+		File ignoreFile = new File(dir, ignoreFileName);
+		// lastModified() is zero for a file that doesn't exist
+		long lastModified = ignoreFile.lastModified();
+		if (lastModified == 0 && !ignoreFile.exists()) {
+			rules = IgnoreRules.missing();
+		} else {
+			long length = ignoreFile.length();
+			if (rules == null || !rules.exists
+					|| rules.lastModified != lastModified || rules.length != length) {
+				rules = loadIgnoreRules(ignoreFile, dir, lastModified, length);
+			}
+		}
+		rules.validatedPeriod = period;
+		rulesCache.put(key, rules);
+		return rules.exists ? rules : null;
+	}
+
+	/**
+	 * Read an ignore file and compile its patterns, last line first.
 	 */
-	private boolean checkIgnoreFile(File ignoreFile, File currentDir, File file, Negate negate)
+	private IgnoreRules loadIgnoreRules(File ignoreFile, File currentDir, long lastModified, long length)
 			throws IOException {
 
+		ignoreFileLoads.incrementAndGet();
+		ArrayList<IgnoreRule> rules = new ArrayList<IgnoreRule>();
 		BufferedReader br = null;
 		try {
 			br = new BufferedReader(new InputStreamReader(new FileInputStream(
 					ignoreFile), this.charset));
-			ArrayList<String> list = new ArrayList<String>();
 			String line;
 			while ((line = br.readLine()) != null) {
-				list.add(line);
-			}
-
-			// Reverse the lines
-			Collections.reverse(list);
-
-			for (String entry : list) {
-				if (checkIgnorePattern(entry, currentDir, file, negate)) {
-					return true;
+				IgnoreRule rule = compileIgnorePattern(line);
+				if (rule != null) {
+					rules.add(rule);
 				}
 			}
 		} finally {
@@ -153,39 +222,37 @@ public class ClientIgnoreChecker {
 			}
 		}
 
-		return false;
+		// Reverse the lines
+		Collections.reverse(rules);
+
+		return new IgnoreRules(true, currentDir.getAbsolutePath().length(), lastModified, length, rules);
 	}
 
 	/**
-	 * Check for a pattern match.
+	 * Compile an ignore file line into a rule; returns null for comments
+	 * and blank lines.<p>
+	 *
+	 * A pattern containing a wildcard is matched against the file name only;
+	 * any other pattern is matched against the path below the ignore file's
+	 * directory, as a whole path component or sequence of components.
 	 * 
 	 * @param pattern
 	 *            the pattern
-	 * @param currentDir
-	 *            the current directory
-	 * @param file
-	 *            the file
-	 * @param negate
-	 *            the negate
-	 * @return true, if successful
+	 * @return the compiled rule, or null
 	 */
-	private boolean checkIgnorePattern(String pattern, File currentDir, File file, Negate negate) {
+	private IgnoreRule compileIgnorePattern(String pattern) {
 
 		boolean wildcard = false;
 		boolean negation = false;
 
-		if (file == null) {
-			return false;
-		}
-
 		if (pattern == null) {
-			return false;
+			return null;
 		}
 
 		pattern = pattern.trim();
 
 		if (pattern.startsWith("#")) {
-			return false;
+			return null;
 		}
 
 		// Check for negation
@@ -195,7 +262,7 @@ public class ClientIgnoreChecker {
 		}
 
 		if (pattern.length() == 0) {
-			return false;
+			return null;
 		}
 
 		// Check for wildcard
@@ -203,13 +270,8 @@ public class ClientIgnoreChecker {
 			wildcard = true;
 		}
 		
-		// Match file name only
-		String path = file.getName();
-		
 		// Match file name or path
 		if (!wildcard) {
-			path = file.getAbsolutePath().substring(currentDir.getAbsolutePath().length());
-			path += File.separator;
 			pattern = "*" + File.separator + pattern;
 			pattern += File.separator + "*";
 		}
@@ -217,43 +279,90 @@ public class ClientIgnoreChecker {
 		// Escape '\', '.' and '*'
 		pattern = pattern.replace("\\", "\\\\").replace(".", "\\.").replace("*", ".*");
 
-		// Match pattern
-		if (path.matches(pattern)) {
-			if (negation) {
-				negate.setMatch(true);
-			}
-
-			return true;
+		try {
+			return new IgnoreRule(Pattern.compile(pattern), null, wildcard, negation);
+		} catch (PatternSyntaxException e) {
+			// Reported only if the line is actually reached, as before
+			return new IgnoreRule(null, e, wildcard, negation);
 		}
-
-		return false;
 	}
 
 	/**
-	 * Signal for negate pattern.
+	 * The compiled rules of one ignore file, last line first; or a marker
+	 * for a directory without an ignore file.
 	 */
-	private class Negate {
-		
-		/** The match. */
-		private boolean match = false;
+	private static class IgnoreRules {
 
-		/**
-		 * Checks if is match.
-		 * 
-		 * @return true, if is match
-		 */
-		public boolean isMatch() {
-			return match;
+		/** Whether there is an ignore file at all. */
+		private final boolean exists;
+
+		/** Length of the ignore file's directory's absolute path. */
+		private final int dirPathLength;
+
+		private final long lastModified;
+		private final long length;
+		private final List<IgnoreRule> rules;
+
+		/** The validation period in which this was last checked against the file. */
+		private volatile long validatedPeriod = 0;
+
+		static IgnoreRules missing() {
+			return new IgnoreRules(false, 0, 0, 0, Collections.<IgnoreRule>emptyList());
+		}
+
+		IgnoreRules(boolean exists, int dirPathLength, long lastModified, long length, List<IgnoreRule> rules) {
+			this.exists = exists;
+			this.dirPathLength = dirPathLength;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.rules = rules;
 		}
 
 		/**
-		 * Sets the match.
-		 * 
-		 * @param match
-		 *            the new match
+		 * Return the last rule in the file that matches, or null.
 		 */
-		public void setMatch(boolean match) {
-			this.match = match;
+		IgnoreRule match(String fileName, String absolutePath) {
+			String relativePath = null;
+			for (IgnoreRule rule : rules) {
+				String path;
+				if (rule.wildcard) {
+					path = fileName;
+				} else {
+					if (relativePath == null) {
+						relativePath = absolutePath.substring(dirPathLength) + File.separator;
+					}
+					path = relativePath;
+				}
+				if (rule.matches(path)) {
+					return rule;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * A single compiled ignore pattern.
+	 */
+	private static class IgnoreRule {
+
+		private final Pattern pattern;
+		private final PatternSyntaxException syntaxError;
+		private final boolean wildcard;
+		private final boolean negation;
+
+		IgnoreRule(Pattern pattern, PatternSyntaxException syntaxError, boolean wildcard, boolean negation) {
+			this.pattern = pattern;
+			this.syntaxError = syntaxError;
+			this.wildcard = wildcard;
+			this.negation = negation;
+		}
+
+		boolean matches(String path) {
+			if (syntaxError != null) {
+				throw syntaxError;
+			}
+			return pattern.matcher(path).matches();
 		}
 	}
-}
\ No newline at end of file
+}
@@ -87,7 +87,8 @@ public class ClientMessage {
 		DIGEST_MISMATCH, // 10.2 sync transfer error
 		FILE_OPEN_ERROR,
 		FILE_DECODER_ERROR, // 17.3 UTF16 decoder
-		FILE_ENCODER_ERROR  // 17.3 UTF16 encoder
+		FILE_ENCODER_ERROR,  // 17.3 UTF16 encoder
+		PARALLEL_TRANSFER_FAILED
 	};
 	
 	// Message array. Make sure UNKNOWN is element zero, but otherwise
@@ -199,6 +200,10 @@ public class ClientMessage {
 						0,
 						"%file% - encoding error.",
 						new String[] {"file"}),
+		new ClientMessage(ClientMessageId.PARALLEL_TRANSFER_FAILED,
+						0,
+						"parallel file transfer %thread% failed: %reason%",
+						new String[] {"thread", "reason"}),
 	};
 	
 	/**
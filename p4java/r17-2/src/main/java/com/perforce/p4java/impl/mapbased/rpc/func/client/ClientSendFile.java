@@ -27,6 +27,7 @@ import com.perforce.p4java.impl.mapbased.rpc.sys.helper.SysFileHelperBridge;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.HashMap;
 import java.util.Map;
@@ -68,19 +69,19 @@ public class ClientSendFile {
 		byte[] bytes = new byte[1024 * 64];
 		int bytesRead;
 		while ((bytesRead = stream.read(bytes)) > 0) {
-			byte[] readBytes = new byte[bytesRead];
-			
-			System.arraycopy(bytes, 0, readBytes, 0, bytesRead);
 			fileLength += bytesRead;
 			sendMap.clear();
-			sendMap.put(RpcFunctionMapKey.DATA, readBytes);
+			// The connection marshals the data straight out of our read buffer
+			// (ByteBuffer values are sent from position zero up to their limit),
+			// so there's no need to copy each chunk into its own array first.
+			sendMap.put(RpcFunctionMapKey.DATA, ByteBuffer.wrap(bytes, 0, bytesRead));
 			sendMap.put(RpcFunctionMapKey.HANDLE, handle);
 
 			RpcPacket sendPacket = RpcPacket.constructRpcPacket(write,
 					sendMap, null);
 			
 			connection.putRpcPacket(sendPacket);
-			digester.update(readBytes);
+			digester.update(bytes, 0, bytesRead);
 
 			currentSize = sendBackWrittenDataBytes(cmdEnv, filePath, fileSize, currentSize, bytesRead);
 		}
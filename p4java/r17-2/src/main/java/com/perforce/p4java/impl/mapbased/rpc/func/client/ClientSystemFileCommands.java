@@ -29,14 +29,18 @@ import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientMessage.ClientMessageId;
+import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5DigestService;
 import com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5Digester;
 import com.perforce.p4java.impl.mapbased.rpc.msg.RpcMessage;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher.RpcPacketDispatcherResult;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcFileAttributes;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcLineEndConverter;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcOutputStream;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFile;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFileType;
 import com.perforce.p4java.impl.mapbased.rpc.sys.RpcPerforceFileType.RpcServerTypeStringSpec;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcStreamPipe;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.AppleFileHelper;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.SymbolicLinkHelper;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.SysFileHelperBridge;
@@ -49,12 +53,17 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 import static com.perforce.p4java.impl.mapbased.rpc.func.client.ClientHelper.sendBackWrittenDataBytes;
 
@@ -86,6 +95,7 @@ public class ClientSystemFileCommands {
 	protected static final String FILE_OPEN_ORIG_ARGS_KEY = "origArgs";
 	protected static final String FILE_OPEN_MODTIME_KEY = "modTime";
 	protected static final String FILE_OPEN_IS_SYMBOLIC_LINK_KEY = "isSymbolicLink";
+	protected static final String FILE_OPEN_WRITE_STAGE_KEY = "writeStage";
 
 	// Reconcile handler map key for 'skipAdd'
 	protected static final String RECONCILE_HANDLER_SKIP_ADD_KEY = "skipAdd";
@@ -96,9 +106,30 @@ public class ClientSystemFileCommands {
 	private Properties props = null;
 	private RpcServer server = null;
 	private ClientIgnoreChecker checker = null;
+	private WeakReference<CommandEnv> checkerCmdEnv = null;
+
+	// Background writer for sync'd files; null unless enabled by property
+	private ClientWriteBehind writeBehind = null;
+
+	// Background digester for checkFile / reconcileEdit; null unless enabled by property
+	private MD5DigestService digestService = null;
+
+	// Persistent digest cache; null unless enabled by property, and
+	// recreated if the client root changes
+	private ClientDigestCache digestCache = null;
+
+	// Replies to checkFile / reconcileEdit not yet sent, in the order
+	// they're due; each is waiting for its own digest or an earlier one
+	private final ArrayDeque<PendingDigestReply> pendingDigestReplies =
+			new ArrayDeque<PendingDigestReply>();
 
 	private String tmpDirName = null;
 
+	// LF to local line ending conversion for print output, etc.; allocated
+	// on first use
+	private RpcLineEndConverter localLineEndConverter = null;
+	private byte[] lineEndBuffer = null;
+
 	private ISystemFileCommandsHelper fileCommands
 			= SysFileHelperBridge.getSysFileCommands();
 
@@ -125,6 +156,258 @@ public class ClientSystemFileCommands {
 			Log.warn("Unable to get tmp name from P4 props or System; using "
 					+ tmpDirName + " instead");
 		}
+
+		int writeBehindThreads = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_SYNC_WRITE_BEHIND_THREADS_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_SYNC_WRITE_BEHIND_THREADS);
+		if (writeBehindThreads > 0) {
+			this.writeBehind = new ClientWriteBehind(writeBehindThreads,
+					RpcPropertyDefs.getPropertyAsInt(this.props,
+							RpcPropertyDefs.RPC_SYNC_WRITE_BEHIND_MAX_BYTES_NICK,
+							RpcPropertyDefs.RPC_DEFAULT_SYNC_WRITE_BEHIND_MAX_BYTES));
+		}
+
+		int digestThreads = RpcPropertyDefs.getPropertyAsInt(this.props,
+				RpcPropertyDefs.RPC_DIGEST_THREADS_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_DIGEST_THREADS);
+		if (digestThreads > 0) {
+			this.digestService = new MD5DigestService(digestThreads);
+		}
+	}
+
+	/**
+	 * A reply to the server whose status depends on a local file digest.
+	 */
+	private static class PendingDigestReply {
+		private final RpcConnection rpcConnection;
+		private final String confirm;
+		private final Map<String, Object> respMap;
+		private final String serverDigest;
+		private final LocalDigest localDigest;
+
+		PendingDigestReply(RpcConnection rpcConnection, String confirm, Map<String, Object> respMap,
+				String serverDigest, LocalDigest localDigest) {
+			this.rpcConnection = rpcConnection;
+			this.confirm = confirm;
+			this.respMap = respMap;
+			this.serverDigest = serverDigest;
+			this.localDigest = localDigest;
+		}
+	}
+
+	/**
+	 * A client file digest, possibly still being computed; once it's
+	 * available it's added to the digest cache, if there is one.
+	 */
+	private class LocalDigest {
+		private final Future<String> digest;
+		private final File file;
+		private final RpcFileAttributes attrs;
+		private final String cacheMode;
+
+		/**
+		 * @param cacheMode the digest cache mode, or null if the digest
+		 * 			isn't to be cached.
+		 */
+		LocalDigest(Future<String> digest, File file, RpcFileAttributes attrs, String cacheMode) {
+			this.digest = digest;
+			this.file = file;
+			this.attrs = attrs;
+			this.cacheMode = cacheMode;
+		}
+
+		boolean isDone() {
+			return this.digest.isDone();
+		}
+
+		String get() {
+			String digestStr = MD5DigestService.getDigest(this.digest);
+			if ((this.cacheMode != null) && (digestCache != null)) {
+				digestCache.store(this.file, this.attrs, this.cacheMode, digestStr);
+			}
+			return digestStr;
+		}
+	}
+
+	/**
+	 * Receives the errors from writing or closing a file; the rest of the
+	 * file's operations are skipped once an error has been reported. The
+	 * message is null if the error has only been logged.
+	 */
+	private interface FileErrorHandler {
+		void fileError(Map<String, Object> message);
+	}
+
+	/**
+	 * Report file errors straight to the command environment, marking the
+	 * file's handler as failed.
+	 */
+	private static FileErrorHandler handlerErrors(final CommandEnv cmdEnv, final RpcHandler handler) {
+		return new FileErrorHandler() {
+			@Override
+			public void fileError(Map<String, Object> message) {
+				handler.setError(true);
+				if (message != null) {
+					cmdEnv.handleResult(message);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Report file errors from the write-behind stage; they're delivered to
+	 * the command environment later, on the command thread.
+	 */
+	private static FileErrorHandler stageErrors(final ClientWriteBehind.Stage stage) {
+		return new FileErrorHandler() {
+			@Override
+			public void fileError(Map<String, Object> message) {
+				stage.fail(message);
+			}
+		};
+	}
+
+	/**
+	 * Deliver any errors from files being written in the background; called
+	 * on the command thread as each client function is dispatched.
+	 */
+	protected void deliverWriteBehindResults(CommandEnv cmdEnv) {
+		if (this.writeBehind != null) {
+			this.writeBehind.deliverResults(cmdEnv);
+		}
+	}
+
+	/**
+	 * Wait until all files being written in the background are finished,
+	 * then deliver any errors; called before any client function that may
+	 * look at those files, and at the end of each command.
+	 */
+	protected void awaitWriteBehind(CommandEnv cmdEnv) {
+		if (this.writeBehind != null) {
+			this.writeBehind.awaitAll(cmdEnv);
+		}
+	}
+
+	/**
+	 * Send the replies to checkFile / reconcileEdit that were waiting for
+	 * their digests, in order. If wait is false, only the replies whose
+	 * digests (and all earlier ones) are finished are sent; otherwise this
+	 * waits for them all. Replies must all be sent before the server's next
+	 * flush, and before anything else is sent back.
+	 */
+	protected void sendDigestReplies(boolean wait) throws ConnectionException {
+		PendingDigestReply reply;
+		while (((reply = this.pendingDigestReplies.peek()) != null)
+				&& (wait || reply.localDigest.isDone())) {
+			this.pendingDigestReplies.poll();
+			String digestStr = reply.localDigest.get();
+			if ((digestStr != null) && digestStr.equals(reply.serverDigest)) {
+				reply.respMap.put(RpcFunctionMapKey.STATUS, "same");
+			}
+			reply.rpcConnection.putRpcPacket(RpcPacket.constructRpcPacket(
+					reply.confirm,
+					reply.respMap,
+					null));
+		}
+	}
+
+	/**
+	 * Drop any replies still waiting for digests; called at the end of each
+	 * command, when they can no longer be sent.
+	 */
+	protected void discardDigestReplies() {
+		this.pendingDigestReplies.clear();
+	}
+
+	/**
+	 * Write out any digests added to the digest cache; called at the end
+	 * of each command.
+	 */
+	protected void flushDigestCache() {
+		if (this.digestCache != null) {
+			this.digestCache.flush();
+		}
+	}
+
+	/**
+	 * Digest a client file the way the server digests its content, for
+	 * comparison with the server's digest: unicode files as UTF-8, text
+	 * files with server line endings. The digest is taken from the digest
+	 * cache if the file hasn't changed since it was cached; otherwise it's
+	 * computed in the background if a digest service is configured, and
+	 * straight away if not.
+	 */
+	private LocalDigest digestClientFile(File file, RpcFileAttributes attrs, RpcPerforceFileType fileType,
+			Charset clientCharset, ClientLineEnding lineEnding) {
+		Charset digestCharset = null;
+		boolean convertLineEndings = false;
+		//Only worry about encoding if unicode
+		switch (fileType) {
+			case FST_UTF16:
+				digestCharset = CharsetDefs.UTF16;
+			case FST_UNICODE:
+				if (digestCharset == null) {
+					digestCharset = clientCharset;
+				}
+			case FST_XTEXT:
+			case FST_TEXT:
+				// Convert line endings
+				convertLineEndings = true;
+				break;
+			default:
+				break;
+		}
+
+		String cacheMode = null;
+		if (getDigestCache() != null) {
+			cacheMode = fileType + "/" + (digestCharset == null ? "" : digestCharset.name())
+					+ "/" + (convertLineEndings ? String.valueOf(lineEnding) : "");
+			String cached = this.digestCache.lookup(file, attrs, cacheMode);
+			if (cached != null) {
+				return new LocalDigest(CompletableFuture.completedFuture(cached), file, attrs, null);
+			}
+		}
+
+		// Digest the file using the configured local file content
+		// charset. A null digestCharset specified will cause the
+		// file to be read as raw byte stream directly off disk.
+		Future<String> digest;
+		if (this.digestService != null) {
+			digest = this.digestService.submit(file, digestCharset, convertLineEndings, lineEnding);
+		} else {
+			digest = CompletableFuture.completedFuture(new MD5Digester().digestFileAs32ByteHex(file,
+					digestCharset, convertLineEndings, lineEnding));
+		}
+		return new LocalDigest(digest, file, attrs, cacheMode);
+	}
+
+	/**
+	 * Return the digest cache, or null if there isn't one. The cache file
+	 * named by the digestCacheFile property is relative to the client root
+	 * unless it's an absolute path; the cache is reopened if the client root
+	 * changes.
+	 */
+	private ClientDigestCache getDigestCache() {
+		String cacheFileName = RpcPropertyDefs.getProperty(this.props,
+				RpcPropertyDefs.RPC_DIGEST_CACHE_FILE_NICK,
+				RpcPropertyDefs.RPC_DEFAULT_DIGEST_CACHE_FILE);
+		if ((cacheFileName == null) || (this.server == null)
+				|| (this.server.getCurrentClient() == null)
+				|| (this.server.getCurrentClient().getRoot() == null)) {
+			return null;
+		}
+		File cacheFile = new File(cacheFileName);
+		if (!cacheFile.isAbsolute()) {
+			cacheFile = new File(this.server.getCurrentClient().getRoot(), cacheFileName);
+		}
+		if ((this.digestCache == null)
+				|| !this.digestCache.getCacheFile().equals(cacheFile.getAbsoluteFile())) {
+			if (this.digestCache != null) {
+				this.digestCache.flush();
+			}
+			this.digestCache = new ClientDigestCache(cacheFile);
+		}
+		return this.digestCache;
 	}
 
 	/**
@@ -265,6 +548,12 @@ public class ClientSystemFileCommands {
 			RpcPerforceFile targetFile = new RpcPerforceFile(path, fileTypeStr);
 			RpcPerforceFile tmpFile = null;
 			RpcHandler handler = cmdEnv.getHandler(clientHandle);
+			ClientWriteBehind.Stage writeStage = null;
+
+			if (this.writeBehind != null) {
+				// Waits for any earlier write of the same file to finish
+				writeStage = this.writeBehind.open(targetFile.getPath());
+			}
 
 			if (handler == null) {
 				handler = cmdEnv.new RpcHandler(clientHandle, false, targetFile);
@@ -276,6 +565,7 @@ public class ClientSystemFileCommands {
 				handler.getMap().remove(FILE_OPEN_TMP_STREAM_KEY);
 				handler.getMap().remove(FILE_OPEN_MODTIME_KEY);
 				handler.getMap().remove(FILE_OPEN_IS_SYMBOLIC_LINK_KEY);
+				handler.getMap().remove(FILE_OPEN_WRITE_STAGE_KEY);
 			}
 			handler.setError(false);
 			handler.getMap().put(FILE_OPEN_ORIG_ARGS_KEY, resultsMap);
@@ -450,6 +740,9 @@ public class ClientSystemFileCommands {
 					}
 					handler.getMap().put(FILE_OPEN_TARGET_STREAM_KEY, targetStream);
 				}
+				if (writeStage != null) {
+					handler.getMap().put(FILE_OPEN_WRITE_STAGE_KEY, writeStage);
+				}
 			} catch (IOException ioexc) {
 				handler.setError(true);
 				cmdEnv.handleResult(
@@ -568,20 +861,55 @@ public class ClientSystemFileCommands {
 					"No open file stream in ClientSystemFileCommands.writeFile()");
 		}
 
+		ClientWriteBehind.Stage writeStage = null;
+		if (this.writeBehind != null) {
+			writeStage = (ClientWriteBehind.Stage) handler.getMap().get(FILE_OPEN_WRITE_STAGE_KEY);
+		}
+
+		if (writeStage != null) {
+			// Written in the background; progress is reported as the data
+			// arrives rather than as it's written.
+			final ClientWriteBehind.Stage stage = writeStage;
+			final RpcOutputStream stream = outStream;
+			byte[] data = (byte[]) resultsMap.get(RpcFunctionMapKey.DATA);
+			long dataLength = data == null ? 0 : data.length;
+			this.writeBehind.write(stage, dataLength, new Runnable() {
+				@Override
+				public void run() {
+					if (!stage.isFailed()) {
+						writeData(stream, resultsMap, path, stageErrors(stage));
+					}
+				}
+			});
+			currentSize = sendBackWrittenDataBytes(cmdEnv, filePath, fileSize, currentSize, dataLength);
+		} else {
+			long bytesWritten = writeData(outStream, resultsMap, path, handlerErrors(cmdEnv, handler));
+
+			// Send back the data bytes written (accumulated)
+			// This is for the progress indicator
+			currentSize = sendBackWrittenDataBytes(cmdEnv, filePath, fileSize, currentSize, bytesWritten);
+		}
+
+		return RpcPacketDispatcherResult.CONTINUE_LOOP;
+	}
+
+	/**
+	 * Write one client-WriteFile packet's data to the file's stream,
+	 * reporting any error to the passed-in handler.
+	 *
+	 * @return the number of bytes written, or -1 on error.
+	 */
+	private long writeData(RpcOutputStream outStream, Map<String, Object> resultsMap,
+	                       String path, FileErrorHandler errors) {
 		try {
 			if ((outStream.getFD() != null) && outStream.getFD().valid()) {
-				long bytesWritten = outStream.write(resultsMap);
-
-				// Send back the data bytes written (accumulated)
-				// This is for the progress indicator
-				currentSize = sendBackWrittenDataBytes(cmdEnv, filePath, fileSize, currentSize, bytesWritten);
+				return outStream.write(resultsMap);
 			} else {
 				Log.error("output stream unexpectedly closed in writeFile");
-				handler.setError(true);
+				errors.fileError(null);
 			}
 		} catch (FileDecoderException e) {
-			handler.setError(true);
-			cmdEnv.handleResult(
+			errors.fileError(
 					new RpcMessage(
 							ClientMessageId.FILE_DECODER_ERROR,
 							MessageSeverityCode.E_FAILED,
@@ -593,8 +921,7 @@ public class ClientSystemFileCommands {
 			Log.error("failed to decode file " + (path == null ? "<unknown>" : path) + "; exception follows...");
 			Log.exception(e);
 		} catch (FileEncoderException e) {
-			handler.setError(true);
-			cmdEnv.handleResult(
+			errors.fileError(
 					new RpcMessage(
 							ClientMessageId.FILE_ENCODER_ERROR,
 							MessageSeverityCode.E_FAILED,
@@ -606,8 +933,7 @@ public class ClientSystemFileCommands {
 			Log.error("failed to encode file " + (path == null ? "<unknown>" : path) + "; exception follows...");
 			Log.exception(e);
 		} catch (IOException e) {
-			handler.setError(true);
-			cmdEnv.handleResult(
+			errors.fileError(
 					new RpcMessage(
 							ClientMessageId.FILE_WRITE_ERROR,
 							MessageSeverityCode.E_FAILED,
@@ -621,19 +947,18 @@ public class ClientSystemFileCommands {
 			Log.exception(e);
 		}
 
-		return RpcPacketDispatcherResult.CONTINUE_LOOP;
+		return -1;
 	}
 
 	private void writeToStream(byte[] sourceBytes, int start, int length,
 	                           OutputStream stream) throws IOException {
 		if (ClientLineEnding.CONVERT_TEXT) {
-			for (int i = start; i < length; i++) {
-				if (sourceBytes[i] == ClientLineEnding.FST_L_LF_BYTES[0]) {
-					stream.write(ClientLineEnding.FST_L_LOCAL_BYTES);
-				} else {
-					stream.write(sourceBytes[i]);
-				}
+			if (this.localLineEndConverter == null) {
+				this.localLineEndConverter = new RpcLineEndConverter(ClientLineEnding.FST_L_LOCAL_BYTES);
+				this.lineEndBuffer = new byte[RpcPropertyDefs.RPC_DEFAULT_FILE_BUF_SIZE];
 			}
+			this.localLineEndConverter.writeToClient(stream, sourceBytes, start, length,
+					this.lineEndBuffer);
 		} else {
 			stream.write(sourceBytes, start, length);
 		}
@@ -644,7 +969,8 @@ public class ClientSystemFileCommands {
 		int start = 0;
 
 		if (ClientLineEnding.CONVERT_TEXT) {
-			ByteArrayOutputStream converted = new ByteArrayOutputStream();
+			// Room for the usual proportion of line endings without regrowing
+			ByteArrayOutputStream converted = new ByteArrayOutputStream(length + length / 16 + 16);
 			writeToStream(sourceBytes, start, length, converted);
 			sourceBytes = converted.toByteArray();
 			start = 0;
@@ -720,7 +1046,7 @@ public class ClientSystemFileCommands {
 		}
 
 		try {
-			if ((outStream.getFD() != null) && outStream.getFD().valid()) {
+			if (outStream.isOpen()) {
 				byte[] sourceBytes = (byte[]) resultsMap
 						.get(RpcFunctionMapKey.DATA);
 				int len = sourceBytes.length;
@@ -853,7 +1179,7 @@ public class ClientSystemFileCommands {
 		}
 
 		try {
-			if ((outStream.getFD() != null) && outStream.getFD().valid()) {
+			if (outStream.isOpen()) {
 				outStream.write(resultsMap);
 			} else {
 				Log.error("output stream unexpectedly closed in writeBinary");
@@ -925,8 +1251,6 @@ public class ClientSystemFileCommands {
 		String clientHandle = (String) resultsMap.get(RpcFunctionMapKey.HANDLE);
 		RpcHandler handler = cmdEnv.getHandler(clientHandle);
 		Map<String, Object> stateMap = cmdEnv.getStateMap();
-		String serverDigest = null;
-		String localDigest = null;
 
 		// Clear data file info for progress indicator
 		filePath = null;
@@ -967,6 +1291,11 @@ public class ClientSystemFileCommands {
 					"Null target file ClientSystemFileCommands.closeFile() state map");
 		}
 
+		ClientWriteBehind.Stage writeStage = null;
+		if (this.writeBehind != null) {
+			writeStage = (ClientWriteBehind.Stage) handler.getMap().remove(FILE_OPEN_WRITE_STAGE_KEY);
+		}
+
 		if (commit != null) {
 			Map<String, Object> origArgs = (Map<String, Object>) handler.getMap().get(
 					FILE_OPEN_ORIG_ARGS_KEY);
@@ -977,53 +1306,132 @@ public class ClientSystemFileCommands {
 			}
 
 			String perms = (String) origArgs.get(RpcFunctionMapKey.PERMS);
-			String modTimeStr = null;
-			if (handler.getMap().containsKey(FILE_OPEN_MODTIME_KEY)) {
-				modTimeStr = (String) handler.getMap().get(FILE_OPEN_MODTIME_KEY);
+			String modTimeStr = (String) handler.getMap().get(FILE_OPEN_MODTIME_KEY);
+			boolean nonCheckedSyncs = cmdEnv.isNonCheckedSyncs();
+
+			if (writeStage != null) {
+				// Closed in the background once the file's writes are done
+				final ClientWriteBehind.Stage stage = writeStage;
+				this.writeBehind.close(stage, new Runnable() {
+					@Override
+					public void run() {
+						if (stage.isFailed()) {
+							cleanUpFile(tmpStream, targetStream, tmpFile);
+						} else {
+							commitFile(tmpStream, targetStream, tmpFile, targetFile,
+									perms, modTimeStr, nonCheckedSyncs, stageErrors(stage));
+						}
+					}
+				});
+			} else {
+				commitFile(tmpStream, targetStream, tmpFile, targetFile, perms, modTimeStr,
+						nonCheckedSyncs, handlerErrors(cmdEnv, handler));
 			}
+		} else if (writeStage != null) {
+			// Nothing more to do, but the stage is done with
+			this.writeBehind.close(writeStage, new Runnable() {
+				@Override
+				public void run() {
+				}
+			});
+		}
 
-			try {
-				if (tmpStream != null) {
-					if (tmpFile == null) {
-						throw new NullPointerError(
-								"Null tmp file ClientSystemFileCommands.writeFile() state map");
+		return RpcPacketDispatcherResult.CONTINUE_LOOP;
+	}
+
+	/**
+	 * Finish writing a file: close its stream, move any temp file into place,
+	 * check the transfer digest, and set the file's modification time and
+	 * permissions. Reports any error to the passed-in handler.
+	 */
+	private void commitFile(RpcOutputStream tmpStream, RpcOutputStream targetStream,
+	                        RpcPerforceFile tmpFile, RpcPerforceFile targetFile, String perms,
+	                        String modTimeStr, boolean nonCheckedSyncs, FileErrorHandler errors) {
+		String serverDigest = null;
+		String localDigest = null;
+
+		try {
+			if (tmpStream != null) {
+				if (tmpFile == null) {
+					throw new NullPointerError(
+							"Null tmp file ClientSystemFileCommands.writeFile() state map");
+				}
+
+				// Before rename (move) tmp file to target file,
+				// We must make sure the tmp stream is closed...
+				// in case that the stream is buffered...
+				// which might still contain data...
+				// so, we must call close() before the File.rename()
+				// See job068751
+				try {
+					tmpStream.flush();
+					tmpStream.close();
+				} catch (IOException e) {
+					Log.error("Flushing or closing stream failed in closeFile(); tmp file: "
+							+ tmpFile.getName());
+				}
+
+				try {
+					// Need to rename tmp file to target file.
+					if (!tmpFile.renameTo(targetFile)) {
+						Log.warn("Rename file failed in closeFile(); so, now will try to copy the file...");
+						// If a straight up rename fails, then try
+						// copying the tmp file onto the target file.
+						// This rename problem seems to happen on Windows
+						// when file size exceeds 2GB.
+						// See job080437
+						FilesHelper.copy(tmpFile, targetFile);
+						Log.warn("Copy file succeeded in closeFile().");
 					}
+				} catch (IOException e) {
+					// Total failure occurred - was unable to rename
+					// or even copy the file to its target.
+					Log.error("Rename/copy failed completely in closeFile(); tmp file: "
+							+ tmpFile.getName()
+							+ "; target file: "
+							+ targetFile.getName());
+					errors.fileError(
+							new RpcMessage(
+									ClientMessageId.FILE_WRITE_ERROR,
+									MessageSeverityCode.E_FAILED,
+									MessageGenericCode.EV_CLIENT,
+									new String[]{targetFile.getName(), e.getLocalizedMessage()}
+							).toMap()
+					);
 
-					// Before rename (move) tmp file to target file,
-					// We must make sure the tmp stream is closed...
-					// in case that the stream is buffered...
-					// which might still contain data...
-					// so, we must call close() before the File.rename()
-					// See job068751
+					return;
+				}
+			} else {
+				// Was written in-place; nothing to do here...
+				if (targetStream != null) {
 					try {
-						tmpStream.flush();
-						tmpStream.close();
+						targetStream.flush();
 					} catch (IOException e) {
-						Log.error("Flushing or closing stream failed in closeFile(); tmp file: "
+						Log.error("Flushing stream failed in closeFile(); tmp file: "
 								+ tmpFile.getName());
+						errors.fileError(
+								new RpcMessage(
+										ClientMessageId.FILE_WRITE_ERROR,
+										MessageSeverityCode.E_FAILED,
+										MessageGenericCode.EV_CLIENT,
+										new String[]{targetFile.getName(), e.getLocalizedMessage()}
+								).toMap()
+						);
+
+						return;
 					}
+				}
+			}
 
+			if (tmpStream != null) {
+				serverDigest = tmpStream.getServerDigest();
+				if (tmpStream.getLocalDigester() != null) {
 					try {
-						// Need to rename tmp file to target file.
-						if (!tmpFile.renameTo(targetFile)) {
-							Log.warn("Rename file failed in closeFile(); so, now will try to copy the file...");
-							// If a straight up rename fails, then try
-							// copying the tmp file onto the target file.
-							// This rename problem seems to happen on Windows
-							// when file size exceeds 2GB.
-							// See job080437
-							FilesHelper.copy(tmpFile, targetFile);
-							Log.warn("Copy file succeeded in closeFile().");
-						}
+						tmpStream.flush();
 					} catch (IOException e) {
-						// Total failure occurred - was unable to rename
-						// or even copy the file to its target.
-						Log.error("Rename/copy failed completely in closeFile(); tmp file: "
-								+ tmpFile.getName()
-								+ "; target file: "
-								+ targetFile.getName());
-						handler.setError(true);
-						cmdEnv.handleResult(
+						Log.error("Flushing stream failed in closeFile(); tmp file: "
+								+ tmpFile.getName());
+						errors.fileError(
 								new RpcMessage(
 										ClientMessageId.FILE_WRITE_ERROR,
 										MessageSeverityCode.E_FAILED,
@@ -1032,177 +1440,136 @@ public class ClientSystemFileCommands {
 								).toMap()
 						);
 
-						return RpcPacketDispatcherResult.CONTINUE_LOOP;
-					}
-				} else {
-					// Was written in-place; nothing to do here...
-					if (targetStream != null) {
-						try {
-							targetStream.flush();
-						} catch (IOException e) {
-							Log.error("Flushing stream failed in closeFile(); tmp file: "
-									+ tmpFile.getName());
-							handler.setError(true);
-							cmdEnv.handleResult(
-									new RpcMessage(
-											ClientMessageId.FILE_WRITE_ERROR,
-											MessageSeverityCode.E_FAILED,
-											MessageGenericCode.EV_CLIENT,
-											new String[]{targetFile.getName(), e.getLocalizedMessage()}
-									).toMap()
-							);
-
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
-						}
+						return;
 					}
+					localDigest = tmpStream.getLocalDigester().digestAs32ByteHex();
 				}
+			} else if (targetStream != null) {
+				serverDigest = targetStream.getServerDigest();
+				if (targetStream.getLocalDigester() != null) {
+					try {
+						targetStream.flush();
+					} catch (IOException e) {
+						Log.error("Flushing stream failed in closeFile(); target file: "
+								+ targetFile.getName());
+						errors.fileError(
+								new RpcMessage(
+										ClientMessageId.FILE_WRITE_ERROR,
+										MessageSeverityCode.E_FAILED,
+										MessageGenericCode.EV_CLIENT,
+										new String[]{targetFile.getName(), e.getLocalizedMessage()}
+								).toMap()
+						);
 
-				if (tmpStream != null) {
-					serverDigest = tmpStream.getServerDigest();
-					if (tmpStream.getLocalDigester() != null) {
-						try {
-							tmpStream.flush();
-						} catch (IOException e) {
-							Log.error("Flushing stream failed in closeFile(); tmp file: "
-									+ tmpFile.getName());
-							handler.setError(true);
-							cmdEnv.handleResult(
-									new RpcMessage(
-											ClientMessageId.FILE_WRITE_ERROR,
-											MessageSeverityCode.E_FAILED,
-											MessageGenericCode.EV_CLIENT,
-											new String[]{targetFile.getName(), e.getLocalizedMessage()}
-									).toMap()
-							);
-
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
-						}
-						localDigest = tmpStream.getLocalDigester().digestAs32ByteHex();
-					}
-				} else if (targetStream != null) {
-					serverDigest = targetStream.getServerDigest();
-					if (targetStream.getLocalDigester() != null) {
-						try {
-							targetStream.flush();
-						} catch (IOException e) {
-							Log.error("Flushing stream failed in closeFile(); target file: "
-									+ targetFile.getName());
-							handler.setError(true);
-							cmdEnv.handleResult(
-									new RpcMessage(
-											ClientMessageId.FILE_WRITE_ERROR,
-											MessageSeverityCode.E_FAILED,
-											MessageGenericCode.EV_CLIENT,
-											new String[]{targetFile.getName(), e.getLocalizedMessage()}
-									).toMap()
-							);
-
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
-						}
-						localDigest = targetStream.getLocalDigester().digestAs32ByteHex();
-
-						// (pallen) close targetStream before setting modtime
-						try {
-							targetStream.close();
-						} catch (IOException e) {
-							Log.warn("target file close error in ClientSystemFileCommands.closeFile(): "
-									+ e.getLocalizedMessage());
-							handler.setError(true);
-							cmdEnv.handleResult(
-									new RpcMessage(
-											ClientMessageId.FILE_WRITE_ERROR,
-											MessageSeverityCode.E_FAILED,
-											MessageGenericCode.EV_CLIENT,
-											new String[]{targetFile.getName(), e.getLocalizedMessage()}
-									).toMap()
-							);
-
-							return RpcPacketDispatcherResult.CONTINUE_LOOP;
-						}
+						return;
 					}
-				}
+					localDigest = targetStream.getLocalDigester().digestAs32ByteHex();
 
-				if ((serverDigest != null) && !cmdEnv.isNonCheckedSyncs()) {
-					if (!serverDigest.equals(localDigest)) {
-						handler.setError(true);
-						cmdEnv.handleResult(
+					// (pallen) close targetStream before setting modtime
+					try {
+						targetStream.close();
+					} catch (IOException e) {
+						Log.warn("target file close error in ClientSystemFileCommands.closeFile(): "
+								+ e.getLocalizedMessage());
+						errors.fileError(
 								new RpcMessage(
-										ClientMessageId.DIGEST_MISMATCH,
+										ClientMessageId.FILE_WRITE_ERROR,
 										MessageSeverityCode.E_FAILED,
 										MessageGenericCode.EV_CLIENT,
-										new String[]{
-												targetFile.getPath(),
-												serverDigest,
-												localDigest
-										}
+										new String[]{targetFile.getName(), e.getLocalizedMessage()}
 								).toMap()
 						);
-						return RpcPacketDispatcherResult.CONTINUE_LOOP;
+
+						return;
 					}
 				}
+			}
 
-				// Handle AppleSingle file ('apple').
-				// Extract data fork and resource fork.
-				// -------------------------------------------------------------
-				// Type        Client Use              Server Storage
-				// ----        ----------              --------------
-				// apple       Mac resource + data     compressed AppleSingle
-				// -------------------------------------------------------------
-				if (targetFile.getFileType() == RpcPerforceFileType.FST_APPLEFILE) {
-					AppleFileHelper.extractFile(targetFile);
+			if ((serverDigest != null) && !nonCheckedSyncs) {
+				if (!serverDigest.equals(localDigest)) {
+					errors.fileError(
+							new RpcMessage(
+									ClientMessageId.DIGEST_MISMATCH,
+									MessageSeverityCode.E_FAILED,
+									MessageGenericCode.EV_CLIENT,
+									new String[]{
+											targetFile.getPath(),
+											serverDigest,
+											localDigest
+									}
+							).toMap()
+					);
+					return;
 				}
+			}
 
-				if (modTimeStr != null) {
-					try {
-						long modTime = new Long(modTimeStr);
+			// Handle AppleSingle file ('apple').
+			// Extract data fork and resource fork.
+			// -------------------------------------------------------------
+			// Type        Client Use              Server Storage
+			// ----        ----------              --------------
+			// apple       Mac resource + data     compressed AppleSingle
+			// -------------------------------------------------------------
+			if (targetFile.getFileType() == RpcPerforceFileType.FST_APPLEFILE) {
+				AppleFileHelper.extractFile(targetFile);
+			}
 
-						if (modTime > 0) {
-							targetFile.setLastModified(modTime * 1000);
-						}
-					} catch (Exception exc) {
-						Log.warn("Unable to set target file modification time: " + exc);
+			if (modTimeStr != null) {
+				try {
+					long modTime = new Long(modTimeStr);
+
+					if (modTime > 0) {
+						targetFile.setLastModified(modTime * 1000);
 					}
+				} catch (Exception exc) {
+					Log.warn("Unable to set target file modification time: " + exc);
 				}
+			}
 
-				if (perms.equalsIgnoreCase(PERMS_RW)) {
-					fileCommands.setWritable(targetFile.getPath(), true);
-				} else {
-					fileCommands.setWritable(targetFile.getPath(), false);
-				}
+			if (perms.equalsIgnoreCase(PERMS_RW)) {
+				fileCommands.setWritable(targetFile.getPath(), true);
+			} else {
+				fileCommands.setWritable(targetFile.getPath(), false);
+			}
 
-				if (targetFile.getFileType().isExecutable()) {
-					// See job075630
-					// Set exec bit for Owner, Group and World.
-					fileCommands.setExecutable(targetFile.getPath(), true, false);
-				}
-			} finally {
-				try {
-					if (tmpStream != null) {
-						tmpStream.close();
-					}
-				} catch (IOException ioexc) {
-					Log.warn("tmp file close error in ClientSystemFileCommands.closeFile(): "
-							+ ioexc.getLocalizedMessage());
-				}
-				try {
-					if (targetStream != null) {
-						targetStream.close();
-					}
-				} catch (IOException ioexc) {
-					Log.warn("target file close error in ClientSystemFileCommands.closeFile(): "
-							+ ioexc.getLocalizedMessage());
-				}
-				if (tmpFile != null) {
-					if (tmpFile.exists() && !tmpFile.delete()) {
-						Log.warn("Unable to delete tmp file '"
-								+ tmpFile.getPath()
-								+ "' in ClientSystemFileCommands.closeFile() -- unknown cause");
-					}
-				}
+			if (targetFile.getFileType().isExecutable()) {
+				// See job075630
+				// Set exec bit for Owner, Group and World.
+				fileCommands.setExecutable(targetFile.getPath(), true, false);
 			}
+		} finally {
+			cleanUpFile(tmpStream, targetStream, tmpFile);
 		}
+	}
 
-		return RpcPacketDispatcherResult.CONTINUE_LOOP;
+	/**
+	 * Close the file's streams and delete any temp file left behind.
+	 */
+	private void cleanUpFile(RpcOutputStream tmpStream, RpcOutputStream targetStream,
+	                         RpcPerforceFile tmpFile) {
+		try {
+			if (tmpStream != null) {
+				tmpStream.close();
+			}
+		} catch (IOException ioexc) {
+			Log.warn("tmp file close error in ClientSystemFileCommands.closeFile(): "
+					+ ioexc.getLocalizedMessage());
+		}
+		try {
+			if (targetStream != null) {
+				targetStream.close();
+			}
+		} catch (IOException ioexc) {
+			Log.warn("target file close error in ClientSystemFileCommands.closeFile(): "
+					+ ioexc.getLocalizedMessage());
+		}
+		if (tmpFile != null) {
+			if (tmpFile.exists() && !tmpFile.delete()) {
+				Log.warn("Unable to delete tmp file '"
+						+ tmpFile.getPath()
+						+ "' in ClientSystemFileCommands.closeFile() -- unknown cause");
+			}
+		}
 	}
 
 	/**
@@ -1552,6 +1919,7 @@ public class ClientSystemFileCommands {
 							confirm,
 							respMap,
 							null);
+					sendDigestReplies(true);
 					rpcConnection.putRpcPacket(respPacket);
 
 					return RpcPacketDispatcherResult.CONTINUE_LOOP;
@@ -1564,6 +1932,7 @@ public class ClientSystemFileCommands {
 
 		RpcPerforceFileType fileType = null;
 		boolean fstSymlink = false;
+		LocalDigest localDigest = null;
 
 		if (clientType != null) {
 			RpcPerforceFile file = new RpcPerforceFile(clientPath, clientType);
@@ -1576,44 +1945,16 @@ public class ClientSystemFileCommands {
 		     * it is the same.
 		     */
 
-			if (!fileExists(file, fstSymlink)) {
+			RpcFileAttributes attrs = RpcFileAttributes.read(file);
+			if (!fileExists(file, attrs, fstSymlink)) {
 				status = "missing";
 			} else if (digest != null) {
 				// Calculate actual file digest; if same, we assume the file's
-				// the same as on the server.
-
-				MD5Digester digester = new MD5Digester();
-
-				if (digester != null) {
-					Charset digestCharset = null;
-					boolean convertLineEndings = false;
-					//Only worry about encoding if unicode
-					switch (fileType) {
-						case FST_UTF16:
-							digestCharset = CharsetDefs.UTF16;
-						case FST_UNICODE:
-							if (digestCharset == null) {
-								digestCharset = rpcConnection.getClientCharset();
-							}
-						case FST_XTEXT:
-						case FST_TEXT:
-							// Convert line endings
-							convertLineEndings = true;
-							break;
-						default:
-							break;
-					}
-
-					// Digest the file using the configured local file content
-					// charset. A null digestCharset specified will cause the
-					// file to be read as raw byte stream directly off disk.
-					String digestStr = digester.digestFileAs32ByteHex(file,
-							digestCharset, convertLineEndings, file.getLineEnding());
+				// the same as on the server. The status is set when the
+				// reply is sent.
 
-					if ((digestStr != null) && digestStr.equals(digest)) {
-						status = "same";
-					}
-				}
+				localDigest = digestClientFile(file, attrs, fileType,
+						rpcConnection.getClientCharset(), file.getLineEnding());
 			}
 		} else {
 			int scan = -1;
@@ -1624,14 +1965,16 @@ public class ClientSystemFileCommands {
 				}
 			}
 
-			// Infer the file type, since it's not given.
+			// Infer the file type, since it's not given; the file's
+			// attributes are read once for all the checks below.
 			File file = new File(clientPath);
-			fileType = RpcPerforceFileType.inferFileType(file, scan,
+			RpcFileAttributes attrs = RpcFileAttributes.read(file);
+			fileType = RpcPerforceFileType.inferFileType(file, attrs, scan,
 					cmdEnv.getRpcConnection().isUnicodeServer(),
 					cmdEnv.getRpcConnection().getClientCharset());
 			fstSymlink = (fileType == RpcPerforceFileType.FST_SYMLINK);
 
-			if (!fileExists(file, fstSymlink)) {
+			if (!fileExists(file, attrs, fstSymlink)) {
 				status = "missing";
 
 				cmdEnv.handleResult(
@@ -1661,7 +2004,7 @@ public class ClientSystemFileCommands {
 			if (fileSize != null) {
 				try {
 					long checkSize = Long.parseLong(fileSize);
-					overSize = file.length() > checkSize;
+					overSize = attrs.size() > checkSize;
 				} catch (NumberFormatException e) {
 				}
 			}
@@ -1710,12 +2053,19 @@ public class ClientSystemFileCommands {
 			}
 		}
 
-		RpcPacket respPacket = RpcPacket.constructRpcPacket(
-				confirm,
-				respMap,
-				null);
+		if (localDigest != null) {
+			this.pendingDigestReplies.add(new PendingDigestReply(rpcConnection, confirm, respMap,
+					digest, localDigest));
+			sendDigestReplies(false);
+		} else {
+			RpcPacket respPacket = RpcPacket.constructRpcPacket(
+					confirm,
+					respMap,
+					null);
 
-		rpcConnection.putRpcPacket(respPacket);
+			sendDigestReplies(true);
+			rpcConnection.putRpcPacket(respPacket);
+		}
 
 		return RpcPacketDispatcherResult.CONTINUE_LOOP;
 	}
@@ -1767,6 +2117,7 @@ public class ClientSystemFileCommands {
 
 		RpcPerforceFileType fileType = RpcPerforceFileType.decodeFromServerString(clientType);
 		boolean fstSymlink = (fileType == RpcPerforceFileType.FST_SYMLINK);
+		LocalDigest localDigest = null;
 
 		/*
 	     * If we do know the type, we want to know if it's missing.
@@ -1775,47 +2126,19 @@ public class ClientSystemFileCommands {
 	     */
 
 		File file = new File(clientPath);
+		RpcFileAttributes attrs = RpcFileAttributes.read(file);
 
-		if (!fileExists(file, fstSymlink)) {
+		if (!fileExists(file, attrs, fstSymlink)) {
 			status = "missing";
-		} else if (RpcPerforceFileType.isProbablySymLink(file)) {
+		} else if (attrs.isSymbolicLink()) {
 			skipFilesMap.put(file.getAbsolutePath(), file);
 		} else if (digest != null) {
 			// Calculate actual file digest; if same, we assume the file's
-			// the same as on the server.
-
-			MD5Digester digester = new MD5Digester();
-
-			if (digester != null) {
-				Charset digestCharset = null;
-				boolean convertLineEndings = false;
-				//Only worry about encoding if unicode
-				switch (fileType) {
-					case FST_UTF16:
-						digestCharset = CharsetDefs.UTF16;
-					case FST_UNICODE:
-						if (digestCharset == null) {
-							digestCharset = rpcConnection.getClientCharset();
-						}
-					case FST_XTEXT:
-					case FST_TEXT:
-						// Convert line endings
-						convertLineEndings = true;
-						break;
-					default:
-						break;
-				}
-
-				// Digest the file using the configured local file content
-				// charset. A null digestCharset specified will cause the
-				// file to be read as raw byte stream directly off disk.
-				String digestStr = digester.digestFileAs32ByteHex(file,
-						digestCharset, convertLineEndings);
+			// the same as on the server. The status is set when the
+			// reply is sent.
 
-				if ((digestStr != null) && digestStr.equals(digest)) {
-					status = "same";
-				}
-			}
+			localDigest = digestClientFile(file, attrs, fileType,
+					rpcConnection.getClientCharset(), null);
 		} else {
 			skipFilesMap.put(file.getAbsolutePath(), file);
 		}
@@ -1840,12 +2163,19 @@ public class ClientSystemFileCommands {
 			}
 		}
 
-		RpcPacket respPacket = RpcPacket.constructRpcPacket(
-				confirm,
-				respMap,
-				null);
+		if (localDigest != null) {
+			this.pendingDigestReplies.add(new PendingDigestReply(rpcConnection, confirm, respMap,
+					digest, localDigest));
+			sendDigestReplies(false);
+		} else {
+			RpcPacket respPacket = RpcPacket.constructRpcPacket(
+					confirm,
+					respMap,
+					null);
 
-		rpcConnection.putRpcPacket(respPacket);
+			sendDigestReplies(true);
+			rpcConnection.putRpcPacket(respPacket);
+		}
 
 		return RpcPacketDispatcherResult.CONTINUE_LOOP;
 	}
@@ -1853,10 +2183,8 @@ public class ClientSystemFileCommands {
 	/**
 	 * Reconcile add confirm - scans the directory (local syntax) and returns
 	 * files in the directory using the full path. This supports traversing
-	 * sub-directories.<p>
-	 * <p>
-	 * TODO: Check MapApi; if no mapping, continue; Currently, just rely on
-	 * server side MapApi validation.
+	 * sub-directories. Directories outside the client view are skipped;
+	 * otherwise the server does the client view checking.
 	 */
 	protected RpcPacketDispatcherResult reconcileAdd(
 			RpcConnection rpcConnection, CommandEnv cmdEnv,
@@ -1978,9 +2306,10 @@ public class ClientSystemFileCommands {
 
 	/**
 	 * Recursively (optional) traverse the directory tree for files.<p>
-	 * <p>
-	 * TODO: Check MapApi; if no mapping, continue. Currently, just rely on
-	 * server side MapApi validation.
+	 *
+	 * The walk itself is done in parallel by ClientDirectoryWalker, which
+	 * skips directories outside the client view; the ignore checks are then
+	 * done here, in order, as they report back through the cmdEnv.
 	 */
 	private void traverseDirs(File file, boolean traverse, boolean skipIgnore,
 	                          Map<String, File> addFilesMap, ViewMap<IMapEntry> viewMap,
@@ -1989,55 +2318,20 @@ public class ClientSystemFileCommands {
 			throw new IllegalArgumentException("Must pass in a non-null 'files' list as a parameter.");
 		}
 
-		if (file == null || !file.exists()) {
-			return;
-		}
-
-		// If this is a file, not a directory, and not to be ignored,
-		// save the filename and return.
-		if (file.isFile()) {
-			if (skipIgnore || !isIgnore(file, charset, cmdEnv)) {
-				addFilesMap.put(file.getAbsolutePath(), file);
-			}
+		if (file == null) {
 			return;
 		}
 
-		// If this is a symlink to a directory, and not to be ignored,
-		// save the filename and return.
-		if (file.isDirectory() && RpcPerforceFileType.isProbablySymLink(file)) {
-			if (skipIgnore || !isIgnore(file, charset, cmdEnv)) {
-				addFilesMap.put(file.getAbsolutePath(), file);
+		boolean caseSensitive = (this.server == null) || this.server.isCaseSensitive();
+		ClientDirectoryWalker walker = new ClientDirectoryWalker(traverse, viewMap, caseSensitive);
+		ClientDigestCache cache = getDigestCache();
+		for (Path path : walker.walk(file.toPath())) {
+			File f = path.toFile();
+			if ((cache != null) && cache.isCacheFile(f)) {
+				continue;
 			}
-			return;
-		}
-
-		// This is a directory to be scanned.
-		if (file.isDirectory()) {
-			File[] files = file.listFiles();
-			if (files != null) {
-				for (File f : files) {
-					if (f.isDirectory()) { // Directory
-						if (RpcPerforceFileType.isProbablySymLink(file)) {
-							// TODO: Check MapApi; if no mapping, continue.
-							// Currently, rely on server side MapApi validation.
-
-							if (skipIgnore || !isIgnore(f, charset, cmdEnv)) {
-								addFilesMap.put(f.getAbsolutePath(), f);
-							}
-						} else if (traverse) {
-							// Recursive call
-							traverseDirs(f, traverse, skipIgnore, addFilesMap,
-									viewMap, unicode, charset, cmdEnv);
-						}
-					} else { // File
-						// TODO: Check MapApi; if no mapping, continue.
-						// Currently, rely on server side MapApi validation.
-
-						if (skipIgnore || !isIgnore(f, charset, cmdEnv)) {
-							addFilesMap.put(f.getAbsolutePath(), f);
-						}
-					}
-				}
+			if (skipIgnore || !isIgnore(f, charset, cmdEnv)) {
+				addFilesMap.put(f.getAbsolutePath(), f);
 			}
 		}
 	}
@@ -2058,12 +2352,32 @@ public class ClientSystemFileCommands {
 		return false;
 	}
 
+	/**
+	 * Check if the file or symbolic link exists, given a snapshot of its
+	 * attributes; as fileExists(File, boolean), a symbolic link only counts
+	 * as a file if it's a symlink type or its target exists.
+	 */
+	private boolean fileExists(File file, RpcFileAttributes attrs, boolean fstSymlink) {
+		if (!attrs.exists()) {
+			return false;
+		}
+		if (fstSymlink || !attrs.isSymbolicLink()) {
+			return true;
+		}
+		return file.exists();
+	}
+
 	/**
 	 * Check if the file should be ignored.
 	 */
 	private boolean isIgnore(File file, Charset charset, CommandEnv cmdEnv) {
 		// Do ignore checking, reject file matching ignore patterns
 		if (getChecker(charset) != null) {
+			if (this.checkerCmdEnv == null || this.checkerCmdEnv.get() != cmdEnv) {
+				// Ignore files are checked for changes once per command
+				this.checker.startCommand();
+				this.checkerCmdEnv = new WeakReference<CommandEnv>(cmdEnv);
+			}
 			try {
 				if (checker.match(file)) {
 					cmdEnv.handleResult(new RpcMessage(
@@ -2088,7 +2402,8 @@ public class ClientSystemFileCommands {
 	/**
 	 * Return the temp RPC output stream. If it doesn't exist, try to create a
 	 * new one only if the command is run from a "streamCmd" method or tracking
-	 * is enabled.
+	 * is enabled; if the command's output is being streamed to the caller
+	 * through a pipe, the new stream writes to the pipe rather than a file.
 	 */
 	public RpcOutputStream getTempOutputStream(CommandEnv cmdEnv)
 			throws ConnectionException {
@@ -2109,7 +2424,12 @@ public class ClientSystemFileCommands {
 				RpcServer.RPC_TMP_OUTFILE_STREAM_KEY);
 
 		if (outStream == null) {
-			if (cmdEnv.isStreamCmd() || cmdEnv.getProtocolSpecs().isEnableTracking()) {
+			RpcStreamPipe pipe = (RpcStreamPipe) cmdEnv.getStateMap().get(
+					RpcServer.RPC_STREAM_PIPE_KEY);
+			if (pipe != null) {
+				outStream = new RpcOutputStream(pipe.getOutputStream());
+				cmdEnv.getStateMap().put(RpcServer.RPC_TMP_OUTFILE_STREAM_KEY, outStream);
+			} else if (cmdEnv.isStreamCmd() || cmdEnv.getProtocolSpecs().isEnableTracking()) {
 				try {
 					String tmpFileName = RpcPerforceFile
 							.createTempFileName(RpcPropertyDefs.getProperty(
@@ -2191,16 +2511,24 @@ public class ClientSystemFileCommands {
 	}
 
 	/**
-	 * Return the client ignore checker; create a new one if it doesn't exist.
+	 * Return the client ignore checker; create a new one if it doesn't exist,
+	 * or if the client root, ignore file name or charset has changed since it
+	 * was created. The checker caches compiled ignore files, so it is kept
+	 * across commands.
 	 */
 	private ClientIgnoreChecker getChecker(Charset charset) {
-		if (this.checker == null) {
-			if (this.server != null) {
-				if (this.server.getCurrentClient() != null
-						&& this.server.getIgnoreFileName() != null) {
-					this.checker = new ClientIgnoreChecker(this.server
-							.getCurrentClient().getRoot(),
-							this.server.getIgnoreFileName(), charset);
+		if (this.server != null) {
+			if (this.server.getCurrentClient() != null
+					&& this.server.getCurrentClient().getRoot() != null
+					&& this.server.getIgnoreFileName() != null
+					&& charset != null) {
+				String clientRoot = this.server.getCurrentClient().getRoot();
+				String ignoreFileName = this.server.getIgnoreFileName();
+				if (this.checker == null
+						|| !this.checker.isFor(clientRoot, ignoreFileName, charset)) {
+					this.checker = new ClientIgnoreChecker(clientRoot,
+							ignoreFileName, charset);
+					this.checkerCmdEnv = null;
 				}
 			}
 		}
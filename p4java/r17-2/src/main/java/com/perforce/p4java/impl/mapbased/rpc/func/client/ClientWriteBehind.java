@@ -0,0 +1,266 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+
+/**
+ * Optional write-behind stage for the files the server sends with
+ * client-OpenFile / client-WriteFile / client-CloseFile (sync, print -o,
+ * etc.).<p>
+ *
+ * Packets are still received and decoded on the command's own thread, but
+ * the work of materializing each file -- inflating, converting and
+ * digesting the data, writing it, and the rename / mtime / permission
+ * changes on close -- is queued here and done on a small pool of worker
+ * threads, so a slow disk doesn't hold up reading from the socket.<p>
+ *
+ * Each file gets its own Stage, whose tasks are run strictly in the order
+ * they were queued, one at a time; different files' stages run concurrently
+ * on at most the configured number of threads. The number of bytes queued
+ * but not yet written is bounded, and the queuing (network) thread blocks
+ * once the bound is reached.<p>
+ *
+ * Workers never call back into the CommandEnv; any error messages they
+ * produce are queued and handed to CommandEnv.handleResult on the command
+ * thread by deliverResults() or awaitAll().
+ */
+class ClientWriteBehind {
+
+	public static final String THREAD_NAME_PREFIX = "P4Java write-behind ";
+
+	private final int maxThreads;
+	private final long maxQueuedBytes;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	/** Stages with tasks waiting and no worker running them. */
+	private final ArrayDeque<Stage> ready = new ArrayDeque<Stage>();
+	/** Stages not yet closed, by target file path. */
+	private final Map<String, Stage> openStages = new HashMap<String, Stage>();
+	private final ConcurrentLinkedQueue<Map<String, Object>> results =
+			new ConcurrentLinkedQueue<Map<String, Object>>();
+
+	private int runningWorkers = 0;
+	private int pendingTasks = 0;
+	private long queuedBytes = 0;
+
+	/**
+	 * @param maxThreads maximum number of files materialized concurrently.
+	 * @param maxQueuedBytes maximum number of bytes of file data queued
+	 * 			and not yet written; a single larger write is still accepted
+	 * 			when nothing else is queued.
+	 */
+	ClientWriteBehind(int maxThreads, long maxQueuedBytes) {
+		if (maxThreads <= 0) {
+			throw new IllegalArgumentException("write-behind thread count must be positive");
+		}
+		this.maxThreads = maxThreads;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * The ordered queue of work for one file.
+	 */
+	class Stage {
+		private final String path;
+		private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+		private boolean scheduled = false;
+		private volatile boolean failed = false;
+
+		private Stage(String path) {
+			this.path = path;
+		}
+
+		/**
+		 * True if an earlier task for this file failed; the file's
+		 * remaining tasks should do nothing more than clean up.
+		 */
+		boolean isFailed() {
+			return this.failed;
+		}
+
+		/**
+		 * Record a failure for this file, queueing its error message (if any)
+		 * for delivery on the command thread.
+		 */
+		void fail(Map<String, Object> message) {
+			this.failed = true;
+			if (message != null) {
+				results.add(message);
+			}
+		}
+	}
+
+	private static class Task {
+		private final Runnable work;
+		private final long size;
+		private final boolean last;
+
+		Task(Runnable work, long size, boolean last) {
+			this.work = work;
+			this.size = size;
+			this.last = last;
+		}
+	}
+
+	/**
+	 * Start a stage for a newly-opened file. If work queued for an earlier
+	 * stage for the same path is still outstanding, wait for it first, so the
+	 * caller sees the file as that stage left it.
+	 */
+	Stage open(String path) {
+		lock.lock();
+		try {
+			Stage previous;
+			while ((previous = openStages.get(path)) != null && previous.scheduled) {
+				changed.awaitUninterruptibly();
+			}
+			Stage stage = new Stage(path);
+			openStages.put(path, stage);
+			return stage;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Queue a write of size bytes for the stage's file; blocks while too
+	 * many bytes are already queued.
+	 */
+	void write(Stage stage, long size, Runnable work) {
+		enqueue(stage, new Task(work, size, false));
+	}
+
+	/**
+	 * Queue the stage's final task, typically closing the file.
+	 */
+	void close(Stage stage, Runnable work) {
+		enqueue(stage, new Task(work, 0, true));
+	}
+
+	private void enqueue(Stage stage, Task task) {
+		boolean startWorker = false;
+		lock.lock();
+		try {
+			while (queuedBytes > 0 && queuedBytes + task.size > maxQueuedBytes) {
+				changed.awaitUninterruptibly();
+			}
+			queuedBytes += task.size;
+			pendingTasks++;
+			stage.tasks.add(task);
+			if (!stage.scheduled) {
+				stage.scheduled = true;
+				ready.add(stage);
+				if (runningWorkers < maxThreads) {
+					runningWorkers++;
+					startWorker = true;
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (startWorker) {
+			SharedExecutorHolder.EXECUTOR.execute(this::runWorker);
+		}
+	}
+
+	private void runWorker() {
+		while (true) {
+			Stage stage;
+			Task task;
+			lock.lock();
+			try {
+				stage = ready.poll();
+				if (stage == null) {
+					runningWorkers--;
+					return;
+				}
+				task = stage.tasks.poll();
+			} finally {
+				lock.unlock();
+			}
+
+			try {
+				task.work.run();
+			} catch (Throwable thr) {
+				Log.error("Unexpected exception in write-behind for " + stage.path + ": "
+						+ thr.getLocalizedMessage());
+				Log.exception(thr);
+				stage.fail(null);
+			}
+
+			lock.lock();
+			try {
+				queuedBytes -= task.size;
+				pendingTasks--;
+				if (task.last && openStages.get(stage.path) == stage) {
+					openStages.remove(stage.path);
+				}
+				if (stage.tasks.isEmpty()) {
+					stage.scheduled = false;
+				} else {
+					ready.add(stage);
+				}
+				changed.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Hand any error messages produced so far to the command environment.
+	 * Must be called on the command thread.
+	 */
+	void deliverResults(CommandEnv cmdEnv) {
+		Map<String, Object> result;
+		while ((result = results.poll()) != null) {
+			cmdEnv.handleResult(result);
+		}
+	}
+
+	/**
+	 * Wait until every queued task has run, then deliver any error
+	 * messages. Must be called on the command thread.
+	 */
+	void awaitAll(CommandEnv cmdEnv) {
+		lock.lock();
+		try {
+			while (pendingTasks > 0) {
+				changed.awaitUninterruptibly();
+			}
+		} finally {
+			lock.unlock();
+		}
+		deliverResults(cmdEnv);
+	}
+
+	/**
+	 * Pool shared by all write-behind stages; the per-instance thread limit
+	 * is applied by counting running workers, and the threads are daemons.
+	 */
+	private static class SharedExecutorHolder {
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
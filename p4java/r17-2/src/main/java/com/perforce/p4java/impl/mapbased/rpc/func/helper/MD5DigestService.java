@@ -0,0 +1,150 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.File;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+
+/**
+ * Computes client file digests on a bounded number of background threads,
+ * for commands (reconcile, diff -se / -sa, etc.) where the server asks for
+ * many of them in a row.<p>
+ *
+ * Each file is digested exactly as MD5Digester.digestFileAs32ByteHex would
+ * digest it, with a digester kept per worker thread. No more than the
+ * configured number of files are digested at once; submitting another file
+ * blocks until one of them is finished.
+ */
+public class MD5DigestService {
+
+	public static final String THREAD_NAME_PREFIX = "P4Java digester ";
+
+	private static final ThreadLocal<MD5Digester> DIGESTERS = new ThreadLocal<MD5Digester>() {
+		@Override
+		protected MD5Digester initialValue() {
+			return new MD5Digester();
+		}
+	};
+
+	private final Semaphore slots;
+
+	/**
+	 * @param threads maximum number of files digested concurrently.
+	 */
+	public MD5DigestService(int threads) {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("digest thread count must be positive");
+		}
+		this.slots = new Semaphore(threads);
+	}
+
+	/**
+	 * Start digesting a file in the background. The returned Future's value
+	 * is the file's digest as a 32 byte hex string, or null if the file
+	 * couldn't be read or digested.
+	 *
+	 * @see MD5Digester#digestFileAs32ByteHex(File, Charset, boolean, ClientLineEnding)
+	 */
+	public Future<String> submit(@Nonnull final File file, @Nullable final Charset charset,
+			final boolean convertLineEndings, @Nullable final ClientLineEnding clientLineEnding) {
+		requireNonNull(file, "Null file passed to MD5DigestService.submit()");
+		slots.acquireUninterruptibly();
+		FutureTask<String> task = new FutureTask<String>(new Callable<String>() {
+			@Override
+			public String call() {
+				return DIGESTERS.get().digestFileAs32ByteHex(file, charset,
+						convertLineEndings, clientLineEnding);
+			}
+		}) {
+			@Override
+			protected void done() {
+				slots.release();
+			}
+		};
+		try {
+			SharedExecutorHolder.EXECUTOR.execute(task);
+		} catch (RuntimeException exc) {
+			slots.release();
+			throw exc;
+		}
+		return task;
+	}
+
+	/**
+	 * Digest a list of files, returning their digests in the same order;
+	 * an entry is null if its file couldn't be read or digested.
+	 */
+	public List<String> digestAll(@Nonnull List<File> files, @Nullable Charset charset,
+			boolean convertLineEndings, @Nullable ClientLineEnding clientLineEnding) {
+		List<Future<String>> futures = new ArrayList<Future<String>>(files.size());
+		for (File file : files) {
+			futures.add(submit(file, charset, convertLineEndings, clientLineEnding));
+		}
+		List<String> digests = new ArrayList<String>(files.size());
+		for (Future<String> future : futures) {
+			digests.add(getDigest(future));
+		}
+		return digests;
+	}
+
+	/**
+	 * Wait for the result of submit(); interrupts are put off until the
+	 * digest is available, as a missing digest would be taken to mean the
+	 * file has changed.
+	 */
+	public static String getDigest(@Nonnull Future<String> future) {
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					return future.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					Log.error("Unexpected exception digesting file: "
+							+ e.getCause().getLocalizedMessage());
+					Log.exception(e.getCause());
+					return null;
+				}
+			}
+		} finally {
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Pool shared by all digest services; the per-instance thread limit is
+	 * applied by the semaphore, and the threads are daemons.
+	 */
+	private static class SharedExecutorHolder {
+		private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, THREAD_NAME_PREFIX + count.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+}
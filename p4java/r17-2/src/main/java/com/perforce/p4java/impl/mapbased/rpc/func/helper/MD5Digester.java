@@ -5,32 +5,38 @@ package com.perforce.p4java.impl.mapbased.rpc.func.helper;
 
 import com.perforce.p4java.CharsetDefs;
 import com.perforce.p4java.Log;
+import com.perforce.p4java.env.SystemInfo;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcLineEndConverter;
 import org.apache.commons.io.ByteOrderMark;
 import org.apache.commons.io.input.BOMInputStream;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
 import java.nio.charset.CodingErrorAction;
 import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
+import static com.perforce.p4java.common.base.ObjectUtils.isNull;
 import static com.perforce.p4java.common.base.ObjectUtils.nonNull;
 import static java.util.Objects.requireNonNull;
 
@@ -46,10 +52,32 @@ import static java.util.Objects.requireNonNull;
 public class MD5Digester {
 	private static final String DIGEST_TYPE = "MD5";
 	private static final int LENGTH_OF_HEX_STRING = 32;
+
+	/**
+	 * Files at least this large that are digested as raw bytes (no charset or
+	 * line ending conversion) are read through a memory mapping rather than
+	 * copied through the read buffer.
+	 */
+	public static final long MAPPED_READ_THRESHOLD = 1024 * 1024;
+	private static final long MAPPED_CHUNK_SIZE = 64 * 1024 * 1024;
+
 	private int bufferSize = 1024 * 8;
 
+	/** The longest client line ending (LFCRLF) less the byte that starts it. */
+	private static final int MAX_LINE_END_CARRY = 2;
+	private static final int MAX_UTF8_CHAR_BYTES = 4;
+	/** Enough to decode or encode any single char, whatever bufferSize is. */
+	private static final int MIN_CODER_BUFFER_SIZE = 16;
+
 	private MessageDigest messageDigest = null;
 
+	// Conversion buffers, allocated on first use and reused for each file
+	private byte[] readBuffer = null;
+	private CharBuffer charBuffer = null;
+	private byte[] utf8Buffer = null;
+	private RpcLineEndConverter lineEndConverter = null;
+	private byte[] lineEndConverterBytes = null;
+
 	public MD5Digester() throws P4JavaError {
 		try {
 			messageDigest = MessageDigest.getInstance(DIGEST_TYPE);
@@ -88,9 +116,9 @@ public class MD5Digester {
 		if (Files.isReadable(file.toPath())) {
 			try (FileInputStream inStream = new FileInputStream(file)) {
 				reset();
-				byte[] inBytes = new byte[bufferSize];
+				byte[] inBytes = getReadBuffer();
 				int inBytesRead;
-				while ((inBytesRead = inStream.read(inBytes)) > 0) {
+				while ((inBytesRead = inStream.read(inBytes, 0, bufferSize)) > 0) {
 					update(inBytes, 0, inBytesRead);
 				}
 
@@ -172,6 +200,17 @@ public class MD5Digester {
 
 		requireNonNull(file, "Null file passed to MD5Digester.digestFileAs32ByteHex()");
 		if (Files.isReadable(file.toPath())) {
+			if (isNull(charset) && canDigestMapped(file, isRequireLineEndingConvert, clientLineEnding)) {
+				try {
+					reset();
+					digestMappedFile(file);
+					return digestAs32ByteHex();
+				} catch (IOException ioexc) {
+					Log.error("error digesting file: " + file.getPath() + "; exception follows...");
+					Log.exception(ioexc);
+					return null;
+				}
+			}
 			try (FileInputStream inStream = new FileInputStream(file)) {
 				reset();
 				if (nonNull(charset)) {
@@ -190,86 +229,134 @@ public class MD5Digester {
 		return null;
 	}
 
+	/**
+	 * Large files whose bytes are digested as-is are mapped rather than read,
+	 * except on Windows, where a mapped file stays locked until the mapping is
+	 * garbage collected.
+	 */
+	private boolean canDigestMapped(@Nonnull File file, boolean isRequireLineEndingConvert,
+	                                @Nullable ClientLineEnding clientLineEnding) {
+		if (SystemInfo.isWindows()) {
+			return false;
+		}
+		if (isRequireLineEndingConvert
+				&& isRequireConvertClientOrLocalLineEndingToServerFormat(clientLineEnding)) {
+			return false;
+		}
+		return file.length() >= MAPPED_READ_THRESHOLD;
+	}
+
+	private void digestMappedFile(@Nonnull File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			for (long position = 0; position < size; position += MAPPED_CHUNK_SIZE) {
+				messageDigest.update(channel.map(MapMode.READ_ONLY, position,
+						Math.min(MAPPED_CHUNK_SIZE, size - position)));
+			}
+		} catch (InternalError err) {
+			// What the JVM throws if the file is truncated while it's mapped
+			throw new IOException(err.getLocalizedMessage(), err);
+		}
+	}
+
 	private void digestEncodedStreamToUtf8(@Nonnull InputStream inStream, @Nonnull Charset charset,
 	                                       boolean isRequireLineEndingConvert, @Nullable ClientLineEnding clientLineEnding)
 			throws IOException {
 
+		byte[] clientLineEndBytes = getClientLineEndBytesIfRequireConvert(isRequireLineEndingConvert,
+				clientLineEnding);
 		try (BOMInputStream unicodeInputStream = new BOMInputStream(inStream, false,
 				ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE,
-				ByteOrderMark.UTF_32LE, ByteOrderMark.UTF_32BE);
-
-		     InputStreamReader encodedStreamReader = new InputStreamReader(unicodeInputStream,
-				     charset)) {
+				ByteOrderMark.UTF_32LE, ByteOrderMark.UTF_32BE)) {
+			// Malformed input is replaced, as InputStreamReader would do
+			CharsetDecoder decoder = charset.newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE)
+					.onUnmappableCharacter(CodingErrorAction.REPLACE);
 			CharsetEncoder utf8CharsetEncoder = CharsetDefs.UTF8.newEncoder()
 					.onMalformedInput(CodingErrorAction.REPORT)
 					.onUnmappableCharacter(CodingErrorAction.REPORT);
 
-			char[] buffer = new char[bufferSize];
-			int read;
-			while ((read = encodedStreamReader.read(buffer)) > 0) {
-				// Convert encoded stream to UTF8 since server digest is UTF8
-				ByteBuffer utf8ByteBuffer = utf8CharsetEncoder
-						.encode(CharBuffer.wrap(buffer, 0, read));
-
-				if (isRequireLineEndingConvert) {
-					ByteBuffer convert = findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert(
-							encodedStreamReader, utf8CharsetEncoder, utf8ByteBuffer,
-							clientLineEnding);
-
-					update(convert.array(), convert.arrayOffset(), convert.limit());
+			ByteBuffer encoded = ByteBuffer.wrap(getReadBuffer());
+			CharBuffer chars = getCharBuffer();
+			ByteBuffer utf8 = ByteBuffer.wrap(getUtf8Buffer());
+			boolean endOfInput = false;
+			while (!endOfInput) {
+				int read = unicodeInputStream.read(encoded.array(), encoded.position(),
+						encoded.remaining());
+				if (read < 0) {
+					endOfInput = true;
 				} else {
-					update(utf8ByteBuffer.array(), utf8ByteBuffer.arrayOffset(),
-							utf8ByteBuffer.limit());
+					encoded.position(encoded.position() + read);
 				}
+				encoded.flip();
+				CoderResult result;
+				do {
+					result = decoder.decode(encoded, chars, endOfInput);
+					chars.flip();
+					encodeToUtf8AndUpdate(utf8CharsetEncoder, chars, utf8, false, clientLineEndBytes);
+					chars.compact();
+				} while (result.isOverflow());
+				encoded.compact();
 			}
+			while (decoder.flush(chars).isOverflow()) {
+				chars.flip();
+				encodeToUtf8AndUpdate(utf8CharsetEncoder, chars, utf8, false, clientLineEndBytes);
+				chars.compact();
+			}
+			chars.flip();
+			encodeToUtf8AndUpdate(utf8CharsetEncoder, chars, utf8, true, clientLineEndBytes);
+			CoderResult result;
+			do {
+				result = utf8CharsetEncoder.flush(utf8);
+				updateUtf8(utf8, clientLineEndBytes, !result.isOverflow());
+			} while (result.isOverflow());
 		}
 	}
 
-	private ByteBuffer findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert(
-			@Nonnull InputStreamReader encodedStreamReader,
-			@Nonnull CharsetEncoder utf8CharsetEncoder, @Nonnull ByteBuffer initialUtf8ByteBuffer,
-			@Nullable ClientLineEnding clientLineEnding) throws IOException {
-
-		int limit = initialUtf8ByteBuffer.limit();
-		byte[] allUtf8Bytes = Arrays.copyOfRange(initialUtf8ByteBuffer.array(),
-				initialUtf8ByteBuffer.arrayOffset(), limit);
-		byte lastByte = initialUtf8ByteBuffer.get(limit - 1);
-		int offset = findOffsetOfNextClientLineEndingIfReadBytesEndWithFirstByteOfClientLineEnding(
-				lastByte, clientLineEnding);
-
-		while (offset > 0) {
-			char[] followingPotentialClientLineEndingChars = new char[offset];
-			offset = encodedStreamReader.read(followingPotentialClientLineEndingChars);
-			if (offset > 0) {
-				ByteBuffer moreBuffer = utf8CharsetEncoder.encode(
-						CharBuffer.wrap(followingPotentialClientLineEndingChars, 0, offset));
-				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-				outputStream.write(allUtf8Bytes);
-				outputStream.write(Arrays.copyOfRange(moreBuffer.array(),
-						moreBuffer.arrayOffset(), moreBuffer.limit()));
-				allUtf8Bytes = outputStream.toByteArray();
-
-				lastByte = allUtf8Bytes[allUtf8Bytes.length - 1];
-				offset = findOffsetOfNextClientLineEndingIfReadBytesEndWithFirstByteOfClientLineEnding(
-						lastByte, clientLineEnding);
+	/**
+	 * Encode the passed-in chars as UTF-8 and digest them, converting line
+	 * endings if clientLineEndBytes is non-null. Any chars that can't be
+	 * encoded yet (half a surrogate pair) are left in the char buffer.
+	 */
+	private void encodeToUtf8AndUpdate(@Nonnull CharsetEncoder utf8CharsetEncoder,
+	                                   @Nonnull CharBuffer chars, @Nonnull ByteBuffer utf8,
+	                                   boolean endOfInput, @Nullable byte[] clientLineEndBytes)
+			throws CharacterCodingException {
+		CoderResult result;
+		do {
+			result = utf8CharsetEncoder.encode(chars, utf8, endOfInput);
+			if (result.isError()) {
+				result.throwException();
 			}
-		}
-
-		return convertToP4dServerEndingsIfRequired(allUtf8Bytes, 0, allUtf8Bytes.length,
-				clientLineEnding);
+			updateUtf8(utf8, clientLineEndBytes, false);
+		} while (result.isOverflow());
 	}
 
-	private int findOffsetOfNextClientLineEndingIfReadBytesEndWithFirstByteOfClientLineEnding(
-			byte lastByte, @Nullable ClientLineEnding clientLineEnding) {
+	private void updateUtf8(@Nonnull ByteBuffer utf8, @Nullable byte[] clientLineEndBytes,
+	                        boolean endOfInput) {
+		int carry = 0;
+		if (nonNull(clientLineEndBytes)) {
+			carry = updateConvertingLineEndings(utf8.array(), utf8.position(), clientLineEndBytes,
+					endOfInput);
+		} else {
+			update(utf8.array(), 0, utf8.position());
+		}
+		utf8.clear();
+		utf8.position(carry);
+	}
 
-		int more = -1;
-		if (isRequireConvertClientOrLocalLineEndingToServerFormat(clientLineEnding)) {
-			byte[] lineEndBytes = ClientLineEnding.getLineEndBytes(clientLineEnding);
-			if (lastByte == lineEndBytes[0]) {
-				return lineEndBytes.length - 1;
-			}
+	/**
+	 * The client line ending bytes to convert to the server's line ending,
+	 * or null if no conversion is needed.
+	 */
+	@Nullable
+	private byte[] getClientLineEndBytesIfRequireConvert(boolean isRequireLineEndingConvert,
+	                                                     @Nullable ClientLineEnding clientLineEnding) {
+		if (isRequireLineEndingConvert
+				&& isRequireConvertClientOrLocalLineEndingToServerFormat(clientLineEnding)) {
+			return ClientLineEnding.getLineEndBytes(clientLineEnding);
 		}
-		return more;
+		return null;
 	}
 
 	private boolean isRequireConvertClientOrLocalLineEndingToServerFormat(
@@ -283,84 +370,90 @@ public class MD5Digester {
 		return isLocalLineEndingSameAsServerFormat;
 	}
 
-	private ByteBuffer convertToP4dServerEndingsIfRequired(@Nonnull byte[] sourceBytes,
-	                                                       final int start, final int length, @Nullable ClientLineEnding clientLineEnding) {
-		ByteBuffer convertedByteBuffer;
-		if (isRequireConvertClientOrLocalLineEndingToServerFormat(clientLineEnding)) {
-			convertedByteBuffer = ByteBuffer.allocate(length);
-			byte p4dServerLineEnding = ClientLineEnding.FST_L_LF_BYTES[0];
-			byte[] clientLineEndBytes = ClientLineEnding.getLineEndBytes(clientLineEnding);
-			for (int i = start; i < length; i++) {
-				if (doesSourceBytesUseSameClientLineEnding(sourceBytes, i, length,
-						clientLineEndBytes)) {
-					convertedByteBuffer.put(p4dServerLineEnding);
-					i += clientLineEndBytes.length - 1;
-				} else {
-					convertedByteBuffer.put(sourceBytes[i]);
-				}
-			}
-			convertedByteBuffer.flip();
-		} else {
-			convertedByteBuffer = ByteBuffer.wrap(sourceBytes, start, length);
-		}
-		return convertedByteBuffer;
+	/**
+	 * Convert the client line endings in bytes[0, length) to the server's
+	 * line ending in place, and digest the result.<p>
+	 *
+	 * Unless endOfInput is set, the last few bytes -- too few to tell whether
+	 * they start a client line ending that's split across reads -- are held
+	 * back: they're moved to the start of the array, and their count
+	 * returned, so the caller can append the next bytes after them.
+	 *
+	 * @return the number of bytes carried over to the start of the array.
+	 */
+	private int updateConvertingLineEndings(@Nonnull byte[] bytes, final int length,
+	                                        @Nonnull byte[] clientLineEndBytes, boolean endOfInput) {
+		RpcLineEndConverter converter = getLineEndConverter(clientLineEndBytes);
+		update(bytes, 0, converter.toServer(bytes, length, endOfInput));
+
+		int carry = length - converter.getConsumed();
+		System.arraycopy(bytes, converter.getConsumed(), bytes, 0, carry);
+		return carry;
 	}
 
-	private boolean doesSourceBytesUseSameClientLineEnding(@Nonnull byte[] sourceBytes,
-	                                                       final int indexOfSourceBytes, final int length, byte[] clientLineEndBytes) {
-
-		boolean isSame = false;
-		int potentialLastIndex = indexOfSourceBytes + clientLineEndBytes.length - 1;
-		if (potentialLastIndex < length) {
-			byte[] subSourceBytes = Arrays.copyOfRange(sourceBytes, indexOfSourceBytes,
-					potentialLastIndex + 1);
-			isSame = Arrays.equals(subSourceBytes, clientLineEndBytes);
+	/**
+	 * The line ending converter for the passed-in client line ending; kept
+	 * for reuse, as the same line ending is used for a whole file.
+	 */
+	private RpcLineEndConverter getLineEndConverter(@Nonnull byte[] clientLineEndBytes) {
+		if ((lineEndConverter == null) || (lineEndConverterBytes != clientLineEndBytes)) {
+			lineEndConverter = new RpcLineEndConverter(clientLineEndBytes);
+			lineEndConverterBytes = clientLineEndBytes;
 		}
-
-		return isSame;
+		return lineEndConverter;
 	}
 
 	private void digestStream(@Nonnull InputStream inStream, boolean isRequireLineEndingConvert,
 	                          @Nullable ClientLineEnding clientLineEnding) throws IOException {
 
-		byte[] buffer = new byte[bufferSize];
-		int read;
-		while ((read = inStream.read(buffer)) > 0) {
-			int start = 0;
-			if (isRequireLineEndingConvert) {
-				ByteBuffer convert = findAndReplaceNonEncodedClientLineEndingIfRequireLineEndingConvert(
-						inStream, buffer, read, clientLineEnding);
-				update(convert.array(), convert.arrayOffset(), convert.limit());
-			} else {
-				update(buffer, start, read);
+		byte[] clientLineEndBytes = getClientLineEndBytesIfRequireConvert(isRequireLineEndingConvert,
+				clientLineEnding);
+		byte[] buffer = getReadBuffer();
+		if (clientLineEndBytes == null) {
+			int read;
+			while ((read = inStream.read(buffer, 0, bufferSize)) >= 0) {
+				update(buffer, 0, read);
+			}
+		} else {
+			// Bytes carried over from the last read are kept at the start of
+			// the buffer, which has room for them on top of bufferSize
+			int carry = 0;
+			int read;
+			while ((read = inStream.read(buffer, carry, bufferSize)) >= 0) {
+				carry = updateConvertingLineEndings(buffer, carry + read, clientLineEndBytes, false);
 			}
+			updateConvertingLineEndings(buffer, carry, clientLineEndBytes, true);
 		}
 	}
 
-	private ByteBuffer findAndReplaceNonEncodedClientLineEndingIfRequireLineEndingConvert(
-			@Nonnull InputStream inStream, @Nonnull final byte[] readBuffer,
-			final int totalBytesReadIntoBuffer, @Nullable ClientLineEnding clientLineEnding)
-			throws IOException {
+	/**
+	 * The byte read buffer, with room for bufferSize bytes plus the longest
+	 * line ending carried over from the last read; kept for reuse.
+	 */
+	private byte[] getReadBuffer() {
+		if (readBuffer == null) {
+			readBuffer = new byte[Math.max(bufferSize, MIN_CODER_BUFFER_SIZE) + MAX_LINE_END_CARRY];
+		}
+		return readBuffer;
+	}
 
-		byte lastReadByte = readBuffer[totalBytesReadIntoBuffer - 1];
-		byte[] allBytes = Arrays.copyOfRange(readBuffer, 0, totalBytesReadIntoBuffer);
-		int length = totalBytesReadIntoBuffer;
-		int offset = findOffsetOfNextClientLineEndingIfReadBytesEndWithFirstByteOfClientLineEnding(
-				lastReadByte, clientLineEnding);
-		while (offset > 0) {
-			byte[] potentialClientLineEndingBytes = new byte[offset];
-			offset = inStream.read(potentialClientLineEndingBytes);
-			if (offset > 0) {
-				ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-				outputStream.write(allBytes);
-				outputStream.write(Arrays.copyOfRange(potentialClientLineEndingBytes, 0, offset));
-				allBytes = outputStream.toByteArray();
-				length = allBytes.length;
-				offset = findOffsetOfNextClientLineEndingIfReadBytesEndWithFirstByteOfClientLineEnding(
-						allBytes[allBytes.length - 1], clientLineEnding);
-			}
+	private CharBuffer getCharBuffer() {
+		if (charBuffer == null) {
+			charBuffer = CharBuffer.allocate(Math.max(bufferSize, MIN_CODER_BUFFER_SIZE));
+		}
+		charBuffer.clear();
+		return charBuffer;
+	}
+
+	/**
+	 * The UTF-8 output buffer, with room for at least one encoded char on
+	 * top of the bytes carried over for line ending conversion.
+	 */
+	private byte[] getUtf8Buffer() {
+		if (utf8Buffer == null) {
+			utf8Buffer = new byte[bufferSize + MAX_LINE_END_CARRY + MAX_UTF8_CHAR_BYTES];
 		}
-		return convertToP4dServerEndingsIfRequired(allBytes, 0, length, clientLineEnding);
+		return utf8Buffer;
 	}
 
 	public void update(String str) {
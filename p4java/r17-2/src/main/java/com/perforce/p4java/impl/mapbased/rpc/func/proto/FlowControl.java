@@ -12,6 +12,7 @@ import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.NullPointerError;
 import com.perforce.p4java.exception.ProtocolError;
 import com.perforce.p4java.exception.UnimplementedError;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
@@ -65,6 +66,10 @@ public class FlowControl {
 	private long currentLoMark = 0;	// bytes outstanding going to server
 	private long currentHiMark = 0;	// bytes outstanding coming from server without flush2
 	
+	private long pipelineHiMark = RpcPropertyDefs.RPC_DEFAULT_BATCH_HI_MARK;
+	private int pipelineWindow = RpcPropertyDefs.RPC_DEFAULT_BATCH_WINDOW;
+	private int pipelinedCommands = 0;	// commands sent but not yet released by the server
+	
 	@SuppressWarnings("unused") // used for debugging
 	private RpcPacketDispatcher mainDispatcher = null;
 	@SuppressWarnings("unused") // used for debugging
@@ -73,6 +78,55 @@ public class FlowControl {
 	public FlowControl(RpcPacketDispatcher mainDispatcher, Properties props) {
 		this.mainDispatcher = mainDispatcher;
 		this.props = props;
+		this.pipelineHiMark = Math.max(FLUSH_CMD_LENGTH, RpcPropertyDefs.getPropertyAsInt(props,
+				RpcPropertyDefs.RPC_BATCH_HI_MARK_NICK, RpcPropertyDefs.RPC_DEFAULT_BATCH_HI_MARK));
+		this.pipelineWindow = Math.max(1, RpcPropertyDefs.getPropertyAsInt(props,
+				RpcPropertyDefs.RPC_BATCH_WINDOW_NICK, RpcPropertyDefs.RPC_DEFAULT_BATCH_WINDOW));
+	}
+	
+	/**
+	 * Return true if another pipelined (batched) command can be sent to the
+	 * server before reading the results of those already sent. There's always
+	 * room for one command; beyond that both the number of commands and
+	 * the number of request bytes outstanding are limited, so that the
+	 * requests queued at the server end can't back up far enough for either
+	 * side to block on a write while the other is blocked on a write too.
+	 */
+	
+	public boolean canSendPipelined() {
+		return (this.pipelinedCommands == 0)
+				|| ((this.pipelinedCommands < this.pipelineWindow)
+						&& (this.currentLoMark < this.pipelineHiMark));
+	}
+	
+	/**
+	 * Record that a pipelined command of the passed-in size in bytes has
+	 * been sent to the server.
+	 */
+	
+	public void pipelinedCommandSent(long bytes) {
+		this.pipelinedCommands++;
+		this.currentLoMark += bytes;
+	}
+	
+	/**
+	 * Record that the server has released (finished) a pipelined command
+	 * of the passed-in size in bytes.
+	 */
+	
+	public void pipelinedCommandDone(long bytes) {
+		this.pipelinedCommands = Math.max(0, this.pipelinedCommands - 1);
+		this.currentLoMark = Math.max(0, this.currentLoMark - bytes);
+	}
+	
+	/**
+	 * Forget about any outstanding pipelined commands, e.g. after the
+	 * connection has failed.
+	 */
+	
+	public void resetPipeline() {
+		this.pipelinedCommands = 0;
+		this.currentLoMark = 0;
 	}
 	
 	/**
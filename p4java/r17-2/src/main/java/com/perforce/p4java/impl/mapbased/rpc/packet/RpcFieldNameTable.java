@@ -0,0 +1,218 @@
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
+
+/**
+ * Static, read-only table of the RPC field (tag) names we expect to see
+ * over and over again in incoming packets -- "func", "depotFile", "headRev",
+ * etc. -- so that decoding a field name can usually hand back a shared
+ * String (and its precomputed field type) straight from the packet bytes
+ * rather than decoding a new String for every field of every packet.<p>
+ *
+ * The table is built once from the RpcFunctionMapKey constants plus a few
+ * common command tags that aren't in there; it's never modified after
+ * that, so lookups need no synchronization. Names not in the table are
+ * simply decoded as before.
+ */
+
+public class RpcFieldNameTable {
+
+	/**
+	 * Common command output tags that don't have RpcFunctionMapKey constants.
+	 */
+	private static final String[] EXTRA_NAMES = {
+		"clientPath", "depotRev", "fileType", "lbrFile", "lbrIsLazy", "lbrPath",
+		"lbrRev", "lbrType", "movedRev", "client", "otherOpen0", "otherAction0",
+		"otherChange0", "otherOpen1", "otherAction1", "otherChange1"
+	};
+
+	/**
+	 * Numbered names (used for repeated tags within a packet) are cached for
+	 * suffixes below this value.
+	 */
+	private static final int MAX_CACHED_SUFFIX = 32;
+
+	/**
+	 * A single known name.
+	 */
+	static final class Entry {
+		final String name;
+		final byte[] bytes;
+		final int hash;
+		final RpcPacketFieldType type;
+		final Entry next;
+		// Lazily filled in; racing threads can only ever store equal strings.
+		final String[] numbered = new String[MAX_CACHED_SUFFIX];
+
+		Entry(String name, byte[] bytes, int hash, Entry next) {
+			this.name = name;
+			this.bytes = bytes;
+			this.hash = hash;
+			this.type = RpcPacketFieldType.getFieldType(name);
+			this.next = next;
+		}
+	}
+
+	private static final Entry[] TABLE;
+	private static final int MASK;
+
+	private static final ConcurrentHashMap<Charset, Boolean> ASCII_COMPATIBLE
+			= new ConcurrentHashMap<Charset, Boolean>();
+
+	static {
+		Set<String> names = new LinkedHashSet<String>();
+		for (Field field : RpcFunctionMapKey.class.getFields()) {
+			int mods = field.getModifiers();
+			if (Modifier.isStatic(mods) && Modifier.isFinal(mods) && (field.getType() == String.class)) {
+				try {
+					String name = (String) field.get(null);
+					if (isTableName(name)) {
+						names.add(name);
+					}
+				} catch (IllegalAccessException iae) {
+					Log.exception(iae);
+				}
+			}
+		}
+		names.addAll(Arrays.asList(EXTRA_NAMES));
+
+		int size = Integer.highestOneBit(Math.max(names.size(), 1) * 4);
+		TABLE = new Entry[size];
+		MASK = size - 1;
+		for (String name : names) {
+			byte[] bytes = asciiBytes(name);
+			int hash = hash(bytes);
+			int index = hash & MASK;
+			TABLE[index] = new Entry(name, bytes, hash, TABLE[index]);
+		}
+	}
+
+	private RpcFieldNameTable() {
+	}
+
+	/**
+	 * Look up the field name held in the passed-in buffer between offset and
+	 * offset + length, without disturbing the buffer's position.
+	 *
+	 * @return the matching table entry, or null if the name isn't a known one.
+	 */
+	static Entry lookup(ByteBuffer buf, int offset, int length) {
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < length; i++) {
+			hash = (hash ^ (buf.get(offset + i) & 0xff)) * 0x01000193;
+		}
+		for (Entry entry = TABLE[hash & MASK]; entry != null; entry = entry.next) {
+			if ((entry.hash == hash) && (entry.bytes.length == length) && matches(entry.bytes, buf, offset)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Look up a known name by string.
+	 *
+	 * @return the matching table entry, or null if the name isn't a known one.
+	 */
+	static Entry lookup(String name) {
+		if (name == null) {
+			return null;
+		}
+		int hash = 0x811c9dc5;
+		for (int i = 0; i < name.length(); i++) {
+			char ch = name.charAt(i);
+			if (ch > 0x7f) {
+				return null;
+			}
+			hash = (hash ^ ch) * 0x01000193;
+		}
+		for (Entry entry = TABLE[hash & MASK]; entry != null; entry = entry.next) {
+			if ((entry.hash == hash) && entry.name.equals(name)) {
+				return entry;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Return the name with the passed-in decimal suffix appended, i.e. name + suffix,
+	 * using a shared string if the name is a known one and the suffix is small.
+	 */
+	public static String numberedName(String name, int suffix) {
+		Entry entry = (suffix >= 0) && (suffix < MAX_CACHED_SUFFIX) ? lookup(name) : null;
+		if (entry == null) {
+			return name + suffix;
+		}
+		String numbered = entry.numbered[suffix];
+		if (numbered == null) {
+			numbered = (name + suffix).intern();
+			entry.numbered[suffix] = numbered;
+		}
+		return numbered;
+	}
+
+	/**
+	 * Return true if field names in the passed-in charset can be matched
+	 * against the table byte-for-byte, i.e. the charset encodes ASCII as
+	 * single bytes with the same values.
+	 */
+	static boolean isAsciiCompatible(Charset charset) {
+		if (charset == null) {
+			return false;
+		}
+		Boolean compatible = ASCII_COMPATIBLE.get(charset);
+		if (compatible == null) {
+			String probe = "azAZ09-_";
+			compatible = charset.canEncode() && Arrays.equals(asciiBytes(probe), probe.getBytes(charset));
+			ASCII_COMPATIBLE.put(charset, compatible);
+		}
+		return compatible;
+	}
+
+	private static boolean isTableName(String name) {
+		if ((name == null) || name.isEmpty() || name.endsWith("-")) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); i++) {
+			if (name.charAt(i) > 0x7f) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean matches(byte[] bytes, ByteBuffer buf, int offset) {
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != buf.get(offset + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static byte[] asciiBytes(String name) {
+		byte[] bytes = new byte[name.length()];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) name.charAt(i);
+		}
+		return bytes;
+	}
+
+	private static int hash(byte[] bytes) {
+		int hash = 0x811c9dc5;
+		for (byte b : bytes) {
+			hash = (hash ^ (b & 0xff)) * 0x01000193;
+		}
+		return hash;
+	}
+}
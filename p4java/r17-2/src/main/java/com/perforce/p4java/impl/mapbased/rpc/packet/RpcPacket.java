@@ -5,7 +5,6 @@ package com.perforce.p4java.impl.mapbased.rpc.packet;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -139,6 +138,29 @@ public class RpcPacket {
 						+ ((bytes[3] & 0xFF) * 0x1000000);
 	}
 	
+	/**
+	 * Decode a Java int from the four Perforce-encoded bytes at the passed-in
+	 * buffer's current position, advancing the position past them. Avoids
+	 * the intermediate byte array used by decodeInt4(byte[]).
+	 */
+	
+	public static int decodeInt4(ByteBuffer buf) {
+		if (buf == null) {
+			throw new NullPointerError(
+					"Null buffer passed to RpcPacket.decodeInt");
+		}
+		if (buf.remaining() < RPC_LENGTH_FIELD_LENGTH) {
+			throw new ProtocolError(
+					"Insufficient bytes in buffer in RpcPacket.decodeInt: "
+					+ buf.remaining());
+		}
+		
+		return (buf.get() & 0xFF)
+						+ ((buf.get() & 0xFF) * 0x100)
+						+ ((buf.get() & 0xFF) * 0x10000)
+						+ ((buf.get() & 0xFF) * 0x1000000);
+	}
+	
 	/**
 	 * Construct an RPC packet for a user command.
 	 * 
@@ -204,7 +226,25 @@ public class RpcPacket {
 												byte[] bytes, boolean isUnicodeServer,
 												Charset charset, RpcPacketFieldRule fieldRule,
 												IFilterCallback filterCallback) {
-		return new RpcPacket(preamble, bytes, isUnicodeServer, charset, fieldRule, filterCallback);
+		if (bytes == null) {
+			throw new NullPointerError("null payload byte array passed to RpcPacket constructor");
+		}
+		return new RpcPacket(preamble, ByteBuffer.wrap(bytes), isUnicodeServer, charset,
+				fieldRule, filterCallback);
+	}
+
+	/**
+	 * Construct an RPC packet from the passed-in preamble and payload buffer. The
+	 * payload is decoded in place from the buffer's current position up to its
+	 * limit, which must match the preamble's payload size; this allows callers
+	 * to reuse a single receive buffer across packets, as nothing retained by
+	 * the returned packet refers back to the buffer.
+	 */
+	public static RpcPacket constructRpcPacket(RpcPacketPreamble preamble,
+												ByteBuffer payload, boolean isUnicodeServer,
+												Charset charset, RpcPacketFieldRule fieldRule,
+												IFilterCallback filterCallback) {
+		return new RpcPacket(preamble, payload, isUnicodeServer, charset, fieldRule, filterCallback);
 	}
 
 	private RpcPacket(RpcFunctionSpec funcName, String realName, String[] args,
@@ -256,7 +296,7 @@ public class RpcPacket {
 		}
 	}
 	
-	private RpcPacket(RpcPacketPreamble preamble, byte[] payloadBytes,
+	private RpcPacket(RpcPacketPreamble preamble, ByteBuffer packetBuf,
 						boolean isUnicodeServer, Charset charset,
 						RpcPacketFieldRule fieldRule, IFilterCallback filterCallback) {
 		if (preamble == null) {
@@ -266,22 +306,22 @@ public class RpcPacket {
 			throw new ProtocolError(
 					"Bad checksum in RPC preamble passed to RpcPacket constructor");
 		}
-		if (payloadBytes == null) {
-			throw new NullPointerError("null payload byte array passed to RpcPacket constructor");
+		if (packetBuf == null) {
+			throw new NullPointerError("null payload buffer passed to RpcPacket constructor");
 		}
 		
 		int payloadLength = preamble.getPayloadSize();
-		if (payloadLength != payloadBytes.length) {
+		if (payloadLength != packetBuf.remaining()) {
 			throw new P4JavaError("bad byte array size in RpcPacket constructor; byte array length: "
-					+ payloadBytes.length + "; from preamble: " + payloadLength);
+					+ packetBuf.remaining() + "; from preamble: " + payloadLength);
 		}
 		
 		try {
-			resultsMap = new HashMap<String, Object>();
-			ByteBuffer packetBuf = ByteBuffer.wrap(payloadBytes);
+			RpcResultsMap packetMap = new RpcResultsMap();
+			resultsMap = packetMap;
 			
 			final Map<String, String> doNotSkipKeysMap = filterCallback != null ? filterCallback.getDoNotSkipKeysMap() : null;
-			final AtomicBoolean skipSubsequent = new AtomicBoolean(false);
+			final AtomicBoolean skipSubsequent = filterCallback != null ? new AtomicBoolean(false) : null;
 			
 			while (packetBuf.position() < packetBuf.limit()) {
 				Object[] fields = RpcPacketField.retrievePacketField(packetBuf, isUnicodeServer, charset, fieldRule);
@@ -306,7 +346,7 @@ public class RpcPacket {
 				}
 				
 				if (fields[RpcPacketField.NAME_FIELD] == null) {
-					resultsMap.put(null, fields[RpcPacketField.VALUE_FIELD]);
+					packetMap.put(null, fields[RpcPacketField.VALUE_FIELD]);
 				} else {
 					// Assumes zeroth field is always a string; this assumption has yet
 					// to be broken, but keep a good look out in any case... -- HR.
@@ -319,8 +359,8 @@ public class RpcPacket {
 					// fix should help out in the field and with older servers -- HR.
 					
 					if (fieldName.equalsIgnoreCase(RpcFunctionMapKey.FUNC2)) {
-						if (!resultsMap.containsKey(fieldName)) {
-							resultsMap.put(fieldName, fields[RpcPacketField.VALUE_FIELD]);
+						if (!packetMap.containsKey(fieldName)) {
+							packetMap.put(fieldName, fields[RpcPacketField.VALUE_FIELD]);
 						}
 					} else {
 						// Handle multiple fields with the same field name by
@@ -329,18 +369,7 @@ public class RpcPacket {
 						// "-a -s" flags. The repeating field names: "change",
 						// "parentChange", "copyParent", "mergeParent",
 						// "mergeHighVal", "branchHash" and "status".
-						if (resultsMap.containsKey(fieldName)) {
-							int suffixCounter = 0;
-							while (true) {
-								if (!resultsMap.containsKey(fieldName + suffixCounter)) {
-									break;
-								}
-								suffixCounter++;
-							}
-							resultsMap.put(fieldName + suffixCounter, fields[RpcPacketField.VALUE_FIELD]);
-						} else {
-							resultsMap.put(fieldName, fields[RpcPacketField.VALUE_FIELD]);
-						}
+						packetMap.putWithSuffix(fieldName, fields[RpcPacketField.VALUE_FIELD]);
 					}
 				}
 			}
@@ -186,6 +186,7 @@ public class RpcPacketDispatcher {
 								);
 
 					case PROTOCOL:	
+						clientDispatcher.sendPendingReplies();
 						switch (protocolDispatcher.dispatch(dispatchMode, 
 													func, cmdEnv, paramMap)) {
 							case CONTINUE:
@@ -223,6 +224,10 @@ public class RpcPacketDispatcher {
 			Log.error("Unexpected exception: " + thr.getLocalizedMessage());
 			Log.exception(thr);
 			throw new ConnectionException(thr.getLocalizedMessage(), thr);
+		} finally {
+			// Don't return while files are still being written in the background
+			clientDispatcher.finishFileWrites(cmdEnv);
+			clientDispatcher.discardPendingReplies();
 		}
 	}
 	
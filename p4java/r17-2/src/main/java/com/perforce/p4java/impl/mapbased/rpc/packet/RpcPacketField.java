@@ -106,38 +106,39 @@ public class RpcPacketField {
 		retVal[NAME_FIELD] = null;
 		retVal[VALUE_FIELD] = null;
 		
-		// Get name string; may be empty (i.e. first byte is null); also have
-		// to deal with the fact that the name string may be arbitrarily large...
+		// Field names are currently always assumed to be in the default
+		// charset, i.e. RpcConnection.NON_UNICODE_SERVER_CHARSET unless
+		// the server is in Unicode mode; values, when text, are in the same
+		// charset.
 		
-		final int INITIAL_BYTEARRAY_SIZE = 128; // bytes
+		Charset fieldCharset = charset == null ? RpcConnection.NON_UNICODE_SERVER_CHARSET :
+									(isUnicodeServer ? CharsetDefs.UTF8 : charset);
 		
-		byte[] bytes = new byte[INITIAL_BYTEARRAY_SIZE];
+		// Get name string; may be empty (i.e. first byte is null). We scan
+		// for the terminating null in place rather than copying the name
+		// bytes out of the buffer first.
 		
-		int i = 0;
-		while ((bytes[i] = buf.get()) != 0) {
-			i++;
-			if (i >= bytes.length) {
-				// Resize needed...
-				byte[] newBytes = new byte[bytes.length + INITIAL_BYTEARRAY_SIZE];
-				System.arraycopy(bytes, 0, newBytes, 0, bytes.length);
-				bytes = newBytes;
-			}
+		int nameStart = buf.position();
+		int nameEnd = nameStart;
+		while (buf.get(nameEnd) != 0) {
+			nameEnd++;
 		}
 		
-		if (i > 0) {
-			// Field names are currently always assumed to be in the default
-			// charset, i.e. RpcConnection.NON_UNICODE_SERVER_CHARSET unless
-			// the server is in Unicode mode.
-			try {
-				retVal[NAME_FIELD] = new String(bytes, 0, i, charset == null ?
-						RpcConnection.NON_UNICODE_SERVER_CHARSET_NAME :
-							(isUnicodeServer ? CharsetDefs.UTF8_NAME : charset.name()));
-			} catch (UnsupportedEncodingException e) {
-				// This should never be reached since we already have the Charset
-				// object needed.
-				Log.exception(e);
+		// Known names come straight from the shared name table along with
+		// their field type; anything else is decoded as usual.
+		
+		RpcPacketFieldType nameType = null;
+		if (nameEnd > nameStart) {
+			RpcFieldNameTable.Entry entry = RpcFieldNameTable.isAsciiCompatible(fieldCharset) ?
+					RpcFieldNameTable.lookup(buf, nameStart, nameEnd - nameStart) : null;
+			if (entry != null) {
+				retVal[NAME_FIELD] = entry.name;
+				nameType = entry.type;
+			} else {
+				retVal[NAME_FIELD] = decodeString(buf, nameStart, nameEnd - nameStart, fieldCharset);
 			}
 		}
+		buf.position(nameEnd + 1);
 		
 		// Get value string length which may be zero):
 		
@@ -147,10 +148,7 @@ public class RpcPacketField {
 				"Insufficient bytes in buffer to retrieve text value field length");
 		}
 		
-		byte[] lengthBytes = new byte[RpcPacket.RPC_LENGTH_FIELD_LENGTH];
-		buf.get(lengthBytes);
-		
-		int valLength = RpcPacket.decodeInt4(lengthBytes);
+		int valLength = RpcPacket.decodeInt4(buf);
 		
 		if (valLength < 0) {
 			throw new ProtocolError(
@@ -165,9 +163,6 @@ public class RpcPacketField {
 			throw new ProtocolError(
 				"Insufficient bytes in buffer to retrieve text value field");
 		}
-		
-		byte[] valBytes = new byte[valLength];
-		buf.get(valBytes);
 
 		String fieldName = (String) retVal[NAME_FIELD];
 
@@ -179,30 +174,49 @@ public class RpcPacketField {
 			skipConversion = fieldRule.isSkipConversion();
 		}
 		
-		if (!skipConversion &&
-				RpcPacketFieldType.getFieldType((String) retVal[NAME_FIELD]) == RpcPacketFieldType.TEXT) {
+		if (nameType == null) {
+			nameType = RpcPacketFieldType.getFieldType(fieldName);
+		}
+		
+		if (!skipConversion && nameType == RpcPacketFieldType.TEXT) {
 			
 			// Incoming string is encoded in UTF-8 if we're talking to a Unicode server;
 			// otherwise it's in the specified charset, or maybe some 8 bit ASCI variant).
 			
-			try {
-				retVal[VALUE_FIELD] = new String(valBytes, charset == null ?
-						RpcConnection.NON_UNICODE_SERVER_CHARSET_NAME :
-								(isUnicodeServer ? CharsetDefs.UTF8_NAME : charset.name()));
-			} catch (UnsupportedEncodingException e) {
-				// This should never be reached since we already have the Charset
-				// object needed.
-				Log.exception(e);
-			}
+			retVal[VALUE_FIELD] = decodeString(buf, buf.position(), valLength, fieldCharset);
+			buf.position(buf.position() + valLength);
 		} else {
-			retVal[VALUE_FIELD] = valBytes; // If unicode is involved here (as, e.g., file contents),
-											// it'll be converted elsewhere...
+			// If unicode is involved here (as, e.g., file contents), it'll be
+			// converted elsewhere. Note that we always copy the bytes out, as the
+			// underlying buffer may be reused for the next packet.
+			
+			byte[] valBytes = new byte[valLength];
+			buf.get(valBytes);
+			retVal[VALUE_FIELD] = valBytes;
 		}
 		buf.get();	// Step over the terminating null
 		
 		return retVal;
 	}
 	
+	/**
+	 * Decode length bytes starting at the absolute buffer position offset as a
+	 * string in the passed-in charset, without disturbing the buffer's position.
+	 * Heap buffers are decoded straight from their backing array; anything else
+	 * is copied out first.
+	 */
+	private static String decodeString(ByteBuffer buf, int offset, int length, Charset charset) {
+		if (buf.hasArray()) {
+			return new String(buf.array(), buf.arrayOffset() + offset, length, charset);
+		}
+		
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = buf.get(offset + i);
+		}
+		return new String(bytes, charset);
+	}
+	
 	public String getName() {
 		return this.name;
 	}
@@ -0,0 +1,416 @@
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact map used to hold the fields of an incoming RPC packet.<p>
+ *
+ * Result packets typically carry a few dozen fields at most, and the map is
+ * usually built once, read a handful of times, and thrown away, so keys and
+ * values are simply kept in a pair of parallel arrays in arrival order and
+ * searched linearly. Most keys are shared strings from RpcFieldNameTable, so
+ * the search normally succeeds on an identity check before any equals() call.
+ * This avoids the per-entry node objects and hash table of a HashMap, which
+ * dominated allocation when decoding large fstat-style results.<p>
+ *
+ * Some commands (describe -s, filelog, fixes, etc.) put all their output in
+ * one packet as numbered tags, so a map can hold many thousands of fields.
+ * Once it grows past INDEX_THRESHOLD entries, lookups go through an
+ * open-addressed hash index of positions in the arrays instead, so that
+ * decoding such a packet stays linear in its field count.<p>
+ *
+ * Null keys and values are allowed, as with HashMap; the map is not
+ * thread-safe.
+ */
+
+public class RpcResultsMap extends AbstractMap<String, Object> implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * Maps with more entries than this are searched through the hash index.
+	 */
+	static final int INDEX_THRESHOLD = 32;
+
+	private String[] keys;
+	private Object[] values;
+	private int size = 0;
+	private transient int modCount = 0;
+
+	/**
+	 * Hash index of the keys, with linear probing: each slot holds an entry's
+	 * position + 1, or 0 if free. Null until the map passes INDEX_THRESHOLD,
+	 * and dropped (to be rebuilt when next needed) when an entry is removed.
+	 */
+	private transient int[] index = null;
+
+	/**
+	 * For indexed maps, the lowest suffix putWithSuffix() hasn't yet found
+	 * taken for each repeated name; dropped along with the index.
+	 */
+	private transient Map<String, Integer> nextSuffixes = null;
+
+	public RpcResultsMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public RpcResultsMap(int initialCapacity) {
+		int capacity = Math.max(1, initialCapacity);
+		this.keys = new String[capacity];
+		this.values = new Object[capacity];
+	}
+
+	public RpcResultsMap(Map<String, ?> map) {
+		this(map == null ? DEFAULT_CAPACITY : map.size());
+		if (map != null) {
+			putAll(map);
+		}
+	}
+
+	@Override
+	public int size() {
+		return this.size;
+	}
+
+	@Override
+	public boolean containsKey(Object key) {
+		return indexOf(key) >= 0;
+	}
+
+	@Override
+	public Object get(Object key) {
+		int i = indexOf(key);
+		return i >= 0 ? this.values[i] : null;
+	}
+
+	@Override
+	public Object put(String key, Object value) {
+		int i = indexOf(key);
+		if (i >= 0) {
+			Object oldValue = this.values[i];
+			this.values[i] = value;
+			return oldValue;
+		}
+		append(key, value);
+		return null;
+	}
+
+	@Override
+	public Object remove(Object key) {
+		int i = indexOf(key);
+		if (i < 0) {
+			return null;
+		}
+		Object oldValue = this.values[i];
+		removeAt(i);
+		return oldValue;
+	}
+
+	@Override
+	public void clear() {
+		for (int i = 0; i < this.size; i++) {
+			this.keys[i] = null;
+			this.values[i] = null;
+		}
+		this.size = 0;
+		this.modCount++;
+		dropIndex();
+	}
+
+	/**
+	 * Put the passed-in value under the passed-in name if the name is not
+	 * already present; otherwise put it under the first of name + "0",
+	 * name + "1", etc. that is not present. This is how repeated tags
+	 * within a single packet are disambiguated. The candidate names are
+	 * checked without building them, and the chosen name comes from
+	 * RpcFieldNameTable where possible.
+	 *
+	 * @return the key actually used.
+	 */
+	public String putWithSuffix(String name, Object value) {
+		if (name == null || indexOf(name) < 0) {
+			append(name, value);
+			return name;
+		}
+		if (this.index != null) {
+			return putWithIndexedSuffix(name, value);
+		}
+		int suffix = 0;
+		while (containsNumbered(name, suffix)) {
+			suffix++;
+		}
+		String key = RpcFieldNameTable.numberedName(name, suffix);
+		append(key, value);
+		return key;
+	}
+
+	/**
+	 * putWithSuffix() for an indexed map: the candidate names are built and
+	 * looked up, starting from the first suffix not already known to be taken.
+	 */
+	private String putWithIndexedSuffix(String name, Object value) {
+		if (this.nextSuffixes == null) {
+			this.nextSuffixes = new HashMap<String, Integer>();
+		}
+		Integer next = this.nextSuffixes.get(name);
+		int suffix = next == null ? 0 : next;
+		String key = RpcFieldNameTable.numberedName(name, suffix);
+		while (indexOf(key) >= 0) {
+			suffix++;
+			key = RpcFieldNameTable.numberedName(name, suffix);
+		}
+		append(key, value);
+		this.nextSuffixes.put(name, suffix + 1);
+		return key;
+	}
+
+	@Override
+	public Set<Map.Entry<String, Object>> entrySet() {
+		return new AbstractSet<Map.Entry<String, Object>>() {
+			@Override
+			public Iterator<Map.Entry<String, Object>> iterator() {
+				return new EntryIterator();
+			}
+
+			@Override
+			public int size() {
+				return RpcResultsMap.this.size;
+			}
+
+			@Override
+			public void clear() {
+				RpcResultsMap.this.clear();
+			}
+		};
+	}
+
+	private int indexOf(Object key) {
+		if ((this.index == null) && (this.size > INDEX_THRESHOLD)) {
+			buildIndex();
+		}
+		if (this.index != null) {
+			int mask = this.index.length - 1;
+			for (int slot = hash(key) & mask; this.index[slot] != 0; slot = (slot + 1) & mask) {
+				int i = this.index[slot] - 1;
+				String k = this.keys[i];
+				if ((k == key) || ((key != null) && key.equals(k))) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		if (key == null) {
+			for (int i = 0; i < this.size; i++) {
+				if (this.keys[i] == null) {
+					return i;
+				}
+			}
+			return -1;
+		}
+		for (int i = 0; i < this.size; i++) {
+			if (this.keys[i] == key) {
+				return i;
+			}
+		}
+		int hash = key.hashCode();
+		for (int i = 0; i < this.size; i++) {
+			String k = this.keys[i];
+			if ((k != null) && (k.hashCode() == hash) && k.equals(key)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Return true if name + suffix is already a key, without building it.
+	 */
+	private boolean containsNumbered(String name, int suffix) {
+		int digits = 1;
+		for (int n = suffix / 10; n > 0; n /= 10) {
+			digits++;
+		}
+		int length = name.length() + digits;
+		for (int i = 0; i < this.size; i++) {
+			String k = this.keys[i];
+			if ((k != null) && (k.length() == length) && k.startsWith(name)) {
+				int n = suffix;
+				int pos = length - 1;
+				while ((pos >= name.length()) && (k.charAt(pos) == (char) ('0' + (n % 10)))) {
+					n /= 10;
+					pos--;
+				}
+				if (pos < name.length()) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	private void append(String key, Object value) {
+		if (this.size == this.keys.length) {
+			int capacity = this.keys.length * 2;
+			String[] newKeys = new String[capacity];
+			Object[] newValues = new Object[capacity];
+			System.arraycopy(this.keys, 0, newKeys, 0, this.size);
+			System.arraycopy(this.values, 0, newValues, 0, this.size);
+			this.keys = newKeys;
+			this.values = newValues;
+			if (this.index != null) {
+				buildIndex();
+			}
+		}
+		this.keys[this.size] = key;
+		this.values[this.size] = value;
+		if (this.index != null) {
+			addToIndex(this.size);
+		}
+		this.size++;
+		this.modCount++;
+	}
+
+	/**
+	 * (Re)build the hash index, with a power of two slots at least twice the
+	 * array capacity, so the load factor stays at or below one half.
+	 */
+	private void buildIndex() {
+		this.index = new int[Integer.highestOneBit(2 * this.keys.length - 1) << 1];
+		for (int i = 0; i < this.size; i++) {
+			addToIndex(i);
+		}
+	}
+
+	private void addToIndex(int i) {
+		int mask = this.index.length - 1;
+		int slot = hash(this.keys[i]) & mask;
+		while (this.index[slot] != 0) {
+			slot = (slot + 1) & mask;
+		}
+		this.index[slot] = i + 1;
+	}
+
+	private void dropIndex() {
+		this.index = null;
+		this.nextSuffixes = null;
+	}
+
+	private static int hash(Object key) {
+		if (key == null) {
+			return 0;
+		}
+		int h = key.hashCode();
+		return h ^ (h >>> 16);
+	}
+
+	private void removeAt(int i) {
+		int moved = this.size - i - 1;
+		if (moved > 0) {
+			System.arraycopy(this.keys, i + 1, this.keys, i, moved);
+			System.arraycopy(this.values, i + 1, this.values, i, moved);
+		}
+		this.size--;
+		this.keys[this.size] = null;
+		this.values[this.size] = null;
+		this.modCount++;
+		// Positions after i have moved, and a freed suffix may be reused.
+		dropIndex();
+	}
+
+	private class EntryIterator implements Iterator<Map.Entry<String, Object>> {
+		private int next = 0;
+		private int last = -1;
+		private int expectedModCount = modCount;
+
+		@Override
+		public boolean hasNext() {
+			return this.next < size;
+		}
+
+		@Override
+		public Map.Entry<String, Object> next() {
+			if (this.expectedModCount != modCount) {
+				throw new ConcurrentModificationException();
+			}
+			if (this.next >= size) {
+				throw new NoSuchElementException();
+			}
+			this.last = this.next++;
+			return new Entry(this.last);
+		}
+
+		@Override
+		public void remove() {
+			if (this.last < 0) {
+				throw new IllegalStateException();
+			}
+			if (this.expectedModCount != modCount) {
+				throw new ConcurrentModificationException();
+			}
+			removeAt(this.last);
+			this.next = this.last;
+			this.last = -1;
+			this.expectedModCount = modCount;
+		}
+	}
+
+	private class Entry implements Map.Entry<String, Object> {
+		private final int index;
+
+		Entry(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public String getKey() {
+			return keys[this.index];
+		}
+
+		@Override
+		public Object getValue() {
+			return values[this.index];
+		}
+
+		@Override
+		public Object setValue(Object value) {
+			Object oldValue = values[this.index];
+			values[this.index] = value;
+			return oldValue;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+			return eq(getKey(), other.getKey()) && eq(getValue(), other.getValue());
+		}
+
+		@Override
+		public int hashCode() {
+			Object key = getKey();
+			Object value = getValue();
+			return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+		}
+
+		@Override
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+
+	private static boolean eq(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+}
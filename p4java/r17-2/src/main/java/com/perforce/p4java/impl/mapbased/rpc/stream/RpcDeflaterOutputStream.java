@@ -0,0 +1,129 @@
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.UnimplementedError;
+
+/**
+ * An alternative to RpcGZIPOutputStream that implements Perforce's
+ * GZIP-based connection stream compression using the JDK's native
+ * java.util.zip Deflater rather than the pure-Java JZlib package.<p>
+ * 
+ * The original reason for using JZlib was that the java.util.zip
+ * classes couldn't do the flushes needed on a streaming connection;
+ * since JDK 7, Deflater supports SYNC_FLUSH and FULL_FLUSH directly,
+ * so that's no longer an issue. We use SYNC_FLUSH at packet boundaries:
+ * it gives the server a complete, decodable block just as FULL_FLUSH does,
+ * but doesn't throw away the compression dictionary each time, which
+ * helps a lot with the many small, repetitive packets typical of
+ * Perforce traffic.<p>
+ * 
+ * As with RpcGZIPOutputStream, upper levels must call flush() whenever
+ * an RPC packet is ready for sending, and the implementation here is not
+ * thread safe.<p>
+ * 
+ * Used when the RpcPropertyDefs.RPC_USE_NATIVE_COMPRESSION_NICK property
+ * is set to true.
+ */
+
+public class RpcDeflaterOutputStream extends FilterOutputStream {
+
+	private static final int ZBUF_SIZE = 10240;	// Might want to play with this a bit...
+	
+	private Deflater deflater = null;
+	private byte[] zBytes = null;
+	
+	public RpcDeflaterOutputStream(OutputStream out) throws IOException {
+		super(out);
+		this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		this.zBytes = new byte[ZBUF_SIZE];
+	}
+	
+	/**
+	 * A convenience method for write(bytes, 0, bytes.length).
+	 * 
+	 * @see java.io.FilterOutputStream#write(byte[])
+	 */
+	@Override
+	public void write(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError(
+					"null byte array passed to RpcDeflaterOutputStream.write()");
+		}
+		write(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Deflate (compress) the passed-in bytes and -- if appropriate --
+	 * send the compressed bytes downstream to the filter's output stream.
+	 * As with RpcGZIPOutputStream, nothing need actually be written until
+	 * a later flush.
+	 * 
+	 * @see java.io.FilterOutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte[] bytes, int offset, int len) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError(
+					"null byte array passed to RpcDeflaterOutputStream.write()");
+		}
+		if ((len <= 0) || (offset < 0) || (offset >= bytes.length) || (len > (bytes.length - offset))) {
+			throw new P4JavaError(
+					"bad length or offset in RpcDeflaterOutputStream.write()");
+		}
+		
+		this.deflater.setInput(bytes, offset, len);
+		while (!this.deflater.needsInput()) {
+			int bytesDeflated = this.deflater.deflate(this.zBytes, 0, this.zBytes.length,
+													Deflater.NO_FLUSH);
+			if (bytesDeflated > 0) {
+				this.out.write(this.zBytes, 0, bytesDeflated);
+			}
+		}
+	}
+	
+	/**
+	 * Not used. Will cause a UnimplementedError to be thrown
+	 * if called.
+	 * 
+	 * @see java.io.FilterOutputStream#write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		throw new UnimplementedError("single-byte RpcDeflaterOutputStream.write()");
+	}
+	
+	/**
+	 * Sync-flush the results of previous byte deflation downstream. See the
+	 * comments for RpcGZIPOutputStream.flush(); the same rules apply here.
+	 * 
+	 * @see java.io.FilterOutputStream#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		int bytesDeflated;
+		do {
+			bytesDeflated = this.deflater.deflate(this.zBytes, 0, this.zBytes.length,
+													Deflater.SYNC_FLUSH);
+			if (bytesDeflated > 0) {
+				this.out.write(this.zBytes, 0, bytesDeflated);
+			}
+		} while (bytesDeflated == this.zBytes.length);
+	}
+	
+	/**
+	 * Release the native deflater. As with RpcGZIPOutputStream, the
+	 * underlying stream is left for the connection to close.
+	 * 
+	 * @see java.io.FilterOutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		this.deflater.end();
+	}
+}
@@ -0,0 +1,106 @@
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.UnimplementedError;
+
+/**
+ * An alternative to RpcGZIPInputStream for processing compressed streams
+ * being sent from Perforce servers when the client "client compress" mode
+ * is enabled; this version uses the JDK's native java.util.zip Inflater
+ * rather than the pure-Java JZlib implementation, and is usually
+ * considerably faster.<p>
+ * 
+ * As with RpcGZIPInputStream, the Perforce stream is a raw deflate stream
+ * without GZIP headers or trailers, so the inflater is created in "nowrap"
+ * mode.<p>
+ * 
+ * Used when the RpcPropertyDefs.RPC_USE_NATIVE_COMPRESSION_NICK property
+ * is set to true.
+ */
+
+public class RpcInflaterInputStream extends InflaterInputStream {
+	
+	private static final int ZBUF_SIZE = 10240;	// Might want to play with this a bit...
+	
+	public RpcInflaterInputStream(InputStream in) throws IOException {
+		super(in, new Inflater(true), ZBUF_SIZE);
+	}
+	
+	@Override
+	public int read(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError(
+					"null byte array passed to RpcInflaterInputStream.read()");
+		}
+		return read(bytes, 0, bytes.length);
+	}
+	
+	/**
+	 * Inflate as many bytes as are currently available into the passed-in
+	 * array, only going back to the underlying stream for more compressed
+	 * input when the inflater has nothing left to give us. This matters on a
+	 * live connection, as the server may well be waiting on us and we
+	 * mustn't block reading input we don't need yet.
+	 */
+	@Override
+	public int read(byte[] bytes, int offset, int len) throws IOException {
+		if (bytes == null) {
+			throw new NullPointerError(
+					"null byte array passed to RpcInflaterInputStream.read()");
+		}
+		if ((len <= 0) || (offset < 0) || (offset >= bytes.length) || (len > (bytes.length - offset))) {
+			throw new P4JavaError(
+					"bad length or offset in RpcInflaterInputStream.read()");
+		}
+		
+		try {
+			while (true) {
+				int bytesInflated = this.inf.inflate(bytes, offset, len);
+				if (bytesInflated > 0) {
+					return bytesInflated;
+				}
+				if (this.inf.finished()) {
+					return -1;
+				}
+				if (this.inf.needsDictionary()) {
+					throw new IOException("connection compression error: dictionary required");
+				}
+				if (this.inf.needsInput()) {
+					int bytesRead = this.in.read(this.buf, 0, this.buf.length);
+					if (bytesRead < 0) {
+						throw new EOFException(
+								"Unexpected end of compressed Perforce server connection stream");
+					}
+					this.inf.setInput(this.buf, 0, bytesRead);
+				}
+			}
+		} catch (DataFormatException dfe) {
+			throw new IOException("connection compression error: " + dfe.getLocalizedMessage(), dfe);
+		}
+	}
+	
+	@Override
+	public int read() throws IOException {
+		// NOTE: as with RpcGZIPInputStream, this shouldn't be called
+		// from anywhere.
+		
+		throw new UnimplementedError("single-byte RpcInflaterInputStream.read()");
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			this.inf.end();
+		} finally {
+			this.in.close();
+		}
+	}
+}
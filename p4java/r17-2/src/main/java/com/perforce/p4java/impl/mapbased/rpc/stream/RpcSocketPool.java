@@ -4,21 +4,42 @@
 package com.perforce.p4java.impl.mapbased.rpc.stream;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.List;
+import java.net.SocketTimeoutException;
+import java.util.Collections;
 import java.util.Properties;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
 import com.perforce.p4java.impl.mapbased.rpc.stream.helper.RpcSocketHelper;
 
 /**
+ * Pool of sockets to a single Perforce server address.<p>
+ *
+ * Idle sockets are kept on a concurrent (lock-free) deque and handed out
+ * most-recently-used first; a socket is checked for liveness before being
+ * handed out, and sockets idle for longer than the configured idle time are
+ * closed by a shared scheduled evictor. If the RPC_SOCKET_POOL_MAX_SIZE_NICK
+ * property is set, at most that many sockets are leased at once and acquire()
+ * waits up to RPC_SOCKET_POOL_ACQUIRE_TIMEOUT_NICK milliseconds for one to be
+ * released.
+ *
  * @author Kevin Sawicki (ksawicki@perforce.com)
  */
 public class RpcSocketPool {
-	
+
 	/**
 	 * Shutdown handler for cleaning up before a socket is closed
 	 */
@@ -27,7 +48,7 @@ public class RpcSocketPool {
 		/**
 		 * Callback for before the socket is closed to do any pre-close work.
 		 * Implementors should not directly close the socket parameter.
-		 * 
+		 *
 		 * @param socket
 		 */
 		void shutdown(Socket socket);
@@ -35,153 +56,121 @@ public class RpcSocketPool {
 	}
 
 	/**
-	 * Pool manager that closes sockets that have been left open for more than
-	 * the idle time allowed.
-	 * 
+	 * Socket idle time system property in milliseconds
 	 */
-	private static class PoolManager implements Runnable {
-
-		/**
-		 * Socket idle time system property in milliseconds
-		 */
-		private static final String RPC_SOCKET_IDLE_TIME = "com.perforce.p4java.RPC_SOCKET_IDLE_TIME";
-
-		/**
-		 * Default idle time to close sockets - 30 seconds
-		 */
-		private static final int DEFAULT_SOCKET_IDLE_TIME = 30000;
-
-		private int idleTime;
-		private List<RpcSocketPool> pools;
-		private boolean started = false;
-
-		/**
-		 * Create a new pool manager
-		 */
-		public PoolManager() {
-			this.pools = new ArrayList<RpcSocketPool>();
-			int time = DEFAULT_SOCKET_IDLE_TIME;
-			String configuredTime = System.getProperty(RPC_SOCKET_IDLE_TIME);
-			if (configuredTime != null) {
-				try {
-					time = Integer.parseInt(configuredTime);
-				} catch (NumberFormatException nfe) {
-					time = DEFAULT_SOCKET_IDLE_TIME;
-				}
-			}
-			this.idleTime = time;
-		}
+	private static final String RPC_SOCKET_IDLE_TIME = "com.perforce.p4java.RPC_SOCKET_IDLE_TIME";
 
-		public void register(RpcSocketPool pool) {
-			if (pool != null) {
-				synchronized (this) {
-					pools.add(pool);
-				}
-				if (started) {
-					synchronized (this.pools) {
-						this.pools.notify();
-					}
-				} else {
-					start();
-				}
-			}
-		}
+	/**
+	 * Default idle time to close sockets - 30 seconds
+	 */
+	private static final int DEFAULT_SOCKET_IDLE_TIME = 30000;
 
-		public void start() {
-			started = true;
-			Thread thread = new Thread(this);
-			thread.setName("P4Java Socket Pool Manager");
-			thread.setPriority(Thread.MIN_PRIORITY);
-			thread.setDaemon(true);
-			thread.start();
-		}
+	/**
+	 * How long (in milliseconds) the liveness probe waits for the server end
+	 * to report EOF or unexpected data on an idle socket.
+	 */
+	private static final int VALIDATION_TIMEOUT = 1;
 
-		public void unregister(RpcSocketPool pool) {
-			if (pool != null) {
-				synchronized (this) {
-					pools.remove(pool);
-				}
-			}
-		}
+	private static final int IDLE_TIME = getConfiguredIdleTime();
 
-		/**
-		 * @see java.lang.Runnable#run()
-		 */
-		public void run() {
-			while (true) {
-				while (this.pools.isEmpty()) {
-					synchronized (this.pools) {
-						try {
-							this.pools.wait();
-						} catch (InterruptedException e) {
-							break;
-						}
-					}
-				}
-				RpcSocketPool[] pools = null;
-				synchronized (this) {
-					pools = this.pools.toArray(new RpcSocketPool[this.pools
-							.size()]);
-				}
-				for (RpcSocketPool pool : pools) {
-					pool.timeout(this.idleTime);
-				}
-				try {
-					Thread.sleep(this.idleTime);
-				} catch (InterruptedException e) {
-					break;
-				}
-			}
-		}
-	}
-
-	private static PoolManager MANAGER = new PoolManager();
+	/**
+	 * Evicts idle sockets for all pools; replaces the old per-JVM sleeping
+	 * pool manager thread.
+	 */
+	private static final ScheduledThreadPoolExecutor EVICTOR = createEvictor();
 
-	private class SocketEntry {
-		Socket socket;
-		long releaseTime;
+	private static class SocketEntry {
+		final Socket socket;
+		final long releaseTime;
 
 		/**
 		 * Create a new socket entry with the specified socket with a release
 		 * time of the current system time
-		 * 
+		 *
 		 * @param socket
 		 */
-		public SocketEntry(Socket socket) {
+		SocketEntry(Socket socket) {
 			this.socket = socket;
 			this.releaseTime = System.currentTimeMillis();
 		}
 	}
 
-	private Properties socketProperties;
-	private String host;
-	private int port;
-	private int size;
-	private ShutdownHandler shutdownHandler;
-	private Queue<SocketEntry> pool;
-	private boolean secure = false;
-	
+	private final Properties socketProperties;
+	private final String host;
+	private final int port;
+	private final int size;
+	private final int maxSize;
+	private final long acquireTimeout;
+	private final boolean validate;
+	private final ShutdownHandler shutdownHandler;
+	private final boolean secure;
+	private final ServerStats stats;
+
+	private final ConcurrentLinkedDeque<SocketEntry> pool = new ConcurrentLinkedDeque<SocketEntry>();
+	private final AtomicInteger idleCount = new AtomicInteger();
+
+	/**
+	 * Bounds the number of leased sockets; null if the pool is unbounded.
+	 */
+	private final Semaphore leases;
+	private final Set<Socket> leased = Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+
+	private volatile ScheduledFuture<?> evictionTask = null;
+
+	/**
+	 * Create a new socket pool indicating whether it is secure (SSL) or not,
+	 * reporting pool activity to the passed-in server stats object.
+	 *
+	 * @param poolSize maximum number of idle sockets retained
+	 * @param host
+	 * @param port
+	 * @param socketProperties
+	 * @param shutdownHandler
+	 * @param secure
+	 * @param stats possibly-null server stats
+	 */
+	public RpcSocketPool(int poolSize, String host, int port,
+			Properties socketProperties, ShutdownHandler shutdownHandler,
+			boolean secure, ServerStats stats) {
+		this.host = host;
+		this.port = port;
+		this.socketProperties = socketProperties;
+		this.shutdownHandler = shutdownHandler;
+		this.secure = secure;
+		this.stats = stats;
+		this.maxSize = Math.max(0, RpcPropertyDefs.getPropertyAsInt(socketProperties,
+				RpcPropertyDefs.RPC_SOCKET_POOL_MAX_SIZE_NICK,
+				RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_MAX_SIZE));
+		this.size = this.maxSize > 0 ? Math.min(poolSize, this.maxSize) : poolSize;
+		this.acquireTimeout = RpcPropertyDefs.getPropertyAsInt(socketProperties,
+				RpcPropertyDefs.RPC_SOCKET_POOL_ACQUIRE_TIMEOUT_NICK,
+				RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_ACQUIRE_TIMEOUT);
+		this.validate = RpcPropertyDefs.getPropertyAsBoolean(socketProperties,
+				RpcPropertyDefs.RPC_SOCKET_POOL_VALIDATE_NICK,
+				RpcPropertyDefs.RPC_SOCKET_POOL_DEFAULT_VALIDATE);
+		this.leases = this.maxSize > 0 ? new Semaphore(this.maxSize) : null;
+	}
+
 	/**
 	 * Create a new socket pool indicating whether it is secure (SSL) or not.
-	 * 
+	 *
 	 * @param poolSize
 	 * @param host
 	 * @param port
 	 * @param socketProperties
 	 * @param shutdownHandler
-	 * @param secureServer
+	 * @param secure
 	 */
 	public RpcSocketPool(int poolSize, String host, int port,
 			Properties socketProperties, ShutdownHandler shutdownHandler,
 			boolean secure) {
-		this(poolSize, host, port, socketProperties, shutdownHandler);
-		this.secure = secure;
+		this(poolSize, host, port, socketProperties, shutdownHandler, secure, null);
 	}
 
 	/**
 	 * Create a new socket pool with a max pool size, host, port, and socket
 	 * properties, and an optional shutdown handler
-	 * 
+	 *
 	 * @param poolSize
 	 * @param host
 	 * @param port
@@ -190,34 +179,89 @@ public class RpcSocketPool {
 	 */
 	public RpcSocketPool(int poolSize, String host, int port,
 			Properties socketProperties, ShutdownHandler shutdownHandler) {
-		this.size = poolSize;
-		this.host = host;
-		this.port = port;
-		this.socketProperties = socketProperties;
-		this.pool = new LinkedList<SocketEntry>();
-		this.shutdownHandler = shutdownHandler;
-		MANAGER.register(this);
+		this(poolSize, host, port, socketProperties, shutdownHandler, false, null);
 	}
 
 	/**
-	 * Acquire a socket to the configured server address
-	 * 
+	 * Acquire a socket to the configured server address. If the pool is
+	 * bounded, this waits for a leased socket to be released if necessary.
+	 * The returned socket must be handed back through release() or discard().
+	 *
 	 * @return - socket
-	 * @throws IOException
+	 * @throws IOException if a socket can't be created, or if the wait for a
+	 * 			leased socket times out or is interrupted
 	 */
 	public Socket acquire() throws IOException {
-		Socket socket = null;
-		synchronized (this.pool) {
-			SocketEntry entry = this.pool.poll();
-			if (entry != null) {
-				socket = entry.socket;
+		if (this.leases != null) {
+			waitForLease();
+		}
+		try {
+			Socket socket = pollLiveSocket();
+			if (socket != null) {
+				if (this.stats != null) {
+					this.stats.socketPoolHits.incrementAndGet();
+				}
+			} else {
+				if (this.stats != null) {
+					this.stats.socketPoolMisses.incrementAndGet();
+				}
+				socket = RpcSocketHelper.createSocket(this.host, this.port, this.socketProperties, this.secure);
+			}
+			if (this.leases != null) {
+				this.leased.add(socket);
+			}
+			return socket;
+		} catch (IOException | RuntimeException exc) {
+			if (this.leases != null) {
+				this.leases.release();
 			}
+			throw exc;
 		}
-		if (!isAlive(socket)) {
-			quietClose(socket);
-			socket = RpcSocketHelper.createSocket(this.host, this.port, this.socketProperties, this.secure);
+	}
+
+	private void waitForLease() throws IOException {
+		long startTime = System.currentTimeMillis();
+		boolean acquired = this.leases.tryAcquire();
+		if (!acquired) {
+			try {
+				acquired = this.leases.tryAcquire(this.acquireTimeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for a pooled connection to "
+						+ this.host + ":" + this.port);
+			} finally {
+				if (this.stats != null) {
+					this.stats.socketPoolAcquireWaitTime.addAndGet(System.currentTimeMillis() - startTime);
+				}
+			}
+		}
+		if (!acquired) {
+			if (this.stats != null) {
+				this.stats.socketPoolAcquireTimeouts.incrementAndGet();
+			}
+			throw new IOException("Timed out after " + this.acquireTimeout
+					+ " msec waiting for one of " + this.maxSize
+					+ " pooled connections to " + this.host + ":" + this.port);
 		}
-		return socket;
+	}
+
+	/**
+	 * Take the most recently released socket that still looks usable off the
+	 * pool, closing any dead ones found on the way.
+	 */
+	private Socket pollLiveSocket() {
+		SocketEntry entry;
+		while ((entry = this.pool.pollFirst()) != null) {
+			this.idleCount.decrementAndGet();
+			if (isAlive(entry.socket) && (!this.validate || isResponsive(entry.socket))) {
+				return entry.socket;
+			}
+			if (this.stats != null) {
+				this.stats.socketPoolValidationFailures.incrementAndGet();
+			}
+			quietClose(entry.socket);
+		}
+		return null;
 	}
 
 	private void quietClose(Socket socket) {
@@ -243,36 +287,77 @@ public class RpcSocketPool {
 				&& !socket.isOutputShutdown();
 	}
 
+	/**
+	 * An idle pooled socket should have nothing to read; EOF means the server
+	 * (or something in between) has closed it, and data means the stream is
+	 * out of step. Either way it can't be reused. Only a read timeout passes.
+	 */
+	private boolean isResponsive(Socket socket) {
+		int soTimeout = -1;
+		try {
+			InputStream in = socket.getInputStream();
+			if (in.available() > 0) {
+				return false;
+			}
+			soTimeout = socket.getSoTimeout();
+			socket.setSoTimeout(VALIDATION_TIMEOUT);
+			in.read();
+			return false;
+		} catch (SocketTimeoutException e) {
+			return true;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (soTimeout >= 0) {
+				try {
+					socket.setSoTimeout(soTimeout);
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+
 	/**
 	 * Release a socket back to the pool as no longer using
-	 * 
+	 *
 	 * @param socket
 	 * @param shutdownHandler
 	 * @throws IOException
 	 */
 	public void release(Socket socket, ShutdownHandler shutdownHandler)
 			throws IOException {
-		if (isAlive(socket)) {
-			boolean close = false;
-			synchronized (this.pool) {
-				if (this.pool.size() < size) {
-					this.pool.add(new SocketEntry(socket));
+		try {
+			if (isAlive(socket)) {
+				if (this.idleCount.incrementAndGet() <= this.size) {
+					this.pool.offerFirst(new SocketEntry(socket));
+					ensureEvictionScheduled();
 				} else {
-					close = true;
-				}
-			}
-			if (close) {
-				if (shutdownHandler != null) {
-					shutdownHandler.shutdown(socket);
-				}
-				if (!socket.isClosed()) {
-					socket.getInputStream().close();
-				}
-				if (!socket.isClosed()) {
-					socket.getOutputStream().close();
+					this.idleCount.decrementAndGet();
+					if (shutdownHandler != null) {
+						shutdownHandler.shutdown(socket);
+					}
+					close(socket);
 				}
-				socket.close();
 			}
+		} finally {
+			returnLease(socket);
+		}
+	}
+
+	/**
+	 * Close a socket obtained from acquire() that can't be released back to
+	 * the pool in a reusable state, e.g. because its connection setup failed.
+	 *
+	 * @param socket
+	 */
+	public void discard(Socket socket) {
+		quietClose(socket);
+		returnLease(socket);
+	}
+
+	private void returnLease(Socket socket) {
+		if ((this.leases != null) && (socket != null) && this.leased.remove(socket)) {
+			this.leases.release();
 		}
 	}
 
@@ -292,53 +377,98 @@ public class RpcSocketPool {
 	 * Disconnect all sockets from the specified host and port
 	 */
 	public void disconnect() {
-		Socket[] sockets = null;
-		try {
-			synchronized (this.pool) {
-				sockets = new Socket[this.pool.size()];
-				int count = 0;
-				for (SocketEntry entry : this.pool) {
-					sockets[count] = entry.socket;
-					count++;
-				}
-				this.pool.clear();
+		ScheduledFuture<?> task = this.evictionTask;
+		if (task != null) {
+			task.cancel(false);
+			this.evictionTask = null;
+		}
+		SocketEntry entry;
+		while ((entry = this.pool.pollFirst()) != null) {
+			this.idleCount.decrementAndGet();
+			if (this.shutdownHandler != null) {
+				this.shutdownHandler.shutdown(entry.socket);
 			}
-			for (Socket socket : sockets) {
-				if (this.shutdownHandler != null) {
-					this.shutdownHandler.shutdown(socket);
-				}
-				try {
-					close(socket);
-				} catch (IOException e) {
-					Log.exception(e);
-				}
+			try {
+				close(entry.socket);
+			} catch (IOException e) {
+				Log.exception(e);
 			}
-		} finally {
-			MANAGER.unregister(this);
 		}
 	}
 
 	/**
 	 * Timeout any sockets idle for greater than or equal to the milliseconds
 	 * value specified
-	 * 
+	 *
 	 * @param idleDuration
 	 */
 	public void timeout(int idleDuration) {
-		synchronized (this.pool) {
-			long openTime;
-			List<SocketEntry> closed = new ArrayList<SocketEntry>();
-			for (SocketEntry entry : this.pool) {
-				openTime = System.currentTimeMillis() - entry.releaseTime;
-				if (openTime >= idleDuration) {
-					if (this.shutdownHandler != null) {
-						this.shutdownHandler.shutdown(entry.socket);
-					}
-					quietClose(entry.socket);
-					closed.add(entry);
+		long now = System.currentTimeMillis();
+		for (SocketEntry entry : this.pool) {
+			// Only the thread that actually removes the entry may close it; it
+			// may have been acquired since the iterator saw it.
+			if ((now - entry.releaseTime >= idleDuration) && this.pool.removeFirstOccurrence(entry)) {
+				this.idleCount.decrementAndGet();
+				if (this.shutdownHandler != null) {
+					this.shutdownHandler.shutdown(entry.socket);
+				}
+				quietClose(entry.socket);
+				if (this.stats != null) {
+					this.stats.socketPoolEvictions.incrementAndGet();
 				}
 			}
-			this.pool.removeAll(closed);
 		}
 	}
+
+	/**
+	 * Return the number of idle sockets currently in the pool.
+	 */
+	public int getIdleCount() {
+		return this.idleCount.get();
+	}
+
+	private void ensureEvictionScheduled() {
+		if (this.evictionTask == null) {
+			synchronized (this) {
+				if (this.evictionTask == null) {
+					this.evictionTask = EVICTOR.scheduleWithFixedDelay(new Runnable() {
+						public void run() {
+							try {
+								timeout(IDLE_TIME);
+							} catch (Throwable thr) {
+								Log.exception(thr);
+							}
+						}
+					}, IDLE_TIME, IDLE_TIME, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+	}
+
+	private static int getConfiguredIdleTime() {
+		int time = DEFAULT_SOCKET_IDLE_TIME;
+		String configuredTime = System.getProperty(RPC_SOCKET_IDLE_TIME);
+		if (configuredTime != null) {
+			try {
+				time = Integer.parseInt(configuredTime);
+			} catch (NumberFormatException nfe) {
+				time = DEFAULT_SOCKET_IDLE_TIME;
+			}
+		}
+		return time > 0 ? time : DEFAULT_SOCKET_IDLE_TIME;
+	}
+
+	private static ScheduledThreadPoolExecutor createEvictor() {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable);
+				thread.setName("P4Java Socket Pool Manager");
+				thread.setPriority(Thread.MIN_PRIORITY);
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		executor.setRemoveOnCancelPolicy(true);
+		return executor;
+	}
 }
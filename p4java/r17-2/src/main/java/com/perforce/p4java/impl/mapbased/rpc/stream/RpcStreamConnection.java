@@ -22,6 +22,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -30,6 +31,7 @@ import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
 import java.text.MessageFormat;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
@@ -41,6 +43,7 @@ import com.perforce.p4java.Log;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.impl.mapbased.rpc.ExternalEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
 import com.perforce.p4java.impl.mapbased.rpc.connection.RpcConnection;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionMapKey;
@@ -84,7 +87,11 @@ public class RpcStreamConnection extends RpcConnection {
      * existing buffer the new one should be, or, alternatively, how much bigger
      * than the incoming field length the new buffer should be. Should probably
      * be more tunable...
+     *
+     * @deprecated the pooled send buffer is now sized up front from the packet's
+     *             field lengths; no longer used.
      */
+    @Deprecated
     protected static final int SENDBUF_REALLOC_INCR = 1024;
 
     private RpcSocketPool pool = null;
@@ -97,6 +104,19 @@ public class RpcStreamConnection extends RpcConnection {
     // 'rsh' mode server launch command
     private String rsh = null;
 
+    /**
+     * Pooled send buffer and field state, reused for every packet put on this
+     * connection.
+     */
+    private final RpcPacketSupplier sendSupplier = new RpcPacketSupplier();
+
+    /**
+     * Reusable receive buffer; only used (and only non-null) if the
+     * RPC_REUSE_RECV_BUFFER_NICK property was set. Grows as needed to hold the
+     * largest packet seen so far on this connection, and is never shrunk.
+     */
+    private byte[] recvBytes = null;
+
     /**
      * Construct a new Perforce RPC connection to the named Perforce server
      * using java.io socket streams at the lowest level. This constructor sets
@@ -190,6 +210,15 @@ public class RpcStreamConnection extends RpcConnection {
         this.socket = socket;
         this.pool = pool;
         this.rsh = rsh;
+        if (RpcPropertyDefs.getPropertyAsBoolean(this.props,
+                RpcPropertyDefs.RPC_REUSE_RECV_BUFFER_NICK,
+                RpcPropertyDefs.RPC_DEFAULT_REUSE_RECV_BUFFER)) {
+            int recvBufSize = RpcPropertyDefs.getPropertyAsInt(this.props,
+                    RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE_NICK,
+                    RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE);
+            this.recvBytes = new byte[Math.max(recvBufSize, RpcPacketPreamble.RPC_PREAMBLE_SIZE)];
+            this.stats.recvBytesAllocated.getAndAdd(this.recvBytes.length);
+        }
         init();
     }
 
@@ -253,12 +282,20 @@ public class RpcStreamConnection extends RpcConnection {
 
         getIpAddressFromSocketConnection();
 
-        // Initialize SSL connection
-        if (secure) {
-            initSSL();
-        }
+        try {
+            // Initialize SSL connection
+            if (secure) {
+                initSSL();
+            }
 
-        initRpcSocketInputAndOutputStreamIfSocketBasedServer();
+            initRpcSocketInputAndOutputStreamIfSocketBasedServer();
+        } catch (ConnectionException exc) {
+            // Hand a pooled socket back so it doesn't hold a lease forever
+            if (nonNull(pool)) {
+                pool.discard(socket);
+            }
+            throw exc;
+        }
     }
 
     private void getIpAddressFromSocketConnection() {
@@ -443,6 +480,10 @@ public class RpcStreamConnection extends RpcConnection {
      */
     public RpcPacket getRpcPacket(final RpcPacketFieldRule fieldRule,
             final IFilterCallback filterCallback) throws ConnectionException {
+        if (nonNull(recvBytes)) {
+            return getRpcPacketIntoRecvBuffer(fieldRule, filterCallback);
+        }
+
         byte[] preambleBytes = new byte[RpcPacketPreamble.RPC_PREAMBLE_SIZE];
         RpcPacket packet = null;
 
@@ -475,6 +516,7 @@ public class RpcStreamConnection extends RpcConnection {
             // pathological
             // cases, so we need to be flexible...
             byte[] packetBytes = new byte[payloadLength];
+            stats.recvBytesAllocated.getAndAdd(preambleBytes.length + payloadLength);
             int packetBytesRead = topInputStream.read(packetBytes, 0, payloadLength);
             throwConnectionExceptionIfConditionFails(packetBytesRead > 0,
                     "Perforce server network connection closed unexpectedly");
@@ -507,6 +549,93 @@ public class RpcStreamConnection extends RpcConnection {
         return packet;
     }
 
+    /**
+     * Reusable receive buffer version of getRpcPacket: reads the preamble and
+     * payload into this connection's receive buffer (growing it if the payload
+     * won't fit), then decodes the packet fields in place from that buffer.
+     */
+    private RpcPacket getRpcPacketIntoRecvBuffer(final RpcPacketFieldRule fieldRule,
+            final IFilterCallback filterCallback) throws ConnectionException {
+        RpcPacket packet = null;
+
+        try {
+            AtomicLong streamRecvs = stats.streamRecvs;
+            int bytesRead = readFully(recvBytes, RpcPacketPreamble.RPC_PREAMBLE_SIZE, streamRecvs);
+            throwConnectionExceptionIfConditionFails(bytesRead >= 0,
+                    "server connection unexpectedly closed");
+            throwConnectionExceptionIfConditionFails(
+                    bytesRead == RpcPacketPreamble.RPC_PREAMBLE_SIZE,
+                    "Incomplete RPC packet preamble read from Perforce server; connection probably broken. bytes read: %s",
+                    bytesRead);
+
+            RpcPacketPreamble preamble = RpcPacketPreamble.retrievePreamble(
+                    ByteBuffer.wrap(recvBytes, 0, RpcPacketPreamble.RPC_PREAMBLE_SIZE));
+            throwProtocolErrorIfConditionFails(preamble.isValidChecksum(),
+                    "Bad checksum in RPC preamble");
+
+            int payloadLength = preamble.getPayloadSize();
+            throwProtocolErrorIfConditionFails(payloadLength > 0,
+                    "Bad payload size in RPC preamble: %s", payloadLength);
+
+            if (payloadLength > recvBytes.length) {
+                // No need to preserve the preamble; we've already decoded it.
+                int newLength = Math.max(payloadLength, recvBytes.length * 2);
+                recvBytes = new byte[newLength];
+                stats.recvBytesAllocated.getAndAdd(newLength);
+                stats.recvBufferResizes.incrementAndGet();
+                stats.recvBufSize.set(Math.max(stats.recvBufSize.get(), newLength));
+            }
+
+            int packetBytesRead = readFully(recvBytes, payloadLength, streamRecvs);
+            throwConnectionExceptionIfConditionFails(packetBytesRead > 0,
+                    "Perforce server network connection closed unexpectedly");
+            throwP4JavaErrorIfConditionFails(packetBytesRead == payloadLength,
+                    "RPC packet payload read size mismatch; expected: %s; got: %s", payloadLength,
+                    packetBytesRead);
+
+            packet = RpcPacket.constructRpcPacket(preamble,
+                    ByteBuffer.wrap(recvBytes, 0, payloadLength), unicodeServer,
+                    clientCharset, fieldRule, filterCallback);
+            stats.packetsRecv.incrementAndGet();
+            stats.largestRpcPacketRecv
+                    .set(Math.max(stats.largestRpcPacketRecv.get(), packet.getPacketLength()));
+        } catch (IOException exc) {
+            throwConnectionException(exc);
+        } catch (ConnectionException | P4JavaError p4jexc) {
+            throw p4jexc;
+        } catch (Throwable thr) {
+            Log.error("Unexpected exception: %s", thr.getLocalizedMessage());
+            Log.exception(thr);
+            throwP4JavaError(thr, thr.getLocalizedMessage());
+        }
+
+        return packet;
+    }
+
+    /**
+     * Read exactly length bytes into the start of the passed-in array, unless
+     * the stream ends first. Returns the number of bytes actually read, or -1
+     * if the stream was already at its end.
+     */
+    private int readFully(@Nonnull final byte[] bytes, final int length,
+            @Nonnull final AtomicLong streamRecvs) throws IOException {
+        int totalBytesRead = 0;
+        while (totalBytesRead < length) {
+            int moreBytesRead = topInputStream.read(bytes, totalBytesRead,
+                    length - totalBytesRead);
+            if (moreBytesRead < 0) {
+                return totalBytesRead == 0 ? -1 : totalBytesRead;
+            }
+            if (totalBytesRead > 0) {
+                stats.incompleteReads.incrementAndGet();
+            }
+            streamRecvs.incrementAndGet();
+            stats.totalBytesRecv.getAndAdd(moreBytesRead);
+            totalBytesRead += moreBytesRead;
+        }
+        return totalBytesRead;
+    }
+
     /**
      * If we get a partial read, try again until something goes wrong...
      */
@@ -592,11 +721,13 @@ public class RpcStreamConnection extends RpcConnection {
      * and downstream, but it's normally fairly straightforward.
      *
      * <pre>
-     * <strong>Note</strong> that in general, we don't know how large the packet's output byte
-     * buffer is going to have to be until we've finished the packet contents
-     * marshaling, so we implement buffer resizing when needed. Our initial
-     * guess is <code>INITIAL_SENDBUF_SIZE</code> bytes; we grow the buffer by increasing
-     * it <code>SENDBUF_REALLOC_INCR</code> times each buffer increase.
+     * <strong>Note</strong> that we marshal in two passes over the packet's fields:
+     * the first resolves each field's name and value to its wire bytes (strings are
+     * encoded exactly once; byte arrays and byte buffers are used as-is) and totals
+     * up the packet length; the second writes the preamble, names, lengths and values
+     * straight into this connection's pooled send buffer, which is grown (never
+     * shrunk) up front if the packet won't fit. File data therefore goes from the
+     * caller's buffer to the send buffer with no intermediate copies.
      * </pre>
      */
     public long putRpcPacket(@Nonnull RpcPacket packet) throws ConnectionException {
@@ -604,13 +735,7 @@ public class RpcStreamConnection extends RpcConnection {
         throwP4JavaErrorIfConditionFails(nonNull(packet.getFuncNameString()),
                 "Unmapped / unmappable function in RpcPacket.put()");
 
-        // Skip over the first few bytes for the preamble,
-        // which we'll come back to fill in later when we know the marshaled
-        // length.
-        int startPos = RpcPacketPreamble.RPC_PREAMBLE_SIZE;
-
-        RpcPacketSupplier supplier = new RpcPacketSupplier();
-        supplier.sendBytes(new byte[INITIAL_SENDBUF_SIZE]).sendPos(startPos);
+        RpcPacketSupplier supplier = sendSupplier.clearFields();
 
         // FixedOrder
         processNameArgs(packet, supplier);
@@ -618,6 +743,7 @@ public class RpcStreamConnection extends RpcConnection {
         processExternalEnv(packet, supplier);
         processFuncName(packet, supplier);
 
+        encodeFieldsIntoSendBuffer(supplier);
         calculatePreambleBytesAndSendtoDownstream(supplier);
         return 0;
     }
@@ -627,38 +753,18 @@ public class RpcStreamConnection extends RpcConnection {
         Map<String, Object> mapArgs = packet.getMapArgs();
         if (nonNull(mapArgs)) {
             for (Map.Entry<String, Object> entry : mapArgs.entrySet()) {
-                reallocateSendBufferInPutPacketIfRunOut(argsSupplier,
-                        marshalPacketField(entry.getKey(), entry.getValue()), SENDBUF_REALLOC_INCR);
+                addPacketField(argsSupplier, entry.getKey(), entry.getValue());
             }
         }
     }
 
-    private void reallocateSendBufferInPutPacketIfRunOut(@Nonnull final RpcPacketSupplier supplier,
-            @Nonnull final byte[] fieldBytes, final int reallocateIncrement) {
-        byte[] sendBytes = supplier.sendBytes();
-        int sendPos = supplier.sendPos();
-
-        byte[] newSendBytes = sendBytes;
-        if ((sendBytes.length - sendPos) <= fieldBytes.length) {
-            stats.bufferCompacts.getAndIncrement(); // We're overloading the
-                                                    // meaning here...
-            int newBytesLength = sendBytes.length + fieldBytes.length + reallocateIncrement;
-            newSendBytes = new byte[newBytesLength];
-            System.arraycopy(sendBytes, 0, newSendBytes, 0, sendPos);
-        }
-
-        System.arraycopy(fieldBytes, 0, newSendBytes, sendPos, fieldBytes.length);
-        supplier.sendBytes(newSendBytes).sendPos(sendPos + fieldBytes.length);
-    }
-
     private void processStringArgs(@Nonnull RpcPacket packet,
             @Nonnull final RpcPacketSupplier argsSupplier) {
         String[] strArgs = packet.getStrArgs();
         if (nonNull(strArgs)) {
             for (String arg : strArgs) {
                 if (isNotBlank(arg)) {
-                    reallocateSendBufferInPutPacketIfRunOut(argsSupplier,
-                            marshalPacketField(null, arg), SENDBUF_REALLOC_INCR);
+                    addPacketField(argsSupplier, null, arg);
                 }
             }
         }
@@ -668,15 +774,77 @@ public class RpcStreamConnection extends RpcConnection {
             @Nonnull final RpcPacketSupplier argsSupplier) {
         ExternalEnv externalEnv = packet.getEnv();
         if (nonNull(externalEnv)) {
-            reallocateSendBufferInPutPacketIfRunOut(argsSupplier, externalEnv.marshal(),
-                    SENDBUF_REALLOC_INCR);
+            // The environment comes to us already marshaled as a run of fields.
+            argsSupplier.addField(null, externalEnv.marshal(), true);
         }
     }
 
     private void processFuncName(@Nonnull RpcPacket packet, @Nonnull RpcPacketSupplier supplier) {
-        byte[] nameBytes = marshalPacketField(RpcFunctionMapKey.FUNCTION,
-                packet.getFuncNameString());
-        reallocateSendBufferInPutPacketIfRunOut(supplier, nameBytes, nameBytes.length);
+        addPacketField(supplier, RpcFunctionMapKey.FUNCTION, packet.getFuncNameString());
+    }
+
+    /**
+     * Resolve the passed-in field to its wire form and add it to the supplier.
+     * Follows the same charset rules as marshalPacketField, but leaves byte
+     * array and byte buffer values uncopied for the encoding pass.
+     */
+    private void addPacketField(@Nonnull final RpcPacketSupplier supplier, final String key,
+            final Object value) {
+        byte[] keyBytes = isNull(key) ? null : getNormalizedBytes(key);
+        if (isNull(value) || (value instanceof byte[]) || (value instanceof ByteBuffer)) {
+            supplier.addField(keyBytes, value, false);
+        } else {
+            supplier.addField(keyBytes, marshalPacketValue(value), false);
+        }
+    }
+
+    /**
+     * Make sure the supplier's pooled send buffer is big enough for the whole
+     * packet, then write each field into it following the preamble.
+     */
+    private void encodeFieldsIntoSendBuffer(@Nonnull final RpcPacketSupplier supplier) {
+        int packetLength = supplier.packetLength();
+        byte[] sendBytes = supplier.sendBytes();
+        if (sendBytes.length < packetLength) {
+            stats.bufferCompacts.getAndIncrement(); // We're overloading the
+                                                    // meaning here...
+            sendBytes = new byte[Math.max(packetLength, sendBytes.length * 2)];
+            supplier.sendBytes(sendBytes);
+            stats.sendBufSize.set(Math.max(stats.sendBufSize.get(), sendBytes.length));
+        }
+
+        int sendPos = RpcPacketPreamble.RPC_PREAMBLE_SIZE;
+        for (int i = 0; i < supplier.fieldCount(); i++) {
+            Object value = supplier.fieldValue(i);
+            if (supplier.isRawField(i)) {
+                byte[] rawBytes = (byte[]) value;
+                System.arraycopy(rawBytes, 0, sendBytes, sendPos, rawBytes.length);
+                sendPos += rawBytes.length;
+                continue;
+            }
+
+            byte[] nameBytes = supplier.fieldName(i);
+            if (nonNull(nameBytes)) {
+                System.arraycopy(nameBytes, 0, sendBytes, sendPos, nameBytes.length);
+                sendPos += nameBytes.length;
+            }
+            sendBytes[sendPos++] = 0;
+
+            int valLength = RpcPacketSupplier.valueLength(value);
+            sendBytes[sendPos++] = (byte) (valLength & 0xFF);
+            sendBytes[sendPos++] = (byte) ((valLength >>> 8) & 0xFF);
+            sendBytes[sendPos++] = (byte) ((valLength >>> 16) & 0xFF);
+            sendBytes[sendPos++] = (byte) ((valLength >>> 24) & 0xFF);
+
+            if (value instanceof byte[]) {
+                System.arraycopy(value, 0, sendBytes, sendPos, valLength);
+            } else if (value instanceof ByteBuffer) {
+                ((ByteBuffer) value).get(sendBytes, sendPos, valLength);
+            }
+            sendPos += valLength;
+            sendBytes[sendPos++] = 0;
+        }
+        supplier.sendPos(sendPos);
     }
 
     /**
@@ -726,8 +894,15 @@ public class RpcStreamConnection extends RpcConnection {
                 putRpcPacket(RpcPacket.constructRpcPacket(RpcFunctionSpec.PROTOCOL_COMPRESS2,
                         "compress2", null, null));
                 topOutputStream.flush();
-                topOutputStream = new RpcGZIPOutputStream(outputStream);
-                topInputStream = new RpcGZIPInputStream(inputStream);
+                if (RpcPropertyDefs.getPropertyAsBoolean(props,
+                        RpcPropertyDefs.RPC_USE_NATIVE_COMPRESSION_NICK,
+                        RpcPropertyDefs.RPC_DEFAULT_USE_NATIVE_COMPRESSION)) {
+                    topOutputStream = new RpcDeflaterOutputStream(outputStream);
+                    topInputStream = new RpcInflaterInputStream(inputStream);
+                } else {
+                    topOutputStream = new RpcGZIPOutputStream(outputStream);
+                    topInputStream = new RpcGZIPInputStream(inputStream);
+                }
             } catch (IOException exc) {
                 Log.error("I/O exception encountered while setting up GZIP streaming: %s",
                         exc.getLocalizedMessage());
@@ -759,10 +934,22 @@ public class RpcStreamConnection extends RpcConnection {
         return this;
     }
 
+    /**
+     * Pooled per-connection send state: the send buffer itself (reused across
+     * packets) plus the resolved fields of the packet currently being put.
+     */
     static class RpcPacketSupplier {
+        private static final int INITIAL_FIELD_COUNT = 16;
+
         private byte[] sendBytes = new byte[INITIAL_SENDBUF_SIZE];
         private int sendPos = 0;
 
+        private byte[][] fieldNames = new byte[INITIAL_FIELD_COUNT][];
+        private Object[] fieldValues = new Object[INITIAL_FIELD_COUNT];
+        private boolean[] rawFields = new boolean[INITIAL_FIELD_COUNT];
+        private int fieldCount = 0;
+        private int packetLength = RpcPacketPreamble.RPC_PREAMBLE_SIZE;
+
         RpcPacketSupplier sendBytes(final byte[] sendBytes) {
             this.sendBytes = sendBytes;
             return this;
@@ -780,5 +967,77 @@ public class RpcStreamConnection extends RpcConnection {
         int sendPos() {
             return sendPos;
         }
+
+        /**
+         * Forget the previous packet's fields (but keep the buffers).
+         */
+        RpcPacketSupplier clearFields() {
+            for (int i = 0; i < fieldCount; i++) {
+                fieldNames[i] = null;
+                fieldValues[i] = null;
+            }
+            fieldCount = 0;
+            sendPos = 0;
+            packetLength = RpcPacketPreamble.RPC_PREAMBLE_SIZE;
+            return this;
+        }
+
+        /**
+         * Add a field; value must be null, a byte array or a flipped byte
+         * buffer. Raw fields are pre-marshaled byte arrays copied as-is.
+         */
+        RpcPacketSupplier addField(final byte[] name, final Object value, final boolean raw) {
+            if (fieldCount == fieldValues.length) {
+                int newCount = fieldCount * 2;
+                fieldNames = Arrays.copyOf(fieldNames, newCount);
+                fieldValues = Arrays.copyOf(fieldValues, newCount);
+                rawFields = Arrays.copyOf(rawFields, newCount);
+            }
+            fieldNames[fieldCount] = name;
+            fieldValues[fieldCount] = value;
+            rawFields[fieldCount] = raw;
+            fieldCount++;
+
+            if (raw) {
+                packetLength += ((byte[]) value).length;
+            } else {
+                // name, null, 4 byte length, value, null
+                packetLength += (name == null ? 0 : name.length) + 2
+                        + RpcPacket.RPC_LENGTH_FIELD_LENGTH + valueLength(value);
+            }
+            return this;
+        }
+
+        int fieldCount() {
+            return fieldCount;
+        }
+
+        byte[] fieldName(final int index) {
+            return fieldNames[index];
+        }
+
+        Object fieldValue(final int index) {
+            return fieldValues[index];
+        }
+
+        boolean isRawField(final int index) {
+            return rawFields[index];
+        }
+
+        /**
+         * Total length of the packet so far, including the preamble.
+         */
+        int packetLength() {
+            return packetLength;
+        }
+
+        static int valueLength(final Object value) {
+            if (value instanceof byte[]) {
+                return ((byte[]) value).length;
+            } else if (value instanceof ByteBuffer) {
+                return ((ByteBuffer) value).limit();
+            }
+            return 0;
+        }
     }
 }
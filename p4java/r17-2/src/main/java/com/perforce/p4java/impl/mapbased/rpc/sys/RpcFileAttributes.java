@@ -0,0 +1,153 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+
+import com.perforce.p4java.Log;
+import com.perforce.p4java.impl.generic.sys.ISystemFileCommandsHelper;
+import com.perforce.p4java.impl.mapbased.rpc.sys.helper.SysFileHelperBridge;
+
+/**
+ * A snapshot of a client file's attributes, read with a single (l)stat
+ * rather than the separate exists / isDirectory / isFile / length /
+ * canExecute / isSymbolicLink probes that java.io.File would need.<p>
+ *
+ * Symbolic links are not followed, so a link is reported as a link whether
+ * or not its target exists. On POSIX file systems the executable bit is the
+ * owner's execute permission, as with the C++ API; elsewhere it's left to
+ * the system file commands helper, and only asked for when needed.
+ */
+public class RpcFileAttributes {
+
+	private static final RpcFileAttributes MISSING =
+			new RpcFileAttributes(null, false, false, false, false, 0, 0, null, Boolean.FALSE);
+
+	/** Cleared the first time POSIX attributes turn out not to be supported. */
+	private static volatile boolean tryPosix = true;
+
+	private final String path;
+	private final boolean exists;
+	private final boolean symbolicLink;
+	private final boolean directory;
+	private final boolean regularFile;
+	private final long size;
+	private final long lastModified;
+	private final Object fileKey;
+	private volatile Boolean executable;
+
+	private RpcFileAttributes(String path, boolean exists, boolean symbolicLink, boolean directory,
+			boolean regularFile, long size, long lastModified, Object fileKey, Boolean executable) {
+		this.path = path;
+		this.exists = exists;
+		this.symbolicLink = symbolicLink;
+		this.directory = directory;
+		this.regularFile = regularFile;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.fileKey = fileKey;
+		this.executable = executable;
+	}
+
+	/**
+	 * Read the passed-in file's attributes, without following symbolic
+	 * links. A file that doesn't exist, or whose attributes can't be read,
+	 * is reported as missing.
+	 */
+	public static RpcFileAttributes read(File file) {
+		if (file == null) {
+			return MISSING;
+		}
+		Path path;
+		try {
+			path = file.toPath();
+		} catch (InvalidPathException e) {
+			return MISSING;
+		}
+
+		try {
+			if (tryPosix) {
+				try {
+					PosixFileAttributes attrs = Files.readAttributes(path,
+							PosixFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+					return new RpcFileAttributes(file.getPath(), attrs,
+							attrs.permissions().contains(PosixFilePermission.OWNER_EXECUTE));
+				} catch (UnsupportedOperationException e) {
+					tryPosix = false;
+				}
+			}
+			BasicFileAttributes attrs = Files.readAttributes(path,
+					BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			return new RpcFileAttributes(file.getPath(), attrs, null);
+		} catch (NoSuchFileException e) {
+			return MISSING;
+		} catch (IOException | SecurityException e) {
+			Log.warn("unable to read attributes of %s: %s", file.getPath(), e.getLocalizedMessage());
+			return MISSING;
+		}
+	}
+
+	private RpcFileAttributes(String path, BasicFileAttributes attrs, Boolean executable) {
+		this(path, true, attrs.isSymbolicLink(), attrs.isDirectory(), attrs.isRegularFile(),
+				attrs.size(), attrs.lastModifiedTime().toMillis(), attrs.fileKey(), executable);
+	}
+
+	public boolean exists() {
+		return this.exists;
+	}
+
+	public boolean isSymbolicLink() {
+		return this.symbolicLink;
+	}
+
+	public boolean isDirectory() {
+		return this.directory;
+	}
+
+	/**
+	 * True for a regular file; false for a directory, a symbolic link or
+	 * anything else (a device, a pipe, etc.).
+	 */
+	public boolean isRegularFile() {
+		return this.regularFile;
+	}
+
+	/**
+	 * The file's size in bytes; for a symbolic link, the size of the link.
+	 */
+	public long size() {
+		return this.size;
+	}
+
+	/**
+	 * The file's modification time in milliseconds, as File.lastModified().
+	 */
+	public long lastModified() {
+		return this.lastModified;
+	}
+
+	/**
+	 * An object identifying the file on its file system (device and inode
+	 * on Unix), or null if the file system doesn't provide one.
+	 */
+	public Object fileKey() {
+		return this.fileKey;
+	}
+
+	public boolean isExecutable() {
+		Boolean exec = this.executable;
+		if (exec == null) {
+			ISystemFileCommandsHelper helper = SysFileHelperBridge.getSysFileCommands();
+			exec = helper != null && helper.canExecute(this.path);
+			this.executable = exec;
+		}
+		return exec;
+	}
+}
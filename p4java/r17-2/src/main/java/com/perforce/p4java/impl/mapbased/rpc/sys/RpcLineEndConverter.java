@@ -0,0 +1,164 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.perforce.p4java.exception.NullPointerError;
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+
+/**
+ * Bulk conversion between the server's text line ending (a single LF) and a
+ * client line ending, used by the text file output and input streams and
+ * the local digester.<p>
+ *
+ * Rather than looking at (and writing) a byte at a time, the converter
+ * searches for the next line ending and copies the whole run of bytes
+ * before it in one go, so text with the usual line lengths is converted at
+ * close to the speed of a plain array copy.<p>
+ *
+ * Converters keep a little state between calls and aren't thread safe.
+ */
+public class RpcLineEndConverter {
+
+	private static final byte SERVER_LINE_END = ClientLineEnding.PERFORCE_SERVER_LINE_END_BYTE;
+
+	private final byte[] clientLineEnd;
+	private final boolean identity;
+	private int consumed = 0;
+
+	/**
+	 * @param clientLineEnd the client line ending bytes; see
+	 * 			ClientLineEnding.getLineEndBytes().
+	 */
+	public RpcLineEndConverter(byte[] clientLineEnd) {
+		if ((clientLineEnd == null) || (clientLineEnd.length == 0)) {
+			throw new NullPointerError("Null or empty line ending passed to RpcLineEndConverter constructor");
+		}
+		this.clientLineEnd = clientLineEnd.clone();
+		this.identity = (clientLineEnd.length == 1) && (clientLineEnd[0] == SERVER_LINE_END);
+	}
+
+	public byte[] getClientLineEnd() {
+		return this.clientLineEnd.clone();
+	}
+
+	/**
+	 * Return the index of the first b in bytes[from, to), or -1 if there
+	 * isn't one.
+	 */
+	public static int indexOf(byte[] bytes, int from, int to, byte b) {
+		for (int i = from; i < to; i++) {
+			if (bytes[i] == b) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Write server text to the passed-in stream with each LF replaced by
+	 * the client line ending. Runs of bytes between line endings are
+	 * gathered in the passed-in buffer (which must be able to hold at least
+	 * one line ending) and written when it fills, or written straight from
+	 * the source if they wouldn't fit anyway, so the stream only sees large
+	 * writes.
+	 */
+	public void writeToClient(OutputStream out, byte[] bytes, int off, int len, byte[] buffer)
+			throws IOException {
+		if (this.identity) {
+			out.write(bytes, off, len);
+			return;
+		}
+		final int end = off + len;
+		int start = off;
+		int filled = 0;
+		while (start < end) {
+			int lineEnd = indexOf(bytes, start, end, SERVER_LINE_END);
+			int runEnd = (lineEnd < 0) ? end : lineEnd;
+			int run = runEnd - start;
+			if (run > buffer.length - filled) {
+				if (filled > 0) {
+					out.write(buffer, 0, filled);
+					filled = 0;
+				}
+				if (run >= buffer.length) {
+					out.write(bytes, start, run);
+					run = 0;
+				}
+			}
+			System.arraycopy(bytes, start, buffer, filled, run);
+			filled += run;
+			if (lineEnd < 0) {
+				break;
+			}
+			if (this.clientLineEnd.length > buffer.length - filled) {
+				out.write(buffer, 0, filled);
+				filled = 0;
+			}
+			System.arraycopy(this.clientLineEnd, 0, buffer, filled, this.clientLineEnd.length);
+			filled += this.clientLineEnd.length;
+			start = lineEnd + 1;
+		}
+		if (filled > 0) {
+			out.write(buffer, 0, filled);
+		}
+	}
+
+	/**
+	 * Convert the client text in bytes[0, length) to server text in place,
+	 * replacing each client line ending with an LF, and return the length of
+	 * the result.<p>
+	 *
+	 * Unless endOfInput is set, a client line ending is only looked for if
+	 * it starts early enough to be complete within the bytes given; the
+	 * last few bytes, which might be the start of a line ending split across
+	 * reads, are left unconverted. getConsumed() then says how many of the
+	 * input bytes were used, and the caller should present the rest again
+	 * with the bytes that follow.
+	 */
+	public int toServer(byte[] bytes, int length, boolean endOfInput) {
+		final int scanEnd = endOfInput ? length : length - (this.clientLineEnd.length - 1);
+		final byte first = this.clientLineEnd[0];
+		int in = 0;
+		int out = 0;
+		while (in < scanEnd) {
+			int lineEnd = indexOf(bytes, in, scanEnd, first);
+			int runEnd = (lineEnd < 0) ? scanEnd : lineEnd;
+			if (out != in) {
+				System.arraycopy(bytes, in, bytes, out, runEnd - in);
+			}
+			out += runEnd - in;
+			in = runEnd;
+			if (lineEnd < 0) {
+				break;
+			}
+			if (isClientLineEnd(bytes, lineEnd, length)) {
+				bytes[out++] = SERVER_LINE_END;
+				in += this.clientLineEnd.length;
+			} else {
+				bytes[out++] = bytes[in++];
+			}
+		}
+		this.consumed = in;
+		return out;
+	}
+
+	/**
+	 * The number of input bytes used by the last toServer() call.
+	 */
+	public int getConsumed() {
+		return this.consumed;
+	}
+
+	private boolean isClientLineEnd(byte[] bytes, int index, int length) {
+		if (index + this.clientLineEnd.length > length) {
+			return false;
+		}
+		for (int i = 1; i < this.clientLineEnd.length; i++) {
+			if (bytes[index + i] != this.clientLineEnd[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
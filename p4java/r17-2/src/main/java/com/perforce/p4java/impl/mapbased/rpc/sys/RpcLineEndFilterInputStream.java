@@ -95,6 +95,7 @@ public class RpcLineEndFilterInputStream extends FilterInputStream {
 		
 		// soaknl: we saw a \r, skip this \n
 		boolean soaknl = false;
+		int copied = 0;
 		
 		while (bytesOut < len || soaknl) {
 			if (inBytesPos == inBytesRead) {
@@ -120,22 +121,19 @@ public class RpcLineEndFilterInputStream extends FilterInputStream {
 			switch( this.lineEnding ) {
 		    case FST_L_LF:
 				// Straight copy.
-		    	while (bytesOut < len && inBytesPos != inBytesRead) {
-			    	targetBytes[outPos++] = inBytes[inBytesPos++];
-					bytesOut++;
-		    	}
+		    	copied = copyToCr(targetBytes, outPos, len - bytesOut, false);
+		    	outPos += copied;
+		    	bytesOut += copied;
 				break;
 				
 		    case FST_L_CR:
 				// Copy to the next \r.  If we hit one, translate
 				// it to \n.
-		    	while (bytesOut < len && inBytesPos != inBytesRead) {
-			    	targetBytes[outPos++] = inBytes[inBytesPos++];
-					bytesOut++;
-					if (targetBytes[outPos-1] == '\r') {
-						targetBytes[outPos-1] = '\n';
-						break;
-					}
+		    	copied = copyToCr(targetBytes, outPos, len - bytesOut, true);
+		    	outPos += copied;
+		    	bytesOut += copied;
+		    	if ((copied > 0) && (targetBytes[outPos-1] == '\r')) {
+		    		targetBytes[outPos-1] = '\n';
 		    	}
 				break;
 		    	
@@ -145,13 +143,11 @@ public class RpcLineEndFilterInputStream extends FilterInputStream {
 				// there'll be data in the buffer), that \n will
 		    	// replace the \r in the output.
 
-		    	while (bytesOut < len && inBytesPos != inBytesRead) {
-			    	targetBytes[outPos++] = inBytes[inBytesPos++];
-					bytesOut++;
-					if (targetBytes[outPos-1] == '\r') {
-						soaknl = true;
-						break;
-					}
+		    	copied = copyToCr(targetBytes, outPos, len - bytesOut, true);
+		    	outPos += copied;
+		    	bytesOut += copied;
+		    	if ((copied > 0) && (targetBytes[outPos-1] == '\r')) {
+		    		soaknl = true;
 		    	}
 				break;
 				
@@ -163,15 +159,13 @@ public class RpcLineEndFilterInputStream extends FilterInputStream {
 		    	// drop the subsequent \n.
 				// LFCRLF reads CRLF.
 		    	
-		    	while (bytesOut < len && inBytesPos != inBytesRead) {
-			    	targetBytes[outPos++] = inBytes[inBytesPos++];
-					bytesOut++;
-					if (targetBytes[outPos-1] == '\r') {
-						targetBytes[outPos-1] = '\n';
-						soaknl = true;
-						break;
-					}
-				}
+		    	copied = copyToCr(targetBytes, outPos, len - bytesOut, true);
+		    	outPos += copied;
+		    	bytesOut += copied;
+		    	if ((copied > 0) && (targetBytes[outPos-1] == '\r')) {
+		    		targetBytes[outPos-1] = '\n';
+		    		soaknl = true;
+		    	}
 				break;
 				
 		    default:
@@ -181,6 +175,25 @@ public class RpcLineEndFilterInputStream extends FilterInputStream {
 		return (bytesOut == 0 ? -1 : bytesOut);
 	}
 
+	/**
+	 * Copy up to max buffered bytes to the target in one go, stopping just
+	 * after the first \r if stopAtCr is set, and return how many were
+	 * copied (none if there's nothing buffered or max is zero).
+	 */
+	private int copyToCr(byte[] targetBytes, int outPos, int max, boolean stopAtCr) {
+		int count = Math.min(max, inBytesRead - inBytesPos);
+		if (stopAtCr) {
+			int cr = RpcLineEndConverter.indexOf(inBytes, inBytesPos, inBytesPos + count,
+					ClientLineEnding.FST_L_CR_BYTES[0]);
+			if (cr >= 0) {
+				count = cr - inBytesPos + 1;
+			}
+		}
+		System.arraycopy(inBytes, inBytesPos, targetBytes, outPos, count);
+		inBytesPos += count;
+		return count;
+	}
+
 	/**
 	 * Convenience method; equivalent to read(b, 0, b.length).
 	 */
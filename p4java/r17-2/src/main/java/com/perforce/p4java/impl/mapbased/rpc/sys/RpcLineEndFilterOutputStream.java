@@ -14,7 +14,8 @@ import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 
 /**
  * Simple FilterOutputStream extension to deal with Perforce text file
- * line end translation.
+ * line end translation. The translation itself is done a run of bytes
+ * at a time by RpcLineEndConverter.
  */
 
 public class RpcLineEndFilterOutputStream  extends FilterOutputStream {
@@ -26,13 +27,12 @@ public class RpcLineEndFilterOutputStream  extends FilterOutputStream {
 	public static final String P4SERVER_LINSEP_STR = "\n";
 	public static final byte P4SERVER_LINSEP_BYTE = '\n';
 	
-	private static final byte CR_BYTE = '\r';
-	
 	private ClientLineEnding lineEnding = null;
 	private byte[] localNewlineBytes
 					= ClientLineEnding.FST_L_LOCAL_BYTES;
 	
 	private byte[] outBytes = null;
+	private RpcLineEndConverter converter = null;
 	
 	public RpcLineEndFilterOutputStream(OutputStream out,
 							ClientLineEnding lineEnding) {
@@ -48,6 +48,21 @@ public class RpcLineEndFilterOutputStream  extends FilterOutputStream {
 			throw new NullPointerError(
 			"null local line ending bytes in RpcLineEndFilterOutputStream constructor");
 		}
+		
+		switch (lineEnding) {
+			case FST_L_LOCAL:
+				this.converter = new RpcLineEndConverter(this.localNewlineBytes);
+				break;
+			case FST_L_CRLF:
+				this.converter = new RpcLineEndConverter(ClientLineEnding.FST_L_CRLF_BYTES);
+				break;
+			case FST_L_CR:
+				this.converter = new RpcLineEndConverter(ClientLineEnding.FST_L_CR_BYTES);
+				break;
+			default:
+				this.converter = new RpcLineEndConverter(ClientLineEnding.FST_L_LF_BYTES);
+				break;
+		}
 	}
 	
 	public void write(OutputStream out,byte[] bytes, int off, int len) throws IOException {
@@ -71,77 +86,7 @@ public class RpcLineEndFilterOutputStream  extends FilterOutputStream {
 					"(off + len) > bytes.length in RpcLineEndFilterOutputStream.write()");
 		}
 		
-		int outPos = 0;
-		int inPos = off;
-		byte b = 0;
-		
-		if (this.outBytes.length < bytes.length) {
-			this.outBytes = new byte[bytes.length];
-		}
-		
-		for (int bytesIn = 0; bytesIn < len; bytesIn++) {
-			
-			b = bytes[inPos++];
-			
-			if (b == P4SERVER_LINSEP_BYTE) {
-				switch (lineEnding) {
-					case FST_L_LOCAL:
-						for (byte nb : this.localNewlineBytes) {
-							
-							if (outPos >= outBytes.length) {
-								out.write(outBytes, 0, outPos);
-								outPos = 0;
-							}
-							outBytes[outPos++] = nb;
-						}
-						break;
-						
-					case FST_L_CRLF:
-						
-						if (outPos >= outBytes.length) {
-							out.write(outBytes, 0, outPos);
-							outPos = 0;
-						}
-						outBytes[outPos++] = CR_BYTE;
-						
-						if (outPos >= outBytes.length) {
-							out.write(outBytes, 0, outPos);
-							outPos = 0;
-						}
-						outBytes[outPos++] = b;
-						break;
-						
-					case FST_L_CR:
-						if (outPos >= outBytes.length) {
-							out.write(outBytes, 0, outPos);
-							outPos = 0;
-						}
-						outBytes[outPos++] = CR_BYTE;
-						break;
-						
-					default:
-						
-						if (outPos >= outBytes.length) {
-							out.write(outBytes, 0, outPos);
-							outPos = 0;
-						}
-						outBytes[outPos++] = b;
-						break;
-				}
-			} else {
-				
-				if (outPos >= outBytes.length) {
-					out.write(outBytes, 0, outPos);
-					outPos = 0;
-				}
-				
-				outBytes[outPos++] = b;
-			}
-		}
-		
-		if (outPos > 0) {
-			out.write(outBytes, 0, outPos);
-		}
+		this.converter.writeToClient(out, bytes, off, len, this.outBytes);
 	}
 	
 	public void write(byte[] bytes, int off, int len) throws IOException {
@@ -20,9 +20,11 @@ import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
+import java.io.FileDescriptor;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Map;
@@ -91,11 +93,29 @@ public class RpcOutputStream extends FileOutputStream {
 	// transfer integrity checks.
 	private MD5Digester localDigester = null;    // Also used in the 10.2+ transfer
 	// integrity checks.
+	private OutputStream sink = null;    // If set, where bytes go instead of a file
 
 	public RpcOutputStream(RpcPerforceFile file) throws IOException {
 		this(file, null, false, false);
 	}
 
+	/**
+	 * Construct a binary stream that passes everything written to it on to
+	 * the passed-in stream rather than to a file; used for stream command
+	 * output that's read while the command is still running. There's no
+	 * file behind the stream, so getFile() returns null and the file
+	 * descriptor is never valid; use isOpen() rather than getFD().
+	 */
+	public RpcOutputStream(OutputStream sink) {
+		super(new FileDescriptor());
+		if (sink == null) {
+			throw new NullPointerError(
+					"Null sink passed to RpcOutputStream constructor");
+		}
+		this.sink = sink;
+		this.fileType = RpcPerforceFileType.FST_BINARY;
+	}
+
 	public RpcOutputStream(RpcPerforceFile file, RpcConnection rpcConnection, boolean useLocalDigester) throws IOException {
 		this(file, rpcConnection.getClientCharset(), rpcConnection.isUnicodeServer(), useLocalDigester, rpcConnection.getFilesysUtf8bom());
 	}
@@ -198,8 +218,23 @@ public class RpcOutputStream extends FileOutputStream {
 				default:
 					break;
 			}
-			super.close();
+			if (this.sink != null) {
+				this.sink.close();
+			} else {
+				super.close();
+			}
+		}
+	}
+
+	/**
+	 * True if the stream can still be written to, whether it's writing to
+	 * a file or to a sink.
+	 */
+	public boolean isOpen() throws IOException {
+		if (this.sink != null) {
+			return !this.closed;
 		}
+		return (getFD() != null) && getFD().valid();
 	}
 
 	/**
@@ -239,7 +274,11 @@ public class RpcOutputStream extends FileOutputStream {
 		if (len < 0) {
 			throw new P4JavaError("Negative length in RpcOutputStream.write()");
 		}
-		super.write(sourceBytes, off, len);
+		if (this.sink != null) {
+			this.sink.write(sourceBytes, off, len);
+		} else {
+			super.write(sourceBytes, off, len);
+		}
 	}
 
 	@Override
@@ -248,7 +287,7 @@ public class RpcOutputStream extends FileOutputStream {
 			throw new NullPointerError(
 					"Null bytes passed to RpcOutputStream.write()");
 		}
-		super.write(b, 0, b.length);
+		this.write(b, 0, b.length);
 	}
 
 	/**
@@ -431,7 +470,11 @@ public class RpcOutputStream extends FileOutputStream {
 
 	@Override
 	public void write(int b) throws IOException {
-		super.write(b);
+		if (this.sink != null) {
+			this.sink.write(b);
+		} else {
+			super.write(b);
+		}
 	}
 
 	public RpcPerforceFile getFile() {
@@ -329,33 +329,53 @@ public enum RpcPerforceFileType {
 				"Null file handle passed to RpcPerforceFileType.inferFileType()");
 		}
 
+		return inferFileType(file, RpcFileAttributes.read(file), scanSize, isUnicodeServer, clientCharset);
+	}
+
+    /**
+     * As inferFileType(File, int, boolean, Charset), but using an attribute
+     * snapshot the caller has already read for the file, so that nothing
+     * but the file's contents needs to be read here.
+     */
+
+	public static RpcPerforceFileType inferFileType(File file, RpcFileAttributes attrs, int scanSize,
+			boolean isUnicodeServer, Charset clientCharset) {
+
+		if (file == null) {
+			throw new NullPointerError(
+				"Null file handle passed to RpcPerforceFileType.inferFileType()");
+		}
+		if (attrs == null) {
+			throw new NullPointerError(
+				"Null file attributes passed to RpcPerforceFileType.inferFileType()");
+		}
+
         try {
-            if (isProbablySymLink(file)) {
+            if (attrs.isSymbolicLink()) {
                 // Better safe than sorry -- users can always override this explicitly...
                 return FST_SYMLINK;
             }
 
-            if (!file.exists()) {
+            if (!attrs.exists()) {
                 return FST_MISSING;
             }
 
-            if (file.isDirectory()) {
+            if (attrs.isDirectory()) {
                 return FST_DIRECTORY;
             }
 
-            if (!file.isFile()) {
-                // Hmmm. This might be a symlink, but we'll just return
-                // FST_CANTTELL for the moment... (FIXME -- HR).
+            if (!attrs.isRegularFile()) {
+                // A device, pipe, etc.
                 return FST_CANTTELL;
             }
 
-            if (file.length() == 0) {
+            if (attrs.size() == 0) {
                 return FST_EMPTY;
             }
 
             // Otherwise, we have to look inside it:
             return inferFileTypeFromContents(file,
-                    fileCommands.canExecute(file.getPath()),
+                    attrs.isExecutable(),
                     scanSize,
                     isUnicodeServer,
                     clientCharset);
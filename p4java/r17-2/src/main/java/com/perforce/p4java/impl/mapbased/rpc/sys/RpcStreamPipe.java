@@ -0,0 +1,416 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.perforce.p4java.Log;
+
+/**
+ * Carries a stream command's output from the command thread to the caller
+ * while the command is still running, so that (for example) the first bytes
+ * of a printed file can be read before the server has sent the rest.<p>
+ *
+ * Output not yet read is held in memory up to a fixed limit; once a write
+ * would take it over the limit, that write and everything after it goes to
+ * a temporary spill file instead, which the reader moves on to once it has
+ * read what's in memory. The writer never waits for the reader, so a slow
+ * reader doesn't hold up the server connection, and small outputs never
+ * touch the disk.<p>
+ *
+ * There's one writer (the command thread) and one reader. The writer ends
+ * the output with finish(), or with fail() if the command failed, in which
+ * case the reader gets the failure as an IOException once it has read the
+ * output that came before it. Closing the input stream discards anything
+ * unread, and anything written afterwards.
+ */
+public class RpcStreamPipe {
+
+	private final long memoryLimit;
+	private final String tmpDirName;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+
+	/** Unread output held in memory; the first chunk is read from headOffset. */
+	private final ArrayDeque<byte[]> chunks = new ArrayDeque<byte[]>();
+	private int headOffset = 0;
+	private long memoryBytes = 0;
+	private long bytesWritten = 0;
+
+	private File spillFile = null;
+	private FileOutputStream spillOut = null;
+	private RandomAccessFile spillIn = null;
+	private long spillWritten = 0;
+	private long spillRead = 0;
+
+	private boolean finished = false;
+	private boolean readerClosed = false;
+	private IOException failure = null;
+
+	private final OutputStream outputStream = new PipeOutputStream();
+	private final InputStream inputStream = new PipeInputStream();
+
+	/**
+	 * @param memoryLimit maximum number of unread bytes held in memory
+	 * 			before output is spilled to disk.
+	 * @param tmpDirName directory for the spill file; if null, the
+	 * 			system temporary directory is used.
+	 */
+	public RpcStreamPipe(long memoryLimit, String tmpDirName) {
+		if (memoryLimit <= 0) {
+			throw new IllegalArgumentException("stream pipe memory limit must be positive");
+		}
+		this.memoryLimit = memoryLimit;
+		this.tmpDirName = tmpDirName;
+	}
+
+	/**
+	 * The writer's side of the pipe; closing it is the same as finish().
+	 */
+	public OutputStream getOutputStream() {
+		return this.outputStream;
+	}
+
+	/**
+	 * The reader's side of the pipe.
+	 */
+	public InputStream getInputStream() {
+		return this.inputStream;
+	}
+
+	/**
+	 * Wait until the first byte of output has been written or the output has
+	 * ended, whichever comes first.
+	 *
+	 * @return true if the output is still being written.
+	 */
+	public boolean awaitOutput() {
+		lock.lock();
+		try {
+			while ((this.bytesWritten == 0) && !isEnded()) {
+				changed.awaitUninterruptibly();
+			}
+			return !isEnded();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * End the output; the reader sees end of file once it has read the rest.
+	 * Does nothing if the output has already been ended.
+	 */
+	public void finish() {
+		end(null);
+	}
+
+	/**
+	 * End the output with a failure, which the reader gets once it has read
+	 * the rest. Does nothing if the output has already been ended.
+	 */
+	public void fail(IOException failure) {
+		end(failure == null ? new IOException("stream command failed") : failure);
+	}
+
+	public long getBytesWritten() {
+		lock.lock();
+		try {
+			return this.bytesWritten;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * True if any of the output has been spilled to disk.
+	 */
+	public boolean isSpilled() {
+		lock.lock();
+		try {
+			return this.spillFile != null;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discard the output, as if the reader had closed its stream.
+	 */
+	public void discard() {
+		closeReader();
+	}
+
+	private boolean isEnded() {
+		return this.finished || (this.failure != null);
+	}
+
+	private void end(IOException failure) {
+		FileOutputStream out = null;
+		lock.lock();
+		try {
+			if (isEnded()) {
+				return;
+			}
+			if (failure != null) {
+				this.failure = failure;
+			} else {
+				this.finished = true;
+			}
+			out = this.spillOut;
+			this.spillOut = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		closeQuietly(out);
+	}
+
+	private void write(byte[] bytes, int off, int len) throws IOException {
+		if (len <= 0) {
+			return;
+		}
+		FileOutputStream out;
+		lock.lock();
+		try {
+			if (isEnded()) {
+				throw new IOException("write to finished stream pipe");
+			}
+			if (this.readerClosed) {
+				this.bytesWritten += len;
+				return;
+			}
+			if ((this.spillFile == null) && (this.memoryBytes + len <= this.memoryLimit)) {
+				byte[] chunk = new byte[len];
+				System.arraycopy(bytes, off, chunk, 0, len);
+				this.chunks.add(chunk);
+				this.memoryBytes += len;
+				this.bytesWritten += len;
+				changed.signalAll();
+				return;
+			}
+			if (this.spillFile == null) {
+				openSpillFile();
+			}
+			out = this.spillOut;
+		} finally {
+			lock.unlock();
+		}
+
+		// Only the writer appends to the spill file, and the reader doesn't
+		// look beyond spillWritten, so the write itself needn't hold the lock
+		try {
+			out.write(bytes, off, len);
+		} catch (IOException ioexc) {
+			lock.lock();
+			try {
+				if (!this.readerClosed) {
+					throw ioexc;
+				}
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		lock.lock();
+		try {
+			this.spillWritten += len;
+			this.bytesWritten += len;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void openSpillFile() throws IOException {
+		String spillFileName = RpcPerforceFile.createTempFileName(this.tmpDirName);
+		if (spillFileName == null) {
+			throw new IOException("unable to create stream command spill file in "
+					+ (this.tmpDirName == null ? System.getProperty("java.io.tmpdir") : this.tmpDirName));
+		}
+		File file = new File(spillFileName);
+		try {
+			this.spillOut = new FileOutputStream(file);
+			this.spillIn = new RandomAccessFile(file, "r");
+		} catch (IOException ioexc) {
+			closeQuietly(this.spillOut);
+			this.spillOut = null;
+			deleteQuietly(file);
+			throw ioexc;
+		}
+		this.spillFile = file;
+		Log.stats("stream command output over %d bytes; spilling to %s", this.memoryLimit,
+				file.getPath());
+	}
+
+	private int read(byte[] bytes, int off, int len) throws IOException {
+		if (len <= 0) {
+			return 0;
+		}
+		RandomAccessFile in;
+		long position;
+		lock.lock();
+		try {
+			while (true) {
+				if (this.readerClosed) {
+					throw new IOException("read from closed stream pipe");
+				}
+				if (!this.chunks.isEmpty()) {
+					byte[] chunk = this.chunks.peek();
+					int count = Math.min(len, chunk.length - this.headOffset);
+					System.arraycopy(chunk, this.headOffset, bytes, off, count);
+					this.headOffset += count;
+					this.memoryBytes -= count;
+					if (this.headOffset == chunk.length) {
+						this.chunks.remove();
+						this.headOffset = 0;
+					}
+					return count;
+				}
+				if (this.spillRead < this.spillWritten) {
+					in = this.spillIn;
+					position = this.spillRead;
+					len = (int) Math.min(len, this.spillWritten - this.spillRead);
+					break;
+				}
+				if (this.failure != null) {
+					throw new IOException(this.failure.getLocalizedMessage(), this.failure);
+				}
+				if (this.finished) {
+					return -1;
+				}
+				try {
+					changed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("interrupted waiting for stream command output");
+				}
+			}
+		} finally {
+			lock.unlock();
+		}
+
+		// As with the writer, only the reader touches the read side of the
+		// spill file, and only the part that's already been written
+		in.seek(position);
+		int count = in.read(bytes, off, len);
+		if (count < 0) {
+			throw new IOException("stream command spill file " + this.spillFile.getPath()
+					+ " is shorter than expected");
+		}
+		lock.lock();
+		try {
+			this.spillRead += count;
+		} finally {
+			lock.unlock();
+		}
+		return count;
+	}
+
+	private int available() {
+		lock.lock();
+		try {
+			return (int) Math.min(Integer.MAX_VALUE,
+					this.memoryBytes + this.spillWritten - this.spillRead);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void closeReader() {
+		FileOutputStream out;
+		RandomAccessFile in;
+		File file;
+		lock.lock();
+		try {
+			if (this.readerClosed) {
+				return;
+			}
+			this.readerClosed = true;
+			this.chunks.clear();
+			this.memoryBytes = 0;
+			out = this.spillOut;
+			in = this.spillIn;
+			file = this.spillFile;
+			this.spillOut = null;
+			this.spillIn = null;
+			changed.signalAll();
+		} finally {
+			lock.unlock();
+		}
+		closeQuietly(out);
+		closeQuietly(in);
+		deleteQuietly(file);
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ioexc) {
+				Log.warn("unable to close stream command spill file: %s", ioexc.getLocalizedMessage());
+			}
+		}
+	}
+
+	private static void deleteQuietly(File file) {
+		if ((file != null) && file.exists() && !file.delete()) {
+			Log.warn("unable to delete stream command spill file %s", file.getPath());
+		}
+	}
+
+	private class PipeOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			RpcStreamPipe.this.write(new byte[]{(byte) b}, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] bytes, int off, int len) throws IOException {
+			RpcStreamPipe.this.write(bytes, off, len);
+		}
+
+		@Override
+		public void close() {
+			finish();
+		}
+	}
+
+	private class PipeInputStream extends InputStream {
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			int count;
+			while ((count = RpcStreamPipe.this.read(single, 0, 1)) == 0) {
+				// A spill file read can come back short; try again
+			}
+			return (count < 0) ? -1 : (single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(byte[] bytes, int off, int len) throws IOException {
+			if ((off < 0) || (len < 0) || (len > bytes.length - off)) {
+				throw new IndexOutOfBoundsException();
+			}
+			return RpcStreamPipe.this.read(bytes, off, len);
+		}
+
+		@Override
+		public int available() {
+			return RpcStreamPipe.this.available();
+		}
+
+		@Override
+		public void close() {
+			closeReader();
+		}
+	}
+}
@@ -89,6 +89,7 @@ import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 import static com.perforce.p4java.PropertyDefs.*;
 import static com.perforce.p4java.common.base.ObjectUtils.isNull;
@@ -1881,6 +1882,12 @@ public abstract class Server extends HelixCommandExecutor implements IServerCont
 		return fstatDelegator.getExtendedFiles(fileSpecs, opts);
 	}
 
+	@Override
+	public Stream<IExtendedFileSpec> streamExtendedFiles(final List<IFileSpec> fileSpecs,
+	                                                     final GetExtendedFilesOptions opts) throws P4JavaException {
+		return fstatDelegator.streamExtendedFiles(fileSpecs, opts);
+	}
+
 	@Override
 	public List<IFileLineMatch> getMatchingLines(List<IFileSpec> fileSpecs,
 	                                             String pattern, MatchingLinesOptions options) throws P4JavaException {
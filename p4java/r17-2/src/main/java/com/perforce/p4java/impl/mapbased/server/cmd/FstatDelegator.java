@@ -6,8 +6,10 @@ import static com.perforce.p4java.server.CmdSpec.FSTAT;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 import com.perforce.p4java.Log;
+import com.perforce.p4java.common.function.FunctionWithException;
 import com.perforce.p4java.core.file.FileStatAncilliaryOptions;
 import com.perforce.p4java.core.file.FileStatOutputOptions;
 import com.perforce.p4java.core.file.IExtendedFileSpec;
@@ -17,6 +19,7 @@ import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.option.server.GetExtendedFilesOptions;
 import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.callback.IStreamingCallback;
 import com.perforce.p4java.server.delegator.IFstatDelegator;
 
 /**
@@ -65,4 +68,27 @@ public class FstatDelegator extends BaseDelegator implements IFstatDelegator {
         return ResultListBuilder.buildNonNullExtendedFileSpecListFromCommandResultMaps(resultMaps,
                 server);
     }
+
+    @Override
+    public Stream<IExtendedFileSpec> streamExtendedFiles(final List<IFileSpec> fileSpecs,
+            final GetExtendedFilesOptions opts) throws P4JavaException {
+
+        final String[] cmdArgs = processParameters(opts, fileSpecs, server);
+        StreamingResultSpliterator<IExtendedFileSpec> results = new StreamingResultSpliterator<>(
+                new FunctionWithException<Map<String, Object>, IExtendedFileSpec>() {
+                    @Override
+                    public IExtendedFileSpec apply(final Map<String, Object> map)
+                            throws P4JavaException {
+                        return ResultListBuilder.buildExtendedFileSpecFromCommandResultMap(map,
+                                server);
+                    }
+                }, StreamingResultSpliterator.DEFAULT_QUEUE_CAPACITY);
+
+        return results.start(FSTAT.toString(), new StreamingResultSpliterator.StreamingCommand() {
+            @Override
+            public void execute(final IStreamingCallback callback) throws P4JavaException {
+                server.execStreamingMapCommand(FSTAT.toString(), cmdArgs, null, callback, 0);
+            }
+        });
+    }
 }
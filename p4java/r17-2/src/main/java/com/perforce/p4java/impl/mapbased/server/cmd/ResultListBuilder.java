@@ -77,35 +77,50 @@ public class ResultListBuilder {
         List<IExtendedFileSpec> specList = new ArrayList<>();
         if (resultMaps != null) {
             for (Map<String, Object> map : resultMaps) {
-                // We do this by hand for the statFiles case; this may be
-                // included in the generic handler later -- HR.
-                // Note: as of 10.1 or so, fstats on shelved files may return
-                // a "special" fstat info message (usually the last message)
-                // that
-                // contains only the description field of the associated
-                // changelist
-                // (see fstat -e documentation for this); therefore we carefully
-                // weed
-                // out any return map here that has no depot path and a "desc"
-                // field
-                // -- HR (see also job040680).
-                String errStr = ResultMapParser.handleFileErrorStr(map);
-                if (isBlank(errStr)) {
-                    if (isContainsValidRevisionSpecificInformation(map)) {
-                        specList.add(new ExtendedFileSpec(map, server, -1));
-                    }
-                } else {
-                    FileSpecOpStatus fileSpecOpStatus = ERROR;
-                    if (ResultMapParser.isInfoMessage(map)) {
-                        fileSpecOpStatus = INFO;
-                    }
-                    specList.add(new ExtendedFileSpec(fileSpecOpStatus, errStr));
+                IExtendedFileSpec spec = buildExtendedFileSpecFromCommandResultMap(map, server);
+                if (nonNull(spec)) {
+                    specList.add(spec);
                 }
             }
         }
         return specList;
     }
 
+    /**
+     * Convert a single fstat result map into an extended file spec.
+     *
+     * @return the extended file spec, or null if the map carries no file
+     *         information and should be skipped.
+     */
+    public static IExtendedFileSpec buildExtendedFileSpecFromCommandResultMap(
+            final Map<String, Object> map, final IOptionsServer server)
+            throws RequestException, AccessException, ConnectionException {
+        // We do this by hand for the statFiles case; this may be
+        // included in the generic handler later -- HR.
+        // Note: as of 10.1 or so, fstats on shelved files may return
+        // a "special" fstat info message (usually the last message)
+        // that
+        // contains only the description field of the associated
+        // changelist
+        // (see fstat -e documentation for this); therefore we carefully
+        // weed
+        // out any return map here that has no depot path and a "desc"
+        // field
+        // -- HR (see also job040680).
+        String errStr = ResultMapParser.handleFileErrorStr(map);
+        if (isBlank(errStr)) {
+            if (isContainsValidRevisionSpecificInformation(map)) {
+                return new ExtendedFileSpec(map, server, -1);
+            }
+            return null;
+        }
+        FileSpecOpStatus fileSpecOpStatus = ERROR;
+        if (ResultMapParser.isInfoMessage(map)) {
+            fileSpecOpStatus = INFO;
+        }
+        return new ExtendedFileSpec(fileSpecOpStatus, errStr);
+    }
+
     public static IFileSpec handleIntegrationFileReturn(
             final Map<String, Object> map,
             final IServer server) throws AccessException, ConnectionException {
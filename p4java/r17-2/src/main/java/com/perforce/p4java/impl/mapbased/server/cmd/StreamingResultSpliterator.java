@@ -0,0 +1,198 @@
+package com.perforce.p4java.impl.mapbased.server.cmd;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.perforce.p4java.common.function.FunctionWithException;
+import com.perforce.p4java.exception.P4JavaError;
+import com.perforce.p4java.exception.P4JavaException;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+/**
+ * Pull-style adapter over the push-style streaming command interface.<p>
+ *
+ * The command runs on its own daemon thread, with this object as its
+ * streaming callback; each result map is converted as it arrives and handed
+ * to the consumer through a small bounded queue, so no more than
+ * queueCapacity converted results are held in memory at once however many
+ * the server sends. Closing the stream before it's exhausted cancels the
+ * command through the usual streaming callback cancellation mechanism.<p>
+ *
+ * Errors from the command or the converter are rethrown to the consumer as
+ * a P4JavaError wrapping the original exception once the results received
+ * before the error have been consumed.
+ *
+ * @param <T> the type of the converted results
+ */
+public class StreamingResultSpliterator<T> implements Spliterator<T>, IStreamingCallback {
+
+    /**
+     * Default number of converted results buffered ahead of the consumer.
+     */
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    /**
+     * The command to be run on the producer thread.
+     */
+    public interface StreamingCommand {
+        void execute(IStreamingCallback callback) throws P4JavaException;
+    }
+
+    private static final Object END_OF_RESULTS = new Object();
+
+    private static final long OFFER_POLL_MILLIS = 100;
+
+    private final FunctionWithException<Map<String, Object>, T> converter;
+    private final BlockingQueue<Object> queue;
+
+    private volatile boolean closed = false;
+    private volatile Throwable failure = null;
+    private boolean finished = false;
+
+    public StreamingResultSpliterator(
+            final FunctionWithException<Map<String, Object>, T> converter,
+            final int queueCapacity) {
+        this.converter = requireNonNull(converter);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    /**
+     * Start the command on a new daemon thread and return a sequential
+     * stream over its converted results. The stream should be closed when
+     * done with, e.g. with try-with-resources.
+     */
+    public Stream<T> start(final String commandName, final StreamingCommand command) {
+        requireNonNull(command);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    command.execute(StreamingResultSpliterator.this);
+                } catch (Throwable thr) {
+                    if (!closed) {
+                        failure = thr;
+                    }
+                } finally {
+                    enqueueEnd();
+                }
+            }
+        });
+        producer.setName("P4Java streaming " + commandName + " results");
+        producer.setDaemon(true);
+        producer.start();
+
+        return StreamSupport.stream(this, false).onClose(new Runnable() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+    }
+
+    /**
+     * Stop handing results to the consumer and ask the command to stop.
+     */
+    public void close() {
+        closed = true;
+        // Unblock a producer waiting on a full queue
+        queue.clear();
+    }
+
+    @Override
+    public boolean startResults(final int key) throws P4JavaException {
+        return !closed;
+    }
+
+    @Override
+    public boolean endResults(final int key) throws P4JavaException {
+        return true;
+    }
+
+    @Override
+    public boolean handleResult(final Map<String, Object> resultMap, final int key)
+            throws P4JavaException {
+        if (closed || (failure != null)) {
+            return false;
+        }
+        T result;
+        try {
+            result = converter.apply(resultMap);
+        } catch (P4JavaException | RuntimeException exc) {
+            failure = exc;
+            return false;
+        }
+        if (result != null) {
+            try {
+                while (!closed && !queue.offer(result, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    // Consumer is behind; wait for room or for close()
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return !closed;
+    }
+
+    private void enqueueEnd() {
+        try {
+            while (!closed && !queue.offer(END_OF_RESULTS, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                // Wait for the consumer to make room
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(final Consumer<? super T> action) {
+        requireNonNull(action);
+        if (finished || closed) {
+            return false;
+        }
+        Object next;
+        try {
+            next = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new P4JavaError("Interrupted waiting for streamed command results", e);
+        }
+        if (next == END_OF_RESULTS) {
+            finished = true;
+            Throwable thr = failure;
+            if (thr instanceof Error) {
+                throw (Error) thr;
+            } else if (thr != null) {
+                throw new P4JavaError(thr.getLocalizedMessage(), thr);
+            }
+            return false;
+        }
+        action.accept((T) next);
+        return true;
+    }
+
+    @Override
+    public Spliterator<T> trySplit() {
+        // Results arrive in order over a single connection
+        return null;
+    }
+
+    @Override
+    public long estimateSize() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+}
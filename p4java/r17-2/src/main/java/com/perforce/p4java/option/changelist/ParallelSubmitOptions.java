@@ -0,0 +1,141 @@
+package com.perforce.p4java.option.changelist;
+
+import com.perforce.p4java.impl.generic.core.DefaultParallelSubmit;
+import com.perforce.p4java.server.callback.IParallelCallback;
+
+/**
+ * Simple default options object for IChangelist.submitParallel; corresponds
+ * to the submit command's --parallel flag.
+ */
+public class ParallelSubmitOptions {
+
+	/**
+	 * The call back interface for parallel execution.
+	 */
+	private IParallelCallback callback;
+	/**
+	 * Specifies the number of files in a batch
+	 */
+	private int batch = 0;
+	/**
+	 * Specifies the minimum number of files in a parallel submit
+	 */
+	private int minimum = 0;
+	/**
+	 * Specifies the number of independent network connections to be used during parallelisation
+	 */
+	private int numberOfThreads = 0;
+
+	/**
+	 * Default constructor
+	 */
+	public ParallelSubmitOptions() {
+	}
+
+	/**
+	 * Constructor with the given arguments
+	 *
+	 * @param batch
+	 * @param minimum
+	 * @param numberOfThreads
+	 * @param callback
+	 */
+	public ParallelSubmitOptions(int batch, int minimum, int numberOfThreads, IParallelCallback callback) {
+		this.batch = batch;
+		this.minimum = minimum;
+		this.numberOfThreads = numberOfThreads;
+		this.callback = callback;
+	}
+
+	/**
+	 * Returns the --parallel option string for these options.
+	 *
+	 * @return
+	 */
+	public String toParallelOption() {
+		StringBuilder parallelOptionsBuilder = new StringBuilder();
+		parallelOptionsBuilder.append("--parallel=threads=").append(Math.max(0, numberOfThreads));
+		if (batch > 0) {
+			parallelOptionsBuilder.append(",batch=").append(batch);
+		}
+		if (minimum > 0) {
+			parallelOptionsBuilder.append(",min=").append(minimum);
+		}
+		return parallelOptionsBuilder.toString();
+	}
+
+	/**
+	 * Returns batch
+	 *
+	 * @return
+	 */
+	public int getBatch() {
+		return batch;
+	}
+
+	/**
+	 * Returns minimum
+	 *
+	 * @return
+	 */
+	public int getMinimum() {
+		return minimum;
+	}
+
+	/**
+	 * Returns the number of threads
+	 *
+	 * @return
+	 */
+	public int getNumberOfThreads() {
+		return numberOfThreads;
+	}
+
+	/**
+	 * Returns IParallelCallback
+	 *
+	 * @return
+	 */
+	public IParallelCallback getCallback() {
+		if (callback == null) {
+			callback = new DefaultParallelSubmit();
+		}
+		return callback;
+	}
+
+	/**
+	 * Sets IParallelCallback
+	 *
+	 * @param callback
+	 */
+	public void setCallback(IParallelCallback callback) {
+		this.callback = callback;
+	}
+
+	/**
+	 * Sets the batch
+	 *
+	 * @param batch
+	 */
+	public void setBatch(int batch) {
+		this.batch = batch;
+	}
+
+	/**
+	 * Sets minimum
+	 *
+	 * @param minimum
+	 */
+	public void setMinimum(int minimum) {
+		this.minimum = minimum;
+	}
+
+	/**
+	 * Sets number of threads
+	 *
+	 * @param numberOfThreads
+	 */
+	public void setNumberOfThreads(int numberOfThreads) {
+		this.numberOfThreads = numberOfThreads;
+	}
+}
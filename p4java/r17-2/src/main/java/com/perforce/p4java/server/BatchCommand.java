@@ -0,0 +1,66 @@
+package com.perforce.p4java.server;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+
+import com.perforce.p4java.server.callback.IFilterCallback;
+
+/**
+ * A single command in a batch passed to IOptionsServer.execMapCmdBatch.<p>
+ *
+ * Batched commands are plain tagged map commands: they can't take standard
+ * input (inMap or inString), as the server would otherwise be asked for that
+ * input while later commands in the batch were already on the wire.
+ */
+public class BatchCommand {
+
+    private final String cmdName;
+    private final String[] cmdArgs;
+    private final IFilterCallback filterCallback;
+
+    /**
+     * @param cmdName
+     *            the command to be issued; must be non-null, and correspond to
+     *            a Perforce command recognized by P4Java and defined in
+     *            CmdSpec.
+     * @param cmdArgs
+     *            the command arguments in the form used by the corresponding
+     *            p4 command line interpreter; may be null or empty.
+     */
+    public BatchCommand(String cmdName, String... cmdArgs) {
+        this(cmdName, cmdArgs, null);
+    }
+
+    /**
+     * @param cmdName
+     *            the command to be issued; must be non-null.
+     * @param cmdArgs
+     *            the command arguments; may be null.
+     * @param filterCallback
+     *            an optional filter callback to decide on skipping or keeping
+     *            individual key/value pairs as part of the results map.
+     */
+    public BatchCommand(String cmdName, String[] cmdArgs, IFilterCallback filterCallback) {
+        this.cmdName = requireNonNull(cmdName, "null command name passed to BatchCommand");
+        this.cmdArgs = cmdArgs == null ? new String[0] : cmdArgs.clone();
+        this.filterCallback = filterCallback;
+    }
+
+    public String getCmdName() {
+        return cmdName;
+    }
+
+    public String[] getCmdArgs() {
+        return cmdArgs.clone();
+    }
+
+    public IFilterCallback getFilterCallback() {
+        return filterCallback;
+    }
+
+    @Override
+    public String toString() {
+        return cmdName + " " + Arrays.toString(cmdArgs);
+    }
+}
@@ -3,6 +3,7 @@ package com.perforce.p4java.server;
 import java.io.InputStream;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
 import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConnectionException;
@@ -194,6 +195,37 @@ public interface IOptionsServer extends IServer {
             IFilterCallback filterCallback,
             IParallelCallback parallelCallback) throws P4JavaException;;
 
+    /**
+     * Issue an arbitrary P4Java command to the Perforce server and return the
+     * results as a list of maps, sending an optional map as standard input
+     * and using an optional parallel callback; as for the execMapCmdList
+     * method above otherwise. Typically used for "submit -i --parallel=...".
+     * 
+     * @param cmdName
+     *            the command to be issued; must be non-null, and correspond to
+     *            a Perforce command recognized by P4Java and defined in
+     *            CmdSpec.
+     * @param cmdArgs
+     *            the array of command arguments, in the form used by the
+     *            corresponding p4 command line interpreter. Ignored if null.
+     * @param inMap
+     *            an optional map to be sent to the server as standard input,
+     *            using the Python map format (-G) form.
+     * @param filterCallback
+     *            an optional filter callback to decide on skipping or keeping
+     *            individual key/value pairs as part of the results map.
+     * @param parallelCallback
+     *            an optional parallel sync/submit callback to provide a
+     *            multi-threaded file transfer implementation.
+     * @return a non-null Java Map of results.
+     * @throws P4JavaException
+     *             if an error occurs processing this method and its parameters
+     * @since 2017.2
+     */
+    List<Map<String, Object>> execMapCmdList(String cmdName, String[] cmdArgs,
+            Map<String, Object> inMap, IFilterCallback filterCallback,
+            IParallelCallback parallelCallback) throws P4JavaException;
+
     /**
      * Issue an arbitrary P4Java command to the Perforce server and return the
      * results as a list of maps without invoking any command callbacks.
@@ -228,6 +260,38 @@ public interface IOptionsServer extends IServer {
     List<Map<String, Object>> execQuietMapCmdList(String cmdName, String[] cmdArgs,
             Map<String, Object> inMap) throws P4JavaException;
 
+    /**
+     * Issue a batch of independent P4Java map commands to the Perforce server
+     * and return the results of each as a list of maps, in the same form as
+     * execMapCmdList.
+     * <p>
+     * 
+     * Where the implementation supports it, the commands are pipelined: each
+     * command is sent without waiting for the results of the ones before it,
+     * so a batch costs roughly one network round trip rather than one per
+     * command. Commands are still run by the server one at a time and in
+     * order, so their results are the same as if they'd been issued
+     * separately. Implementations that can't pipeline a command (or any
+     * commands) simply run it in turn.
+     * <p>
+     * 
+     * The returned futures are in the same order as the passed-in commands
+     * and are all complete when this method returns. A command's future holds
+     * its result maps (including any server error maps, as for
+     * execMapCmdList), or fails with the exception that would have been
+     * thrown by issuing that command on its own; a connection failure fails
+     * the affected command and all commands after it.
+     * 
+     * @param commands
+     *            non-null list of commands to be issued.
+     * @return non-null list of futures, one per passed-in command.
+     * @throws P4JavaException
+     *             if the batch as a whole couldn't be issued.
+     * @since 2017.2
+     */
+    List<Future<List<Map<String, Object>>>> execMapCmdBatch(List<BatchCommand> commands)
+            throws P4JavaException;
+
     /**
      * Issue a streaming map command to the Perforce server, using an optional
      * string for any input expected by the server (such as label or job specs,
@@ -22,7 +22,7 @@ import java.util.Properties;
  * 
  * protocol://host:port?query
  * 
- * protocol = p4java|p4javassl|p4jrpc|p4jrpcssl|p4jrpcnts|p4jrpcntsssl
+ * protocol = p4java|p4javassl|p4jrpc|p4jrpcssl|p4jrpcnts|p4jrpcntsssl|p4jrpcsticky|p4jrpcstickyssl
  * host = hostname|IP address
  * port = [0-9]* (values 0 to 65535)
  * query = string (i.e. key0=value0&key1=value1...)
@@ -33,6 +33,8 @@ import java.util.Properties;
  * p4jrpcssl - secure one-shot (connection-per-command) RPC protocol implementation.
  * p4jrpcnts - non-thread-safe (multiple-commands-per-connection) RPC protocol implementation.
  * p4jrpcntsssl - secure non-thread-safe (multiple-commands-per-connection) RPC protocol implementation.
+ * p4jrpcsticky - thread-safe persistent (sticky session) RPC protocol implementation.
+ * p4jrpcstickyssl - secure thread-safe persistent (sticky session) RPC protocol implementation.
  * p4jrsh - run p4d in 'rsh' mode.
  * 
  * P4Java URI Examples:
@@ -79,6 +81,16 @@ public interface IServerAddress {
 		 */
 		P4JRPCNTSSSL("p4jrpcntsssl"),
 
+		/**
+		 * Thread-safe persistent (sticky session) RPC protocol.
+		 */
+		P4JRPCSTICKY("p4jrpcsticky"),
+
+		/**
+		 * Thread-safe persistent (sticky session) SSL RPC protocol.
+		 */
+		P4JRPCSTICKYSSL("p4jrpcstickyssl"),
+
 		/**
 		 * RSH protocol (run p4d in 'rsh' mode).
 		 */
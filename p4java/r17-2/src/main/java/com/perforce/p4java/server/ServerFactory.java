@@ -24,6 +24,7 @@ import com.perforce.p4java.exception.ResourceException;
 import com.perforce.p4java.impl.generic.sys.ISystemFileCommandsHelper;
 import com.perforce.p4java.impl.mapbased.rpc.NtsServerImpl;
 import com.perforce.p4java.impl.mapbased.rpc.OneShotServerImpl;
+import com.perforce.p4java.impl.mapbased.rpc.StickyServerImpl;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.RpcSystemFileCommandsHelper;
 import com.perforce.p4java.impl.mapbased.rpc.sys.helper.WindowsRpcSystemFileCommandsHelper;
 import com.perforce.p4java.impl.mapbased.server.IServerControl;
@@ -98,6 +99,8 @@ public class ServerFactory {
 		implMap.put(Protocol.P4JRPCSSL, OneShotServerImpl.class);
 		implMap.put(Protocol.P4JRPCNTS, NtsServerImpl.class);
 		implMap.put(Protocol.P4JRPCNTSSSL, NtsServerImpl.class);
+		implMap.put(Protocol.P4JRPCSTICKY, StickyServerImpl.class);
+		implMap.put(Protocol.P4JRPCSTICKYSSL, StickyServerImpl.class);
 		implMap.put(Protocol.P4JRSH, OneShotServerImpl.class);
 		implMap.put(Protocol.P4JRSHNTS, NtsServerImpl.class);
 		Log.info("P4Java server factory loaded; version: " + Metadata.getP4JVersionString()
@@ -1,6 +1,7 @@
 package com.perforce.p4java.server.delegator;
 
 import java.util.List;
+import java.util.stream.Stream;
 
 import com.perforce.p4java.core.file.FileStatAncilliaryOptions;
 import com.perforce.p4java.core.file.FileStatOutputOptions;
@@ -89,4 +90,33 @@ public interface IFstatDelegator {
      */
     List<IExtendedFileSpec> getExtendedFiles(List<IFileSpec> fileSpecs,
             GetExtendedFilesOptions opts) throws P4JavaException;
+
+    /**
+     * Streaming version of getExtendedFiles(List, GetExtendedFilesOptions):
+     * results are decoded and handed out as they arrive from the server
+     * rather than being gathered into a list first, so memory use doesn't
+     * grow with the number of files returned.
+     * <p>
+     *
+     * The command runs on a separate thread while the returned stream is
+     * consumed; with a non-thread-safe server implementation, don't issue
+     * other commands on the same server until the stream has been exhausted
+     * or closed. Close the stream (e.g. with try-with-resources) if you stop
+     * consuming it early; this cancels the command. Errors encountered while
+     * running the command are thrown from the stream as a P4JavaError
+     * wrapping the original exception.
+     *
+     * @param fileSpecs
+     *            non-null list of Perforce file specification(s).
+     * @param opts
+     *            GetExtendedFilesOptions object describing optional parameters;
+     *            if null, no options are set.
+     * @return non-null sequential stream of qualifying files and associated
+     *         stat info.
+     * @throws P4JavaException
+     *             if an error occurs processing this method's parameters.
+     * @since 2017.2
+     */
+    Stream<IExtendedFileSpec> streamExtendedFiles(List<IFileSpec> fileSpecs,
+            GetExtendedFilesOptions opts) throws P4JavaException;
 }
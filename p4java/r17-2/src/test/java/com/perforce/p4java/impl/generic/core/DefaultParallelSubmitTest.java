@@ -0,0 +1,215 @@
+package com.perforce.p4java.impl.generic.core;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.core.ChangelistStatus;
+import com.perforce.p4java.core.file.FileSpecBuilder;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.MessageGenericCode;
+import com.perforce.p4java.exception.MessageSeverityCode;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
+import com.perforce.p4java.impl.mapbased.rpc.func.client.ClientMessage.ClientMessageId;
+import com.perforce.p4java.impl.mapbased.rpc.msg.RpcMessage;
+import com.perforce.p4java.impl.mapbased.server.Server;
+import com.perforce.p4java.option.changelist.ParallelSubmitOptions;
+import com.perforce.p4java.option.changelist.SubmitOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.IServerAddress;
+import com.perforce.p4java.server.callback.IFilterCallback;
+import com.perforce.p4java.server.callback.IParallelCallback;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+@RunWith(JUnitPlatform.class)
+public class DefaultParallelSubmitTest {
+
+	private static final int FILES_PER_WORKER = 5;
+
+	private CommandEnv cmdEnv;
+	private final List<Map<String, Object>> handled = new ArrayList<Map<String, Object>>();
+	private final Set<Thread> handlingThreads = new HashSet<Thread>();
+
+	@BeforeEach
+	public void beforeEach() {
+		IServerAddress address = mock(IServerAddress.class);
+		when(address.getUri()).thenReturn("p4java://localhost:1666");
+		RpcServer origin = mock(RpcServer.class);
+		when(origin.getServerAddressDetails()).thenReturn(address);
+		when(origin.getUserName()).thenReturn("bruno");
+		cmdEnv = mock(CommandEnv.class);
+		when(cmdEnv.getServer()).thenReturn(origin);
+		doAnswer(invocation -> {
+			handled.add(invocation.getArgument(0));
+			handlingThreads.add(Thread.currentThread());
+			return null;
+		}).when(cmdEnv).handleResult(any());
+	}
+
+	@Test
+	public void files_are_sent_by_concurrent_workers() throws Exception {
+		// Each transmit waits for the other two, so all three must run at once.
+		TestParallelSubmit submit = new TestParallelSubmit(-1, new CyclicBarrier(3));
+
+		assertThat(submit.transmit(cmdEnv, 3, new HashMap<String, String>(), args()), is(true));
+
+		assertThat(submit.servers.size(), is(3));
+		for (int thread = 0; thread < 3; thread++) {
+			verify(submit.servers.get(thread)).execStreamingMapCommand(eq("transmit"),
+					eq(new String[] {"-r", "-t1234"}), any(), any(IStreamingCallback.class), anyInt());
+			assertThat(submit.getWorkerStats().get(thread).transmits.get(), is(1L));
+			assertThat(submit.getWorkerStats().get(thread).results.get(), is((long) FILES_PER_WORKER));
+		}
+		assertThat(submit.transmittedBy.keySet(), is(new HashSet<Integer>(Arrays.asList(0, 1, 2))));
+		assertThat(new HashSet<IOptionsServer>(submit.transmittedBy.values()).size(), is(3));
+	}
+
+	@Test
+	public void results_are_forwarded_to_originating_command() throws Exception {
+		TestParallelSubmit submit = new TestParallelSubmit(-1, null);
+
+		submit.transmit(cmdEnv, 3, new HashMap<String, String>(), args());
+
+		assertThat(handled.size(), is(3 * FILES_PER_WORKER));
+		Set<Object> files = new HashSet<Object>();
+		for (Map<String, Object> result : handled) {
+			files.add(result.get("depotFile"));
+		}
+		assertThat(files.size(), is(3 * FILES_PER_WORKER));
+		// Handed over on the calling thread, never on a worker:
+		assertThat(handlingThreads, is(Collections.singleton(Thread.currentThread())));
+	}
+
+	@Test
+	public void failed_worker_is_reported_as_parallel_transfer_failed() throws Exception {
+		TestParallelSubmit submit = new TestParallelSubmit(1, null);
+
+		assertThat(submit.transmit(cmdEnv, 3, new HashMap<String, String>(), args()), is(false));
+
+		// The other workers' results still get through, followed by the error:
+		assertThat(handled.size(), is(2 * FILES_PER_WORKER + 1));
+		Map<String, Object> error = handled.get(handled.size() - 1);
+		Map<String, Object> expected = new RpcMessage(ClientMessageId.PARALLEL_TRANSFER_FAILED,
+				MessageSeverityCode.E_FAILED, MessageGenericCode.EV_CLIENT,
+				new String[] {"1", "connection reset"}).toMap();
+		assertThat(error, is(expected));
+		assertThat(submit.getWorkerStats().get(1).failures.get(), is(1L));
+		assertThat(submit.getWorkerStats().get(0).failures.get(), is(0L));
+		verify(submit.transmittedBy.get(1)).disconnect();
+	}
+
+	@Test
+	public void submit_parallel_runs_callback_for_originating_command() throws Exception {
+		final TestParallelSubmit submit = new TestParallelSubmit(-1, null);
+		Server server = mock(Server.class);
+		final List<String[]> submitArgs = new ArrayList<String[]>();
+		doAnswer(invocation -> {
+			submitArgs.add(invocation.getArgument(1));
+			IParallelCallback callback = invocation.getArgument(4);
+			callback.transmit(cmdEnv, 2, new HashMap<String, String>(), args());
+			Map<String, Object> result = new HashMap<String, Object>();
+			result.put("submittedChange", "13");
+			return Collections.singletonList(result);
+		}).when(server).execMapCmdList(eq("submit"), any(String[].class), any(),
+				any(IFilterCallback.class), any(IParallelCallback.class));
+
+		Changelist changelist = new Changelist(12, "ws", "bruno", ChangelistStatus.PENDING,
+				new Date(), "parallel", false, server);
+		changelist.setFileSpecs(FileSpecBuilder.makeFileSpecList("//depot/main/a", "//depot/main/b"));
+		List<IFileSpec> submitted = changelist.submitParallel(new SubmitOptions(),
+				new ParallelSubmitOptions(8, 4, 2, submit));
+
+		assertThat(submitArgs.size(), is(1));
+		assertThat(submitArgs.get(0), is(new String[] {"--parallel=threads=2,batch=8,min=4", "-i"}));
+		assertThat(handled.size(), is(2 * FILES_PER_WORKER));
+		assertThat(submitted.size(), is(1));
+		assertThat(submitted.get(0).getOpStatus(), is(FileSpecOpStatus.INFO));
+		assertThat(changelist.getId(), is(13));
+		assertThat(changelist.getStatus(), sameInstance(ChangelistStatus.SUBMITTED));
+	}
+
+	private static ArrayList<String> args() {
+		ArrayList<String> args = new ArrayList<String>();
+		args.add("-r");
+		args.add("-t1234");
+		return args;
+	}
+
+	/**
+	 * Opens mock worker connections whose transmit sends back one result
+	 * per file in the worker's share, or fails for the given worker.
+	 */
+	private static class TestParallelSubmit extends DefaultParallelSubmit {
+		private final int failingThread;
+		private final CyclicBarrier barrier;
+		private final List<IOptionsServer> servers = new ArrayList<IOptionsServer>();
+		private final Map<Integer, IOptionsServer> transmittedBy = new HashMap<Integer, IOptionsServer>();
+
+		TestParallelSubmit(int failingThread, CyclicBarrier barrier) {
+			super(0);
+			this.failingThread = failingThread;
+			this.barrier = barrier;
+		}
+
+		@Override
+		protected IOptionsServer openConnection(CommandEnv cmdEnv) throws ConnectionException {
+			final IOptionsServer server = mock(IOptionsServer.class);
+			when(server.isConnected()).thenReturn(true);
+			try {
+				doAnswer(invocation -> {
+					int thread = invocation.getArgument(4);
+					synchronized (transmittedBy) {
+						transmittedBy.put(thread, server);
+					}
+					if (barrier != null) {
+						barrier.await(10, TimeUnit.SECONDS);
+					}
+					if (thread == failingThread) {
+						throw new ConnectionException("connection reset");
+					}
+					IStreamingCallback callback = invocation.getArgument(3);
+					for (int i = 0; i < FILES_PER_WORKER; i++) {
+						Map<String, Object> result = new HashMap<String, Object>();
+						result.put("depotFile", "//depot/main/file" + thread + "-" + i);
+						callback.handleResult(result, thread);
+					}
+					return null;
+				}).when(server).execStreamingMapCommand(eq("transmit"), any(), any(),
+						any(IStreamingCallback.class), anyInt());
+			} catch (Exception exc) {
+				throw new AssertionError(exc);
+			}
+			synchronized (servers) {
+				servers.add(server);
+			}
+			return server;
+		}
+	}
+}
@@ -0,0 +1,170 @@
+package com.perforce.p4java.impl.generic.core;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcServer;
+import com.perforce.p4java.server.IOptionsServer;
+import com.perforce.p4java.server.IServerAddress;
+import com.perforce.p4java.server.callback.IStreamingCallback;
+
+@RunWith(JUnitPlatform.class)
+public class DefaultParallelSyncTest {
+
+	private CommandEnv cmdEnv;
+	private final List<Map<String, Object>> handled = new ArrayList<Map<String, Object>>();
+
+	@BeforeEach
+	public void beforeEach() {
+		IServerAddress address = mock(IServerAddress.class);
+		when(address.getUri()).thenReturn("p4java://localhost:1666");
+		RpcServer origin = mock(RpcServer.class);
+		when(origin.getServerAddressDetails()).thenReturn(address);
+		when(origin.getUserName()).thenReturn("bruno");
+		cmdEnv = mock(CommandEnv.class);
+		when(cmdEnv.getServer()).thenReturn(origin);
+		doAnswer(invocation -> {
+			handled.add(invocation.getArgument(0));
+			return null;
+		}).when(cmdEnv).handleResult(any());
+	}
+
+	@Test
+	public void results_are_handed_to_command_and_connections_closed() throws Exception {
+		TestParallelSync sync = new TestParallelSync(0, false, null);
+
+		assertThat(sync.transmit(cmdEnv, 3, new HashMap<String, String>(), args()), is(true));
+
+		assertThat(handled.size(), is(3));
+		assertThat(sync.opened.get(), is(3));
+		assertThat(sync.getIdleConnectionCount(), is(0));
+		for (IOptionsServer server : sync.servers) {
+			verify(server).disconnect();
+		}
+		assertThat(sync.getWorkerStats().size(), is(3));
+		assertThat(sync.getWorkerStats().get(2).results.get(), is(1L));
+	}
+
+	@Test
+	public void idle_connections_are_reused_between_calls() throws Exception {
+		// Each transmit waits for the other, so both workers of a call must
+		// be running at once, on different connections.
+		TestParallelSync sync = new TestParallelSync(4, false, new CyclicBarrier(2));
+
+		sync.transmit(cmdEnv, 2, new HashMap<String, String>(), args());
+		assertThat(sync.getIdleConnectionCount(), is(2));
+		List<IOptionsServer> firstCall = new ArrayList<IOptionsServer>(sync.transmittedBy.values());
+		sync.transmittedBy.clear();
+		sync.transmit(cmdEnv, 2, new HashMap<String, String>(), args());
+		List<IOptionsServer> secondCall = new ArrayList<IOptionsServer>(sync.transmittedBy.values());
+
+		assertThat(firstCall.get(0), not(firstCall.get(1)));
+		assertThat(new HashSet<IOptionsServer>(secondCall), is(new HashSet<IOptionsServer>(firstCall)));
+		assertThat(sync.opened.get(), is(2));
+		assertThat(handled.size(), is(4));
+		long reused = 0;
+		for (DefaultParallelSync.WorkerStats stats : sync.getWorkerStats()) {
+			reused += stats.connectionsReused.get();
+		}
+		assertThat(reused, is(2L));
+
+		sync.close();
+		assertThat(sync.getIdleConnectionCount(), is(0));
+		for (IOptionsServer server : sync.servers) {
+			verify(server, times(1)).disconnect();
+		}
+	}
+
+	@Test
+	public void failed_transmit_is_reported() throws Exception {
+		TestParallelSync sync = new TestParallelSync(4, true, null);
+
+		assertThat(sync.transmit(cmdEnv, 2, new HashMap<String, String>(), args()), is(false));
+
+		// One error message per failed worker, and the broken connections aren't kept:
+		assertThat(handled.size(), is(2));
+		assertThat(handled.get(0).containsKey("code0"), is(true));
+		assertThat(sync.getIdleConnectionCount(), is(0));
+		assertThat(sync.getWorkerStats().get(0).failures.get(), is(1L));
+	}
+
+	private static ArrayList<String> args() {
+		ArrayList<String> args = new ArrayList<String>();
+		args.add("-t1234");
+		return args;
+	}
+
+	private static class TestParallelSync extends DefaultParallelSync {
+		private final boolean fail;
+		private final CyclicBarrier barrier;
+		private final AtomicInteger opened = new AtomicInteger();
+		private final List<IOptionsServer> servers = new ArrayList<IOptionsServer>();
+		private final Map<Integer, IOptionsServer> transmittedBy = new HashMap<Integer, IOptionsServer>();
+
+		TestParallelSync(int maxIdleConnections, boolean fail, CyclicBarrier barrier) {
+			super(maxIdleConnections);
+			this.fail = fail;
+			this.barrier = barrier;
+		}
+
+		@Override
+		protected IOptionsServer openConnection(CommandEnv cmdEnv) throws ConnectionException {
+			opened.incrementAndGet();
+			final IOptionsServer server = mock(IOptionsServer.class);
+			when(server.isConnected()).thenReturn(true);
+			try {
+				if (fail) {
+					doAnswer(invocation -> {
+						throw new ConnectionException("connection reset");
+					}).when(server).execStreamingMapCommand(eq("transmit"), any(), any(),
+							any(IStreamingCallback.class), anyInt());
+				} else {
+					doAnswer(invocation -> {
+						synchronized (transmittedBy) {
+							transmittedBy.put(invocation.getArgument(4), server);
+						}
+						if (barrier != null) {
+							barrier.await(10, TimeUnit.SECONDS);
+						}
+						Map<String, Object> result = new HashMap<String, Object>();
+						result.put("worker", invocation.getArgument(4));
+						IStreamingCallback callback = invocation.getArgument(3);
+						return callback.handleResult(result, invocation.getArgument(4));
+					}).when(server).execStreamingMapCommand(eq("transmit"), any(), any(),
+							any(IStreamingCallback.class), anyInt());
+				}
+			} catch (Exception exc) {
+				throw new AssertionError(exc);
+			}
+			synchronized (servers) {
+				servers.add(server);
+			}
+			return server;
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.perforce.p4java.impl.generic.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.ViewMap;
+import com.perforce.p4java.impl.generic.core.MapApi.Direction;
+
+/**
+ * JMH benchmarks for compiling a client view into a MapApi and translating
+ * paths through it. The views are of the kind generated for large
+ * component-based workspaces: a catch-all line, then an include and a
+ * "build" exclusion per component. One path in ten is excluded.<p>
+ *
+ * Not a unit test; run with the test classpath, e.g.
+ * <pre>
+ * java -cp ... com.perforce.p4java.impl.generic.core.MapApiBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MapApiBenchmark {
+
+	private static final int PATH_COUNT = 100000;
+
+	@Param({"100", "10000"})
+	public int lines;
+
+	private ViewMap<IMapEntry> viewMap;
+	private MapApi map;
+	private List<String> paths;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		int components = lines / 2;
+		viewMap = new ViewMap<IMapEntry>();
+		viewMap.addEntry(new MapEntry(0, "//depot/... //ws/..."));
+		for (int i = 0; viewMap.getSize() < lines; i++) {
+			viewMap.addEntry(new MapEntry(viewMap.getSize(),
+					"//depot/comp" + i + "/main/... //ws/comp" + i + "/..."));
+			if (viewMap.getSize() < lines) {
+				viewMap.addEntry(new MapEntry(viewMap.getSize(),
+						"-//depot/comp" + i + "/main/build/... //ws/comp" + i + "/build/..."));
+			}
+		}
+		map = compile();
+
+		paths = new ArrayList<String>(PATH_COUNT);
+		for (int i = 0; i < PATH_COUNT; i++) {
+			int comp = (i * 7919) % (components - 1);
+			paths.add("//depot/comp" + comp + "/main/" + (i % 10 == 0 ? "build/" : "src/") + "File" + i + ".java");
+		}
+	}
+
+	@Benchmark
+	public MapApi compile() {
+		return new MapApi(viewMap, true);
+	}
+
+	@Benchmark
+	public String[] translate() {
+		return map.translate(paths, Direction.LEFT_TO_RIGHT);
+	}
+
+	@Benchmark
+	public boolean[] includes() {
+		return map.includes(paths, Direction.LEFT_TO_RIGHT);
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(MapApiBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
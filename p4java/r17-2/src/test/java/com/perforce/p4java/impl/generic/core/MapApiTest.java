@@ -0,0 +1,216 @@
+package com.perforce.p4java.impl.generic.core;
+
+import static com.perforce.p4java.impl.generic.core.MapApi.Direction.LEFT_TO_RIGHT;
+import static com.perforce.p4java.impl.generic.core.MapApi.Direction.RIGHT_TO_LEFT;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.ViewMap;
+
+/**
+ * Checks MapApi translations against what "p4 where" gives for the same
+ * client views.
+ */
+@RunWith(JUnitPlatform.class)
+public class MapApiTest {
+
+	@Test
+	public void simple_view() {
+		MapApi map = map(true, "//depot/... //ws/...");
+
+		assertWhere(map, "//depot/a/b.c", "//ws/a/b.c");
+		assertWhere(map, "//depot/b.c", "//ws/b.c");
+		assertThat(map.translate("//other/b.c", LEFT_TO_RIGHT), is(nullValue()));
+		assertThat(map.translate("//ws2/b.c", RIGHT_TO_LEFT), is(nullValue()));
+	}
+
+	@Test
+	public void exclusion() {
+		MapApi map = map(true,
+				"//depot/... //ws/...",
+				"-//depot/build/... //ws/build/...");
+
+		assertWhere(map, "//depot/src/a.c", "//ws/src/a.c");
+		assertThat(map.translate("//depot/build/a.o", LEFT_TO_RIGHT), is(nullValue()));
+		assertThat(map.translate("//ws/build/a.o", RIGHT_TO_LEFT), is(nullValue()));
+	}
+
+	@Test
+	public void exclusion_applies_to_both_sides() {
+		MapApi map = map(true,
+				"//depot/... //ws/...",
+				"-//depot/x/... //ws/y/...");
+
+		// //depot/y/a.c would land on the excluded //ws/y/..., and
+		// //ws/x/a.c would come from the excluded //depot/x/...
+		assertThat(map.translate("//depot/y/a.c", LEFT_TO_RIGHT), is(nullValue()));
+		assertThat(map.translate("//ws/x/a.c", RIGHT_TO_LEFT), is(nullValue()));
+		assertWhere(map, "//depot/z/a.c", "//ws/z/a.c");
+	}
+
+	@Test
+	public void later_line_takes_client_path() {
+		MapApi map = map(true,
+				"//depot/main/... //ws/...",
+				"//depot/rel/docs/... //ws/docs/...");
+
+		assertWhere(map, "//depot/rel/docs/a.txt", "//ws/docs/a.txt");
+		assertWhere(map, "//depot/main/src/a.c", "//ws/src/a.c");
+		// Its client path now belongs to the later line
+		assertThat(map.translate("//depot/main/docs/a.txt", LEFT_TO_RIGHT), is(nullValue()));
+	}
+
+	@Test
+	public void later_line_takes_depot_path() {
+		MapApi map = map(true,
+				"//depot/... //ws/all/...",
+				"//depot/src/... //ws/src/...");
+
+		assertWhere(map, "//depot/src/a.c", "//ws/src/a.c");
+		assertThat(map.translate("//ws/all/src/a.c", RIGHT_TO_LEFT), is(nullValue()));
+	}
+
+	@Test
+	public void overlay_lines() {
+		MapApi map = map(true,
+				"//depot/main/... //ws/...",
+				"+//depot/patch/... //ws/...");
+
+		assertThat(map.translate("//depot/main/a.c", LEFT_TO_RIGHT), is("//ws/a.c"));
+		assertThat(map.translate("//depot/patch/a.c", LEFT_TO_RIGHT), is("//ws/a.c"));
+		assertThat(map.translate("//ws/a.c", RIGHT_TO_LEFT), is("//depot/patch/a.c"));
+	}
+
+	@Test
+	public void star_does_not_cross_directories() {
+		MapApi map = map(true, "//depot/*.c //ws/src/*.c");
+
+		assertWhere(map, "//depot/a.c", "//ws/src/a.c");
+		assertThat(map.translate("//depot/dir/a.c", LEFT_TO_RIGHT), is(nullValue()));
+	}
+
+	@Test
+	public void embedded_and_multiple_wildcards() {
+		MapApi map = map(true,
+				"//depot/.../*.java //ws/java/.../*.java",
+				"//depot/...c //ws/c/...c");
+
+		assertWhere(map, "//depot/a/b/Foo.java", "//ws/java/a/b/Foo.java");
+		assertWhere(map, "//depot/src/x.c", "//ws/c/src/x.c");
+		assertThat(map.translate("//depot/src/x.h", LEFT_TO_RIGHT), is(nullValue()));
+	}
+
+	@Test
+	public void positional_wildcards_can_be_reordered() {
+		MapApi map = map(true, "//depot/%%1/%%2.txt //ws/%%2/%%1.txt");
+
+		assertWhere(map, "//depot/dir/name.txt", "//ws/name/dir.txt");
+		assertThat(map.translate("//depot/dir/sub/name.txt", LEFT_TO_RIGHT), is(nullValue()));
+	}
+
+	@Test
+	public void quoted_paths_with_spaces() {
+		MapApi map = map(true, "\"//depot/my docs/...\" \"//ws/my docs/...\"");
+
+		assertWhere(map, "//depot/my docs/a b.txt", "//ws/my docs/a b.txt");
+	}
+
+	@Test
+	public void case_handling() {
+		MapApi sensitive = map(true, "//depot/Main/... //ws/...");
+		MapApi insensitive = map(false, "//depot/Main/... //ws/Main/...");
+
+		assertThat(sensitive.translate("//depot/main/a.c", LEFT_TO_RIGHT), is(nullValue()));
+		// The matched part of the path keeps its own case
+		assertThat(insensitive.translate("//DEPOT/main/A.c", LEFT_TO_RIGHT), is("//ws/Main/A.c"));
+		assertThat(insensitive.translate("//WS/MAIN/a.c", RIGHT_TO_LEFT), is("//depot/Main/a.c"));
+	}
+
+	@Test
+	public void one_sided_map() {
+		MapApi map = map(false, "/home/ws/...", "-/home/ws/build/...");
+
+		assertThat(map.includes("/home/ws/src/a.c", LEFT_TO_RIGHT), is(true));
+		assertThat(map.includes("/home/ws/build/a.o", LEFT_TO_RIGHT), is(false));
+		assertThat(map.translate("/home/ws/src/a.c", RIGHT_TO_LEFT), is("/home/ws/src/a.c"));
+	}
+
+	@Test
+	public void bulk_translation() {
+		MapApi map = map(true, "//depot/... //ws/...", "-//depot/x/... //ws/x/...");
+
+		String[] translated = map.translate(Arrays.asList("//depot/a", "//depot/x/b", "//depot/c"),
+				LEFT_TO_RIGHT);
+		assertThat(translated, is(new String[] {"//ws/a", null, "//ws/c"}));
+		boolean[] included = map.includes(Arrays.asList("//ws/a", "//ws/x/b"), RIGHT_TO_LEFT);
+		assertThat(included[0], is(true));
+		assertThat(included[1], is(false));
+	}
+
+	@Test
+	public void mismatched_wildcards_are_rejected() {
+		assertThrows(IllegalArgumentException.class, () -> map(true, "//depot/... //ws/*"));
+		assertThrows(IllegalArgumentException.class, () -> map(true, "//depot/%%1/... //ws/..."));
+	}
+
+	/**
+	 * Translates 100k paths through a 10k-line view of the kind generated
+	 * for large component-based workspaces, in bulk and one at a time; see
+	 * MapApiBenchmark for timings.
+	 */
+	@Test
+	public void large_view_translation() {
+		int components = 5000;
+		List<String> lines = new ArrayList<String>();
+		lines.add("//depot/... //ws/...");
+		for (int i = 0; i < components; i++) {
+			lines.add("//depot/comp" + i + "/main/... //ws/comp" + i + "/...");
+			lines.add("-//depot/comp" + i + "/main/build/... //ws/comp" + i + "/build/...");
+		}
+		lines = lines.subList(0, 10000);
+		MapApi map = map(true, lines.toArray(new String[lines.size()]));
+
+		List<String> paths = new ArrayList<String>();
+		for (int i = 0; i < 100000; i++) {
+			int comp = (i * 7919) % (components - 1);
+			paths.add("//depot/comp" + comp + "/main/" + (i % 10 == 0 ? "build/" : "src/") + "File" + i + ".java");
+		}
+		String[] translated = map.translate(paths, LEFT_TO_RIGHT);
+
+		int mapped = 0;
+		for (int i = 0; i < translated.length; i++) {
+			if (translated[i] != null) {
+				mapped++;
+			}
+			assertThat(translated[i], is(map.translate(paths.get(i), LEFT_TO_RIGHT)));
+		}
+		assertThat(mapped, is(90000));
+		assertThat(translated[0], is(nullValue()));
+		assertThat(translated[1], is("//ws/comp" + (7919 % (components - 1)) + "/src/File1.java"));
+		assertWhere(map, paths.get(1), translated[1]);
+	}
+
+	private static void assertWhere(MapApi map, String left, String right) {
+		assertThat(map.translate(left, LEFT_TO_RIGHT), is(right));
+		assertThat(map.translate(right, RIGHT_TO_LEFT), is(left));
+	}
+
+	private static MapApi map(boolean caseSensitive, String... lines) {
+		ViewMap<IMapEntry> viewMap = new ViewMap<IMapEntry>();
+		for (int i = 0; i < lines.length; i++) {
+			viewMap.addEntry(new MapEntry(i, lines[i]));
+		}
+		return new MapApi(viewMap, caseSensitive);
+	}
+}
@@ -0,0 +1,267 @@
+package com.perforce.p4java.impl.mapbased.rpc;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketField;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
+
+/**
+ * A local stand-in for a Perforce server, for exercising the RPC server
+ * implementations over a real socket. It accepts connections on the
+ * loopback address and answers each user command through a Handler; by
+ * default with a single tagged result, so "info" is enough for connect().
+ * Protocol, flush and release packets from the client are ignored, and
+ * a command's unnamed argument fields are seen as "arg0", "arg1", etc.<p>
+ *
+ * Commands are answered once the client has stopped sending for a moment,
+ * so that commands the client pipelines arrive before any of them are
+ * answered; each Command records how many were waiting when it arrived.
+ */
+public class FakeRpcServer {
+	public static final String SERVER_VERSION = "P4D/LINUX26X86_64/2017.1/1511680 (2017/05/01)";
+
+	private static final int QUIET_MILLIS = 100;
+
+	/**
+	 * A user command received by the server.
+	 */
+	public static class Command {
+		public final String name;
+		public final List<String> args;
+		public final int connection;
+		public final int waiting;
+
+		Command(String name, List<String> args, int connection, int waiting) {
+			this.name = name;
+			this.args = args;
+			this.connection = connection;
+			this.waiting = waiting;
+		}
+	}
+
+	/**
+	 * Answers a user command, or drops the connection instead.
+	 */
+	public interface Handler {
+		/**
+		 * @return the tagged results to send, or null to drop the connection
+		 * without answering.
+		 */
+		List<Map<String, String>> answer(Command command);
+	}
+
+	/**
+	 * Answers each command with one result holding its name and arguments.
+	 */
+	public static final Handler ECHO = new Handler() {
+		public List<Map<String, String>> answer(Command command) {
+			return Collections.singletonList(echo(command));
+		}
+	};
+
+	private final ServerSocket serverSocket;
+	private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+	private final List<Command> commands = Collections.synchronizedList(new ArrayList<Command>());
+	private final AtomicInteger connections = new AtomicInteger();
+	private volatile Handler handler = ECHO;
+
+	public FakeRpcServer() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						final Socket socket = serverSocket.accept();
+						accepted.add(socket);
+						final int connection = connections.incrementAndGet();
+						Thread worker = new Thread(new Runnable() {
+							public void run() {
+								serve(socket, connection);
+							}
+						});
+						worker.setDaemon(true);
+						worker.start();
+					}
+				} catch (IOException e) {
+					// server socket closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	public String getHost() {
+		return serverSocket.getInetAddress().getHostAddress();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	public void setHandler(Handler handler) {
+		this.handler = handler;
+	}
+
+	/**
+	 * @return the number of connections accepted so far.
+	 */
+	public int getConnectionCount() {
+		return connections.get();
+	}
+
+	/**
+	 * @return the user commands received so far, other than "info".
+	 */
+	public List<Command> getCommands() {
+		List<Command> ret = new ArrayList<Command>();
+		synchronized (commands) {
+			for (Command command : commands) {
+				if (!"info".equals(command.name)) {
+					ret.add(command);
+				}
+			}
+		}
+		return ret;
+	}
+
+	public void close() throws IOException {
+		serverSocket.close();
+		synchronized (accepted) {
+			for (Socket socket : accepted) {
+				socket.close();
+			}
+		}
+	}
+
+	public static Map<String, String> echo(Command command) {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		result.put("cmd", command.name);
+		for (int i = 0; i < command.args.size(); i++) {
+			result.put("arg" + i, command.args.get(i));
+		}
+		return result;
+	}
+
+	private void serve(Socket socket, int connection) {
+		List<Command> waiting = new ArrayList<Command>();
+		try {
+			socket.setSoTimeout(QUIET_MILLIS);
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			while (true) {
+				Map<String, String> fields;
+				try {
+					fields = readPacket(in);
+				} catch (SocketTimeoutException e) {
+					if (!answer(waiting, out)) {
+						socket.close();
+						return;
+					}
+					continue;
+				}
+				String func = fields.get("func");
+				if ((func != null) && func.startsWith("user-")) {
+					List<String> args = new ArrayList<String>();
+					for (int i = 0; fields.containsKey("arg" + i); i++) {
+						args.add(fields.get("arg" + i));
+					}
+					Command command = new Command(func.substring("user-".length()), args,
+							connection, waiting.size());
+					commands.add(command);
+					waiting.add(command);
+				}
+			}
+		} catch (IOException e) {
+			// closed at either end
+		}
+	}
+
+	private boolean answer(List<Command> waiting, OutputStream out) throws IOException {
+		while (!waiting.isEmpty()) {
+			Command command = waiting.remove(0);
+			List<Map<String, String>> results;
+			if ("info".equals(command.name)) {
+				Map<String, String> info = new LinkedHashMap<String, String>();
+				info.put("serverVersion", SERVER_VERSION);
+				info.put("serverAddress", "fake:1666");
+				results = Collections.singletonList(info);
+			} else {
+				results = handler.answer(command);
+			}
+			if (results == null) {
+				return false;
+			}
+			for (Map<String, String> result : results) {
+				Map<String, String> packet = new LinkedHashMap<String, String>();
+				packet.put("func", "client-FstatInfo");
+				packet.putAll(result);
+				writePacket(out, packet);
+			}
+			writePacket(out, Collections.singletonMap("func", "release"));
+		}
+		return true;
+	}
+
+	private static Map<String, String> readPacket(DataInputStream in) throws IOException {
+		byte[] preamble = new byte[RpcPacketPreamble.RPC_PREAMBLE_SIZE];
+		int first = in.read();
+		if (first < 0) {
+			throw new EOFException();
+		}
+		preamble[0] = (byte) first;
+		in.readFully(preamble, 1, preamble.length - 1);
+		byte[] payload = new byte[RpcPacketPreamble.retrievePreamble(preamble).getPayloadSize()];
+		in.readFully(payload);
+
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		int args = 0;
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		while (buf.hasRemaining()) {
+			int nameStart = buf.position();
+			while (buf.get() != 0) {
+				// find the end of the name
+			}
+			String name = new String(payload, nameStart, buf.position() - nameStart - 1,
+					StandardCharsets.UTF_8);
+			byte[] length = new byte[RpcPacket.RPC_LENGTH_FIELD_LENGTH];
+			buf.get(length);
+			int valueLength = RpcPacket.decodeInt4(length);
+			String value = new String(payload, buf.position(), valueLength, StandardCharsets.UTF_8);
+			buf.position(buf.position() + valueLength + 1);
+			if (name.isEmpty()) {
+				// Command arguments are sent as unnamed fields
+				name = "arg" + args++;
+			}
+			fields.put(name, value);
+		}
+		return fields;
+	}
+
+	private static void writePacket(OutputStream out, Map<String, String> fields) throws IOException {
+		ByteBuffer payload = ByteBuffer.allocate(4096);
+		for (Map.Entry<String, String> field : fields.entrySet()) {
+			RpcPacketField.marshal(payload, field.getKey(),
+					field.getValue().getBytes(StandardCharsets.UTF_8));
+		}
+		out.write(RpcPacketPreamble.constructPreamble(payload).marshalAsBytes());
+		out.write(payload.array(), 0, payload.position());
+		out.flush();
+	}
+}
@@ -0,0 +1,131 @@
+package com.perforce.p4java.impl.mapbased.rpc;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.impl.mapbased.rpc.FakeRpcServer.Command;
+import com.perforce.p4java.server.BatchCommand;
+
+/**
+ * Exercises NtsServerImpl's pipelined execMapCmdBatch against a
+ * FakeRpcServer, which only answers once the client stops sending, and
+ * records how many commands were waiting for an answer as each arrived.
+ */
+@RunWith(JUnitPlatform.class)
+public class NtsServerImplTest {
+	private FakeRpcServer fakeServer;
+	private NtsServerImpl server;
+
+	@BeforeEach
+	public void beforeEach() throws Exception {
+		fakeServer = new FakeRpcServer();
+		server = new NtsServerImpl();
+		server.init(fakeServer.getHost(), fakeServer.getPort(), new Properties());
+		server.connect();
+	}
+
+	@AfterEach
+	public void afterEach() throws Exception {
+		server.disconnect();
+		fakeServer.close();
+	}
+
+	@Test
+	public void batch_is_pipelined_and_completes_in_order() throws Exception {
+		List<Future<List<Map<String, Object>>>> futures = server.execMapCmdBatch(commands(
+				"fstat a", "fstat b", "files c"));
+
+		assertThat(waiting(), is("0,1,2"));
+		assertThat(result(futures.get(0)), is("fstat a"));
+		assertThat(result(futures.get(1)), is("fstat b"));
+		assertThat(result(futures.get(2)), is("files c"));
+	}
+
+	@Test
+	public void command_needing_client_reply_runs_on_its_own() throws Exception {
+		List<Future<List<Map<String, Object>>>> futures = server.execMapCmdBatch(commands(
+				"fstat a", "fstat b", "counter x", "fstat c", "fstat d"));
+
+		// "counter" waits for a and b to be answered, and c waits for it.
+		assertThat(waiting(), is("0,1,0,0,1"));
+		assertThat(result(futures.get(0)), is("fstat a"));
+		assertThat(result(futures.get(1)), is("fstat b"));
+		assertThat(result(futures.get(2)), is("counter x"));
+		assertThat(result(futures.get(3)), is("fstat c"));
+		assertThat(result(futures.get(4)), is("fstat d"));
+	}
+
+	@Test
+	public void connection_failure_fails_that_command_and_later_ones() throws Exception {
+		fakeServer.setHandler(new FakeRpcServer.Handler() {
+			public List<Map<String, String>> answer(Command command) {
+				if (command.args.contains("b")) {
+					return null;
+				}
+				return FakeRpcServer.ECHO.answer(command);
+			}
+		});
+
+		List<Future<List<Map<String, Object>>>> futures = server.execMapCmdBatch(commands(
+				"fstat a", "fstat b", "fstat c", "counter x"));
+
+		assertThat(futures.size(), is(4));
+		assertThat(result(futures.get(0)), is("fstat a"));
+		for (Future<List<Map<String, Object>>> future : futures.subList(1, 4)) {
+			assertThat(future.isDone(), is(true));
+			try {
+				future.get();
+				fail("expected the command to fail");
+			} catch (ExecutionException exc) {
+				assertThat(exc.getCause(), instanceOf(ConnectionException.class));
+			}
+		}
+		// "counter" was never sent.
+		assertThat(fakeServer.getCommands().size(), is(3));
+	}
+
+	private static List<BatchCommand> commands(String... commandLines) {
+		List<BatchCommand> ret = new ArrayList<>();
+		for (String commandLine : commandLines) {
+			String[] words = commandLine.split(" ");
+			ret.add(new BatchCommand(words[0], new String[] {words[1]}));
+		}
+		return ret;
+	}
+
+	private static String result(Future<List<Map<String, Object>>> future) throws Exception {
+		List<Map<String, Object>> results = future.get();
+		assertThat(results.size(), is(1));
+		return results.get(0).get("cmd") + " " + results.get(0).get("arg0");
+	}
+
+	/**
+	 * @return how many commands were waiting for an answer as each arrived.
+	 */
+	private String waiting() {
+		StringBuilder ret = new StringBuilder();
+		for (Command command : fakeServer.getCommands()) {
+			if (ret.length() > 0) {
+				ret.append(',');
+			}
+			ret.append(command.waiting);
+		}
+		return ret.toString();
+	}
+}
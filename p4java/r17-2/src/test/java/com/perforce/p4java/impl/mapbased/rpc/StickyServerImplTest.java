@@ -0,0 +1,151 @@
+package com.perforce.p4java.impl.mapbased.rpc;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.impl.mapbased.rpc.FakeRpcServer.Command;
+
+/**
+ * Exercises StickyServerImpl's reconnect, retry and idle timeout handling
+ * against a FakeRpcServer that drops connections on request.
+ */
+@RunWith(JUnitPlatform.class)
+public class StickyServerImplTest {
+	private FakeRpcServer fakeServer;
+	private Properties props;
+	private StickyServerImpl server;
+
+	@BeforeEach
+	public void beforeEach() throws Exception {
+		fakeServer = new FakeRpcServer();
+		props = new Properties();
+	}
+
+	@AfterEach
+	public void afterEach() throws Exception {
+		if (server != null) {
+			server.disconnect();
+		}
+		fakeServer.close();
+	}
+
+	@Test
+	public void reconnects_after_dropped_connection() throws Exception {
+		connect();
+		fakeServer.setHandler(dropFirst(1));
+
+		// "counter" changes server state, so the failure isn't retried...
+		assertThrows(ConnectionException.class, () -> server.execMapCmdList("counter", new String[] {"a", "1"}, null));
+		assertThat(fakeServer.getCommands().size(), is(1));
+
+		// ...but the next command gets a new connection.
+		List<Map<String, Object>> results = server.execMapCmdList("counter", new String[] {"a", "2"}, null);
+
+		assertThat(results.get(0).get("arg1"), is("2"));
+		assertThat(server.isConnected(), is(true));
+		assertThat(connectionsUsed(), is("1,2"));
+		assertThat(server.serverStats.connectionReconnects.get(), is(1L));
+		assertThat(server.serverStats.commandRetries.get(), is(0L));
+	}
+
+	@Test
+	public void retries_read_only_command_up_to_max_retries() throws Exception {
+		props.setProperty(RpcPropertyDefs.RPC_STICKY_MAX_RETRIES_NICK, "2");
+		connect();
+		fakeServer.setHandler(dropFirst(2));
+
+		List<Map<String, Object>> results = server.execMapCmdList("changes", new String[] {"-m1"}, null);
+
+		assertThat(results.get(0).get("cmd"), is("changes"));
+		assertThat(connectionsUsed(), is("1,2,3"));
+		assertThat(server.serverStats.commandRetries.get(), is(2L));
+	}
+
+	@Test
+	public void gives_up_after_max_retries() throws Exception {
+		props.setProperty(RpcPropertyDefs.RPC_STICKY_MAX_RETRIES_NICK, "2");
+		connect();
+		fakeServer.setHandler(dropFirst(3));
+
+		assertThrows(ConnectionException.class, () -> server.execMapCmdList("changes", new String[] {"-m1"}, null));
+
+		assertThat(connectionsUsed(), is("1,2,3"));
+		assertThat(server.serverStats.commandRetries.get(), is(2L));
+
+		// The session is still usable afterwards.
+		server.execMapCmdList("changes", new String[] {"-m1"}, null);
+		assertThat(fakeServer.getConnectionCount(), is(4));
+	}
+
+	@Test
+	public void idle_connection_is_replaced() throws Exception {
+		props.setProperty(RpcPropertyDefs.RPC_STICKY_IDLE_TIMEOUT_NICK, "300");
+		connect();
+
+		server.execMapCmdList("changes", null, null);
+		server.execMapCmdList("changes", null, null);
+		Thread.sleep(500);
+		server.execMapCmdList("changes", null, null);
+
+		assertThat(connectionsUsed(), is("1,1,2"));
+		assertThat(server.serverStats.connectionReconnects.get(), is(1L));
+		assertThat(server.serverStats.commandRetries.get(), is(0L));
+	}
+
+	@Test
+	public void connection_is_kept_without_idle_timeout() throws Exception {
+		connect();
+
+		server.execMapCmdList("changes", null, null);
+		Thread.sleep(500);
+		server.execMapCmdList("changes", null, null);
+
+		assertThat(connectionsUsed(), is("1,1"));
+		assertThat(server.serverStats.connectionReconnects.get(), is(0L));
+	}
+
+	private void connect() throws Exception {
+		server = new StickyServerImpl();
+		server.init(fakeServer.getHost(), fakeServer.getPort(), props);
+		server.connect();
+	}
+
+	/**
+	 * @return the connections the commands after connect() arrived on.
+	 */
+	private String connectionsUsed() {
+		StringBuilder ret = new StringBuilder();
+		for (Command command : fakeServer.getCommands()) {
+			if (ret.length() > 0) {
+				ret.append(',');
+			}
+			ret.append(command.connection);
+		}
+		return ret.toString();
+	}
+
+	private static FakeRpcServer.Handler dropFirst(final int count) {
+		final AtomicInteger dropped = new AtomicInteger();
+		return new FakeRpcServer.Handler() {
+			public List<Map<String, String>> answer(Command command) {
+				if (dropped.getAndIncrement() < count) {
+					return null;
+				}
+				return FakeRpcServer.ECHO.answer(command);
+			}
+		};
+	}
+}
@@ -0,0 +1,129 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.impl.mapbased.rpc.sys.RpcFileAttributes;
+
+@RunWith(JUnitPlatform.class)
+public class ClientDigestCacheTest {
+
+	private static final String MODE = "FST_TEXT//LOCAL";
+	private static final long AN_HOUR_AGO = System.currentTimeMillis() - 3600 * 1000;
+
+	private Path root;
+	private File cacheFile;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		root = Files.createTempDirectory("digestcache");
+		cacheFile = root.resolve(".p4digests").toFile();
+	}
+
+	@AfterEach
+	public void afterEach() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	@Test
+	public void digests_are_reused_across_instances() throws IOException {
+		File file = write("a.txt", "hello\n", AN_HOUR_AGO);
+		ClientDigestCache cache = new ClientDigestCache(cacheFile);
+		assertThat(cache.lookup(file, RpcFileAttributes.read(file), MODE), is(nullValue()));
+		cache.store(file, RpcFileAttributes.read(file), MODE, "D1");
+		cache.flush();
+
+		cache = new ClientDigestCache(cacheFile);
+		assertThat(cache.lookup(file, RpcFileAttributes.read(file), MODE), is("D1"));
+		assertThat(cache.lookup(file, RpcFileAttributes.read(file), "FST_BINARY//"), is(nullValue()));
+		assertThat(cache.getHits(), is(1L));
+		assertThat(cache.getMisses(), is(1L));
+		assertThat(cache.isCacheFile(cacheFile), is(true));
+		assertThat(cache.isCacheFile(file), is(false));
+	}
+
+	@Test
+	public void changed_files_are_not_hits() throws IOException {
+		File file = write("a.txt", "hello\n", AN_HOUR_AGO);
+		ClientDigestCache cache = new ClientDigestCache(cacheFile);
+		cache.store(file, RpcFileAttributes.read(file), MODE, "D1");
+
+		write("a.txt", "hello\n", AN_HOUR_AGO + 1000);
+		assertThat(cache.lookup(file, RpcFileAttributes.read(file), MODE), is(nullValue()));
+		write("a.txt", "hello, world\n", AN_HOUR_AGO);
+		assertThat(cache.lookup(file, RpcFileAttributes.read(file), MODE), is(nullValue()));
+		Files.delete(file.toPath());
+		assertThat(cache.lookup(file, RpcFileAttributes.read(file), MODE), is(nullValue()));
+	}
+
+	@Test
+	public void recently_modified_files_are_not_stored() throws IOException {
+		File file = write("a.txt", "hello\n", System.currentTimeMillis());
+		ClientDigestCache cache = new ClientDigestCache(cacheFile);
+		cache.store(file, RpcFileAttributes.read(file), MODE, "D1");
+		assertThat(cache.getStores(), is(0L));
+		assertThat(cache.lookup(file, RpcFileAttributes.read(file), MODE), is(nullValue()));
+	}
+
+	@Test
+	public void damaged_cache_keeps_the_good_records() throws IOException {
+		File a = write("a.txt", "a\n", AN_HOUR_AGO);
+		File b = write("b.txt", "b\n", AN_HOUR_AGO);
+		ClientDigestCache cache = new ClientDigestCache(cacheFile);
+		cache.store(a, RpcFileAttributes.read(a), MODE, "DA");
+		cache.flush();
+		long goodLength = cacheFile.length();
+		cache.store(b, RpcFileAttributes.read(b), MODE, "DB");
+		cache.flush();
+
+		// Damage the last byte of the second record's checksum
+		try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+			raf.seek(raf.length() - 1);
+			int last = raf.read();
+			raf.seek(raf.length() - 1);
+			raf.write(last ^ 0xFF);
+		}
+		cache = new ClientDigestCache(cacheFile);
+		assertThat(cache.lookup(a, RpcFileAttributes.read(a), MODE), is("DA"));
+		assertThat(cache.lookup(b, RpcFileAttributes.read(b), MODE), is(nullValue()));
+
+		// The next flush rewrites the file without the damaged record
+		cache.flush();
+		assertThat(cacheFile.length(), is(goodLength));
+		cache = new ClientDigestCache(cacheFile);
+		assertThat(cache.lookup(a, RpcFileAttributes.read(a), MODE), is("DA"));
+
+		// A truncated file or a file of the wrong format gives an empty cache
+		try (RandomAccessFile raf = new RandomAccessFile(cacheFile, "rw")) {
+			raf.setLength(goodLength - 3);
+		}
+		assertThat(new ClientDigestCache(cacheFile).lookup(a, RpcFileAttributes.read(a), MODE),
+				is(nullValue()));
+		Files.write(cacheFile.toPath(), "not a cache".getBytes(StandardCharsets.UTF_8));
+		assertThat(new ClientDigestCache(cacheFile).lookup(a, RpcFileAttributes.read(a), MODE),
+				is(nullValue()));
+	}
+
+	private File write(String name, String contents, long lastModified) throws IOException {
+		Path path = root.resolve(name);
+		Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+		File file = path.toFile();
+		file.setLastModified(lastModified);
+		return file;
+	}
+}
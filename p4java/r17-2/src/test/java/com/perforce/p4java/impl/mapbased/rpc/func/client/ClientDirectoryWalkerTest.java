@@ -0,0 +1,158 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.core.IMapEntry;
+import com.perforce.p4java.core.ViewMap;
+import com.perforce.p4java.impl.generic.core.MapEntry;
+
+@RunWith(JUnitPlatform.class)
+public class ClientDirectoryWalkerTest {
+
+	private Path root;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		root = Files.createTempDirectory("walker").toRealPath();
+		touch("a.txt");
+		touch("src/b.java");
+		touch("src/main/c.java");
+		touch("build/out/d.class");
+		touch("docs/e.txt");
+	}
+
+	@AfterEach
+	public void afterEach() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	@Test
+	public void walks_whole_tree() {
+		assertThat(walk(true, null), is(names("a.txt", "src/b.java", "src/main/c.java",
+				"build/out/d.class", "docs/e.txt")));
+	}
+
+	@Test
+	public void lists_only_top_directory_without_traverse() {
+		assertThat(walk(false, null), is(names("a.txt")));
+	}
+
+	@Test
+	public void single_file_is_returned_as_is() {
+		ClientDirectoryWalker walker = new ClientDirectoryWalker(true, null, true);
+		assertThat(walker.walk(root.resolve("a.txt")).size(), is(1));
+		assertThat(walker.walk(root.resolve("missing")).size(), is(0));
+	}
+
+	@Test
+	public void directories_outside_view_are_pruned() {
+		ViewMap<IMapEntry> viewMap = view(
+				root + "/src/...",
+				root + "/*.txt",
+				"-" + root + "/src/main/...");
+
+		// Files directly in the root are still listed; the server checks them
+		assertThat(walk(true, viewMap), is(names("a.txt", "src/b.java")));
+	}
+
+	@Test
+	public void later_include_overrides_exclude() {
+		ViewMap<IMapEntry> viewMap = view(
+				root + "/...",
+				"-" + root + "/build/...",
+				root + "/build/out/....class");
+
+		assertThat(walk(true, viewMap), is(names("a.txt", "src/b.java", "src/main/c.java",
+				"build/out/d.class", "docs/e.txt")));
+	}
+
+	@Test
+	public void mixed_case_exclusion_on_case_sensitive_server_is_exact() {
+		ViewMap<IMapEntry> viewMap = view(
+				root + "/...",
+				"-" + root + "/Build/...",
+				"-" + root + "/SRC/main/...");
+
+		// The server wouldn't exclude build/ or src/main/, so neither may be pruned
+		assertThat(walk(true, viewMap, true), is(names("a.txt", "src/b.java", "src/main/c.java",
+				"build/out/d.class", "docs/e.txt")));
+	}
+
+	@Test
+	public void mixed_case_exclusion_on_case_insensitive_server_is_folded() {
+		ViewMap<IMapEntry> viewMap = view(
+				root + "/...",
+				"-" + root + "/Build/...",
+				"-" + root + "/SRC/main/...");
+
+		assertThat(walk(true, viewMap, false), is(names("a.txt", "src/b.java", "docs/e.txt")));
+	}
+
+	@Test
+	public void mixed_case_include_on_case_insensitive_server_is_folded() {
+		ViewMap<IMapEntry> viewMap = view(root + "/Docs/...");
+
+		assertThat(walk(true, viewMap, false), is(names("a.txt", "docs/e.txt")));
+		assertThat(walk(true, viewMap, true), is(names("a.txt")));
+	}
+
+	@Test
+	public void symbolic_links_are_listed_not_followed() throws IOException {
+		try {
+			Files.createSymbolicLink(root.resolve("link"), root.resolve("src"));
+		} catch (UnsupportedOperationException | IOException e) {
+			return;
+		}
+		assertThat(walk(true, null).contains("link"), is(true));
+		assertThat(walk(true, null).contains("link/b.java"), is(false));
+	}
+
+	private Set<String> walk(boolean traverse, ViewMap<IMapEntry> viewMap) {
+		return walk(traverse, viewMap, true);
+	}
+
+	private Set<String> walk(boolean traverse, ViewMap<IMapEntry> viewMap, boolean caseSensitive) {
+		Set<String> names = new TreeSet<String>();
+		for (Path path : new ClientDirectoryWalker(traverse, viewMap, caseSensitive).walk(root)) {
+			names.add(root.relativize(path).toString().replace(File.separatorChar, '/'));
+		}
+		return names;
+	}
+
+	private static Set<String> names(String... names) {
+		Set<String> set = new TreeSet<String>();
+		for (String name : names) {
+			set.add(name);
+		}
+		return set;
+	}
+
+	private static ViewMap<IMapEntry> view(String... lines) {
+		ViewMap<IMapEntry> viewMap = new ViewMap<IMapEntry>();
+		for (int i = 0; i < lines.length; i++) {
+			viewMap.addEntry(new MapEntry(i, lines[i]));
+		}
+		return viewMap;
+	}
+
+	private void touch(String name) throws IOException {
+		Path path = root.resolve(name);
+		Files.createDirectories(path.getParent());
+		Files.createFile(path);
+	}
+}
@@ -0,0 +1,141 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+@RunWith(JUnitPlatform.class)
+public class ClientIgnoreCheckerTest {
+
+	private static final String IGNORE_FILE = ".p4ignore";
+
+	private File root;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		root = Files.createTempDirectory("p4ignore").toFile().getCanonicalFile();
+	}
+
+	@AfterEach
+	public void afterEach() throws IOException {
+		FileUtils.deleteDirectory(root);
+	}
+
+	@Test
+	public void wildcard_and_path_patterns() throws IOException {
+		writeIgnoreFile(root, "# comment", "*.class", "build", "");
+		ClientIgnoreChecker checker = newChecker();
+
+		assertThat(checker.match(new File(root, "src/Foo.class")), is(true));
+		assertThat(checker.match(new File(root, "src/Foo.java")), is(false));
+		assertThat(checker.match(new File(root, "build/out/Foo.java")), is(true));
+		assertThat(checker.match(new File(root, "src/build/Foo.java")), is(true));
+		assertThat(checker.match(new File(root, "src/buildx/Foo.java")), is(false));
+	}
+
+	@Test
+	public void last_matching_line_and_nearest_file_win() throws IOException {
+		writeIgnoreFile(root, "*.log", "!keep.log");
+		writeIgnoreFile(new File(root, "sub"), "!*.log");
+		ClientIgnoreChecker checker = newChecker();
+
+		assertThat(checker.match(new File(root, "a.log")), is(true));
+		assertThat(checker.match(new File(root, "keep.log")), is(false));
+		assertThat(checker.match(new File(root, "sub/a.log")), is(false));
+	}
+
+	@Test
+	public void changed_ignore_file_is_reloaded() throws IOException {
+		writeIgnoreFile(root, "*.tmp");
+		ClientIgnoreChecker checker = newChecker();
+		File file = new File(root, "a.tmp");
+
+		assertThat(checker.match(file), is(true));
+		assertThat(checker.match(file), is(true));
+		assertThat(checker.getIgnoreFileLoads(), is(1L));
+
+		writeIgnoreFile(root, "*.other", "# no longer ignoring tmp files");
+		assertThat(checker.match(file), is(false));
+		assertThat(checker.getIgnoreFileLoads(), is(2L));
+
+		Files.delete(new File(root, IGNORE_FILE).toPath());
+		assertThat(checker.match(file), is(false));
+	}
+
+	@Test
+	public void ignore_files_are_checked_once_per_command() throws IOException {
+		writeIgnoreFile(root, "*.tmp");
+		ClientIgnoreChecker checker = newChecker();
+		File file = new File(root, "a.tmp");
+
+		checker.startCommand();
+		assertThat(checker.match(file), is(true));
+		writeIgnoreFile(root, "*.other");
+		assertThat(checker.match(file), is(true));
+
+		checker.startCommand();
+		assertThat(checker.match(file), is(false));
+		assertThat(checker.getIgnoreFileLoads(), is(2L));
+	}
+
+	/**
+	 * Checks every file of a synthetic deep tree, with an ignore file at each
+	 * level; each ignore file should be read once, however many files are
+	 * checked below it.
+	 */
+	@Test
+	public void deep_tree_reads_each_ignore_file_once() throws IOException {
+		int depth = 12;
+		int filesPerDir = 200;
+		List<File> files = new ArrayList<File>();
+		File dir = root;
+		for (int level = 0; level < depth; level++) {
+			writeIgnoreFile(dir, "*.o", "*.tmp" + level, "!keep" + level + ".o", "generated" + level);
+			for (int i = 0; i < filesPerDir; i++) {
+				files.add(new File(dir, "file" + i + (i % 4 == 0 ? ".o" : ".c")));
+			}
+			dir = new File(dir, "level" + level);
+		}
+		ClientIgnoreChecker checker = newChecker();
+		checker.startCommand();
+
+		int ignored = 0;
+		for (File file : files) {
+			if (checker.match(file)) {
+				ignored++;
+			}
+		}
+
+		assertThat(ignored, is(files.size() / 4));
+		assertThat(checker.getIgnoreFileLoads(), is((long) depth));
+	}
+
+	private ClientIgnoreChecker newChecker() {
+		return new ClientIgnoreChecker(root.getPath(), IGNORE_FILE, StandardCharsets.UTF_8);
+	}
+
+	private static void writeIgnoreFile(File dir, String... lines) throws IOException {
+		dir.mkdirs();
+		File ignoreFile = new File(dir, IGNORE_FILE);
+		long previous = ignoreFile.lastModified();
+		Files.write(ignoreFile.toPath(), Arrays.asList(lines), StandardCharsets.UTF_8);
+		if (previous != 0 && ignoreFile.lastModified() <= previous) {
+			// Make sure a rewrite within the file system's timestamp resolution is noticed
+			ignoreFile.setLastModified(previous + 2000);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.client;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.impl.mapbased.rpc.CommandEnv;
+
+@RunWith(JUnitPlatform.class)
+public class ClientWriteBehindTest {
+
+	@Test
+	public void tasks_for_a_file_run_in_order() {
+		ClientWriteBehind writeBehind = new ClientWriteBehind(4, 1024);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+		ClientWriteBehind.Stage stage = writeBehind.open("a");
+		for (int i = 0; i < 100; i++) {
+			final int index = i;
+			writeBehind.write(stage, 10, new Runnable() {
+				@Override
+				public void run() {
+					order.add(index);
+				}
+			});
+		}
+		writeBehind.close(stage, new Runnable() {
+			@Override
+			public void run() {
+				order.add(100);
+			}
+		});
+
+		writeBehind.awaitAll(mock(CommandEnv.class));
+		assertThat(order.size(), is(101));
+		for (int i = 0; i <= 100; i++) {
+			assertThat(order.get(i), is(i));
+		}
+	}
+
+	@Test
+	public void files_are_written_concurrently_up_to_thread_limit() throws InterruptedException {
+		ClientWriteBehind writeBehind = new ClientWriteBehind(2, 1024);
+		final CountDownLatch bothRunning = new CountDownLatch(2);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		for (int i = 0; i < 6; i++) {
+			writeBehind.close(writeBehind.open("file" + i), new Runnable() {
+				@Override
+				public void run() {
+					int now = running.incrementAndGet();
+					maxRunning.accumulateAndGet(now, Math::max);
+					bothRunning.countDown();
+					try {
+						// The first two files can only finish if they run side by side
+						bothRunning.await(5, TimeUnit.SECONDS);
+						Thread.sleep(5);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					running.decrementAndGet();
+				}
+			});
+		}
+
+		writeBehind.awaitAll(mock(CommandEnv.class));
+		assertThat(bothRunning.getCount(), is(0L));
+		assertThat(maxRunning.get(), is(2));
+	}
+
+	@Test
+	public void errors_are_delivered_on_the_command_thread() {
+		ClientWriteBehind writeBehind = new ClientWriteBehind(1, 1024);
+		CommandEnv cmdEnv = mock(CommandEnv.class);
+		final Map<String, Object> message = new HashMap<String, Object>();
+		final List<String> ran = Collections.synchronizedList(new ArrayList<String>());
+		final ClientWriteBehind.Stage stage = writeBehind.open("a");
+		writeBehind.write(stage, 1, new Runnable() {
+			@Override
+			public void run() {
+				stage.fail(message);
+			}
+		});
+		writeBehind.close(stage, new Runnable() {
+			@Override
+			public void run() {
+				ran.add(stage.isFailed() ? "cleanup" : "commit");
+			}
+		});
+
+		verify(cmdEnv, never()).handleResult(message);
+		writeBehind.awaitAll(cmdEnv);
+		verify(cmdEnv).handleResult(message);
+		assertThat(ran.get(0), is("cleanup"));
+	}
+
+	@Test
+	public void reopening_a_file_waits_for_its_earlier_writes() {
+		ClientWriteBehind writeBehind = new ClientWriteBehind(2, 1024);
+		final AtomicInteger finished = new AtomicInteger();
+		ClientWriteBehind.Stage stage = writeBehind.open("a");
+		writeBehind.close(stage, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				finished.incrementAndGet();
+			}
+		});
+
+		writeBehind.open("a");
+		assertThat(finished.get(), is(1));
+	}
+
+	@Test
+	public void queued_bytes_are_bounded() {
+		ClientWriteBehind writeBehind = new ClientWriteBehind(1, 100);
+		final AtomicInteger written = new AtomicInteger();
+		final AtomicInteger maxQueued = new AtomicInteger();
+		final AtomicInteger queued = new AtomicInteger();
+		ClientWriteBehind.Stage stage = writeBehind.open("a");
+		for (int i = 0; i < 50; i++) {
+			maxQueued.accumulateAndGet(queued.addAndGet(40), Math::max);
+			writeBehind.write(stage, 40, new Runnable() {
+				@Override
+				public void run() {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					written.incrementAndGet();
+					queued.addAndGet(-40);
+				}
+			});
+		}
+
+		writeBehind.awaitAll(mock(CommandEnv.class));
+		assertThat(written.get(), is(50));
+		// Two 40-byte writes fit in 100 bytes; the caller's count includes
+		// the one it's about to queue
+		assertThat(maxQueued.get() <= 120, is(true));
+	}
+}
@@ -0,0 +1,87 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+
+@RunWith(JUnitPlatform.class)
+public class MD5DigestServiceTest {
+
+	private Path root;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		root = Files.createTempDirectory("digest");
+	}
+
+	@AfterEach
+	public void afterEach() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	@Test
+	public void digests_match_the_serial_digester() throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 50; i++) {
+			StringBuilder text = new StringBuilder();
+			for (int j = 0; j <= i * 40; j++) {
+				text.append("line ").append(j).append(j % 3 == 0 ? "\r\n" : "\n");
+			}
+			files.add(write("f" + i + ".txt", text.toString().getBytes(StandardCharsets.UTF_8)));
+		}
+		files.add(root.resolve("missing.txt").toFile());
+
+		MD5DigestService service = new MD5DigestService(4);
+		MD5Digester digester = new MD5Digester();
+		for (ClientLineEnding lineEnding : new ClientLineEnding[] {ClientLineEnding.FST_L_CRLF, null}) {
+			List<String> digests = service.digestAll(files, StandardCharsets.UTF_8, true, lineEnding);
+			assertThat(digests.size(), is(files.size()));
+			for (int i = 0; i < files.size(); i++) {
+				assertThat(digests.get(i), is(digester.digestFileAs32ByteHex(files.get(i),
+						StandardCharsets.UTF_8, true, lineEnding)));
+			}
+			assertThat(digests.get(files.size() - 1), is(nullValue()));
+		}
+	}
+
+	@Test
+	public void large_binary_files_are_digested_whole() throws Exception {
+		byte[] contents = new byte[(int) MD5Digester.MAPPED_READ_THRESHOLD * 3 + 12345];
+		new Random(42).nextBytes(contents);
+		File file = write("large.bin", contents);
+
+		String expected = StringUtils.leftPad(new BigInteger(1,
+				MessageDigest.getInstance("MD5").digest(contents)).toString(16).toUpperCase(), 32, '0');
+		assertThat(new MD5Digester().digestFileAs32ByteHex(file, null, false, null), is(expected));
+		assertThat(new MD5DigestService(2).digestAll(Collections.singletonList(file),
+				null, false, null).get(0), is(expected));
+	}
+
+	private File write(String name, byte[] contents) throws IOException {
+		Path path = root.resolve(name);
+		Files.write(path, contents);
+		return path.toFile();
+	}
+}
@@ -0,0 +1,115 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+
+/**
+ * JMH benchmarks for MD5Digester's file digests, as computed for the
+ * server's local digest requests: text with CRLF line endings converted,
+ * the same text in UTF-16, and binary files read as-is (mapped above
+ * MD5Digester.MAPPED_READ_THRESHOLD).<p>
+ *
+ * Not a unit test; run with the test classpath, e.g.
+ * <pre>
+ * java -cp ... com.perforce.p4java.impl.mapbased.rpc.func.helper.MD5DigesterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MD5DigesterBenchmark {
+
+	@Param({"65536", "4194304"})
+	public int fileSize;
+
+	private File textFile;
+	private File utf16File;
+	private File binaryFile;
+	private MD5Digester digester;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		StringBuilder text = new StringBuilder(fileSize);
+		for (int line = 0; text.length() < fileSize; line++) {
+			text.append("Line ").append(line).append(": the quick brown fox, déjà vu\r\n");
+		}
+		textFile = write("text", text.toString().getBytes(StandardCharsets.UTF_8));
+		utf16File = write("utf16", text.toString().getBytes(StandardCharsets.UTF_16LE));
+
+		byte[] binary = new byte[fileSize];
+		new Random(fileSize).nextBytes(binary);
+		binaryFile = write("binary", binary);
+
+		digester = new MD5Digester();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		Files.delete(textFile.toPath());
+		Files.delete(utf16File.toPath());
+		Files.delete(binaryFile.toPath());
+	}
+
+	@Benchmark
+	public String text() {
+		return digest(textFile, null);
+	}
+
+	@Benchmark
+	public String textUtf8() {
+		return digest(textFile, StandardCharsets.UTF_8);
+	}
+
+	@Benchmark
+	public String utf16() {
+		return digest(utf16File, StandardCharsets.UTF_16LE);
+	}
+
+	@Benchmark
+	public String binary() {
+		return digester.digestFileAs32ByteHex(binaryFile, null, false, null);
+	}
+
+	private String digest(File file, Charset charset) {
+		return digester.digestFileAs32ByteHex(file, charset, true, ClientLineEnding.FST_L_CRLF);
+	}
+
+	private static File write(String name, byte[] contents) throws IOException {
+		File file = File.createTempFile("md5bench-" + name, ".dat");
+		Files.write(file.toPath(), contents);
+		return file;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(MD5DigesterBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
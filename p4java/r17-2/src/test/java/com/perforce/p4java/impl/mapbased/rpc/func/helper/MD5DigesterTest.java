@@ -3,7 +3,6 @@ package com.perforce.p4java.impl.mapbased.rpc.func.helper;
 import com.perforce.p4java.CharsetDefs;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.impl.generic.client.ClientLineEnding;
-import com.perforce.p4java.impl.mapbased.rpc.sys.RpcUnicodeInputStream;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
@@ -12,28 +11,21 @@ import org.junit.jupiter.api.Test;
 import org.junit.platform.runner.JUnitPlatform;
 import org.junit.runner.RunWith;
 
-import javax.annotation.Nonnull;
-import javax.annotation.Nullable;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.Charset;
-import java.nio.charset.CharsetEncoder;
-import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
 import static org.hamcrest.core.Is.is;
-import static org.hamcrest.core.IsEqual.equalTo;
 import static org.junit.Assert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.ArgumentMatchers.any;
@@ -297,21 +289,6 @@ public class MD5DigesterTest {
         assertThat(actual, is(true));
     }
 
-    @DisplayName("findOffsetOfNextClientLineEndingIfReadBytesEndWithFirstByteOfClientLineEnding() with need covert client line ending argument")
-    @Test
-    public void testFindPotentialOffsetOfNextClientLineEnding_needConvertText() throws Exception {
-        ClientLineEnding clientLineEnding = ClientLineEnding.FST_L_CR;
-        byte lastByte = ClientLineEnding.FST_L_CR_BYTES[0];
-
-        Method method = MD5Digester.class.getDeclaredMethod(
-                "findOffsetOfNextClientLineEndingIfReadBytesEndWithFirstByteOfClientLineEnding",
-                byte.class, ClientLineEnding.class);
-        method.setAccessible(true);
-        int actual = (int) method.invoke(md5Digester, lastByte, clientLineEnding);
-        int expected = ClientLineEnding.FST_L_CR_BYTES.length - 1;
-        assertThat(actual, is(expected));
-    }
-
     @DisplayName("update(ByteBuffer byteBuf) with nonNull argument")
     @Test
     public void testUpdate_with_nonNull_argument() {
@@ -335,271 +312,97 @@ public class MD5DigesterTest {
         verify(mockMessageDigest, times(0)).update(any(byte[].class));
     }
 
-    @DisplayName("doesSourceBytesUseSameClientLineEnding() and it's converted")
-    @Test
-    public void testIsAlreadyConverted_return_converted()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        byte[] sourceBytes = new byte[] { 2, 5, 7, '\n', '\r', '\n', 12, 13 };
-        int indexOfSourceBytes = 3;
-        int length = 8;
-        byte[] clientLineEndBytes = new byte[] { '\n', '\r', '\n' };
-
-        boolean actual = invokePrivate_isAlreadyConverted(sourceBytes, indexOfSourceBytes, length,
-                clientLineEndBytes);
-
-        assertThat(actual, is(true));
-    }
-
-    @DisplayName("doesSourceBytesUseSameClientLineEnding() and it's not converted but first byte is same")
-    @Test
-    public void testIsAlreadyConverted_not_converted_but_firstByteIsSame()
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-        byte[] sourceBytes = new byte[] { 2, 5, 7, '\n', '\n', '\r', '\n', 12, 13 };
-        int indexOfSourceBytes = 3;
-        int length = 8;
-        byte[] clientLineEndBytes = new byte[] { '\n', '\r', '\n' };
-
-        boolean actual = invokePrivate_isAlreadyConverted(sourceBytes, indexOfSourceBytes, length,
-                clientLineEndBytes);
-
-        assertThat(actual, is(false));
-    }
-
-    @DisplayName("doesSourceBytesUseSameClientLineEnding() and it's not converted")
-    @Test
-    public void testIsAlreadyConverted_not_converted()
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-        byte[] sourceBytes = new byte[] { 2, 5, 7, '\r', '\n', '\r', '\n', 12, 13 };
-        int indexOfSourceBytes = 3;
-        int length = 8;
-        byte[] clientLineEndBytes = new byte[] { '\n', '\r', '\n' };
-
-        boolean actual = invokePrivate_isAlreadyConverted(sourceBytes, indexOfSourceBytes, length,
-                clientLineEndBytes);
-
-        assertThat(actual, is(false));
-    }
-
-    private boolean invokePrivate_isAlreadyConverted(byte[] sourceBytes,
-            final int indexOfSourceBytes, final int length, byte[] clientLineEndBytes)
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-
-        Method method = MD5Digester.class.getDeclaredMethod(
-                "doesSourceBytesUseSameClientLineEnding", byte[].class, int.class, int.class,
-                byte[].class);
-        method.setAccessible(true);
-        return (boolean) method.invoke(md5Digester, sourceBytes, indexOfSourceBytes, length,
-                clientLineEndBytes);
-    }
-
-    @DisplayName("test convertToP4dServerEndingsIfRequired() - 1. source bytes use same client line endings")
+    @DisplayName("updateConvertingLineEndings() converts client line endings in place")
     @Test
-    public void testConvertToP4dServerEndingsIfRequired_sourceBytesUseSameClientLineEndings()
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
+    public void testUpdateConvertingLineEndings_endOfInput() throws Exception {
         byte[] sourceBytes = new byte[] { 2, 5, 7, '\r', '\n', 12, 13 };
-        int start = 3;
-        int length = 7;
-        ClientLineEnding clientLineEnding = ClientLineEnding.FST_L_CRLF;
 
-        ByteBuffer actual = invokePrivate_convertToP4dServerEndingsIfRequired(sourceBytes, start,
-                length, clientLineEnding);
-        ByteBuffer expected = ByteBuffer.wrap(new byte[] { '\n', 12, 13 }, 0, 3);
-        assertThat(actual, is(expected));
-    }
+        int carry = invokePrivate_updateConvertingLineEndings(sourceBytes, 7,
+                ClientLineEnding.FST_L_CRLF_BYTES, true);
 
-    @DisplayName("test convertToP4dServerEndingsIfRequired() - 2. source bytes use same client line endings")
-    @Test
-    public void testConvertToP4dServerEndingsIfRequired()
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-        byte[] sourceBytes = new byte[] { 2, 5, 7, '\n', '\r', '\n', 12, 13 };
-        int start = 3;
-        int length = 8;
-        ClientLineEnding clientLineEnding = ClientLineEnding.FST_L_CRLF;
-
-        ByteBuffer actual = invokePrivate_convertToP4dServerEndingsIfRequired(sourceBytes, start,
-                length, clientLineEnding);
-        ByteBuffer expected = ByteBuffer.wrap(new byte[] { '\n', '\n', 12, 13 }, 0, 4);
-        assertThat(actual, is(expected));
+        assertThat(carry, is(0));
+        assertThat(md5Digester.digestAsBytes(), is(md5(new byte[] { 2, 5, 7, '\n', 12, 13 })));
     }
 
-    @DisplayName("test convertToP4dServerEndingsIfRequired() - 3. is not require convert client or local line ending to server format")
+    @DisplayName("updateConvertingLineEndings() carries over a line ending split across reads")
     @Test
-    public void testConvertToP4dServerEndingsIfRequired3()
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException {
-        byte[] sourceBytes = new byte[] { 2, 5, 7, '\n', '\r', '\n', 12, 13 };
-        int start = 3;
-        int length = 5;
-        ClientLineEnding clientLineEnding = ClientLineEnding.FST_L_LF;
-
-        ByteBuffer actual = invokePrivate_convertToP4dServerEndingsIfRequired(sourceBytes, start,
-                length, clientLineEnding);
-        ByteBuffer expected = ByteBuffer.wrap(sourceBytes, start, length);
-        assertThat(actual, is(expected));
-    }
+    public void testUpdateConvertingLineEndings_carriesOverSplitLineEnding() throws Exception {
+        byte[] sourceBytes = new byte[] { 2, 5, 7, '\r', 0, 0 };
 
-    private ByteBuffer invokePrivate_convertToP4dServerEndingsIfRequired(
-            @Nonnull byte[] sourceBytes, final int start, final int length,
-            @Nullable ClientLineEnding clientLineEnding)
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+        int carry = invokePrivate_updateConvertingLineEndings(sourceBytes, 4,
+                ClientLineEnding.FST_L_CRLF_BYTES, false);
+        assertThat(carry, is(1));
+        assertThat(sourceBytes[0], is((byte) '\r'));
 
-        Method method = MD5Digester.class.getDeclaredMethod("convertToP4dServerEndingsIfRequired",
-                byte[].class, int.class, int.class, ClientLineEnding.class);
-        method.setAccessible(true);
-        return (ByteBuffer) method.invoke(md5Digester, sourceBytes, start, length,
-                clientLineEnding);
+        sourceBytes[1] = '\n';
+        sourceBytes[2] = 8;
+        carry = invokePrivate_updateConvertingLineEndings(sourceBytes, 3,
+                ClientLineEnding.FST_L_CRLF_BYTES, true);
+        assertThat(carry, is(0));
+        assertThat(md5Digester.digestAsBytes(), is(md5(new byte[] { 2, 5, 7, '\n', 8 })));
     }
 
-    @DisplayName("test findAndReplaceNonEncodedClientLineEndingIfRequireLineEndingConvert() - 1. verify if last byte ends with first byte of client line ending.")
+    @DisplayName("updateConvertingLineEndings() with a three byte client line ending")
     @Test
-    public void testContinueReadBytesIfReadBytesEndWithFirstByteOfClientLineEnding2()
-            throws NoSuchMethodException, IllegalAccessException, InvocationTargetException,
-            IOException {
-        byte[] sourceBytes = new byte[] { 2, 5, 7, '\r', '\n', '\r', '\n', 8, 11, 59, '\n', '\r',
-                '\n' };
-        InputStream inStream = new ByteArrayInputStream(sourceBytes);
-        byte[] readBuffer = new byte[10];
-        readBuffer[0] = 2;
-        readBuffer[1] = 5;
-        readBuffer[2] = 7;
-        readBuffer[3] = '\r';
-        int totalBytesReadIntoBuffer = 4;
-        inStream.read(new byte[totalBytesReadIntoBuffer]);
-
-        ByteBuffer actual = invokePrivate_findAndReplaceNonEncodedClientLineEndingIfRequireLineEndingConvert(
-                inStream, readBuffer, totalBytesReadIntoBuffer, ClientLineEnding.FST_L_CRLF);
+    public void testUpdateConvertingLineEndings_lfcrlf() throws Exception {
+        byte[] sourceBytes = new byte[] { 2, '\n', '\n', '\r', '\n', '\r', '\n', 12 };
 
-        byte[] expectedBytes = new byte[] { 2, 5, 7, '\n' };
-        ByteBuffer expected = ByteBuffer.wrap(expectedBytes, 0, 4);
+        int carry = invokePrivate_updateConvertingLineEndings(sourceBytes, 8,
+                ClientLineEnding.FST_L_LFCRLF_BYTES, true);
 
-        assertThat(actual, equalTo(expected));
+        assertThat(carry, is(0));
+        assertThat(md5Digester.digestAsBytes(), is(md5(new byte[] { 2, '\n', '\n', '\r', '\n', 12 })));
     }
 
-    private ByteBuffer invokePrivate_findAndReplaceNonEncodedClientLineEndingIfRequireLineEndingConvert(
-            @Nonnull InputStream inStream, @Nonnull final byte[] readBuffer,
-            final int totalBytesReadIntoBuffer, @Nullable ClientLineEnding clientLineEnding)
+    private int invokePrivate_updateConvertingLineEndings(byte[] bytes, int length,
+            byte[] clientLineEndBytes, boolean endOfInput)
             throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
 
-        Method method = MD5Digester.class.getDeclaredMethod(
-                "findAndReplaceNonEncodedClientLineEndingIfRequireLineEndingConvert",
-                InputStream.class, byte[].class, int.class, ClientLineEnding.class);
+        Method method = MD5Digester.class.getDeclaredMethod("updateConvertingLineEndings",
+                byte[].class, int.class, byte[].class, boolean.class);
         method.setAccessible(true);
-
-        return (ByteBuffer) method.invoke(md5Digester, inStream, readBuffer,
-                totalBytesReadIntoBuffer, clientLineEnding);
-    }
-
-    @Test
-    public void test_findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert()
-            throws IOException, NoSuchMethodException, IllegalAccessException,
-            InvocationTargetException {
-        byte[] sourceBytes = new byte[] { 'q', 'c', 'e', '\r', '\n', '\r', '\n', 'd', 'h', 'b',
-                '\n', '\r', '\n' };
-        RpcUnicodeInputStream unicodeInputStream = new RpcUnicodeInputStream(
-                new ByteArrayInputStream(sourceBytes));
-        InputStreamReader encodedStreamReader = new InputStreamReader(unicodeInputStream,
-                StandardCharsets.US_ASCII);
-        CharsetEncoder utf8CharsetEncoder = CharsetDefs.UTF8.newEncoder()
-                .onMalformedInput(CodingErrorAction.REPORT)
-                .onUnmappableCharacter(CodingErrorAction.REPORT);
-        char[] buffer = new char[5];
-        buffer[0] = 'q';
-        buffer[1] = 'c';
-        buffer[2] = 'e';
-        buffer[3] = '\r';
-        ByteBuffer utf8ByteBuffer = utf8CharsetEncoder.encode(CharBuffer.wrap(buffer, 0, 4));
-        encodedStreamReader.read(new char[4]);
-
-        ByteBuffer actual = invokePrivate_findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert(
-                encodedStreamReader, utf8CharsetEncoder, utf8ByteBuffer,
-                ClientLineEnding.FST_L_CRLF);
-
-        byte[] expectedBytes = new byte[] { 'q', 'c', 'e', '\n' };
-        ByteBuffer expected = ByteBuffer.wrap(expectedBytes, 0, 4);
-
-        assertThat(actual, is(expected));
+        return (int) method.invoke(md5Digester, bytes, length, clientLineEndBytes, endOfInput);
     }
 
+    @DisplayName("test digestStream() with line endings split at every possible read boundary")
     @Test
-    public void test_findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert_2()
-            throws IOException, NoSuchMethodException, IllegalAccessException,
-            InvocationTargetException {
-        byte[] sourceBytes = new byte[] { 'q', 'c', 'e', '\r', '\n', '\r', '\n', 'd', 'h', 'b',
-                '\n', '\r', '\n' };
-        RpcUnicodeInputStream unicodeInputStream = new RpcUnicodeInputStream(
-                new ByteArrayInputStream(sourceBytes));
-        InputStreamReader encodedStreamReader = new InputStreamReader(unicodeInputStream,
-                StandardCharsets.US_ASCII);
-        CharsetEncoder utf8CharsetEncoder = CharsetDefs.UTF8.newEncoder()
-                .onMalformedInput(CodingErrorAction.REPORT)
-                .onUnmappableCharacter(CodingErrorAction.REPORT);
-        char[] buffer = new char[7];
-        buffer[0] = 'q';
-        buffer[1] = 'c';
-        buffer[2] = 'e';
-        buffer[3] = '\r';
-        buffer[4] = '\n';
-        ByteBuffer utf8ByteBuffer = utf8CharsetEncoder.encode(CharBuffer.wrap(buffer, 0, 5));
-        encodedStreamReader.read(new char[5]);
-
-        ByteBuffer actual = invokePrivate_findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert(
-                encodedStreamReader, utf8CharsetEncoder, utf8ByteBuffer,
-                ClientLineEnding.FST_L_CRLF);
-
-        byte[] expectedBytes = new byte[] { 'q', 'c', 'e', '\n' };
-        ByteBuffer expected = ByteBuffer.wrap(expectedBytes, 0, 4);
+    public void testDigestStream_everyBufferSize() throws Exception {
+        byte[] sourceBytes = new byte[] { 2, 5, 7, '\r', '\n', '\r', '\n', 8, 11, 59, '\n', '\r',
+                '\n', '\r', '\r', '\n' };
+        byte[] expected = md5(new byte[] { 2, 5, 7, '\n', '\n', 8, 11, 59, '\n', '\n', '\r',
+                '\n' });
 
-        assertThat(actual, is(expected));
+        Method method = getPrivate_method_of_digestStream();
+        for (int bufferSize = 1; bufferSize <= sourceBytes.length + 1; bufferSize++) {
+            MD5Digester digester = new MD5Digester(bufferSize);
+            method.invoke(digester, new ByteArrayInputStream(sourceBytes), true,
+                    ClientLineEnding.FST_L_CRLF);
+            assertThat("buffer size " + bufferSize, digester.digestAsBytes(), is(expected));
+        }
     }
 
+    @DisplayName("test digestFileAs32ByteHex() of a UTF-16 file with every buffer size")
     @Test
-    public void test_findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert_3()
-            throws IOException, NoSuchMethodException, IllegalAccessException,
-            InvocationTargetException {
-        byte[] sourceBytes = new byte[] { 'q', 'c', 'e', '\r', '\n', '\r', '\n', 'd', 'h', 'b',
-                '\n', '\r', '\n' };
-        RpcUnicodeInputStream unicodeInputStream = new RpcUnicodeInputStream(
-                new ByteArrayInputStream(sourceBytes));
-        InputStreamReader encodedStreamReader = new InputStreamReader(unicodeInputStream,
-                StandardCharsets.US_ASCII);
-        CharsetEncoder utf8CharsetEncoder = CharsetDefs.UTF8.newEncoder()
-                .onMalformedInput(CodingErrorAction.REPORT)
-                .onUnmappableCharacter(CodingErrorAction.REPORT);
-        char[] buffer = new char[9];
-        buffer[0] = 'q';
-        buffer[1] = 'c';
-        buffer[2] = 'e';
-        buffer[3] = '\r';
-        buffer[4] = '\n';
-        buffer[5] = '\r';
-        buffer[6] = '\n';
-        buffer[7] = 'd';
-        ByteBuffer utf8ByteBuffer = utf8CharsetEncoder.encode(CharBuffer.wrap(buffer, 0, 8));
-        encodedStreamReader.read(new char[8]);
-
-        ByteBuffer actual = invokePrivate_findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert(
-                encodedStreamReader, utf8CharsetEncoder, utf8ByteBuffer,
-                ClientLineEnding.FST_L_CRLF);
-
-        byte[] expectedBytes = new byte[] { 'q', 'c', 'e', '\n', '\n', 'd' };
-        ByteBuffer expected = ByteBuffer.wrap(expectedBytes, 0, 6);
-
-        assertThat(actual, is(expected));
+    public void testDigestFileAs32ByteHex_utf16_everyBufferSize() throws Exception {
+        String text = "café\r\nnaïve 😀\r\n\r\nend\r";
+        File file = File.createTempFile("md5_digest_utf16", ".txt");
+        try {
+            Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_16LE));
+            MD5Digester reference = new MD5Digester();
+            reference.update(text.replace("\r\n", "\n").getBytes(StandardCharsets.UTF_8));
+            String expected = reference.digestAs32ByteHex();
+
+            for (int bufferSize = 1; bufferSize <= 40; bufferSize++) {
+                String actual = new MD5Digester(bufferSize).digestFileAs32ByteHex(file,
+                        StandardCharsets.UTF_16LE, true, ClientLineEnding.FST_L_CRLF);
+                assertThat("buffer size " + bufferSize, actual, is(expected));
+            }
+        } finally {
+            Files.delete(file.toPath());
+        }
+    }
+
+    private static byte[] md5(byte[] bytes) throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5").digest(bytes);
     }
-
-    private ByteBuffer invokePrivate_findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert(
-            @Nonnull InputStreamReader encodedStreamReader,
-            @Nonnull CharsetEncoder utf8CharsetEncoder, @Nonnull ByteBuffer utf8ByteBuffer,
-            @Nullable ClientLineEnding clientLineEnding)
-            throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-
-        Method method = MD5Digester.class.getDeclaredMethod(
-                "findAndReplaceEncodedClientLineEndingIfRequireLineEndingCovert",
-                InputStreamReader.class, CharsetEncoder.class, ByteBuffer.class,
-                ClientLineEnding.class);
-        method.setAccessible(true);
-
-        return (ByteBuffer) method.invoke(md5Digester, encodedStreamReader, utf8CharsetEncoder,
-                utf8ByteBuffer, clientLineEnding);
-    }
-
 }
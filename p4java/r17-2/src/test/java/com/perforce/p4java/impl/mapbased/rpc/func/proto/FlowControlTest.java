@@ -0,0 +1,58 @@
+package com.perforce.p4java.impl.mapbased.rpc.func.proto;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.Properties;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+
+@RunWith(JUnitPlatform.class)
+public class FlowControlTest {
+
+	@Test
+	public void pipeline_is_limited_by_window() {
+		Properties props = new Properties();
+		props.setProperty(RpcPropertyDefs.RPC_BATCH_WINDOW_NICK, "2");
+		FlowControl flowControl = new FlowControl(null, props);
+
+		assertThat(flowControl.canSendPipelined(), is(true));
+		flowControl.pipelinedCommandSent(100);
+		assertThat(flowControl.canSendPipelined(), is(true));
+		flowControl.pipelinedCommandSent(100);
+		assertThat(flowControl.canSendPipelined(), is(false));
+		flowControl.pipelinedCommandDone(100);
+		assertThat(flowControl.canSendPipelined(), is(true));
+	}
+
+	@Test
+	public void pipeline_is_limited_by_outstanding_bytes() {
+		Properties props = new Properties();
+		props.setProperty(RpcPropertyDefs.RPC_BATCH_HI_MARK_NICK, "1000");
+		FlowControl flowControl = new FlowControl(null, props);
+
+		flowControl.pipelinedCommandSent(600);
+		assertThat(flowControl.canSendPipelined(), is(true));
+		flowControl.pipelinedCommandSent(600);
+		assertThat(flowControl.canSendPipelined(), is(false));
+		flowControl.pipelinedCommandDone(600);
+		assertThat(flowControl.canSendPipelined(), is(true));
+	}
+
+	@Test
+	public void first_command_is_always_allowed() {
+		Properties props = new Properties();
+		props.setProperty(RpcPropertyDefs.RPC_BATCH_HI_MARK_NICK, "1");
+		FlowControl flowControl = new FlowControl(null, props);
+
+		assertThat(flowControl.canSendPipelined(), is(true));
+		flowControl.pipelinedCommandSent(5000);
+		assertThat(flowControl.canSendPipelined(), is(false));
+		flowControl.resetPipeline();
+		assertThat(flowControl.canSendPipelined(), is(true));
+	}
+}
@@ -0,0 +1,93 @@
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for decoding a single result packet into an RpcResultsMap,
+ * and for looking up every field in the result. The packet holds numbered
+ * tags (depotFile0, rev0, action0, depotFile1, ...), as "describe -s" or
+ * "filelog" send them, so the larger sizes exercise one very wide packet
+ * rather than many small ones.<p>
+ *
+ * Not a unit test; run with the test classpath, e.g.
+ * <pre>
+ * java -cp ... com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDecodeBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RpcPacketDecodeBenchmark {
+
+	private static final String[] TAGS = {"depotFile", "rev", "action", "type"};
+
+	@Param({"16", "1000", "120000"})
+	public int fields;
+
+	private byte[] payload;
+	private RpcPacketPreamble preamble;
+	private String[] keys;
+	private Map<String, Object> decoded;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		ByteBuffer buf = ByteBuffer.allocate(64 + fields * 48);
+		RpcPacketField.marshal(buf, "func", "client-FstatInfo".getBytes(StandardCharsets.UTF_8));
+		keys = new String[fields];
+		for (int i = 0; i < fields; i++) {
+			int record = i / TAGS.length;
+			keys[i] = TAGS[i % TAGS.length] + record;
+			RpcPacketField.marshal(buf, keys[i],
+					("//depot/main/file" + record).getBytes(StandardCharsets.UTF_8));
+		}
+		payload = new byte[buf.position()];
+		System.arraycopy(buf.array(), 0, payload, 0, payload.length);
+		preamble = RpcPacketPreamble.constructPreamble(payload.length);
+		decoded = decode();
+	}
+
+	@Benchmark
+	public Map<String, Object> decode() {
+		return RpcPacket.constructRpcPacket(preamble, ByteBuffer.wrap(payload), false,
+				StandardCharsets.UTF_8, null, null).getResultsMap();
+	}
+
+	@Benchmark
+	public int lookup() {
+		int found = 0;
+		for (String key : keys) {
+			if (decoded.get(key) != null) {
+				found++;
+			}
+		}
+		return found;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RpcPacketDecodeBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
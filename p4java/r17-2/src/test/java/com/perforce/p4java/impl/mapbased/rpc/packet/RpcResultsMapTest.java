@@ -0,0 +1,174 @@
+package com.perforce.p4java.impl.mapbased.rpc.packet;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+@RunWith(JUnitPlatform.class)
+public class RpcResultsMapTest {
+
+	@Test
+	public void behaves_like_hash_map() {
+		RpcResultsMap map = new RpcResultsMap(2);
+		Map<String, Object> expected = new HashMap<>();
+		for (int i = 0; i < 20; i++) {
+			map.put("key" + i, "value" + i);
+			expected.put("key" + i, "value" + i);
+		}
+		map.put(null, "nullValue");
+		expected.put(null, "nullValue");
+		assertThat(map.put("key3", "changed"), is("value3"));
+		expected.put("key3", "changed");
+		assertThat(map.remove("key7"), is("value7"));
+		expected.remove("key7");
+
+		assertThat(map.size(), is(expected.size()));
+		assertThat(map.equals(expected), is(true));
+		assertThat(expected.equals(map), is(true));
+		assertThat(map.hashCode(), is(expected.hashCode()));
+		assertThat(map.get(new String("key3")), is("changed"));
+		assertThat(map.get("key7"), nullValue());
+		assertThat(map.get(null), is("nullValue"));
+	}
+
+	@Test
+	public void large_map_behaves_like_hash_map() {
+		RpcResultsMap map = new RpcResultsMap(5);
+		Map<String, Object> expected = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			map.put("key" + i, "value" + i);
+			expected.put("key" + i, "value" + i);
+		}
+		map.put(null, "nullValue");
+		expected.put(null, "nullValue");
+		for (int i = 0; i < 5000; i += 7) {
+			assertThat(map.remove("key" + i), is("value" + i));
+			expected.remove("key" + i);
+		}
+		assertThat(map.put("key3", "changed"), is("value3"));
+		expected.put("key3", "changed");
+		map.put("key0", "back");
+		expected.put("key0", "back");
+
+		assertThat(map.size(), is(expected.size()));
+		assertThat(map.equals(expected), is(true));
+		assertThat(map.get(new String("key4999")), is("value4999"));
+		assertThat(map.get("key7"), nullValue());
+		assertThat(map.get(null), is("nullValue"));
+		assertThat(map.containsKey("key5000"), is(false));
+	}
+
+	@Test
+	public void put_with_suffix_in_large_map() {
+		RpcResultsMap map = new RpcResultsMap();
+		for (int i = 0; i < 1000; i++) {
+			map.putWithSuffix("change", "" + i);
+		}
+		assertThat(map.get("change"), is("0"));
+		assertThat(map.get("change0"), is("1"));
+		assertThat(map.get("change998"), is("999"));
+		assertThat(map.size(), is(1000));
+
+		// A freed suffix is reused, as with a small map.
+		map.remove("change500");
+		assertThat(map.putWithSuffix("change", "again"), is("change500"));
+		assertThat(map.putWithSuffix("change", "last"), is("change999"));
+	}
+
+	/**
+	 * Some commands put all their output in a single packet of numbered tags;
+	 * decoding one mustn't be quadratic in its field count.
+	 */
+	@Test
+	public void wide_packet_decodes_every_field() {
+		int records = 10000;
+		ByteBuffer payload = ByteBuffer.allocate(records * 160);
+		RpcPacketField.marshal(payload, "func", "client-FstatInfo".getBytes(StandardCharsets.UTF_8));
+		for (int i = 0; i < records; i++) {
+			RpcPacketField.marshal(payload, "depotFile" + i, ("//depot/file" + i).getBytes(StandardCharsets.UTF_8));
+			RpcPacketField.marshal(payload, "rev" + i, ("" + i).getBytes(StandardCharsets.UTF_8));
+			RpcPacketField.marshal(payload, "action" + i, "edit".getBytes(StandardCharsets.UTF_8));
+			RpcPacketField.marshal(payload, "type", "text".getBytes(StandardCharsets.UTF_8));
+			RpcPacketField.marshal(payload, "digest", "0123".getBytes(StandardCharsets.UTF_8));
+		}
+		payload.flip();
+
+		Map<String, Object> results = RpcPacket.constructRpcPacket(
+				RpcPacketPreamble.constructPreamble(payload.remaining()), payload,
+				false, StandardCharsets.UTF_8, null, null).getResultsMap();
+
+		assertThat(results.size(), is(1 + records * 5));
+		assertThat(results.get("depotFile9999"), is("//depot/file9999"));
+		assertThat(results.get("rev5000"), is("5000"));
+		assertThat(results.get("type"), is("text"));
+		assertThat(results.get("type9998"), is("text"));
+		assertThat(results.get("digest0"), is("0123"));
+		assertThat(results.containsKey("type9999"), is(false));
+	}
+
+	@Test
+	public void put_with_suffix_numbers_repeated_names() {
+		RpcResultsMap map = new RpcResultsMap();
+		map.putWithSuffix("change", "1");
+		map.putWithSuffix("change", "2");
+		map.putWithSuffix("change", "3");
+		map.putWithSuffix("other", "x");
+		for (int i = 0; i < 11; i++) {
+			map.putWithSuffix("other", "x" + i);
+		}
+
+		assertThat(map.get("change"), is("1"));
+		assertThat(map.get("change0"), is("2"));
+		assertThat(map.get("change1"), is("3"));
+		assertThat(map.get("other9"), is("x9"));
+		assertThat(map.get("other10"), is("x10"));
+		assertThat(map.size(), is(15));
+	}
+
+	@Test
+	public void numbered_known_names_are_shared() {
+		RpcResultsMap first = new RpcResultsMap();
+		RpcResultsMap second = new RpcResultsMap();
+		first.putWithSuffix("depotFile", "a");
+		String firstKey = first.putWithSuffix("depotFile", "b");
+		second.putWithSuffix("depotFile", "a");
+		String secondKey = second.putWithSuffix("depotFile", "b");
+
+		assertThat(firstKey, is("depotFile0"));
+		assertThat(secondKey, sameInstance(firstKey));
+	}
+
+	@Test
+	public void entry_iterator_supports_remove_and_set_value() {
+		RpcResultsMap map = new RpcResultsMap();
+		map.put("func", "client-Message");
+		map.put("code0", "1");
+		map.put("fmt0", "2");
+
+		Iterator<Map.Entry<String, Object>> iter = map.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<String, Object> entry = iter.next();
+			if ("func".equals(entry.getKey())) {
+				iter.remove();
+			} else {
+				entry.setValue(entry.getValue() + "!");
+			}
+		}
+
+		assertThat(map.size(), is(2));
+		assertThat(map.containsKey("func"), is(false));
+		assertThat(map.get("code0"), is("1!"));
+		assertThat(map.get("fmt0"), is("2!"));
+	}
+}
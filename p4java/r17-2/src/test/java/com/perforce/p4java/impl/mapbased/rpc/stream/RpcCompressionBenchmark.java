@@ -0,0 +1,194 @@
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketField;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
+
+/**
+ * JMH benchmarks comparing the JZlib connection compression streams
+ * (RpcGZIPInputStream, RpcGZIPOutputStream) with the java.util.zip ones
+ * (RpcInflaterInputStream, RpcDeflaterOutputStream).<p>
+ *
+ * The traffic is recorded once per trial: a run of marshaled RPC packets,
+ * each a preamble plus its fields, as sent for "fstat" (many small, similar
+ * packets) or "print" (file content in large chunks). The packets are
+ * compressed with a flush after each one, as RpcStreamConnection does. Both
+ * inflaters read the same JZlib-compressed stream; each deflater compresses
+ * the recorded packets.<p>
+ *
+ * Not a unit test; run with the test classpath, e.g.
+ * <pre>
+ * java -cp ... com.perforce.p4java.impl.mapbased.rpc.stream.RpcCompressionBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RpcCompressionBenchmark {
+
+	private static final int PACKET_COUNT = 5000;
+	private static final int PRINT_CHUNK_SIZE = 8192;
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	@Param({"fstat", "print"})
+	public String traffic;
+
+	private List<byte[]> packets;
+	private int totalBytes;
+	private byte[] compressed;
+	private byte[] readBuffer;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		packets = new ArrayList<>(PACKET_COUNT);
+		Random random = new Random(PACKET_COUNT);
+		for (int i = 0; i < PACKET_COUNT; i++) {
+			byte[] packet = "print".equals(traffic) ? printPacket(i, random) : fstatPacket(i, random);
+			packets.add(packet);
+			totalBytes += packet.length;
+		}
+
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		writePackets(new RpcGZIPOutputStream(wire));
+		compressed = wire.toByteArray();
+		readBuffer = new byte[READ_BUFFER_SIZE];
+	}
+
+	@Benchmark
+	public int inflateJzlib() throws IOException {
+		return readAll(new RpcGZIPInputStream(new ByteArrayInputStream(compressed)));
+	}
+
+	@Benchmark
+	public int inflateNative() throws IOException {
+		return readAll(new RpcInflaterInputStream(new ByteArrayInputStream(compressed)));
+	}
+
+	@Benchmark
+	public int deflateJzlib() throws IOException {
+		CountingOutputStream wire = new CountingOutputStream();
+		writePackets(new RpcGZIPOutputStream(wire));
+		return wire.count;
+	}
+
+	@Benchmark
+	public int deflateNative() throws IOException {
+		CountingOutputStream wire = new CountingOutputStream();
+		writePackets(new RpcDeflaterOutputStream(wire));
+		return wire.count;
+	}
+
+	private void writePackets(OutputStream out) throws IOException {
+		for (byte[] packet : packets) {
+			out.write(packet);
+			out.flush();
+		}
+		out.close();
+	}
+
+	private int readAll(InputStream in) throws IOException {
+		int bytesRead = 0;
+		while (bytesRead < totalBytes) {
+			int count = in.read(readBuffer, 0, Math.min(readBuffer.length, totalBytes - bytesRead));
+			if (count < 0) {
+				break;
+			}
+			bytesRead += count;
+		}
+		in.close();
+		return bytesRead;
+	}
+
+	private static byte[] fstatPacket(int i, Random random) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(1024);
+		field(buf, "func", "client-FstatInfo");
+		field(buf, "depotFile", "//depot/main/src/com/example/module" + (i / 100) + "/File" + i + ".java");
+		field(buf, "clientFile", "/home/user/ws/main/src/com/example/module" + (i / 100) + "/File" + i + ".java");
+		field(buf, "isMapped", "");
+		field(buf, "headAction", i % 7 == 0 ? "integrate" : "edit");
+		field(buf, "headType", "text");
+		field(buf, "headTime", Integer.toString(1500000000 + random.nextInt(10000000)));
+		field(buf, "headRev", Integer.toString(1 + random.nextInt(40)));
+		field(buf, "headChange", Integer.toString(100000 + random.nextInt(50000)));
+		field(buf, "headModTime", Integer.toString(1500000000 + random.nextInt(10000000)));
+		field(buf, "haveRev", Integer.toString(1 + random.nextInt(40)));
+		field(buf, "digest", Long.toHexString(random.nextLong()) + Long.toHexString(random.nextLong()));
+		field(buf, "fileSize", Integer.toString(random.nextInt(100000)));
+		return withPreamble(buf);
+	}
+
+	private static byte[] printPacket(int i, Random random) throws IOException {
+		StringBuilder data = new StringBuilder(PRINT_CHUNK_SIZE);
+		for (int line = 0; data.length() < PRINT_CHUNK_SIZE; line++) {
+			data.append("    int value").append(line).append(" = compute(").append(random.nextInt(1000))
+					.append(", \"").append(Integer.toHexString(random.nextInt())).append("\");\n");
+		}
+		ByteBuffer buf = ByteBuffer.allocate(PRINT_CHUNK_SIZE * 2);
+		field(buf, "func", "client-WriteFile");
+		field(buf, "handle", "tmp" + (i % 10));
+		RpcPacketField.marshal(buf, "data", data.substring(0, PRINT_CHUNK_SIZE).getBytes(StandardCharsets.UTF_8));
+		return withPreamble(buf);
+	}
+
+	private static void field(ByteBuffer buf, String name, String value) throws IOException {
+		RpcPacketField.marshal(buf, name, value.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static byte[] withPreamble(ByteBuffer payload) {
+		byte[] preamble = RpcPacketPreamble.constructPreamble(payload).marshalAsBytes();
+		byte[] packet = new byte[preamble.length + payload.position()];
+		System.arraycopy(preamble, 0, packet, 0, preamble.length);
+		System.arraycopy(payload.array(), 0, packet, preamble.length, payload.position());
+		return packet;
+	}
+
+	private static class CountingOutputStream extends OutputStream {
+		int count;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int len) {
+			count += len;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RpcCompressionBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
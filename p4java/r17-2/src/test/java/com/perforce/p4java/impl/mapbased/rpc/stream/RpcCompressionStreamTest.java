@@ -0,0 +1,97 @@
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that the native java.util.zip connection compression streams are
+ * wire compatible with the JZlib ones in both directions, flushing at
+ * packet boundaries the way RpcStreamConnection does.
+ */
+@RunWith(JUnitPlatform.class)
+public class RpcCompressionStreamTest {
+	private static final int PACKET_COUNT = 50;
+
+	@Test
+	public void nativeDeflater_to_jzlibInflater() throws IOException {
+		byte[][] packets = createPackets();
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		writePackets(new RpcDeflaterOutputStream(wire), packets);
+
+		readAndVerifyPackets(new RpcGZIPInputStream(new ByteArrayInputStream(wire.toByteArray())), packets);
+	}
+
+	@Test
+	public void jzlibDeflater_to_nativeInflater() throws IOException {
+		byte[][] packets = createPackets();
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		writePackets(new RpcGZIPOutputStream(wire), packets);
+
+		readAndVerifyPackets(new RpcInflaterInputStream(new ByteArrayInputStream(wire.toByteArray())), packets);
+	}
+
+	@Test
+	public void nativeDeflater_to_nativeInflater() throws IOException {
+		byte[][] packets = createPackets();
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		writePackets(new RpcDeflaterOutputStream(wire), packets);
+
+		readAndVerifyPackets(new RpcInflaterInputStream(new ByteArrayInputStream(wire.toByteArray())), packets);
+	}
+
+	/**
+	 * A mix of small, repetitive text packets and larger incompressible ones,
+	 * some bigger than the streams' internal buffers.
+	 */
+	private byte[][] createPackets() {
+		Random random = new Random(42);
+		byte[][] packets = new byte[PACKET_COUNT][];
+		for (int i = 0; i < PACKET_COUNT; i++) {
+			if (i % 5 == 4) {
+				packets[i] = new byte[1 + random.nextInt(40000)];
+				random.nextBytes(packets[i]);
+			} else {
+				StringBuilder builder = new StringBuilder();
+				for (int j = 0; j <= i; j++) {
+					builder.append("depotFile\0//depot/main/src/file").append(j).append(".java\0headRev\0");
+				}
+				packets[i] = builder.toString().getBytes();
+			}
+		}
+		return packets;
+	}
+
+	private void writePackets(OutputStream out, byte[][] packets) throws IOException {
+		for (byte[] packet : packets) {
+			out.write(packet);
+			out.flush();
+		}
+		out.close();
+	}
+
+	private void readAndVerifyPackets(InputStream in, byte[][] packets) throws IOException {
+		for (byte[] packet : packets) {
+			byte[] received = new byte[packet.length];
+			int bytesRead = 0;
+			while (bytesRead < received.length) {
+				int count = in.read(received, bytesRead, received.length - bytesRead);
+				if (count < 0) {
+					break;
+				}
+				bytesRead += count;
+			}
+			assertArrayEquals(packet, received);
+		}
+		in.close();
+	}
+}
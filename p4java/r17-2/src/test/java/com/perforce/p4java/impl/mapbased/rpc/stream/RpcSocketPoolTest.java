@@ -0,0 +1,171 @@
+package com.perforce.p4java.impl.mapbased.rpc.stream;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
+
+/**
+ * Exercises RpcSocketPool against a local server socket that accepts
+ * connections and otherwise stays silent, like an idle Perforce server.
+ */
+@RunWith(JUnitPlatform.class)
+public class RpcSocketPoolTest {
+	private ServerSocket serverSocket;
+	private final List<Socket> accepted = Collections.synchronizedList(new ArrayList<Socket>());
+	private ServerStats stats;
+	private Properties props;
+	private RpcSocketPool pool;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				try {
+					while (true) {
+						accepted.add(serverSocket.accept());
+					}
+				} catch (IOException e) {
+					// server socket closed
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		stats = new ServerStats();
+		props = new Properties();
+	}
+
+	@AfterEach
+	public void afterEach() throws IOException {
+		if (pool != null) {
+			pool.disconnect();
+		}
+		serverSocket.close();
+		synchronized (accepted) {
+			for (Socket socket : accepted) {
+				socket.close();
+			}
+		}
+	}
+
+	private RpcSocketPool createPool(int poolSize) {
+		return new RpcSocketPool(poolSize, serverSocket.getInetAddress().getHostAddress(),
+				serverSocket.getLocalPort(), props, null, false, stats);
+	}
+
+	@Test
+	public void released_socket_is_reused() throws IOException {
+		pool = createPool(2);
+		Socket first = pool.acquire();
+		pool.release(first, null);
+		Socket second = pool.acquire();
+
+		assertThat(second, sameInstance(first));
+		assertThat(stats.socketPoolMisses.get(), is(1L));
+		assertThat(stats.socketPoolHits.get(), is(1L));
+		pool.release(second, null);
+	}
+
+	@Test
+	public void socket_closed_by_server_is_not_reused() throws Exception {
+		pool = createPool(2);
+		Socket first = pool.acquire();
+		pool.release(first, null);
+		waitForAccepted(1);
+		accepted.get(0).close();
+		Thread.sleep(50);
+
+		Socket second = pool.acquire();
+
+		assertThat(second, not(sameInstance(first)));
+		assertThat(first.isClosed(), is(true));
+		assertThat(stats.socketPoolValidationFailures.get(), is(1L));
+		pool.release(second, null);
+	}
+
+	@Test
+	public void bounded_pool_times_out_waiting_for_lease() throws IOException {
+		props.setProperty(RpcPropertyDefs.RPC_SOCKET_POOL_MAX_SIZE_NICK, "1");
+		props.setProperty(RpcPropertyDefs.RPC_SOCKET_POOL_ACQUIRE_TIMEOUT_NICK, "50");
+		pool = createPool(1);
+		final Socket first = pool.acquire();
+
+		assertThrows(IOException.class, () -> pool.acquire());
+		assertThat(stats.socketPoolAcquireTimeouts.get(), is(1L));
+
+		pool.release(first, null);
+		Socket second = pool.acquire();
+		assertThat(second, sameInstance(first));
+		pool.release(second, null);
+	}
+
+	@Test
+	public void discard_returns_lease() throws IOException {
+		props.setProperty(RpcPropertyDefs.RPC_SOCKET_POOL_MAX_SIZE_NICK, "1");
+		props.setProperty(RpcPropertyDefs.RPC_SOCKET_POOL_ACQUIRE_TIMEOUT_NICK, "50");
+		pool = createPool(1);
+		Socket first = pool.acquire();
+		pool.discard(first);
+
+		Socket second = pool.acquire();
+		assertThat(first.isClosed(), is(true));
+		assertThat(second, not(sameInstance(first)));
+		pool.release(second, null);
+	}
+
+	@Test
+	public void timeout_evicts_idle_sockets() throws IOException {
+		pool = createPool(2);
+		Socket first = pool.acquire();
+		Socket second = pool.acquire();
+		pool.release(first, null);
+		pool.release(second, null);
+		assertThat(pool.getIdleCount(), is(2));
+
+		pool.timeout(0);
+
+		assertThat(pool.getIdleCount(), is(0));
+		assertThat(stats.socketPoolEvictions.get(), is(2L));
+		assertThat(first.isClosed(), is(true));
+		assertThat(second.isClosed(), is(true));
+	}
+
+	@Test
+	public void release_beyond_pool_size_closes_socket() throws IOException {
+		pool = createPool(1);
+		Socket first = pool.acquire();
+		Socket second = pool.acquire();
+		pool.release(first, null);
+		pool.release(second, null);
+
+		assertThat(pool.getIdleCount(), is(1));
+		assertThat(second.isClosed(), is(true));
+	}
+
+	private void waitForAccepted(int count) throws InterruptedException {
+		for (int i = 0; i < 100 && accepted.size() < count; i++) {
+			Thread.sleep(10);
+		}
+	}
+}
@@ -2,6 +2,7 @@ package com.perforce.p4java.impl.mapbased.rpc.stream;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.core.Is.is;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.expectThrows;
@@ -18,6 +19,7 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -27,6 +29,7 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
@@ -34,6 +37,9 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateExpiredException;
 import java.security.cert.CertificateNotYetValidException;
 import java.security.cert.X509Certificate;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.ssl.SSLPeerUnverifiedException;
@@ -50,10 +56,12 @@ import com.perforce.p4java.AbstractP4JavaUnitTest;
 import com.perforce.p4java.exception.ConnectionException;
 import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.impl.mapbased.rpc.ExternalEnv;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
 import com.perforce.p4java.impl.mapbased.rpc.ServerStats;
 import com.perforce.p4java.impl.mapbased.rpc.func.RpcFunctionSpec;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacket;
 import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketDispatcher;
+import com.perforce.p4java.impl.mapbased.rpc.packet.RpcPacketPreamble;
 import com.perforce.p4java.impl.mapbased.rpc.packet.helper.RpcPacketFieldRule;
 import com.perforce.p4java.server.callback.IFilterCallback;
 
@@ -226,24 +234,26 @@ public class RpcStreamConnectionTest extends AbstractP4JavaUnitTest {
 	public void processNameArgs() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
 		ImmutableMap<String, Object> nameArgs = ImmutableMap.of("key1", "value1");
 		RpcPacket packet = RpcPacket.constructRpcPacket(RpcFunctionSpec.CLIENT_ACK, nameArgs, null);
-		RpcStreamConnection.RpcPacketSupplier supplier = createMockRpcPacketSupplier();
+		RpcStreamConnection.RpcPacketSupplier supplier = new RpcStreamConnection.RpcPacketSupplier();
 		Method processNameArgs = getPrivateMethod(RpcStreamConnection.class, "processNameArgs", RpcPacket.class,
 				RpcStreamConnection.RpcPacketSupplier.class);
 		processNameArgs.invoke(mockConnection, packet, supplier);
 
-		verifyMockRpcPacketSupplier(supplier, nameArgs.size());
+		assertThat(supplier.fieldCount(), is(nameArgs.size()));
+		// preamble + "key1" + null + length + "value1" + null
+		assertThat(supplier.packetLength(), is(5 + 4 + 1 + 4 + 6 + 1));
 	}
 
 	@Test
 	public void processStringArgs() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
 		String[] args = { "value1", "value2" };
 		RpcPacket packet = RpcPacket.constructRpcPacket(RpcFunctionSpec.CLIENT_ACK, "test", args, null);
-		RpcStreamConnection.RpcPacketSupplier supplier = createMockRpcPacketSupplier();
+		RpcStreamConnection.RpcPacketSupplier supplier = new RpcStreamConnection.RpcPacketSupplier();
 		Method processStringArgs = getPrivateMethod(RpcStreamConnection.class, "processStringArgs", RpcPacket.class,
 				RpcStreamConnection.RpcPacketSupplier.class);
 		processStringArgs.invoke(mockConnection, packet, supplier);
 
-		verifyMockRpcPacketSupplier(supplier, args.length);
+		assertThat(supplier.fieldCount(), is(args.length));
 	}
 
 	@Test
@@ -252,57 +262,70 @@ public class RpcStreamConnectionTest extends AbstractP4JavaUnitTest {
 		byte[] sendBytes = new byte[] { 'd', 'e', 'f' };
 		when(externalEnv.marshal()).thenReturn(sendBytes);
 		RpcPacket packet = RpcPacket.constructRpcPacket("test", null, externalEnv);
-		RpcStreamConnection.RpcPacketSupplier supplier = createMockRpcPacketSupplier();
+		RpcStreamConnection.RpcPacketSupplier supplier = new RpcStreamConnection.RpcPacketSupplier();
 		Method processStringArgs = getPrivateMethod(RpcStreamConnection.class, "processExternalEnv", RpcPacket.class,
 				RpcStreamConnection.RpcPacketSupplier.class);
 		processStringArgs.invoke(mockConnection, packet, supplier);
 
-		verifyMockRpcPacketSupplier(supplier, 1);
+		assertThat(supplier.fieldCount(), is(1));
+		assertTrue(supplier.isRawField(0));
+		assertThat(supplier.packetLength(), is(5 + sendBytes.length));
 	}
 
 	@Test
 	public void processFuncName() throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
 		String[] args = { "value1" };
 		RpcPacket packet = RpcPacket.constructRpcPacket(RpcFunctionSpec.CLIENT_ACK, "test", args, null);
-		RpcStreamConnection.RpcPacketSupplier supplier = createMockRpcPacketSupplier();
+		RpcStreamConnection.RpcPacketSupplier supplier = new RpcStreamConnection.RpcPacketSupplier();
 		Method processFuncName = getPrivateMethod(RpcStreamConnection.class, "processFuncName", RpcPacket.class,
 				RpcStreamConnection.RpcPacketSupplier.class);
 		processFuncName.invoke(mockConnection, packet, supplier);
 
-		verifyMockRpcPacketSupplier(supplier, 1);
+		assertThat(supplier.fieldCount(), is(1));
 	}
 
-	private RpcStreamConnection.RpcPacketSupplier createMockRpcPacketSupplier() {
-		RpcStreamConnection.RpcPacketSupplier supplier = mock(RpcStreamConnection.RpcPacketSupplier.class);
+	@Test
+	public void encodeFieldsIntoSendBuffer_grows_pooled_buffer()
+			throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
+		RpcStreamConnection.RpcPacketSupplier supplier = new RpcStreamConnection.RpcPacketSupplier();
+		supplier.sendBytes(new byte[8]);
+		byte[] data = new byte[100];
+		supplier.addField("data".getBytes(StandardCharsets.UTF_8), ByteBuffer.wrap(data, 0, 60), false);
 
-		byte[] sendBytes = new byte[] { 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h' };
-		when(supplier.sendBytes()).thenReturn(sendBytes);
-		when(supplier.sendBytes(any())).thenReturn(supplier);
-		when(supplier.sendPos()).thenReturn(7);
-		when(supplier.sendPos(anyInt())).thenReturn(supplier);
+		Method encodeFieldsIntoSendBuffer = getPrivateMethod(RpcStreamConnection.class,
+				"encodeFieldsIntoSendBuffer", RpcStreamConnection.RpcPacketSupplier.class);
+		encodeFieldsIntoSendBuffer.invoke(mockConnection, supplier);
 
-		return supplier;
-	}
-
-	private void verifyMockRpcPacketSupplier(RpcStreamConnection.RpcPacketSupplier supplier, int argsLength) {
-		verify(supplier, times(argsLength)).sendBytes();
-		verify(supplier, times(argsLength)).sendBytes(any());
-		verify(supplier, times(argsLength)).sendPos();
-		verify(supplier, times(argsLength)).sendPos(anyInt());
+		assertThat(supplier.sendPos(), is(5 + 4 + 1 + 4 + 60 + 1));
+		assertTrue(supplier.sendBytes().length >= supplier.sendPos());
+		assertThat(serverStats.bufferCompacts.get(), is(1L));
 	}
 
 	@Test
-	public void reallocateSendBufferInPutPacketIfRunOut()
-			throws NoSuchMethodException, InvocationTargetException, IllegalAccessException {
-		RpcStreamConnection.RpcPacketSupplier supplier = createMockRpcPacketSupplier();
-		byte[] fieldBytes = new byte[] { 'a', 'b', 'c' };
+	public void putRpcPacket_matches_marshalPacketField_wire_format() throws Exception {
+		ByteArrayOutputStream wire = new ByteArrayOutputStream();
+		mockConnection.topOutputStream(wire);
+
+		Map<String, Object> mapArgs = new LinkedHashMap<>();
+		mapArgs.put("handle", "h1");
+		mapArgs.put("data", ByteBuffer.wrap(new byte[] { 1, 2, 3, 4 }, 0, 3));
+		mapArgs.put("bytes", new byte[] { 9, 8 });
+		mapArgs.put("empty", null);
+		RpcPacket packet = RpcPacket.constructRpcPacket("dm-Write", mapArgs, null);
+		mockConnection.putRpcPacket(packet);
 
-		Method reallocateSendBufferInPutPacketIfRunOut = getPrivateMethod(RpcStreamConnection.class,
-				"reallocateSendBufferInPutPacketIfRunOut", RpcStreamConnection.RpcPacketSupplier.class, byte[].class,
-				int.class);
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		expected.write(new byte[5]);
+		expected.write(mockConnection.marshalPacketField("handle", "h1"));
+		expected.write(mockConnection.marshalPacketField("data", new byte[] { 1, 2, 3 }));
+		expected.write(mockConnection.marshalPacketField("bytes", new byte[] { 9, 8 }));
+		expected.write(mockConnection.marshalPacketField("empty", null));
+		expected.write(mockConnection.marshalPacketField("func", "dm-Write"));
+		byte[] expectedBytes = expected.toByteArray();
+		byte[] preamble = RpcPacketPreamble.constructPreamble(expectedBytes.length - 5).marshalAsBytes();
+		System.arraycopy(preamble, 0, expectedBytes, 0, preamble.length);
 
-		reallocateSendBufferInPutPacketIfRunOut.invoke(mockConnection, supplier, fieldBytes, 1);
-		verifyMockRpcPacketSupplier(supplier, 1);
+		assertArrayEquals(expectedBytes, wire.toByteArray());
 	}
 
 	@Test
@@ -311,7 +334,7 @@ public class RpcStreamConnectionTest extends AbstractP4JavaUnitTest {
 		Method calculatePreambleBytesAndSendtoDownstream = getPrivateMethod(RpcStreamConnection.class,
 				"calculatePreambleBytesAndSendtoDownstream", RpcStreamConnection.RpcPacketSupplier.class);
 
-		RpcStreamConnection.RpcPacketSupplier supplier = createMockRpcPacketSupplier();
+		RpcStreamConnection.RpcPacketSupplier supplier = createRpcPacketSupplier();
 
 		calculatePreambleBytesAndSendtoDownstream.invoke(mockConnection, supplier);
 		verify(topOutputStream).flush();
@@ -324,12 +347,17 @@ public class RpcStreamConnectionTest extends AbstractP4JavaUnitTest {
 		Method calculatePreambleBytesAndSendtoDownstream = getPrivateMethod(RpcStreamConnection.class,
 				"calculatePreambleBytesAndSendtoDownstream", RpcStreamConnection.RpcPacketSupplier.class);
 
-		RpcStreamConnection.RpcPacketSupplier supplier = createMockRpcPacketSupplier();
+		RpcStreamConnection.RpcPacketSupplier supplier = createRpcPacketSupplier();
 		doThrow(SocketTimeoutException.class).when(topOutputStream).write(any(), eq(0), anyInt());
 		expectThrows(InvocationTargetException.class,
 				() -> calculatePreambleBytesAndSendtoDownstream.invoke(mockConnection, supplier));
 	}
 
+	private RpcStreamConnection.RpcPacketSupplier createRpcPacketSupplier() {
+		byte[] sendBytes = new byte[] { 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h' };
+		return new RpcStreamConnection.RpcPacketSupplier().sendBytes(sendBytes).sendPos(7);
+	}
+
 	@Test
 	public void putRpcPackets_null_rpcPackets() throws Exception {
 		expectThrows(NullPointerException.class, () -> mockConnection.putRpcPackets(null));
@@ -658,6 +686,43 @@ public class RpcStreamConnectionTest extends AbstractP4JavaUnitTest {
 		assertThat(rpcPacket.getPacketLength(), is(payloadBytes.length));
 	}
 
+	@Test
+	public void getRpcPacket_with_reused_recv_buffer() throws IOException, ConnectionException {
+		RpcPacketFieldRule fieldRule = mock(RpcPacketFieldRule.class);
+		IFilterCallback filterCallback = mock(IFilterCallback.class);
+
+		Properties props = new Properties();
+		props.put(RpcPropertyDefs.RPC_REUSE_RECV_BUFFER_NICK, "true");
+		props.put(RpcPropertyDefs.RPC_DEFAULT_RECV_BYTE_BUF_SIZE_NICK, "16");
+		RpcStreamConnection connection = new RpcStreamConnection("localhost", serverPort, props, serverStats,
+				StandardCharsets.UTF_8, socket, rpcSocketPool, false, rsh);
+
+		byte[] preambleBytes = { -116, -116, 0, 0, 0 };
+		byte[] payloadBytes = { 120, 102, 105, 108, 101, 115, 0, 1, 0, 0, 0, 55, 0, 115, 101, 114, 118, 101, 114, 0, 1,
+				0, 0, 0, 51, 0, 115, 101, 114, 118, 101, 114, 50, 0, 2, 0, 0, 0, 52, 49, 0, 115, 101, 114, 118, 101,
+				114, 73, 68, 0, 0, 0, 0, 0, 0, 114, 101, 118, 118, 101, 114, 0, 1, 0, 0, 0, 57, 0, 116, 122, 111, 102,
+				102, 115, 101, 116, 0, 4, 0, 0, 0, 55, 50, 48, 48, 0, 115, 110, 100, 98, 117, 102, 0, 6, 0, 0, 0, 51,
+				49, 57, 52, 56, 55, 0, 114, 99, 118, 98, 117, 102, 0, 6, 0, 0, 0, 51, 49, 57, 52, 56, 56, 0, 102, 117,
+				110, 99, 0, 8, 0, 0, 0, 112, 114, 111, 116, 111, 99, 111, 108, 0 };
+		int packetSize = preambleBytes.length + payloadBytes.length;
+		byte[] buf = new byte[packetSize * 2];
+		for (int i = 0; i < 2; i++) {
+			System.arraycopy(preambleBytes, 0, buf, i * packetSize, preambleBytes.length);
+			System.arraycopy(payloadBytes, 0, buf, i * packetSize + preambleBytes.length, payloadBytes.length);
+		}
+		connection.topInputStream(new ByteArrayInputStream(buf));
+
+		RpcPacket first = connection.getRpcPacket(fieldRule, filterCallback);
+		long allocatedAfterFirst = serverStats.recvBytesAllocated.get();
+		RpcPacket second = connection.getRpcPacket(fieldRule, filterCallback);
+
+		assertThat(first.getPacketLength(), is(payloadBytes.length));
+		assertThat(first.getFuncNameString(), is("protocol"));
+		assertThat(second.getResultsMap(), is(first.getResultsMap()));
+		assertThat(serverStats.recvBufferResizes.get(), is(1L));
+		assertThat(serverStats.recvBytesAllocated.get(), is(allocatedAfterFirst));
+	}
+
 	@Test
 	public void getRpcPacket_with_exceptions() throws IOException, ConnectionException {
 		RpcPacketFieldRule fieldRule = mock(RpcPacketFieldRule.class);
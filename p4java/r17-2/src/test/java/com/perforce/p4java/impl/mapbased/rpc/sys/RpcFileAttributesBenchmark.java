@@ -0,0 +1,169 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.perforce.p4java.impl.generic.sys.ISystemFileCommandsHelper;
+import com.perforce.p4java.impl.mapbased.rpc.sys.helper.SysFileHelperBridge;
+
+/**
+ * JMH benchmarks for reading the attributes "add" needs to infer each
+ * file's type: with the separate java.io.File probes inferFileType used to
+ * make (isProbablySymLink, exists, isDirectory, isFile, length, canExecute,
+ * stopping at the first that decides the type), or with one
+ * RpcFileAttributes snapshot.<p>
+ *
+ * A fresh tree of files is written for each trial, mostly small regular
+ * files with some empty ones and directories. Each benchmark has its own
+ * warmup iterations over the same tree, so neither is measured on a colder
+ * file system cache than the other. The "probes" and "files" counters
+ * report how many file system calls were actually made for how many files.<p>
+ *
+ * Not a unit test; run with the test classpath, e.g.
+ * <pre>
+ * java -cp ... com.perforce.p4java.impl.mapbased.rpc.sys.RpcFileAttributesBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RpcFileAttributesBenchmark {
+
+	@Param({"10000"})
+	public int fileCount;
+
+	private Path root;
+	private List<File> files;
+	private boolean posix;
+
+	/**
+	 * File system calls made, and files looked at, per iteration.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Probes {
+		public long probes;
+		public long files;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			probes = 0;
+			files = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		root = Files.createTempDirectory("attrs").toRealPath();
+		files = new ArrayList<File>(fileCount);
+		for (int i = 0; i < fileCount; i++) {
+			Path path = root.resolve("d" + (i % 100)).resolve("f" + i + ".c");
+			Files.createDirectories(path.getParent());
+			if (i % 50 == 0) {
+				Files.createDirectory(path);
+			} else {
+				Files.write(path, (i % 10 == 0 ? "" : "int x" + i + ";\n").getBytes(StandardCharsets.UTF_8));
+			}
+			files.add(path.toFile());
+		}
+		// Elsewhere, isExecutable() asks the system file helper
+		posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	@Benchmark
+	public int separateProbes(Probes probes) {
+		ISystemFileCommandsHelper helper = SysFileHelperBridge.getSysFileCommands();
+		int regular = 0;
+		for (File file : files) {
+			probes.files++;
+			probes.probes++;
+			if (RpcPerforceFileType.isProbablySymLink(file)) {
+				continue;
+			}
+			probes.probes++;
+			if (!file.exists()) {
+				continue;
+			}
+			probes.probes++;
+			if (file.isDirectory()) {
+				continue;
+			}
+			probes.probes++;
+			if (!file.isFile()) {
+				continue;
+			}
+			probes.probes++;
+			if (file.length() == 0) {
+				continue;
+			}
+			probes.probes++;
+			if (helper.canExecute(file.getPath())) {
+				continue;
+			}
+			regular++;
+		}
+		return regular;
+	}
+
+	@Benchmark
+	public int snapshot(Probes probes) {
+		int regular = 0;
+		for (File file : files) {
+			probes.files++;
+			probes.probes++;
+			RpcFileAttributes attrs = RpcFileAttributes.read(file);
+			if (attrs.isSymbolicLink() || !attrs.exists() || attrs.isDirectory()
+					|| !attrs.isRegularFile() || attrs.size() == 0) {
+				continue;
+			}
+			if (!posix) {
+				probes.probes++;
+			}
+			if (attrs.isExecutable()) {
+				continue;
+			}
+			regular++;
+		}
+		return regular;
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RpcFileAttributesBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
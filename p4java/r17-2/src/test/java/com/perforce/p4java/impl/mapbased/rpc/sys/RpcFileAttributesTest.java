@@ -0,0 +1,129 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+@RunWith(JUnitPlatform.class)
+public class RpcFileAttributesTest {
+
+	private Path root;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		root = Files.createTempDirectory("attrs").toRealPath();
+	}
+
+	@AfterEach
+	public void afterEach() throws IOException {
+		FileUtils.deleteDirectory(root.toFile());
+	}
+
+	@Test
+	public void regular_file() throws IOException {
+		File file = write("a.txt", "hello\n");
+		file.setLastModified(1500000000000L);
+		RpcFileAttributes attrs = RpcFileAttributes.read(file);
+
+		assertThat(attrs.exists(), is(true));
+		assertThat(attrs.isRegularFile(), is(true));
+		assertThat(attrs.isDirectory(), is(false));
+		assertThat(attrs.isSymbolicLink(), is(false));
+		assertThat(attrs.size(), is(6L));
+		assertThat(attrs.lastModified(), is(file.lastModified()));
+		assertThat(infer(file), is(RpcPerforceFileType.FST_TEXT));
+	}
+
+	@Test
+	public void missing_directory_and_empty_files() throws IOException {
+		assertThat(RpcFileAttributes.read(root.resolve("missing").toFile()).exists(), is(false));
+		assertThat(infer(root.resolve("missing").toFile()), is(RpcPerforceFileType.FST_MISSING));
+		assertThat(RpcFileAttributes.read(root.toFile()).isDirectory(), is(true));
+		assertThat(infer(root.toFile()), is(RpcPerforceFileType.FST_DIRECTORY));
+		assertThat(infer(write("empty", "")), is(RpcPerforceFileType.FST_EMPTY));
+	}
+
+	@Test
+	public void symbolic_links_are_not_followed() throws IOException {
+		File link = root.resolve("link").toFile();
+		try {
+			Files.createSymbolicLink(link.toPath(), root.resolve("nowhere"));
+		} catch (UnsupportedOperationException | IOException e) {
+			return;
+		}
+		RpcFileAttributes attrs = RpcFileAttributes.read(link);
+
+		assertThat(attrs.exists(), is(true));
+		assertThat(attrs.isSymbolicLink(), is(true));
+		assertThat(attrs.isRegularFile(), is(false));
+		assertThat(infer(link), is(RpcPerforceFileType.FST_SYMLINK));
+	}
+
+	@Test
+	public void executable_files() throws IOException {
+		File file = write("run.sh", "#!/bin/sh\necho hi\n");
+		if (!file.setExecutable(true, true)) {
+			return;
+		}
+		assertThat(RpcFileAttributes.read(file).isExecutable(), is(true));
+		assertThat(infer(file), is(RpcPerforceFileType.FST_XTEXT));
+	}
+
+	/**
+	 * The snapshot must agree with the java.io.File probes it replaces for
+	 * a mix of regular, empty and executable files and directories; see
+	 * RpcFileAttributesBenchmark for timings.
+	 */
+	@Test
+	public void snapshot_matches_file_probes() throws IOException {
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < 20; i++) {
+			files.add(write("d" + (i % 3) + "/f" + i + ".c", i % 5 == 0 ? "" : "int x" + i + ";\n"));
+		}
+		files.get(1).setExecutable(true, true);
+		files.add(root.resolve("d0").toFile());
+		files.add(root.resolve("missing").toFile());
+
+		for (File file : files) {
+			RpcFileAttributes attrs = RpcFileAttributes.read(file);
+			assertThat(file.getPath(), attrs.exists(), is(file.exists()));
+			assertThat(file.getPath(), attrs.isDirectory(), is(file.isDirectory()));
+			assertThat(file.getPath(), attrs.isRegularFile(), is(file.isFile()));
+			if (attrs.isRegularFile()) {
+				assertThat(file.getPath(), attrs.size(), is(file.length()));
+				assertThat(file.getPath(), attrs.lastModified(), is(file.lastModified()));
+				assertThat(file.getPath(), attrs.isExecutable(), is(file.canExecute()));
+			}
+			infer(file);
+		}
+	}
+
+	private static RpcPerforceFileType infer(File file) {
+		RpcPerforceFileType type = RpcPerforceFileType.inferFileType(file, RpcFileAttributes.read(file),
+				-1, false, StandardCharsets.UTF_8);
+		// The snapshot must make no difference to the answer
+		assertThat(RpcPerforceFileType.inferFileType(file, -1, false, StandardCharsets.UTF_8), is(type));
+		return type;
+	}
+
+	private File write(String name, String contents) throws IOException {
+		Path path = root.resolve(name);
+		Files.createDirectories(path.getParent());
+		Files.write(path, contents.getBytes(StandardCharsets.UTF_8));
+		return path.toFile();
+	}
+}
@@ -0,0 +1,133 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+import com.perforce.p4java.impl.mapbased.rpc.RpcPropertyDefs;
+
+/**
+ * JMH benchmarks for RpcLineEndConverter: the time to convert 1 GB of
+ * source-like text between LF and CRLF line endings in each direction, in
+ * the usual buffer-sized pieces, against a plain copy of the same bytes
+ * and the byte at a time conversion it replaced.<p>
+ *
+ * Not a unit test; run with the test classpath, e.g.
+ * <pre>
+ * java -cp ... com.perforce.p4java.impl.mapbased.rpc.sys.RpcLineEndConverterBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RpcLineEndConverterBenchmark {
+
+	private static final long TOTAL_SIZE = 1L << 30;
+	private static final int CHUNK_SIZE = RpcPropertyDefs.RPC_DEFAULT_FILE_BUF_SIZE;
+
+	private byte[] lfText;
+	private byte[] crlfText;
+	private byte[] work;
+	private byte[] buffer;
+	private RpcLineEndConverter converter;
+	private CountingOutputStream sink;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		StringBuilder lf = new StringBuilder(CHUNK_SIZE);
+		for (int line = 0; lf.length() < CHUNK_SIZE; line++) {
+			lf.append("        int line").append(line).append(" = compute(line, \"value\");\n");
+		}
+		lfText = lf.substring(0, CHUNK_SIZE).getBytes(StandardCharsets.UTF_8);
+		crlfText = lf.toString().replace("\n", "\r\n").substring(0, CHUNK_SIZE)
+				.getBytes(StandardCharsets.UTF_8);
+		work = new byte[CHUNK_SIZE + 2];
+		buffer = new byte[CHUNK_SIZE];
+		converter = new RpcLineEndConverter(ClientLineEnding.FST_L_CRLF_BYTES);
+		sink = new CountingOutputStream();
+	}
+
+	@Benchmark
+	public long copy() throws IOException {
+		for (long done = 0; done < TOTAL_SIZE; done += CHUNK_SIZE) {
+			System.arraycopy(lfText, 0, buffer, 0, CHUNK_SIZE);
+			sink.write(buffer, 0, CHUNK_SIZE);
+		}
+		return sink.count;
+	}
+
+	@Benchmark
+	public long toClient() throws IOException {
+		for (long done = 0; done < TOTAL_SIZE; done += CHUNK_SIZE) {
+			converter.writeToClient(sink, lfText, 0, CHUNK_SIZE, buffer);
+		}
+		return sink.count;
+	}
+
+	@Benchmark
+	public long toClientByteAtATime() throws IOException {
+		for (long done = 0; done < TOTAL_SIZE; done += CHUNK_SIZE) {
+			for (int i = 0; i < CHUNK_SIZE; i++) {
+				if (lfText[i] == '\n') {
+					sink.write(ClientLineEnding.FST_L_CRLF_BYTES);
+				} else {
+					sink.write(lfText[i]);
+				}
+			}
+		}
+		return sink.count;
+	}
+
+	@Benchmark
+	public long toServer() {
+		long converted = 0;
+		for (long done = 0; done < TOTAL_SIZE; done += CHUNK_SIZE) {
+			System.arraycopy(crlfText, 0, work, 0, CHUNK_SIZE);
+			converted += converter.toServer(work, CHUNK_SIZE, false);
+		}
+		return converted;
+	}
+
+	/**
+	 * Stands in for a buffered file stream; only counts what it's given.
+	 */
+	private static class CountingOutputStream extends OutputStream {
+		private long count = 0;
+
+		@Override
+		public void write(int b) {
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			count += len;
+		}
+	}
+
+	public static void main(String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder()
+				.include(RpcLineEndConverterBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+}
@@ -0,0 +1,203 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+import com.perforce.p4java.impl.generic.client.ClientLineEnding;
+
+@RunWith(JUnitPlatform.class)
+public class RpcLineEndConverterTest {
+
+	private static final byte[][] LINE_ENDS = {ClientLineEnding.FST_L_LF_BYTES,
+			ClientLineEnding.FST_L_CR_BYTES, ClientLineEnding.FST_L_CRLF_BYTES,
+			ClientLineEnding.FST_L_LFCRLF_BYTES};
+
+	@Test
+	public void to_client_replaces_every_lf() throws IOException {
+		byte[] text = randomText(20000, 1);
+		for (byte[] lineEnd : LINE_ENDS) {
+			byte[] expected = replace(text, new byte[] {'\n'}, lineEnd);
+			for (int bufferSize : new int[] {3, 4, 17, 64, 8192}) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				new RpcLineEndConverter(lineEnd).writeToClient(out, text, 0, text.length,
+						new byte[bufferSize]);
+				assertThat(out.toByteArray(), is(expected));
+			}
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] source = "xa\nb\n\nc\nx".getBytes("UTF-8");
+		new RpcLineEndConverter(ClientLineEnding.FST_L_CRLF_BYTES).writeToClient(out, source, 1,
+				source.length - 2, new byte[8]);
+		assertThat(out.toString("UTF-8"), is("a\r\nb\r\n\r\nc\r\n"));
+	}
+
+	@Test
+	public void to_server_replaces_complete_client_line_ends() {
+		byte[] lfcrlf = ClientLineEnding.FST_L_LFCRLF_BYTES;
+		assertThat(toServer(new byte[] {2, 5, 7, '\n', '\r', '\n', 12, 13}, lfcrlf),
+				is(new byte[] {2, 5, 7, '\n', 12, 13}));
+		assertThat(toServer(new byte[] {2, 5, 7, '\n', '\n', '\r', '\n', 12, 13}, lfcrlf),
+				is(new byte[] {2, 5, 7, '\n', '\n', 12, 13}));
+		assertThat(toServer(new byte[] {2, 5, 7, '\r', '\n', '\r', '\n', 12, 13}, lfcrlf),
+				is(new byte[] {2, 5, 7, '\r', '\n', 12, 13}));
+		assertThat(toServer(new byte[] {'a', '\r', '\r', '\n', 'b', '\r'},
+				ClientLineEnding.FST_L_CRLF_BYTES), is(new byte[] {'a', '\r', '\n', 'b', '\r'}));
+		assertThat(toServer(new byte[] {'a', '\r', 'b', '\r'}, ClientLineEnding.FST_L_CR_BYTES),
+				is(new byte[] {'a', '\n', 'b', '\n'}));
+	}
+
+	@Test
+	public void to_server_carries_line_ends_split_across_reads() {
+		byte[] text = randomText(5000, 2);
+		for (byte[] lineEnd : LINE_ENDS) {
+			byte[] expected = toServer(text.clone(), lineEnd);
+			for (int chunk : new int[] {1, 2, 3, 5, 64, 1000}) {
+				RpcLineEndConverter converter = new RpcLineEndConverter(lineEnd);
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				byte[] buffer = new byte[chunk + lineEnd.length];
+				int carry = 0;
+				for (int pos = 0; pos < text.length; pos += chunk) {
+					int read = Math.min(chunk, text.length - pos);
+					System.arraycopy(text, pos, buffer, carry, read);
+					int converted = converter.toServer(buffer, carry + read, false);
+					out.write(buffer, 0, converted);
+					carry = carry + read - converter.getConsumed();
+					System.arraycopy(buffer, converter.getConsumed(), buffer, 0, carry);
+				}
+				out.write(buffer, 0, converter.toServer(buffer, carry, true));
+				assertThat(out.toByteArray(), is(expected));
+			}
+		}
+	}
+
+	@Test
+	public void filter_streams_convert_across_buffers() throws IOException {
+		byte[] text = randomText(100000, 3);
+		ClientLineEnding[] lineEndings = {ClientLineEnding.FST_L_LF, ClientLineEnding.FST_L_CR,
+				ClientLineEnding.FST_L_CRLF, ClientLineEnding.FST_L_LFCRLF};
+		for (ClientLineEnding lineEnding : lineEndings) {
+			for (int readSize : new int[] {1, 7, 1000, 100000}) {
+				InputStream in = new RpcLineEndFilterInputStream(
+						new TrickleInputStream(new ByteArrayInputStream(text), 13), lineEnding);
+				ByteArrayOutputStream read = new ByteArrayOutputStream();
+				byte[] buffer = new byte[readSize];
+				int count;
+				while ((count = in.read(buffer, 0, readSize)) > 0) {
+					read.write(buffer, 0, count);
+				}
+				assertThat(lineEnding + "/" + readSize, read.toByteArray(),
+						is(readReference(text, lineEnding)));
+			}
+		}
+
+		for (ClientLineEnding lineEnding : new ClientLineEnding[] {ClientLineEnding.FST_L_LF,
+				ClientLineEnding.FST_L_CR, ClientLineEnding.FST_L_CRLF, ClientLineEnding.FST_L_LFCRLF,
+				ClientLineEnding.FST_L_LOCAL}) {
+			ByteArrayOutputStream written = new ByteArrayOutputStream();
+			RpcLineEndFilterOutputStream out = new RpcLineEndFilterOutputStream(written, lineEnding);
+			for (int pos = 0; pos < text.length; pos += 777) {
+				out.write(text, pos, Math.min(777, text.length - pos));
+			}
+			byte[] lineEnd = (lineEnding == ClientLineEnding.FST_L_LFCRLF)
+					? ClientLineEnding.FST_L_LF_BYTES : ClientLineEnding.getLineEndBytes(lineEnding);
+			assertThat(lineEnding.toString(), written.toByteArray(),
+					is(replace(text, new byte[] {'\n'}, lineEnd)));
+		}
+	}
+
+	private static byte[] toServer(byte[] bytes, byte[] lineEnd) {
+		return Arrays.copyOf(bytes, new RpcLineEndConverter(lineEnd).toServer(bytes, bytes.length, true));
+	}
+
+	/**
+	 * What RpcLineEndFilterInputStream has always produced, a byte at a time.
+	 */
+	private static byte[] readReference(byte[] text, ClientLineEnding lineEnding) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < text.length; i++) {
+			byte b = text[i];
+			if ((b == '\r') && (lineEnding != ClientLineEnding.FST_L_LF)) {
+				if ((lineEnding != ClientLineEnding.FST_L_CR) && (i + 1 < text.length)
+						&& (text[i + 1] == '\n')) {
+					i++;
+					b = '\n';
+				} else if (lineEnding != ClientLineEnding.FST_L_CRLF) {
+					b = '\n';
+				}
+			}
+			out.write(b);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] replace(byte[] bytes, byte[] from, byte[] to) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int i = 0; i < bytes.length; i++) {
+			if ((i + from.length <= bytes.length)
+					&& Arrays.equals(Arrays.copyOfRange(bytes, i, i + from.length), from)) {
+				out.write(to, 0, to.length);
+				i += from.length - 1;
+			} else {
+				out.write(bytes[i]);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Text with runs of CR and LF in all combinations, and lines both
+	 * shorter and much longer than the conversion buffers.
+	 */
+	private static byte[] randomText(int length, long seed) {
+		Random random = new Random(seed);
+		byte[] text = new byte[length];
+		for (int i = 0; i < length; i++) {
+			int r = random.nextInt(100);
+			if (r < 8) {
+				text[i] = '\n';
+			} else if (r < 14) {
+				text[i] = '\r';
+			} else {
+				text[i] = (byte) ('a' + random.nextInt(26));
+			}
+			if ((i % 5000) == 0) {
+				// An occasional long line
+				int end = Math.min(length, i + 3000 + random.nextInt(3000));
+				for (; i < end - 1; i++) {
+					text[i] = 'x';
+				}
+			}
+		}
+		return text;
+	}
+
+	/**
+	 * Returns at most a few bytes from each read, as a socket or pipe can.
+	 */
+	private static class TrickleInputStream extends FilterInputStream {
+		private final int max;
+
+		TrickleInputStream(InputStream in, int max) {
+			super(in);
+			this.max = max;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return super.read(b, off, Math.min(len, max));
+		}
+	}
+}
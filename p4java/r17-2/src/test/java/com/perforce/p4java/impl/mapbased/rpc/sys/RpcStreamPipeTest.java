@@ -0,0 +1,150 @@
+package com.perforce.p4java.impl.mapbased.rpc.sys;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.expectThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.platform.runner.JUnitPlatform;
+import org.junit.runner.RunWith;
+
+@RunWith(JUnitPlatform.class)
+public class RpcStreamPipeTest {
+
+	private Path tmpDir;
+
+	@BeforeEach
+	public void beforeEach() throws IOException {
+		tmpDir = Files.createTempDirectory("streampipe");
+	}
+
+	@AfterEach
+	public void afterEach() throws IOException {
+		FileUtils.deleteDirectory(tmpDir.toFile());
+	}
+
+	@Test
+	public void output_can_be_read_before_it_is_finished() throws Exception {
+		final RpcStreamPipe pipe = new RpcStreamPipe(1024, tmpDir.toString());
+		final CountDownLatch firstRead = new CountDownLatch(1);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					pipe.getOutputStream().write("first".getBytes("UTF-8"));
+					firstRead.await();
+					pipe.getOutputStream().write("second".getBytes("UTF-8"));
+					pipe.finish();
+				} catch (Exception exc) {
+					pipe.fail(new IOException(exc));
+				}
+			}
+		});
+		writer.start();
+
+		assertThat(pipe.awaitOutput(), is(true));
+		InputStream in = pipe.getInputStream();
+		byte[] buffer = new byte[5];
+		assertThat(in.read(buffer), is(5));
+		assertThat(new String(buffer, "UTF-8"), is("first"));
+		firstRead.countDown();
+		assertThat(IOUtils.toString(in, "UTF-8"), is("second"));
+		in.close();
+		writer.join();
+	}
+
+	@Test
+	public void output_over_the_limit_is_spilled_to_disk() throws IOException {
+		byte[] contents = new byte[100000];
+		new Random(42).nextBytes(contents);
+		RpcStreamPipe pipe = new RpcStreamPipe(4096, tmpDir.toString());
+		OutputStream out = pipe.getOutputStream();
+		for (int off = 0; off < contents.length; off += 1000) {
+			out.write(contents, off, Math.min(1000, contents.length - off));
+		}
+		out.close();
+
+		assertThat(pipe.isSpilled(), is(true));
+		assertThat(pipe.getBytesWritten(), is((long) contents.length));
+		assertThat(pipe.awaitOutput(), is(false));
+		InputStream in = pipe.getInputStream();
+		ByteArrayOutputStream read = new ByteArrayOutputStream();
+		read.write(in.read());
+		IOUtils.copy(in, read);
+		assertThat(read.toByteArray(), is(contents));
+		assertThat(in.read(), is(-1));
+		in.close();
+		assertThat(tmpDir.toFile().list().length, is(0));
+	}
+
+	@Test
+	public void small_output_stays_in_memory() throws IOException {
+		RpcStreamPipe pipe = new RpcStreamPipe(4096, tmpDir.toString());
+		pipe.getOutputStream().write(new byte[4096]);
+		pipe.finish();
+		assertThat(pipe.isSpilled(), is(false));
+		assertThat(tmpDir.toFile().list().length, is(0));
+		assertThat(IOUtils.toByteArray(pipe.getInputStream()).length, is(4096));
+	}
+
+	@Test
+	public void failures_are_reported_after_the_output() throws IOException {
+		RpcStreamPipe pipe = new RpcStreamPipe(16, tmpDir.toString());
+		pipe.getOutputStream().write("some output".getBytes("UTF-8"));
+		pipe.getOutputStream().write(" and more of it".getBytes("UTF-8"));
+		pipe.fail(new IOException("no such file"));
+		pipe.finish();
+
+		final InputStream in = pipe.getInputStream();
+		byte[] buffer = new byte[26];
+		IOUtils.readFully(in, buffer);
+		assertThat(new String(buffer, "UTF-8"), is("some output and more of it"));
+		IOException exc = expectThrows(IOException.class, () -> in.read());
+		assertThat(exc.getMessage(), is("no such file"));
+		in.close();
+		assertThat(tmpDir.toFile().list().length, is(0));
+	}
+
+	@Test
+	public void output_after_the_reader_closes_is_discarded() throws IOException {
+		RpcStreamPipe pipe = new RpcStreamPipe(16, tmpDir.toString());
+		OutputStream out = pipe.getOutputStream();
+		out.write(new byte[100]);
+		assertThat(pipe.isSpilled(), is(true));
+		pipe.getInputStream().close();
+		assertThat(tmpDir.toFile().list().length, is(0));
+
+		out.write(new byte[100]);
+		out.close();
+		assertThat(pipe.getBytesWritten(), is(200L));
+		assertThrows(IOException.class, () -> pipe.getInputStream().read());
+	}
+
+	@Test
+	public void rpc_output_stream_writes_to_a_sink() throws IOException {
+		RpcStreamPipe pipe = new RpcStreamPipe(1024, tmpDir.toString());
+		RpcOutputStream out = new RpcOutputStream(pipe.getOutputStream());
+		assertThat(out.isOpen(), is(true));
+		out.write("abc".getBytes("UTF-8"));
+		out.write('d');
+		out.write("xefx".getBytes("UTF-8"), 1, 2);
+		out.close();
+		assertThat(out.isOpen(), is(false));
+		assertThat(pipe.awaitOutput(), is(false));
+		assertThat(IOUtils.toString(pipe.getInputStream(), "UTF-8"), is("abcdef"));
+	}
+}
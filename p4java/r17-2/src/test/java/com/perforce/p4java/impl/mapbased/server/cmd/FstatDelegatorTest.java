@@ -1,8 +1,12 @@
 package com.perforce.p4java.impl.mapbased.server.cmd;
 
 import static com.perforce.p4java.server.CmdSpec.FSTAT;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -11,11 +15,19 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import com.perforce.p4java.AbstractP4JavaUnitTest;
 import com.perforce.p4java.CommandLineArgumentMatcher;
@@ -26,10 +38,12 @@ import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.core.file.IFileSpec;
 import com.perforce.p4java.exception.AccessException;
 import com.perforce.p4java.exception.ConnectionException;
+import com.perforce.p4java.exception.P4JavaError;
 import com.perforce.p4java.exception.P4JavaException;
 import com.perforce.p4java.exception.RequestException;
 import com.perforce.p4java.impl.mapbased.server.Server;
 import com.perforce.p4java.option.server.GetExtendedFilesOptions;
+import com.perforce.p4java.server.callback.IStreamingCallback;
 
 /**
  * Tests for FstatDelegator.
@@ -245,6 +259,108 @@ public class FstatDelegatorTest extends AbstractP4JavaUnitTest {
         assertFileSpecs(exSpecs);
     }
 
+    /**
+     * Test streaming Fstat.
+     *
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    @Test
+    public void testStreamExtendedFiles() throws P4JavaException {
+        doAnswer(new StreamResultsAnswer(buildValidResultMap(), null)).when(server)
+                .execStreamingMapCommand(eq(FSTAT.toString()), argThat(FIX_FS_MATCHER), eq(null),
+                        any(IStreamingCallback.class), anyInt());
+        List<IFileSpec> specs = FileSpecBuilder.makeFileSpecList(CLIENT_FILE);
+        List<IExtendedFileSpec> exSpecs;
+        try (Stream<IExtendedFileSpec> stream = fstatDelegator.streamExtendedFiles(specs,
+                new GetExtendedFilesOptions())) {
+            exSpecs = stream.collect(Collectors.<IExtendedFileSpec>toList());
+        }
+        assertFileSpecs(exSpecs);
+    }
+
+    /**
+     * Test streaming Fstat rethrows command failures after earlier results.
+     *
+     * @throws P4JavaException
+     *             the p4 java exception
+     */
+    @Test(expected = P4JavaError.class)
+    public void testStreamExtendedFilesConnectionException() throws P4JavaException {
+        doAnswer(new StreamResultsAnswer(buildValidResultMap(), new ConnectionException("gone")))
+                .when(server).execStreamingMapCommand(eq(FSTAT.toString()),
+                        argThat(FIX_FS_MATCHER), eq(null), any(IStreamingCallback.class),
+                        anyInt());
+        List<IFileSpec> specs = FileSpecBuilder.makeFileSpecList(CLIENT_FILE);
+        try (Stream<IExtendedFileSpec> stream = fstatDelegator.streamExtendedFiles(specs,
+                new GetExtendedFilesOptions())) {
+            stream.count();
+        }
+    }
+
+    /**
+     * Test closing a streaming Fstat early cancels the command.
+     *
+     * @throws Exception
+     *             on failure
+     */
+    @Test
+    public void testStreamExtendedFilesClose() throws Exception {
+        final int resultCount = 10000;
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int i = 0; i < resultCount; i++) {
+            results.addAll(buildValidResultMap());
+        }
+        StreamResultsAnswer answer = new StreamResultsAnswer(results, null);
+        doAnswer(answer).when(server).execStreamingMapCommand(eq(FSTAT.toString()),
+                argThat(FIX_FS_MATCHER), eq(null), any(IStreamingCallback.class), anyInt());
+        List<IFileSpec> specs = FileSpecBuilder.makeFileSpecList(CLIENT_FILE);
+        try (Stream<IExtendedFileSpec> stream = fstatDelegator.streamExtendedFiles(specs,
+                new GetExtendedFilesOptions())) {
+            assertEquals(1, stream.limit(1).count());
+        }
+        assertTrue(answer.done.await(10, TimeUnit.SECONDS));
+        assertFalse(answer.lastHandled);
+    }
+
+    /**
+     * Feeds result maps to the streaming callback, optionally failing afterwards.
+     */
+    private static class StreamResultsAnswer implements Answer<Void> {
+        private final List<Map<String, Object>> results;
+        private final P4JavaException failure;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile boolean lastHandled = true;
+
+        StreamResultsAnswer(final List<Map<String, Object>> results,
+                final P4JavaException failure) {
+            this.results = results;
+            this.failure = failure;
+        }
+
+        @Override
+        public Void answer(final InvocationOnMock invocation) throws Throwable {
+            IStreamingCallback callback = invocation.getArgument(3);
+            int key = invocation.getArgument(4);
+            try {
+                callback.startResults(key);
+                for (Map<String, Object> result : results) {
+                    lastHandled = callback.handleResult(result, key);
+                    if (!lastHandled) {
+                        break;
+                    }
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                callback.endResults(key);
+            } finally {
+                done.countDown();
+            }
+            return null;
+        }
+    }
+
     /**
      * Assert that the file specs built are as expected.
      *
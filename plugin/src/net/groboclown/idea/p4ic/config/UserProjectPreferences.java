@@ -48,6 +48,9 @@ public class UserProjectPreferences implements PersistentStateComponent<UserProj
     public static final int MAX_LOCK_WAIT_TIMEOUT_MILLIS = 5 * 60 * 1000;
     public static final int DEFAULT_LOCK_WAIT_TIMEOUT_MILLIS = 30 * 1000;
     public static final boolean DEFAULT_SHOW_DIALOG_CONNECTION_MESSAGES = true;
+    public static final int MIN_UPDATE_QUEUE_DELAY_MILLIS = 0;
+    public static final int MAX_UPDATE_QUEUE_DELAY_MILLIS = 10 * 1000;
+    public static final int DEFAULT_UPDATE_QUEUE_DELAY_MILLIS = 300;
 
     @NotNull
     private State state = new State();
@@ -86,6 +89,8 @@ public class UserProjectPreferences implements PersistentStateComponent<UserProj
         public int lockWaitTimeoutMillis = DEFAULT_LOCK_WAIT_TIMEOUT_MILLIS;
 
         public boolean showDialogConnectionMessages = DEFAULT_SHOW_DIALOG_CONNECTION_MESSAGES;
+
+        public int updateQueueDelayMillis = DEFAULT_UPDATE_QUEUE_DELAY_MILLIS;
     }
 
     @Nullable
@@ -322,4 +327,29 @@ public class UserProjectPreferences implements PersistentStateComponent<UserProj
     public void setLockWaitTimeoutMillis(final int lockWaitTimeoutMillis) {
         state.lockWaitTimeoutMillis = lockWaitTimeoutMillis;
     }
+
+
+    /**
+     * How long queued server updates wait for more updates to arrive, so
+     * that they can all be sent together.
+     */
+    public static int getUpdateQueueDelayMillis(@Nullable final Project project) {
+        if (project == null || project.isDisposed()) {
+            return DEFAULT_UPDATE_QUEUE_DELAY_MILLIS;
+        }
+        UserProjectPreferences prefs = UserProjectPreferences.getInstance(project);
+        if (prefs == null) {
+            return DEFAULT_UPDATE_QUEUE_DELAY_MILLIS;
+        }
+        return prefs.getUpdateQueueDelayMillis();
+    }
+
+    public int getUpdateQueueDelayMillis() {
+        return Math.max(MIN_UPDATE_QUEUE_DELAY_MILLIS,
+                Math.min(MAX_UPDATE_QUEUE_DELAY_MILLIS, state.updateQueueDelayMillis));
+    }
+
+    public void setUpdateQueueDelayMillis(final int updateQueueDelayMillis) {
+        state.updateQueueDelayMillis = updateQueueDelayMillis;
+    }
 }
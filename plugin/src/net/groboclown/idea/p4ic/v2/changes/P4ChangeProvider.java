@@ -126,7 +126,12 @@ public class P4ChangeProvider implements ChangeProvider {
             // As part of the execution, we'll include an integrity check, to ensure the
             // local cache matches up with the remaining actions.
             for (P4Server server : vcs.getP4Servers()) {
-                server.checkLocalIntegrity();
+                if (dirtyFiles == null) {
+                    // Everything is being refreshed, so check everything.
+                    server.checkFullLocalIntegrity();
+                } else {
+                    server.checkLocalIntegrity();
+                }
                 if (dirtyFiles == null && server.isWorkingOnline()) {
                     // Note that this isn't forcing the flush.
                     // That's supposed to be because the flush shouldn't
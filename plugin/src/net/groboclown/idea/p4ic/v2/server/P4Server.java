@@ -321,7 +321,8 @@ public class P4Server {
                 + filePathList + "; specs " + fileSpecs);
         }
 
-        final List<IExtendedFileSpec> extended = connection.query(project, new ServerQuery<List<IExtendedFileSpec>>() {
+        final List<IExtendedFileSpec> extended =
+                connection.query(project, new ReadOnlyServerQuery<List<IExtendedFileSpec>>() {
             @Nullable
             @Override
             public List<IExtendedFileSpec> query(@NotNull final P4Exec2 exec,
@@ -845,6 +846,20 @@ public class P4Server {
         });
     }
 
+    /**
+     * Like {@link #checkLocalIntegrity()}, but checks the whole local cache
+     * rather than only what changed since the last check.
+     */
+    public void checkFullLocalIntegrity() throws InterruptedException {
+        connection.cacheQuery(new CacheQuery<Void>() {
+            @Override
+            public Void query(@NotNull final ClientCacheManager cacheManager) throws InterruptedException {
+                cacheManager.checkFullLocalIntegrity();
+                return null;
+            }
+        });
+    }
+
     /**
      * Set by the owning manager.
      *
@@ -1133,7 +1148,8 @@ public class P4Server {
             throws VcsException, InterruptedException {
         validateOnline();
         final Ref<VcsException> ex = new Ref<VcsException>();
-        final List<P4AnnotatedLine> ret = connection.query(project, new ServerQuery<List<P4AnnotatedLine>>() {
+        final List<P4AnnotatedLine> ret =
+                connection.query(project, new ReadOnlyServerQuery<List<P4AnnotatedLine>>() {
             @Nullable
             @Override
             public List<P4AnnotatedLine> query(@NotNull final P4Exec2 exec,
@@ -1170,7 +1186,7 @@ public class P4Server {
 
         // TODO this is too complex for this class; move to another.
 
-        return connection.query(project, new ServerQuery<List<P4FileRevision>>() {
+        return connection.query(project, new ReadOnlyServerQuery<List<P4FileRevision>>() {
             @Nullable
             @Override
             public List<P4FileRevision> query(@NotNull final P4Exec2 exec,
@@ -1222,7 +1238,8 @@ public class P4Server {
     @Nullable
     public P4CommittedChangeList getChangelistForOnline(@NotNull final FilePath file, @NotNull final String revision)
             throws InterruptedException {
-        P4CommittedChangeList.Factory ret = connection.query(project, new ServerQuery<P4CommittedChangeList.Factory>() {
+        P4CommittedChangeList.Factory ret =
+                connection.query(project, new ReadOnlyServerQuery<P4CommittedChangeList.Factory>() {
             @Nullable
             @Override
             public P4CommittedChangeList.Factory query(@NotNull final P4Exec2 exec,
@@ -1287,7 +1304,8 @@ public class P4Server {
     @Nullable
     public P4CommittedChangeList getChangelistForOnline(final int change)
             throws InterruptedException {
-        P4CommittedChangeList.Factory ret = connection.query(project, new ServerQuery<P4CommittedChangeList.Factory>() {
+        P4CommittedChangeList.Factory ret =
+                connection.query(project, new ReadOnlyServerQuery<P4CommittedChangeList.Factory>() {
             @Nullable
             @Override
             public P4CommittedChangeList.Factory query(@NotNull final P4Exec2 exec,
@@ -1335,7 +1353,8 @@ public class P4Server {
     @NotNull
     public List<P4CommittedChangeList> getChangelistsForOnline(@NotNull final IFileSpec spec, final int maxCount)
             throws InterruptedException {
-        List<P4CommittedChangeList> ret = connection.query(project, new ServerQuery<List<P4CommittedChangeList>>() {
+        List<P4CommittedChangeList> ret =
+                connection.query(project, new ReadOnlyServerQuery<List<P4CommittedChangeList>>() {
             @Override
             public List<P4CommittedChangeList> query(@NotNull P4Exec2 exec, @NotNull ClientCacheManager cacheManager,
                     @NotNull ServerConnection connection, @NotNull SynchronizedActionRunner runner,
@@ -1401,7 +1420,8 @@ public class P4Server {
         if (changelistId <= 0) {
             return Collections.emptyList();
         }
-        Collection<P4ChangeListJob> ret = connection.query(project, new ServerQuery<Collection<P4ChangeListJob>>() {
+        Collection<P4ChangeListJob> ret =
+                connection.query(project, new ReadOnlyServerQuery<Collection<P4ChangeListJob>>() {
             @Nullable
             @Override
             public Collection<P4ChangeListJob> query(@NotNull P4Exec2 exec, @NotNull ClientCacheManager cacheManager,
@@ -1515,7 +1535,7 @@ public class P4Server {
     @Nullable
     public SwarmConfig createSwarmConfig()
             throws InterruptedException {
-        return connection.query(project, new ServerQuery<SwarmConfig>() {
+        return connection.query(project, new ReadOnlyServerQuery<SwarmConfig>() {
             @Nullable
             @Override
             public SwarmConfig query(@NotNull P4Exec2 exec, @NotNull ClientCacheManager cacheManager,
@@ -1625,7 +1645,7 @@ public class P4Server {
                     continue;
                 }
                 LOG.info("Gathering server MD5 for " + spec);
-                fsMd5 = connection.query(project, new ServerQuery<String>() {
+                fsMd5 = connection.query(project, new ReadOnlyServerQuery<String>() {
                     @Nullable
                     @Override
                     public String query(@NotNull final P4Exec2 exec,
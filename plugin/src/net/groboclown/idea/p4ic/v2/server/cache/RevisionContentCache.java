@@ -0,0 +1,422 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.cache;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.components.ApplicationComponent;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Holds the contents of depot file revisions that have been loaded from the
+ * server, for the history, diff and annotation views.  The contents of a
+ * depot path at a specific revision never changes, so entries never need to
+ * be refreshed; they're only dropped, least recently used first, to keep the
+ * cache within its size limits.
+ * <p/>
+ * Recently used contents are kept in memory, and everything is also written
+ * to disk under the IDE system directory, so that it survives restarts.
+ */
+public class RevisionContentCache implements ApplicationComponent {
+    private static final Logger LOG = Logger.getInstance(RevisionContentCache.class);
+
+    private static final long DEFAULT_MEMORY_LIMIT = 16L * 1024L * 1024L;
+    private static final long DEFAULT_DISK_LIMIT = 256L * 1024L * 1024L;
+    private static final String FILE_SUFFIX = ".rev";
+    private static final int FORMAT_VERSION = 1;
+
+    @Nullable
+    private final File cacheDir;
+    private final long memoryLimit;
+    private final long diskLimit;
+
+    private final Object sync = new Object();
+
+    // Both maps are in access order, so the first entry is the least
+    // recently used one.
+    private final LinkedHashMap<String, RevisionContent> memory =
+            new LinkedHashMap<String, RevisionContent>(16, 0.75f, true);
+    private long memorySize = 0;
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long diskSize = 0;
+    private boolean diskLoaded = false;
+
+
+    public static RevisionContentCache getInstance() {
+        return ApplicationManager.getApplication().getComponent(RevisionContentCache.class);
+    }
+
+
+    // Used by PicoContainer
+    @SuppressWarnings("unused")
+    public RevisionContentCache() {
+        this(new File(new File(PathManager.getSystemPath(), "p4ic"), "revisions"),
+                DEFAULT_MEMORY_LIMIT, DEFAULT_DISK_LIMIT);
+    }
+
+
+    /**
+     * @param cacheDir directory for the on-disk cache; if null, contents are
+     *                 only kept in memory.
+     * @param memoryLimit maximum total size of the contents held in memory
+     * @param diskLimit maximum total size of the cache files
+     */
+    RevisionContentCache(@Nullable File cacheDir, long memoryLimit, long diskLimit) {
+        this.cacheDir = cacheDir;
+        this.memoryLimit = memoryLimit;
+        this.diskLimit = diskLimit;
+    }
+
+
+    @Override
+    public void initComponent() {
+        // the disk cache is indexed on first use
+    }
+
+    @Override
+    public void disposeComponent() {
+        synchronized (sync) {
+            memory.clear();
+            memorySize = 0;
+        }
+    }
+
+    @NotNull
+    @Override
+    public String getComponentName() {
+        return "Perforce Revision Content Cache";
+    }
+
+
+    /**
+     * @param serverId the {@link net.groboclown.idea.p4ic.config.ServerConfig#getServerId()}
+     *                 of the server the revision was loaded from
+     * @param depotPath depot path of the file, as the server reports it
+     * @param rev exact revision number
+     * @return the cached contents, or null if the revision isn't cached.
+     */
+    @Nullable
+    public RevisionContent get(@NotNull String serverId, @NotNull String depotPath, int rev) {
+        if (rev <= 0) {
+            return null;
+        }
+        final String key = toKey(serverId, depotPath, rev);
+        final File file;
+        synchronized (sync) {
+            RevisionContent content = memory.get(key);
+            if (content != null) {
+                return content;
+            }
+            file = getFileFor(key);
+            if (file == null || disk.get(file.getName()) == null) {
+                return null;
+            }
+        }
+
+        final RevisionContent content = readFile(file, key);
+        if (content == null) {
+            synchronized (sync) {
+                removeFile(file);
+            }
+            return null;
+        }
+        if (! file.setLastModified(System.currentTimeMillis())) {
+            LOG.debug("Could not touch " + file);
+        }
+        synchronized (sync) {
+            addToMemory(key, content);
+        }
+        return content;
+    }
+
+
+    /**
+     * Store the contents of a depot revision.
+     *
+     * @param serverId the {@link net.groboclown.idea.p4ic.config.ServerConfig#getServerId()}
+     *                 of the server the revision was loaded from
+     * @param depotPath depot path of the file, as the server reports it
+     * @param rev exact revision number
+     * @param contents file contents; the cache keeps this array rather than
+     *                 a copy of it, so it must not be changed afterwards.
+     * @param charset charset to read the contents with, if known
+     * @return the stored contents
+     */
+    @NotNull
+    public RevisionContent put(@NotNull String serverId, @NotNull String depotPath, int rev,
+            @NotNull byte[] contents, @Nullable String charset) {
+        final RevisionContent content = new RevisionContent(contents, charset);
+        if (rev <= 0) {
+            return content;
+        }
+        final String key = toKey(serverId, depotPath, rev);
+        final File file;
+        synchronized (sync) {
+            addToMemory(key, content);
+            file = getFileFor(key);
+            if (file == null || disk.get(file.getName()) != null || contents.length > diskLimit) {
+                return content;
+            }
+        }
+
+        final long size = writeFile(file, key, content);
+        if (size >= 0) {
+            synchronized (sync) {
+                Long previous = disk.put(file.getName(), size);
+                diskSize += size - (previous == null ? 0 : previous);
+                evictFiles();
+            }
+        }
+        return content;
+    }
+
+
+    private void addToMemory(@NotNull String key, @NotNull RevisionContent content) {
+        final long size = content.getSize();
+        if (size > memoryLimit) {
+            return;
+        }
+        RevisionContent previous = memory.put(key, content);
+        memorySize += size - (previous == null ? 0 : previous.getSize());
+        final Iterator<RevisionContent> iter = memory.values().iterator();
+        while (memorySize > memoryLimit && iter.hasNext()) {
+            memorySize -= iter.next().getSize();
+            iter.remove();
+        }
+    }
+
+
+    /**
+     * Must be called while synchronized.  Loads the index of the disk cache
+     * if it hasn't been already.
+     *
+     * @return the cache file for the key, or null if there is no disk cache.
+     */
+    @Nullable
+    private File getFileFor(@NotNull String key) {
+        if (cacheDir == null) {
+            return null;
+        }
+        if (! diskLoaded) {
+            diskLoaded = true;
+            loadDiskIndex();
+        }
+        return new File(cacheDir, hash(key) + FILE_SUFFIX);
+    }
+
+
+    private void loadDiskIndex() {
+        if (cacheDir == null) {
+            return;
+        }
+        final File[] files = cacheDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(FILE_SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        // Oldest first, so they're the first to be evicted.
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            disk.put(file.getName(), file.length());
+            diskSize += file.length();
+        }
+        evictFiles();
+    }
+
+
+    private void evictFiles() {
+        final Iterator<Map.Entry<String, Long>> iter = disk.entrySet().iterator();
+        while (diskSize > diskLimit && iter.hasNext()) {
+            final Map.Entry<String, Long> next = iter.next();
+            diskSize -= next.getValue();
+            iter.remove();
+            deleteFile(new File(cacheDir, next.getKey()));
+        }
+    }
+
+
+    private void removeFile(@NotNull File file) {
+        final Long size = disk.remove(file.getName());
+        if (size != null) {
+            diskSize -= size;
+        }
+        deleteFile(file);
+    }
+
+
+    private static void deleteFile(@NotNull File file) {
+        if (file.exists() && ! file.delete()) {
+            LOG.info("Could not delete cached revision " + file);
+        }
+    }
+
+
+    @Nullable
+    private static RevisionContent readFile(@NotNull File file, @NotNull String key) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != FORMAT_VERSION || ! key.equals(in.readUTF())) {
+                    LOG.info("Ignoring unexpected cached revision " + file);
+                    return null;
+                }
+                final String charset = in.readBoolean() ? in.readUTF() : null;
+                final byte[] contents = new byte[in.readInt()];
+                in.readFully(contents);
+                return new RevisionContent(contents, charset);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.info("Could not read cached revision " + file, e);
+            return null;
+        }
+    }
+
+
+    /**
+     * @return the size of the written file, or -1 if it couldn't be written.
+     */
+    private long writeFile(@NotNull File file, @NotNull String key, @NotNull RevisionContent content) {
+        final File dir = file.getParentFile();
+        if (! dir.isDirectory() && ! dir.mkdirs()) {
+            LOG.info("Could not create revision cache directory " + dir);
+            return -1;
+        }
+        File tmp = null;
+        try {
+            // Write to a temporary file first, so that a reader never sees
+            // a partially written file.
+            tmp = File.createTempFile("rev", ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(key);
+                out.writeBoolean(content.getCharset() != null);
+                if (content.getCharset() != null) {
+                    out.writeUTF(content.getCharset());
+                }
+                out.writeInt(content.contents.length);
+                out.write(content.contents);
+            } finally {
+                out.close();
+            }
+            if (! tmp.renameTo(file)) {
+                // Another thread may have stored the same revision.
+                LOG.debug("Could not rename " + tmp + " to " + file);
+                return -1;
+            }
+            tmp = null;
+            return file.length();
+        } catch (IOException e) {
+            LOG.info("Could not write cached revision " + file, e);
+            return -1;
+        } finally {
+            if (tmp != null) {
+                deleteFile(tmp);
+            }
+        }
+    }
+
+
+    @NotNull
+    private static String toKey(@NotNull String serverId, @NotNull String depotPath, int rev) {
+        return serverId + '\n' + depotPath + '#' + rev;
+    }
+
+
+    @NotNull
+    private static String hash(@NotNull String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            final StringBuilder ret = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                ret.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return ret.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+    /**
+     * The contents of a single depot file revision.
+     */
+    public static final class RevisionContent {
+        private final byte[] contents;
+        private final String charset;
+
+        /**
+         * @param contents file contents; kept as is, not copied, so it
+         *                 must not be changed afterwards.
+         * @param charset charset to read the contents with, if known
+         */
+        public RevisionContent(@NotNull byte[] contents, @Nullable String charset) {
+            this.contents = contents;
+            this.charset = charset;
+        }
+
+        /**
+         * @return a copy of the contents, as the same instance may be
+         *      shared through the cache.
+         */
+        @NotNull
+        public byte[] getBytes() {
+            return contents.clone();
+        }
+
+        /**
+         * @return the charset the contents should be read with, or null if
+         *      the server didn't report one.
+         */
+        @Nullable
+        public String getCharset() {
+            return charset;
+        }
+
+        public int getSize() {
+            return contents.length;
+        }
+
+        /**
+         * @return the contents read with the file's charset, or UTF-8 if it
+         *      isn't known.
+         */
+        @NotNull
+        public String getString() throws UnsupportedEncodingException {
+            return new String(contents, charset == null ? "utf-8" : charset);
+        }
+    }
+}
@@ -16,6 +16,7 @@ package net.groboclown.idea.p4ic.v2.server.cache.state;
 
 import com.intellij.openapi.diagnostic.Logger;
 import net.groboclown.idea.p4ic.v2.server.cache.ClientServerRef;
+import net.groboclown.idea.p4ic.v2.server.cache.UpdateAction.UpdateParameterNames;
 import org.jdom.Element;
 import org.jdom.output.XMLOutputter;
 import org.jetbrains.annotations.NotNull;
@@ -25,7 +26,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Keeps track of the local and server state for a single client.
@@ -40,6 +45,16 @@ public class ClientLocalServerState {
     private final List<PendingUpdateState> pendingUpdates;
     private final FileMappingRepo fileRepo;
 
+    // Tracks the files and changelists whose pending updates or local
+    // states changed since the last local integrity check, so that the
+    // check only needs to look at those local states.
+    private final Object integritySync = new Object();
+    private final Set<String> integrityFiles = new HashSet<String>();
+    private final Set<Integer> integrityChangelists = new HashSet<Integer>();
+    private final Map<String, Integer> pendingFileRefs = new HashMap<String, Integer>();
+    private final Map<Integer, Integer> pendingChangelistRefs = new HashMap<Integer, Integer>();
+    private boolean fullIntegrityCheckNeeded = true;
+
     public ClientLocalServerState(
             @NotNull final P4ClientState localClientState,
             @NotNull final P4ClientState cachedServerState,
@@ -48,6 +63,9 @@ public class ClientLocalServerState {
         this.cachedServerState = cachedServerState;
         this.pendingUpdates = pendingUpdates;
         this.fileRepo = new FileMappingRepo(cachedServerState.isServerCaseInsensitive());
+        for (PendingUpdateState update : pendingUpdates) {
+            countReferences(update, 1);
+        }
     }
 
     /**
@@ -71,6 +89,13 @@ public class ClientLocalServerState {
                 }
                 localClientState.flush();
                 pendingUpdates.clear();
+                synchronized (integritySync) {
+                    integrityFiles.clear();
+                    integrityChangelists.clear();
+                    pendingFileRefs.clear();
+                    pendingChangelistRefs.clear();
+                    fullIntegrityCheckNeeded = true;
+                }
                 fileRepo.clearLocations();
             } else {
                 LOG.info("Flushing local and server cached states for " + getClientServerId());
@@ -112,6 +137,10 @@ public class ClientLocalServerState {
     @NotNull
     public PendingUpdateState addPendingUpdate(@NotNull PendingUpdateState update) {
         pendingUpdates.add(update);
+        synchronized (integritySync) {
+            countReferences(update, 1);
+            recordIntegrityChange(update);
+        }
         return update;
     }
 
@@ -120,6 +149,10 @@ public class ClientLocalServerState {
             LOG.debug("Removing pending state " + pendingUpdateState);
         }
         if (pendingUpdates.remove(pendingUpdateState)) {
+            synchronized (integritySync) {
+                countReferences(pendingUpdateState, -1);
+                recordIntegrityChange(pendingUpdateState);
+            }
             // strip the local cached pending updates
             localClientState.stripStatesFor(pendingUpdateState);
         } else {
@@ -128,6 +161,112 @@ public class ClientLocalServerState {
     }
 
 
+    /**
+     * Records that a local file state was written, so the next integrity
+     * check looks at it even if no pending update for it changed.
+     *
+     * @param file the local file, in the same form as the
+     *      {@link UpdateParameterNames#FILE} parameter value
+     */
+    public void markLocalFileChanged(@NotNull String file) {
+        synchronized (integritySync) {
+            integrityFiles.add(file);
+        }
+    }
+
+    /**
+     * Records that a local changelist state was written, so the next
+     * integrity check looks at it even if no pending update for it changed.
+     *
+     * @param changelistId changelist ID of the local state
+     */
+    public void markLocalChangelistChanged(int changelistId) {
+        synchronized (integritySync) {
+            integrityChangelists.add(changelistId);
+        }
+    }
+
+    /**
+     * Returns the files and changelists whose pending updates or local
+     * states changed since the last call, and starts tracking anew.
+     *
+     * @return the changes, or null if the whole local cache needs to be
+     *      checked (it was just loaded or flushed).
+     */
+    @Nullable
+    public IntegrityChanges takeIntegrityChanges() {
+        synchronized (integritySync) {
+            final IntegrityChanges ret;
+            if (fullIntegrityCheckNeeded) {
+                ret = null;
+                fullIntegrityCheckNeeded = false;
+            } else {
+                ret = new IntegrityChanges(new HashSet<String>(integrityFiles),
+                        new HashSet<Integer>(integrityChangelists));
+            }
+            integrityFiles.clear();
+            integrityChangelists.clear();
+            return ret;
+        }
+    }
+
+    /**
+     * @param file the {@link UpdateParameterNames#FILE} parameter value
+     * @return true if any pending update has this file parameter.
+     */
+    public boolean hasPendingFileReference(@NotNull String file) {
+        synchronized (integritySync) {
+            return pendingFileRefs.containsKey(file);
+        }
+    }
+
+    /**
+     * @param changelistId the {@link UpdateParameterNames#CHANGELIST} parameter value
+     * @return true if any pending update has this changelist parameter.
+     */
+    public boolean hasPendingChangelistReference(int changelistId) {
+        synchronized (integritySync) {
+            return pendingChangelistRefs.containsKey(changelistId);
+        }
+    }
+
+    private void countReferences(@NotNull PendingUpdateState update, int delta) {
+        final String file = UpdateParameterNames.FILE.getParameterValue(update);
+        if (file != null) {
+            count(pendingFileRefs, file, delta);
+        }
+        final Integer changelist = UpdateParameterNames.CHANGELIST.getParameterValue(update);
+        if (changelist != null) {
+            count(pendingChangelistRefs, changelist, delta);
+        }
+    }
+
+    private void recordIntegrityChange(@NotNull PendingUpdateState update) {
+        final String file = UpdateParameterNames.FILE.getParameterValue(update);
+        if (file != null) {
+            integrityFiles.add(file);
+        }
+        final String source = UpdateParameterNames.FILE_SOURCE.getParameterValue(update);
+        if (source != null) {
+            integrityFiles.add(source);
+        }
+        final Integer changelist = UpdateParameterNames.CHANGELIST.getParameterValue(update);
+        if (changelist != null) {
+            integrityChangelists.add(changelist);
+        }
+    }
+
+    private static <K> void count(@NotNull Map<K, Integer> refs, @NotNull K key, int delta) {
+        final Integer current = refs.get(key);
+        final int next = (current == null ? 0 : current) + delta;
+        if (next <= 0) {
+            refs.remove(key);
+        } else {
+            refs.put(key, next);
+        }
+    }
+
+
     @NotNull
     public P4ClientState getCachedServerState() {
         return cachedServerState;
@@ -186,4 +325,36 @@ public class ClientLocalServerState {
 
         return ret;
     }
+
+
+    /**
+     * The files and changelists an incremental integrity check needs to
+     * look at.
+     */
+    public static class IntegrityChanges {
+        private final Set<String> files;
+        private final Set<Integer> changelists;
+
+        IntegrityChanges(@NotNull Set<String> files, @NotNull Set<Integer> changelists) {
+            this.files = Collections.unmodifiableSet(files);
+            this.changelists = Collections.unmodifiableSet(changelists);
+        }
+
+        /**
+         * @return {@link UpdateParameterNames#FILE} style paths
+         */
+        @NotNull
+        public Set<String> getFiles() {
+            return files;
+        }
+
+        @NotNull
+        public Set<Integer> getChangelists() {
+            return changelists;
+        }
+
+        public boolean isEmpty() {
+            return files.isEmpty() && changelists.isEmpty();
+        }
+    }
 }
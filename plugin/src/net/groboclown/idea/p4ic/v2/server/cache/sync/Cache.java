@@ -88,6 +88,22 @@ interface Cache {
      */
     void removeUpdateFor(@NotNull UpdateRef update);
 
+    /**
+     * Called whenever a local file state is added or replaced, so that the
+     * next local integrity check looks at it.
+     *
+     * @param file local file whose state changed.
+     */
+    void localFileChanged(@NotNull FilePath file);
+
+    /**
+     * Called whenever a local changelist state is added, so that the next
+     * local integrity check looks at it.
+     *
+     * @param changelistId changelist whose state changed.
+     */
+    void localChangelistChanged(int changelistId);
+
     /**
      * Are there pending update states?
      *
@@ -17,6 +17,7 @@ package net.groboclown.idea.p4ic.v2.server.cache.sync;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Comparing;
+import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
 import com.intellij.openapi.vcs.changes.LocalChangeList;
@@ -136,6 +137,7 @@ public class ChangeListServerCacheSync extends CacheFrontEnd {
         final P4ChangeListState state = new P4ChangeListState(ret, changelistId);
         state.setDeleted(true);
         localClientChanges.add(state);
+        cache.localChangelistChanged(changelistId);
         committed.remove(changelistId);
 
         return ret;
@@ -186,6 +188,7 @@ public class ChangeListServerCacheSync extends CacheFrontEnd {
             synchronized (localCacheSync) {
                 localClientChanges.add(local);
             }
+            cache.localChangelistChanged(local.getChangelistId());
         }
         local.setComment(description);
 
@@ -216,6 +219,7 @@ public class ChangeListServerCacheSync extends CacheFrontEnd {
         final P4ChangeListState state = new P4ChangeListState(ret, changelistId);
         state.setComment(description);
         localClientChanges.add(state);
+        cache.localChangelistChanged(changelistId);
         committed.remove(changelistId);
 
         return ret;
@@ -239,6 +243,32 @@ public class ChangeListServerCacheSync extends CacheFrontEnd {
             return;
         }
         lastRefreshDate = new Date();
+
+        // Rather than asking the server about each changelist in turn, load
+        // the jobs and shelved files for all of them in one go.
+        final List<Integer> changelistIds = new ArrayList<Integer>(pendingChanges.size());
+        for (IChangelistSummary pendingChange : pendingChanges) {
+            changelistIds.add(pendingChange.getId());
+        }
+        Map<Integer, Pair<List<String>, List<IExtendedFileSpec>>> descriptions;
+        try {
+            descriptions = exec.describePendingChangelists(changelistIds);
+        } catch (VcsException e) {
+            alerts.addNotice(
+                    exec.getProject(),
+                    P4Bundle.message("error.describePendingChangelists",
+                            changelistIds, exec.getClientName()), e);
+            descriptions = Collections.emptyMap();
+        }
+        final Set<String> allJobIds = new HashSet<String>();
+        for (Pair<List<String>, List<IExtendedFileSpec>> description : descriptions.values()) {
+            allJobIds.addAll(description.first);
+        }
+        final Map<String, P4JobState> jobs = new HashMap<String, P4JobState>();
+        for (P4JobState job : cache.refreshJobState(exec, alerts, allJobIds)) {
+            jobs.put(job.getId(), job);
+        }
+
         Set<P4ChangeListState> refreshed = new HashSet<P4ChangeListState>(pendingChanges.size());
         boolean foundDefault = false;
         for (IChangelistSummary pendingChange : pendingChanges) {
@@ -250,34 +280,18 @@ public class ChangeListServerCacheSync extends CacheFrontEnd {
             if (state.getChangelistId() == P4ChangeListId.P4_DEFAULT) {
                 foundDefault = true;
             }
-            try {
-                final Collection<String> jobs = exec.getJobIdsForChangelist(state.getChangelistId());
-                if (jobs != null) {
-                    cache.refreshJobState(exec, alerts, jobs);
-                    for (String jobId : jobs) {
-                        final P4JobState job = exec.getJobForId(jobId);
-                        if (job != null) {
-                            state.addJob(job);
-                        }
+            final Pair<List<String>, List<IExtendedFileSpec>> description =
+                    descriptions.get(state.getChangelistId());
+            if (description != null) {
+                for (String jobId : description.first) {
+                    final P4JobState job = jobs.get(jobId);
+                    if (job != null) {
+                        state.addJob(job);
                     }
                 }
-            } catch (VcsException e) {
-                alerts.addNotice(
-                        exec.getProject(),
-                        P4Bundle.message("error.getJobIdsForChangelist",
-                        pendingChange.getId(), exec.getClientName()), e);
-            }
-
-            try {
-                List<IExtendedFileSpec> specs = exec.getShelvedFilesForChangelist(state.getChangelistId());
-                for (IExtendedFileSpec spec : specs) {
+                for (IExtendedFileSpec spec : description.second) {
                     state.addShelved(spec);
                 }
-            } catch (VcsException e) {
-                alerts.addNotice(
-                        exec.getProject(),
-                        P4Bundle.message("error.getShelvedFilesForChangelist",
-                                pendingChange.getId(), exec.getClientName()), e);
             }
         }
         if (! foundDefault) {
@@ -356,6 +370,27 @@ public class ChangeListServerCacheSync extends CacheFrontEnd {
     }
 
 
+    /**
+     * The incremental form of {@link #checkLocalIntegrity(List)}: remove the
+     * local changes for the given changelists, which no pending update
+     * references anymore.
+     *
+     * @param unreferenced changelist IDs whose pending updates were all removed
+     */
+    void checkLocalIntegrityFor(@NotNull Collection<Integer> unreferenced) {
+        synchronized (localCacheSync) {
+            Iterator<P4ChangeListState> iter = localClientChanges.iterator();
+            while (iter.hasNext()) {
+                final P4ChangeListState next = iter.next();
+                if (unreferenced.contains(next.getChangelistId())) {
+                    LOG.warn("Incorrect mapping: pending change did not remove " + next);
+                    iter.remove();
+                }
+            }
+        }
+    }
+
+
     /**
      * Gets a locally modified version of the changelist state.  If the
      * state is only server cached, then a local copy is made.  If the
@@ -378,12 +413,14 @@ public class ChangeListServerCacheSync extends CacheFrontEnd {
                 if (remote.getChangelistId() == changelistId) {
                     P4ChangeListState local = new P4ChangeListState(update, remote);
                     localClientChanges.add(local);
+                    cache.localChangelistChanged(changelistId);
                     return local;
                 }
             }
             LOG.info("Could not find a changelist numbered " + changelistId + "; creating one");
             P4ChangeListState local = new P4ChangeListState(update, changelistId);
             localClientChanges.add(local);
+            cache.localChangelistChanged(changelistId);
             return local;
         }
     }
@@ -14,6 +14,7 @@
 
 package net.groboclown.idea.p4ic.v2.server.cache.sync;
 
+import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Ref;
 import com.intellij.openapi.vcs.FilePath;
@@ -32,6 +33,7 @@ import net.groboclown.idea.p4ic.v2.server.cache.ClientServerRef;
 import net.groboclown.idea.p4ic.v2.server.cache.P4ChangeListValue;
 import net.groboclown.idea.p4ic.v2.server.cache.local.IgnoreFiles;
 import net.groboclown.idea.p4ic.v2.server.cache.state.*;
+import net.groboclown.idea.p4ic.v2.server.cache.state.ClientLocalServerState.IntegrityChanges;
 import net.groboclown.idea.p4ic.v2.server.connection.*;
 import net.groboclown.idea.p4ic.v2.server.connection.ServerConnection.CreateUpdate;
 import net.groboclown.idea.p4ic.v2.server.util.DepotFilePath;
@@ -45,6 +47,8 @@ import java.util.*;
  * Public front-end to the cache infrastructure.
  */
 public class ClientCacheManager {
+    private static final Logger LOG = Logger.getInstance(ClientCacheManager.class);
+
     private final Project project;
     private final ClientLocalServerState state;
     private final WorkspaceServerCacheSync workspace;
@@ -56,6 +60,12 @@ public class ClientCacheManager {
     private final KnownHaveStateServerCacheSync haveFiles;
     private final IgnoreFiles ignoreFiles;
 
+    private final Object integrityStatsSync = new Object();
+    private long fullIntegrityChecks = 0;
+    private long incrementalIntegrityChecks = 0;
+    private long skippedIntegrityChecks = 0;
+    private long integrityEntriesChecked = 0;
+
     // Jobs are only stored in terms of their association with the
     // changelists.  The current design is to have the jobs only
     // be managed in terms of their association with changelists;
@@ -305,10 +315,99 @@ public class ClientCacheManager {
 
     /**
      * Ensure the local cache only has items for what's in the pending updates.
+     * Only the local files and changelists whose pending updates or local
+     * states changed since the last check are looked at; the whole cache
+     * is checked the first time, and after the local cache is flushed.
      */
     // FIXME this method is kind of a hack.
     // This needs to be performed in a more robust manner.
     public void checkLocalIntegrity() {
+        final IntegrityChanges changed = state.takeIntegrityChanges();
+        if (changed == null) {
+            runFullLocalIntegrity();
+            return;
+        }
+        if (changed.isEmpty()) {
+            synchronized (integrityStatsSync) {
+                skippedIntegrityChecks++;
+            }
+            return;
+        }
+
+        final Set<String> files = changed.getFiles();
+        final Set<Integer> changelists = changed.getChangelists();
+        final List<FilePath> unreferencedFiles = new ArrayList<FilePath>();
+        for (String file : files) {
+            if (! state.hasPendingFileReference(file)) {
+                final FilePath fp = FilePathUtil.getFilePath(file);
+                if (fp != null) {
+                    unreferencedFiles.add(fp);
+                }
+            }
+        }
+        final Set<Integer> unreferencedChangelists = new HashSet<Integer>();
+        for (Integer changelist : changelists) {
+            if (! state.hasPendingChangelistReference(changelist)) {
+                unreferencedChangelists.add(changelist);
+            }
+        }
+
+        if (LOG.isDebugEnabled()) {
+            LOG.debug("Checking local integrity for " + files.size() + " changed files and " +
+                    changelists.size() + " changed changelists: " +
+                    unreferencedFiles + "; changelists " + unreferencedChangelists);
+        }
+        fileActions.checkLocalIntegrityFor(unreferencedFiles);
+        changeLists.checkLocalIntegrityFor(unreferencedChangelists);
+        synchronized (integrityStatsSync) {
+            incrementalIntegrityChecks++;
+            integrityEntriesChecked += files.size() + changelists.size();
+        }
+    }
+
+    /**
+     * Check the whole local cache against all the pending updates, rather
+     * than just the parts that changed since the last check.
+     */
+    public void checkFullLocalIntegrity() {
+        // Discard the tracked changes; the full check covers them.
+        state.takeIntegrityChanges();
+        runFullLocalIntegrity();
+    }
+
+    public long getFullIntegrityCheckCount() {
+        synchronized (integrityStatsSync) {
+            return fullIntegrityChecks;
+        }
+    }
+
+    public long getIncrementalIntegrityCheckCount() {
+        synchronized (integrityStatsSync) {
+            return incrementalIntegrityChecks;
+        }
+    }
+
+    /**
+     * @return the number of integrity checks that had nothing to look at,
+     *      because no pending update changed since the previous check.
+     */
+    public long getSkippedIntegrityCheckCount() {
+        synchronized (integrityStatsSync) {
+            return skippedIntegrityChecks;
+        }
+    }
+
+    /**
+     * @return the number of files and changelists looked at by the
+     *      incremental integrity checks.
+     */
+    public long getIntegrityEntriesCheckedCount() {
+        synchronized (integrityStatsSync) {
+            return integrityEntriesChecked;
+        }
+    }
+
+    private void runFullLocalIntegrity() {
         // Bug #106: concurrent exception can happen if the pending updates are directly referenced.
         final List<PendingUpdateState> pendingUpdates = new ArrayList<PendingUpdateState>(state.getPendingUpdates());
         workspace.checkLocalIntegrity(pendingUpdates);
@@ -317,6 +416,14 @@ public class ClientCacheManager {
         jobStatusList.checkLocalIntegrity(pendingUpdates);
         jobs.checkLocalIntegrity(pendingUpdates);
         //ignoreFiles.checkLocalIntegrity(pendingUpdates);
+        final long full;
+        final long skipped;
+        synchronized (integrityStatsSync) {
+            full = ++fullIntegrityChecks;
+            skipped = skippedIntegrityChecks;
+        }
+        LOG.info("Full local integrity check #" + full + " of " + pendingUpdates.size() +
+                " pending updates; " + skipped + " checks skipped so far");
     }
 
     /**
@@ -437,6 +544,16 @@ public class ClientCacheManager {
             }
         }
 
+        @Override
+        public void localFileChanged(@NotNull final FilePath file) {
+            state.markLocalFileChanged(file.getIOFile().getAbsolutePath());
+        }
+
+        @Override
+        public void localChangelistChanged(final int changelistId) {
+            state.markLocalChangelistChanged(changelistId);
+        }
+
         @Override
         public boolean hasPendingUpdates() {
             return ! state.getPendingUpdates().isEmpty();
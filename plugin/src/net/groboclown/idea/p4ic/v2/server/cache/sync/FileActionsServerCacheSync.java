@@ -219,6 +219,24 @@ public class FileActionsServerCacheSync extends CacheFrontEnd {
     }
 
 
+    /**
+     * The incremental form of {@link #checkLocalIntegrity(List)}: remove the
+     * local action for each of the given files, which no pending update
+     * references anymore.
+     *
+     * @param unreferenced files whose pending updates were all removed
+     */
+    void checkLocalIntegrityFor(@NotNull final Collection<FilePath> unreferenced) {
+        for (FilePath fp : unreferenced) {
+            final P4FileUpdateState state = localClientUpdatedFiles.getUpdateStateFor(fp);
+            if (state != null) {
+                LOG.warn("Incorrect mapping: pending change did not remove " + state);
+                localClientUpdatedFiles.remove(state);
+            }
+        }
+    }
+
+
     /**
      * Create the add file update state.  Called whether the file needs to be edited or added.
      *
@@ -835,6 +853,7 @@ public class FileActionsServerCacheSync extends CacheFrontEnd {
             LOG.debug("adding action into local file cache: " + newAction);
         }
         localClientUpdatedFiles.add(newAction);
+        cache.localFileChanged(file);
 
         return newAction;
     }
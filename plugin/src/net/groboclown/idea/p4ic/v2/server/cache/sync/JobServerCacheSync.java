@@ -34,6 +34,9 @@ import java.util.*;
 public class JobServerCacheSync extends CacheFrontEnd {
     // FIXME jobs need to be cached per server
 
+    // Job IDs listed in a single alert, at most.
+    private static final int MAX_REPORTED_JOB_IDS = 5;
+
     private final JobStateList jobs;
     private Date lastRefreshed;
 
@@ -54,19 +57,7 @@ public class JobServerCacheSync extends CacheFrontEnd {
         // Only reload the job status for the jobs we're asked to
         // care about.
 
-        for (String jobId: jobs.copy().keySet()) {
-            try {
-                final P4JobState job = exec.getJobForId(jobId);
-                if (job != null) {
-                    jobs.add(job);
-                }
-            } catch (VcsException e) {
-                alerts.addWarning(exec.getProject(),
-                        P4Bundle.message("error.job-refresh.title", jobId),
-                        P4Bundle.message("error.job-refresh", jobId),
-                        e, new FilePath[0]);
-            }
-        }
+        loadServerCache(exec, alerts, jobs.copy().keySet());
     }
 
     @Override
@@ -96,24 +87,58 @@ public class JobServerCacheSync extends CacheFrontEnd {
     @NotNull
     Collection<P4JobState> loadServerCache(@NotNull P4Exec2 exec, @NotNull AlertManager alerts,
             @NotNull Collection<String> jobIds) {
+        if (jobIds.isEmpty()) {
+            return Collections.emptySet();
+        }
         Set<P4JobState> ret = new HashSet<P4JobState>(jobIds.size());
-        for (String jobId : jobIds) {
-            try {
-                final P4JobState job = exec.getJobForId(jobId);
-                if (job != null) {
-                    jobs.add(job);
-                    ret.add(job);
-                }
-            } catch (VcsException e) {
-                alerts.addWarning(exec.getProject(),
-                        P4Bundle.message("error.job-refresh.title", jobId),
-                        P4Bundle.message("error.job-refresh", jobId),
-                        e, new FilePath[0]);
+        final Map<String, Exception> failures = new HashMap<String, Exception>();
+        try {
+            for (P4JobState job : exec.getJobsForIds(jobIds, failures).values()) {
+                jobs.add(job);
+                ret.add(job);
             }
+        } catch (VcsException e) {
+            // Nothing was loaded.
+            warnJobsNotLoaded(exec, alerts, jobIds, e);
+            return ret;
+        }
+        if (! failures.isEmpty()) {
+            warnJobsNotLoaded(exec, alerts, failures.keySet(), failures.values().iterator().next());
         }
         return ret;
     }
 
+
+    private static void warnJobsNotLoaded(@NotNull P4Exec2 exec, @NotNull AlertManager alerts,
+            @NotNull Collection<String> jobIds, @NotNull Exception e) {
+        alerts.addWarning(exec.getProject(),
+                P4Bundle.message("error.jobs-refresh.title", jobIds.size()),
+                P4Bundle.message("error.jobs-refresh", abbreviate(jobIds)),
+                e, new FilePath[0]);
+    }
+
+
+    /**
+     * @return the first few job IDs, and how many more there are.
+     */
+    @NotNull
+    static String abbreviate(@NotNull Collection<String> jobIds) {
+        final StringBuilder ret = new StringBuilder();
+        int shown = 0;
+        for (String jobId : jobIds) {
+            if (shown >= MAX_REPORTED_JOB_IDS) {
+                ret.append(P4Bundle.message("error.jobs-refresh.more", jobIds.size() - shown));
+                break;
+            }
+            if (shown > 0) {
+                ret.append(", ");
+            }
+            ret.append(jobId);
+            shown++;
+        }
+        return ret.toString();
+    }
+
     Map<String, P4ChangeListJob> getCachedJobIds(@NotNull ClientServerRef clientServerRef,
             @NotNull Collection<String> jobIds) {
         Map<String, P4ChangeListJob> ret = new HashMap<String, P4ChangeListJob>();
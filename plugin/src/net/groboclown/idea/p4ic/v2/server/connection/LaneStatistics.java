@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Diagnostic counters for one of the lanes that server requests wait in
+ * before they run: how many are waiting right now, how long the ones
+ * that have started had to wait, and how many gave up waiting.
+ */
+public class LaneStatistics {
+    private final String name;
+    private int queueDepth = 0;
+    private long startedCount = 0;
+    private long timedOutCount = 0;
+    private long totalWaitMillis = 0;
+    private long maxWaitMillis = 0;
+
+
+    LaneStatistics(@NotNull String name) {
+        this.name = name;
+    }
+
+
+    synchronized void queued() {
+        queueDepth++;
+    }
+
+
+    synchronized void started(long waitMillis) {
+        dequeued();
+        startedCount++;
+        totalWaitMillis += waitMillis;
+        maxWaitMillis = Math.max(maxWaitMillis, waitMillis);
+    }
+
+
+    /**
+     * A request stopped waiting without starting, because its wait ran out.
+     * It doesn't count towards the started requests' wait times.
+     */
+    synchronized void timedOut() {
+        dequeued();
+        timedOutCount++;
+    }
+
+
+    /**
+     * A request stopped waiting without starting, for any other reason.
+     */
+    synchronized void cancelled() {
+        dequeued();
+    }
+
+
+    private void dequeued() {
+        if (queueDepth > 0) {
+            queueDepth--;
+        }
+    }
+
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public synchronized long getStartedCount() {
+        return startedCount;
+    }
+
+    public synchronized long getTimedOutCount() {
+        return timedOutCount;
+    }
+
+    public synchronized long getAverageWaitMillis() {
+        return startedCount == 0 ? 0 : totalWaitMillis / startedCount;
+    }
+
+    public synchronized long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+
+    @Override
+    public synchronized String toString() {
+        return name + " lane: " + queueDepth + " waiting; " + startedCount + " started, waiting " +
+                getAverageWaitMillis() + "ms on average, " + maxWaitMillis + "ms at most; " + timedOutCount +
+                " timed out";
+    }
+}
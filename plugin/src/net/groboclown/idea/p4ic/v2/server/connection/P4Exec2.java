@@ -38,6 +38,7 @@ import com.perforce.p4java.option.client.RevertFilesOptions;
 import com.perforce.p4java.option.client.ShelveFilesOptions;
 import com.perforce.p4java.option.client.SyncOptions;
 import com.perforce.p4java.option.server.*;
+import com.perforce.p4java.server.CmdSpec;
 import com.perforce.p4java.server.IOptionsServer;
 import com.perforce.p4java.server.IServerInfo;
 import net.groboclown.idea.p4ic.P4Bundle;
@@ -51,6 +52,7 @@ import net.groboclown.idea.p4ic.server.exceptions.P4Exception;
 import net.groboclown.idea.p4ic.server.exceptions.P4FileException;
 import net.groboclown.idea.p4ic.v2.changes.P4ChangeListJob;
 import net.groboclown.idea.p4ic.v2.server.authentication.PasswordManager;
+import net.groboclown.idea.p4ic.v2.server.cache.RevisionContentCache;
 import net.groboclown.idea.p4ic.v2.server.cache.state.P4JobState;
 import net.groboclown.idea.p4ic.v2.server.connection.ClientExec.ServerCount;
 import net.groboclown.idea.p4ic.v2.server.connection.ClientExec.WithClient;
@@ -67,6 +69,7 @@ import java.util.*;
 import java.util.Map.Entry;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.TimeoutException;
+import java.util.regex.Pattern;
 
 import static net.groboclown.idea.p4ic.server.P4StatusMessage.*;
 
@@ -77,6 +80,13 @@ public class P4Exec2 {
     private static final Logger LOG = Logger.getInstance(P4Exec2.class);
     private static final int BUFFER_SIZE = 4 * 1024;
 
+    // Upper bound on the number of jobs asked for in one "jobs -e" job view,
+    // to keep the command line to a sensible length.
+    private static final int JOB_VIEW_BATCH_SIZE = 100;
+
+    // Job IDs that can be put into a job view without any quoting.
+    private static final Pattern JOB_VIEW_SAFE_ID = Pattern.compile("[A-Za-z0-9_.\\-]+");
+
     private final Project project;
     private final ClientExec exec;
 
@@ -837,6 +847,93 @@ public class P4Exec2 {
     }
 
 
+    /**
+     * Load the contents of a single file revision, along with the charset to
+     * read it with.  An fstat finds the exact depot revision the spec refers
+     * to and its charset, then that revision is printed, both over the same
+     * connection.  The contents of a depot revision never change, so the
+     * result is kept in the revision cache, and a revision that's already in
+     * the cache isn't printed again.
+     *
+     * @param spec file spec to read
+     * @param cache revision content cache
+     * @return the contents, or null if the file doesn't exist at that revision.
+     * @throws VcsException perforce encountered a problem
+     * @throws CancellationException operation was canceled.
+     * @throws IOException problem reading the contents
+     */
+    @Nullable
+    public RevisionContentCache.RevisionContent loadFileRevision(@NotNull final IFileSpec spec,
+            @NotNull final RevisionContentCache cache)
+            throws VcsException, CancellationException, IOException {
+        final String serverId = getServerConfig().getServerId();
+        return exec.runWithClient(project, new ClientExec.WithClient<RevisionContentCache.RevisionContent>() {
+            @Override
+            public RevisionContentCache.RevisionContent run(@NotNull IOptionsServer server, @NotNull IClient client,
+                    @NotNull ClientExec.ServerCount count)
+                    throws P4JavaException, IOException, InterruptedException, TimeoutException, URISyntaxException,
+                    P4Exception {
+                // Not the getExtendedFiles() helper, as that unescapes the depot path,
+                // and the path is printed again below.
+                count.invoke("getFileStatus");
+                final List<IExtendedFileSpec> status = server.getExtendedFiles(Collections.singletonList(spec),
+                        new GetExtendedFilesOptions("-m", "1"));
+                String depotPath = null;
+                int rev = -1;
+                String charset = null;
+                if (status != null && ! status.isEmpty() && status.get(0) != null && isValid(status.get(0))) {
+                    depotPath = status.get(0).getDepotPathString();
+                    rev = status.get(0).getHeadRev();
+                    charset = status.get(0).getCharset();
+                }
+
+                IFileSpec printSpec = spec;
+                if (depotPath != null && rev > 0) {
+                    final RevisionContentCache.RevisionContent cached = cache.get(serverId, depotPath, rev);
+                    if (cached != null) {
+                        LOG.debug("Using cached contents of " + depotPath + "#" + rev);
+                        return cached;
+                    }
+                    printSpec = FileSpecUtil.getAlreadyEscapedSpec(depotPath + '#' + rev);
+                }
+
+                int maxFileSize = VcsUtil.getMaxVcsLoadedFileSize();
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                GetFileContentsOptions fileContentsOptions = new GetFileContentsOptions(false, true);
+                fileContentsOptions.setDontAnnotateFiles(false);
+                count.invoke("getFileContents");
+                InputStream inp = server.getFileContents(Collections.singletonList(printSpec),
+                        fileContentsOptions);
+                if (inp == null) {
+                    return null;
+                }
+
+                boolean truncated = false;
+                try {
+                    byte[] buff = new byte[BUFFER_SIZE];
+                    int len;
+                    while ((len = inp.read(buff, 0, BUFFER_SIZE)) > 0) {
+                        if (baos.size() >= maxFileSize) {
+                            truncated = true;
+                            break;
+                        }
+                        baos.write(buff, 0, len);
+                    }
+                } finally {
+                    // Note: be absolutely sure to close the InputStream that is returned.
+                    inp.close();
+                }
+                if (depotPath == null || rev <= 0 || truncated) {
+                    // Not something that can be cached.
+                    return new RevisionContentCache.RevisionContent(baos.toByteArray(), charset);
+                }
+                // The cache keeps this array without copying it.
+                return cache.put(serverId, depotPath, rev, baos.toByteArray(), charset);
+            }
+        });
+    }
+
+
     @NotNull
     public Map<IFileSpec, List<IFileRevisionData>> getRevisionHistory(
             @NotNull final List<IFileSpec> depotFiles, final int maxRevisions)
@@ -1075,6 +1172,226 @@ public class P4Exec2 {
         });
     }
 
+
+    /**
+     * Load the jobs with the given IDs.  Rather than one "job" call per ID,
+     * the jobs are requested together through a "jobs" job view; any job that
+     * can't be found that way (say, its ID needs quoting in a job view, or
+     * the job spec can't be parsed) is loaded on its own.
+     *
+     * @param jobIds job IDs to load
+     * @return the loaded jobs, keyed by ID; jobs that don't exist are left out.
+     * @throws VcsException perforce encountered a problem
+     * @throws CancellationException operation was canceled.
+     */
+    @NotNull
+    public Map<String, P4JobState> getJobsForIds(@NotNull final Collection<String> jobIds)
+            throws VcsException, CancellationException {
+        return getJobsForIds(jobIds, new HashMap<String, Exception>());
+    }
+
+
+    /**
+     * Like {@link #getJobsForIds(Collection)}, but also reports the jobs that
+     * couldn't be loaded even on their own.
+     *
+     * @param jobIds job IDs to load
+     * @param failures filled in with the problem loading each job that is
+     *                 left out because of an error, keyed by ID.
+     * @return the loaded jobs, keyed by ID; jobs that don't exist are left out.
+     * @throws VcsException perforce encountered a problem
+     * @throws CancellationException operation was canceled.
+     */
+    @NotNull
+    public Map<String, P4JobState> getJobsForIds(@NotNull final Collection<String> jobIds,
+            @NotNull final Map<String, Exception> failures)
+            throws VcsException, CancellationException {
+        if (jobIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
+        return exec.runWithServer(project, new ClientExec.WithServer<Map<String, P4JobState>>() {
+            @Override
+            public Map<String, P4JobState> run(@NotNull final IOptionsServer server, @NotNull ServerCount count)
+                    throws P4JavaException, IOException, InterruptedException, TimeoutException, URISyntaxException,
+                    P4Exception {
+                final Map<String, P4JobState> ret = new HashMap<String, P4JobState>();
+                final List<String> viewable = new ArrayList<String>(jobIds.size());
+                final Set<String> remaining = new HashSet<String>(jobIds);
+                for (String jobId : remaining) {
+                    if (JOB_VIEW_SAFE_ID.matcher(jobId).matches()) {
+                        viewable.add(jobId);
+                    }
+                }
+                for (int start = 0; start < viewable.size(); start += JOB_VIEW_BATCH_SIZE) {
+                    final List<String> batch = viewable.subList(start,
+                            Math.min(viewable.size(), start + JOB_VIEW_BATCH_SIZE));
+                    final StringBuilder jobView = new StringBuilder();
+                    for (String jobId : batch) {
+                        if (jobView.length() > 0) {
+                            jobView.append('|');
+                        }
+                        jobView.append("job=").append(jobId);
+                    }
+                    final GetJobsOptions opts = new GetJobsOptions()
+                            .setLongDescriptions(true)
+                            .setJobView(jobView.toString());
+                    count.invoke("getJobs");
+                    final List<IJob> jobs;
+                    try {
+                        jobs = server.getJobs(null, opts);
+                    } catch (RequestException re) {
+                        // Bug #33; the individual requests below will report it
+                        // against the right job.
+                        LOG.info("Could not load jobs " + batch + " together; loading them separately", re);
+                        continue;
+                    }
+                    if (jobs != null) {
+                        for (IJob job : jobs) {
+                            if (job != null && job.getId() != null && remaining.remove(job.getId())) {
+                                ret.put(job.getId(), new P4JobState(job));
+                            }
+                        }
+                    }
+                }
+
+                for (String jobId : remaining) {
+                    LOG.debug("Loading information for job " + jobId);
+                    count.invoke("getJob");
+                    try {
+                        final IJob job = server.getJob(jobId);
+                        if (job != null) {
+                            ret.put(jobId, new P4JobState(job));
+                        }
+                    } catch (RequestException re) {
+                        // Bug #33
+                        LOG.warn(re);
+                        if (re.getMessage().contains("Syntax error in")) {
+                            ret.put(jobId, new P4JobState(jobId,
+                                    P4Bundle.message("error.job.parse", jobId, re.getMessage())));
+                        } else {
+                            failures.put(jobId, re);
+                        }
+                    }
+                }
+                return ret;
+            }
+        });
+    }
+
+
+    /**
+     * Describe the given pending changelists with a single "describe -s -S"
+     * call, which lists both the jobs each one fixes and its shelved files.
+     * The client location of all the shelved files is then found with a single
+     * "where" call, so the number of server calls doesn't grow with the number
+     * of changelists.
+     *
+     * @param changelistIds pending changelists; the default changelist is ignored,
+     *                      as it can't have jobs or shelved files.
+     * @return for each changelist that was described, the IDs of the jobs it
+     *      fixes, and its shelved files (which, if outside the client view,
+     *      have no client path).
+     * @throws VcsException perforce encountered a problem
+     * @throws CancellationException operation was canceled.
+     */
+    @NotNull
+    public Map<Integer, Pair<List<String>, List<IExtendedFileSpec>>> describePendingChangelists(
+            @NotNull final Collection<Integer> changelistIds)
+            throws VcsException, CancellationException {
+        final List<String> args = new ArrayList<String>(changelistIds.size() + 2);
+        args.add("-s");
+        args.add("-S");
+        for (Integer changelistId : changelistIds) {
+            if (changelistId != null && changelistId > IChangelist.DEFAULT) {
+                args.add(Integer.toString(changelistId));
+            }
+        }
+        if (args.size() <= 2) {
+            return Collections.emptyMap();
+        }
+        return exec.runWithClient(project,
+                new WithClient<Map<Integer, Pair<List<String>, List<IExtendedFileSpec>>>>() {
+            @Override
+            public Map<Integer, Pair<List<String>, List<IExtendedFileSpec>>> run(
+                    @NotNull final IOptionsServer server, @NotNull final IClient client,
+                    @NotNull final ServerCount count)
+                    throws P4JavaException, IOException, InterruptedException, TimeoutException, URISyntaxException,
+                    P4Exception {
+                count.invoke("describe");
+                final List<Map<String, Object>> results =
+                        server.execMapCmdList(CmdSpec.DESCRIBE.toString(), args.toArray(new String[args.size()]), null);
+
+                final Map<Integer, Pair<List<String>, List<IExtendedFileSpec>>> ret =
+                        new HashMap<Integer, Pair<List<String>, List<IExtendedFileSpec>>>();
+                final List<ExtendedFileSpec> shelved = new ArrayList<ExtendedFileSpec>();
+                for (Map<String, Object> result : results) {
+                    if (result == null || result.get("change") == null) {
+                        LOG.info("Ignoring describe result " + result);
+                        continue;
+                    }
+                    final int changelistId;
+                    try {
+                        changelistId = Integer.parseInt(result.get("change").toString());
+                    } catch (NumberFormatException e) {
+                        LOG.info("Ignoring describe result with invalid change " + result.get("change"));
+                        continue;
+                    }
+                    final List<String> jobIds = new ArrayList<String>();
+                    for (int i = 0; result.get("job" + i) != null; i++) {
+                        jobIds.add(result.get("job" + i).toString());
+                    }
+                    final List<IExtendedFileSpec> files = new ArrayList<IExtendedFileSpec>();
+                    for (int i = 0; result.get("depotFile" + i) != null; i++) {
+                        final ExtendedFileSpec spec = new ExtendedFileSpec();
+                        spec.setOpStatus(FileSpecOpStatus.VALID);
+                        spec.setDepotPath(result.get("depotFile" + i).toString());
+                        final Object action = result.get("action" + i);
+                        spec.setAction(action == null ? FileAction.UNKNOWN : FileAction.fromString(action.toString()));
+                        spec.setChangelistId(changelistId);
+                        files.add(spec);
+                        shelved.add(spec);
+                    }
+                    LOG.debug("Changelist " + changelistId + " has " + jobIds.size() + " jobs and " +
+                            files.size() + " shelved files");
+                    ret.put(changelistId, Pair.create(jobIds, files));
+                }
+
+                if (! shelved.isEmpty()) {
+                    // The same depot path can be shelved in more than one changelist,
+                    // but it only needs to be looked up once.
+                    final Map<String, List<ExtendedFileSpec>> byDepotPath =
+                            new LinkedHashMap<String, List<ExtendedFileSpec>>();
+                    for (ExtendedFileSpec spec : shelved) {
+                        List<ExtendedFileSpec> specs = byDepotPath.get(spec.getDepotPathString());
+                        if (specs == null) {
+                            specs = new ArrayList<ExtendedFileSpec>();
+                            byDepotPath.put(spec.getDepotPathString(), specs);
+                        }
+                        specs.add(spec);
+                    }
+                    final List<IFileSpec> whereSpecs = new ArrayList<IFileSpec>(byDepotPath.size());
+                    for (String depotPath : byDepotPath.keySet()) {
+                        whereSpecs.add(FileSpecUtil.getAlreadyEscapedSpec(depotPath));
+                    }
+                    count.invoke("where");
+                    final List<IFileSpec> where = client.where(whereSpecs);
+                    for (IFileSpec spec : where) {
+                        if (spec == null || ! isValid(spec) || spec.getDepotPathString() == null) {
+                            continue;
+                        }
+                        final List<ExtendedFileSpec> specs = byDepotPath.get(spec.getDepotPathString());
+                        if (specs != null) {
+                            for (ExtendedFileSpec shelvedSpec : specs) {
+                                shelvedSpec.setClientPath(spec.getLocalPathString());
+                            }
+                        }
+                    }
+                }
+                return ret;
+            }
+        });
+    }
+
     @NotNull
     public List<IUserSummary> getUsers(final boolean includeServiceUsers, final int maxCount)
             throws VcsException, CancellationException {
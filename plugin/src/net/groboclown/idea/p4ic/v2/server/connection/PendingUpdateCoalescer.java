@@ -0,0 +1,137 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import net.groboclown.idea.p4ic.v2.server.cache.UpdateGroup;
+import net.groboclown.idea.p4ic.v2.server.cache.state.PendingUpdateState;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Turns the pending update states queued up over a short window into as few
+ * {@link ServerUpdateAction}s as possible.  Every state in an
+ * {@link UpdateGroup} can run in one action (the actions already sort the
+ * files by changelist), so states are merged into the last batch of their
+ * group, as long as that doesn't move them past a batch they depend upon.
+ * <p/>
+ * States that were reverted or replaced while they waited are no longer in
+ * the cache; those, along with exact repeats of a later state, are dropped
+ * rather than sent to the server.
+ */
+final class PendingUpdateCoalescer {
+    private static final Set<UpdateGroup> FILE_GROUPS = Collections.unmodifiableSet(EnumSet.of(
+            UpdateGroup.FILE_ADD_EDIT, UpdateGroup.FILE_DELETE, UpdateGroup.FILE_MOVE,
+            UpdateGroup.FILE_REVERT, UpdateGroup.FILE_NO_OP));
+
+    private PendingUpdateCoalescer() {
+        // utility class
+    }
+
+
+    static class Result {
+        /** The states to run, one list per action, in the order to run them. */
+        final List<List<PendingUpdateState>> batches = new ArrayList<List<PendingUpdateState>>();
+
+        /** Repeated states that are still in the cache, and must be removed from it. */
+        final List<PendingUpdateState> repeated = new ArrayList<PendingUpdateState>();
+
+        /** Number of states that were dropped, including the repeated ones. */
+        int dropped = 0;
+    }
+
+
+    /**
+     * @param queued the states in the order they were queued, all for the
+     *               same project.
+     * @param cached the pending update states currently in the cache.
+     * @return the batched states.
+     */
+    @NotNull
+    static Result coalesce(@NotNull List<PendingUpdateState> queued,
+            @NotNull Collection<PendingUpdateState> cached) {
+        final Result ret = new Result();
+        final Set<Integer> cachedIds = new HashSet<Integer>();
+        for (PendingUpdateState state : cached) {
+            cachedIds.add(state.getRefId());
+        }
+
+        final List<PendingUpdateState> live = new ArrayList<PendingUpdateState>(queued.size());
+        for (PendingUpdateState state : queued) {
+            if (cachedIds.contains(state.getRefId())) {
+                live.add(state);
+            } else {
+                // Reverted, or replaced by a newer update for the same object.
+                ret.dropped++;
+            }
+        }
+
+        // Walk backwards so that the last of a repeated state is the one
+        // that's kept.
+        final Set<List<Object>> seen = new HashSet<List<Object>>();
+        final List<PendingUpdateState> unique = new ArrayList<PendingUpdateState>(live.size());
+        for (int i = live.size() - 1; i >= 0; i--) {
+            final PendingUpdateState state = live.get(i);
+            if (seen.add(Arrays.<Object>asList(state.getUpdateAction(), state.getObjectIds(),
+                    state.getParameters()))) {
+                unique.add(state);
+            } else {
+                ret.repeated.add(state);
+                ret.dropped++;
+            }
+        }
+        Collections.reverse(unique);
+
+        final List<UpdateGroup> batchGroups = new ArrayList<UpdateGroup>();
+        final List<Set<String>> batchObjects = new ArrayList<Set<String>>();
+        for (PendingUpdateState state : unique) {
+            int target = findBatch(state, batchGroups, batchObjects);
+            if (target < 0) {
+                target = ret.batches.size();
+                batchGroups.add(state.getUpdateGroup());
+                batchObjects.add(new HashSet<String>());
+                ret.batches.add(new ArrayList<PendingUpdateState>());
+            }
+            ret.batches.get(target).add(state);
+            batchObjects.get(target).addAll(state.getObjectIds());
+        }
+        return ret;
+    }
+
+
+    /**
+     * Find the batch the state can join.  A changelist update only joins the
+     * last batch, because later file updates may use the changelist it
+     * creates.  A file update may also join an earlier batch of its group, if
+     * every batch after that is for other files.
+     *
+     * @return the index of the batch, or -1 if it needs a new batch.
+     */
+    private static int findBatch(@NotNull PendingUpdateState state, @NotNull List<UpdateGroup> batchGroups,
+            @NotNull List<Set<String>> batchObjects) {
+        final UpdateGroup group = state.getUpdateGroup();
+        final boolean isFile = FILE_GROUPS.contains(group);
+        for (int i = batchGroups.size() - 1; i >= 0; i--) {
+            if (batchGroups.get(i) == group) {
+                return i;
+            }
+            if (! isFile || ! FILE_GROUPS.contains(batchGroups.get(i)) ||
+                    ! Collections.disjoint(state.getObjectIds(), batchObjects.get(i))) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import com.intellij.openapi.diagnostic.Logger;
+import net.groboclown.idea.p4ic.config.ClientConfig;
+import net.groboclown.idea.p4ic.server.exceptions.P4ConnectionDisposedException;
+import net.groboclown.idea.p4ic.server.exceptions.P4InvalidConfigException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pool of client connections for the {@link ReadOnlyServerQuery}s,
+ * so that they don't have to wait for the update actions, or each other.
+ * Each {@link ClientExec} in the pool has its own server connection, and is
+ * only used by one query at a time.
+ */
+class ReadConnectionPool {
+    private static final Logger LOG = Logger.getInstance(ReadConnectionPool.class);
+
+    private final ExecFactory factory;
+    private final Semaphore available;
+    private final LaneStatistics statistics = new LaneStatistics("read");
+
+    private final Object sync = new Object();
+    private final Deque<ClientExec> idle = new ArrayDeque<ClientExec>();
+    private boolean disposed = false;
+
+
+    /**
+     * Opens a new connection for the pool.
+     */
+    interface ExecFactory {
+        @NotNull
+        ClientExec create()
+                throws P4InvalidConfigException;
+    }
+
+
+    ReadConnectionPool(@NotNull final ClientConfig config, @NotNull final ServerStatusController statusController,
+            int maxConnections) {
+        this(new ExecFactory() {
+            @NotNull
+            @Override
+            public ClientExec create()
+                    throws P4InvalidConfigException {
+                return ClientExec.createFor(config, statusController);
+            }
+        }, maxConnections);
+    }
+
+
+    ReadConnectionPool(@NotNull ExecFactory factory, int maxConnections) {
+        this.factory = factory;
+        this.available = new Semaphore(maxConnections, true);
+    }
+
+
+    @NotNull
+    LaneStatistics getStatistics() {
+        return statistics;
+    }
+
+
+    /**
+     * Wait for a connection to become free.  The caller must
+     * {@link #checkin(ClientExec)} the returned connection when done, or
+     * {@link #discard(ClientExec)} it if it can't be trusted any more.
+     *
+     * @param waitMillis how long to wait for a free connection
+     * @return the connection
+     * @throws InterruptedException if no connection was free in time
+     */
+    @NotNull
+    ClientExec checkout(long waitMillis)
+            throws InterruptedException, P4InvalidConfigException, P4ConnectionDisposedException {
+        statistics.queued();
+        final long start = System.currentTimeMillis();
+        final boolean acquired;
+        try {
+            acquired = available.tryAcquire(waitMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            statistics.cancelled();
+            throw e;
+        }
+        if (!acquired) {
+            statistics.timedOut();
+            throw new InterruptedException("read connection acquire timeout");
+        }
+        statistics.started(System.currentTimeMillis() - start);
+
+        synchronized (sync) {
+            if (disposed) {
+                available.release();
+                throw new P4ConnectionDisposedException();
+            }
+            final ClientExec exec = idle.poll();
+            if (exec != null) {
+                return exec;
+            }
+        }
+        try {
+            LOG.debug("Opening a new read connection");
+            return factory.create();
+        } catch (P4InvalidConfigException e) {
+            available.release();
+            throw e;
+        }
+    }
+
+
+    void checkin(@NotNull ClientExec exec) {
+        synchronized (sync) {
+            if (disposed) {
+                exec.dispose();
+            } else {
+                idle.push(exec);
+            }
+        }
+        available.release();
+    }
+
+
+    /**
+     * Return a connection that failed, or whose state is unknown; it's
+     * closed rather than reused, and a new one is opened when needed.
+     */
+    void discard(@NotNull ClientExec exec) {
+        exec.dispose();
+        available.release();
+    }
+
+
+    /**
+     * Close the idle connections; new ones are opened as they're needed.
+     */
+    void disconnect() {
+        final List<ClientExec> closed;
+        synchronized (sync) {
+            closed = new ArrayList<ClientExec>(idle);
+            idle.clear();
+        }
+        for (ClientExec exec : closed) {
+            exec.dispose();
+        }
+    }
+
+
+    void dispose() {
+        synchronized (sync) {
+            disposed = true;
+        }
+        disconnect();
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+/**
+ * A {@link ServerQuery} that only reads from the server.  It must not change
+ * anything on the server, in the client workspace, or in the local cache.
+ * <p/>
+ * Because of that, these queries don't wait on the connection that runs the
+ * {@link ServerUpdateAction}s; each one runs on a connection of its own from
+ * a small pool, alongside the other queries.
+ */
+public interface ReadOnlyServerQuery<T> extends ServerQuery<T> {
+}
@@ -23,6 +23,7 @@ import com.perforce.p4java.server.IServerInfo;
 import net.groboclown.idea.p4ic.P4Bundle;
 import net.groboclown.idea.p4ic.changes.P4ChangesViewRefresher;
 import net.groboclown.idea.p4ic.config.ClientConfig;
+import net.groboclown.idea.p4ic.config.UserProjectPreferences;
 import net.groboclown.idea.p4ic.server.VcsExceptionUtil;
 import net.groboclown.idea.p4ic.server.exceptions.P4ConnectionDisposedException;
 import net.groboclown.idea.p4ic.server.exceptions.P4DisconnectedException;
@@ -42,10 +43,11 @@ import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -56,7 +58,26 @@ public class ServerConnection {
     private static final Logger LOG = Logger.getInstance(ServerConnection.class);
     private static final ThreadGroup CONNECTION_THREAD_GROUP = new ThreadGroup("P4ServerName Connection");
     private static final ThreadLocal<Boolean> THREAD_EXECUTION_ACTIVE = new ThreadLocal<Boolean>();
-    private final BlockingQueue<UpdateAction> pendingUpdates = new LinkedBlockingDeque<UpdateAction>();
+
+    // A steady stream of updates still gets sent after this many delay periods.
+    private static final int MAX_UPDATE_QUEUE_DELAYS = 10;
+
+    // Read-only queries each use their own connection, up to this many at once.
+    private static final int MAX_READ_CONNECTIONS = 3;
+
+    // Updates are staged until no more have arrived for the update queue
+    // delay, then coalesced into the pending actions.  These are all guarded by
+    // the queueSync lock.
+    private final Object queueSync = new Object();
+    private final List<StagedUpdate> stagedUpdates = new ArrayList<StagedUpdate>();
+    private int stagedActionCount = 0;
+    private long firstStagedMillis = 0;
+    private long lastStagedMillis = 0;
+    private final Queue<UpdateAction> pendingUpdates = new ArrayDeque<UpdateAction>();
+    private final AtomicInteger savedActionCount = new AtomicInteger();
+    private final LaneStatistics updateStatistics = new LaneStatistics("update");
+    private final ReadConnectionPool readConnections;
+
     private final Queue<UpdateAction> redo = new ArrayDeque<UpdateAction>();
     private final Lock redoLock = new ReentrantLock();
     private final AlertManager alertManager;
@@ -106,6 +127,7 @@ public class ServerConnection {
         this.config = config;
         this.statusController = statusController;
         this.clientExec = initial;
+        this.readConnections = new ReadConnectionPool(config, statusController, MAX_READ_CONNECTIONS);
 
         background = new Thread(new QueueRunner(), "P4 P4ServerName Connection");
         background.setDaemon(false);
@@ -165,6 +187,7 @@ public class ServerConnection {
         }
         disposed = true;
         background.interrupt();
+        readConnections.dispose();
         if (clientExec != null) {
             // If the server communication is taking a really long
             // time, this lock attempt can block the EDT.  So, do
@@ -198,7 +221,10 @@ public class ServerConnection {
 
     private void queueAction(@NotNull Project project, @NotNull ServerUpdateAction action) {
         LOG.info("Queueing action for execution: " + action);
-        pendingUpdates.add(new UpdateAction(project, action));
+        synchronized (queueSync) {
+            pendingUpdates.add(new UpdateAction(project, action));
+        }
+        updateStatistics.queued();
     }
 
     /**
@@ -228,9 +254,18 @@ public class ServerConnection {
         });
     }
 
+    /**
+     * Run the query within the current thread.  A {@link ReadOnlyServerQuery}
+     * runs on its own connection, and so only waits for other read-only
+     * queries if all the read connections are in use.  Other queries block
+     * while an action is happening within the other thread.
+     */
     @Nullable
     public <T> T query(@NotNull final Project project, @NotNull final ServerQuery<T> query)
             throws InterruptedException {
+        if (query instanceof ReadOnlyServerQuery) {
+            return readOnlyQuery(project, query);
+        }
         return synchronizer.runImmediateAction(new ActionRunner<T>() {
             @Override
             public T perform(@NotNull SynchronizedActionRunner runner)
@@ -251,6 +286,48 @@ public class ServerConnection {
     }
 
 
+    @Nullable
+    private <T> T readOnlyQuery(@NotNull final Project project, @NotNull final ServerQuery<T> query)
+            throws InterruptedException {
+        return synchronizer.runConcurrentAction(new ActionRunner<T>() {
+            @Override
+            public T perform(@NotNull SynchronizedActionRunner runner)
+                    throws InterruptedException {
+                final ClientExec readExec;
+                try {
+                    if (disposed) {
+                        throw new P4ConnectionDisposedException();
+                    }
+                    readExec = readConnections.checkout(UserProjectPreferences.getLockWaitTimeoutMillis(project));
+                } catch (P4InvalidConfigException e) {
+                    alertManager.addCriticalError(new ConfigurationProblemHandler(project, statusController, e), e);
+                    return null;
+                } catch (P4ConnectionDisposedException e) {
+                    LOG.info("Ran query on disposed server", e);
+                    return null;
+                }
+                boolean completed = false;
+                try {
+                    THREAD_EXECUTION_ACTIVE.set(Boolean.TRUE);
+                    final T result = query.query(new P4Exec2(project, readExec), cacheManager,
+                            ServerConnection.this, runner, alertManager);
+                    completed = true;
+                    return result;
+                } finally {
+                    THREAD_EXECUTION_ACTIVE.remove();
+                    // A query that threw, or that lost the server, may have
+                    // left the connection in an unknown state.
+                    if (completed && statusController.isWorkingOnline()) {
+                        readConnections.checkin(readExec);
+                    } else {
+                        readConnections.discard(readExec);
+                    }
+                }
+            }
+        });
+    }
+
+
     /**
      * Retry running a command that failed.  This should usually be put back at the head
      * of the action queue.  It is sometimes necessary if the command fails due to a
@@ -347,6 +424,36 @@ public class ServerConnection {
     }
 
 
+    /**
+     * @return the number of server update actions that didn't need to run,
+     *      because their updates were merged into other actions or cancelled
+     *      out before they were sent.
+     */
+    public int getSavedActionCount() {
+        return savedActionCount.get();
+    }
+
+
+    /**
+     * @return how many update actions are waiting to run, and how long they
+     *      have waited.
+     */
+    @NotNull
+    public LaneStatistics getUpdateLaneStatistics() {
+        return updateStatistics;
+    }
+
+
+    /**
+     * @return how many read-only queries are waiting for a connection, and
+     *      how long they have waited.
+     */
+    @NotNull
+    public LaneStatistics getReadLaneStatistics() {
+        return readConnections.getStatistics();
+    }
+
+
     /**
      * Used in the few rare cases where the client connection is used outside the
      * scope of the P4Server objects.  If we don't have this method, and instead
@@ -419,32 +526,95 @@ public class ServerConnection {
     }
 
 
+    /**
+     * Stage the updates for the background thread.  They're held until the
+     * update queue delay passes without any more updates, so that everything
+     * queued up by a large operation (say, a refactoring that touches
+     * thousands of files) runs in as few server actions as possible.
+     */
     private void queueUpdateActions(@NotNull Project project, @NotNull Collection<PendingUpdateState> updates) {
+        if (updates.isEmpty()) {
+            return;
+        }
+        // The number of actions these would have run as on their own, to
+        // see how many are saved.
+        int actionCount = 0;
         UpdateGroup currentGroup = null;
-        List<PendingUpdateState> currentGroupUpdates = null;
         for (PendingUpdateState update : updates) {
             if (LOG.isDebugEnabled()) {
                 LOG.debug("adding update state as action: " + update);
             }
+            if (!update.getUpdateGroup().equals(currentGroup)) {
+                actionCount++;
+                currentGroup = update.getUpdateGroup();
+            }
+        }
 
-            if (currentGroup != null && !update.getUpdateGroup().equals(currentGroup)) {
-                // new group, so add the old stuff and clear it out.
-                if (!currentGroupUpdates.isEmpty()) {
-                    queueAction(project,
-                            currentGroup.getServerUpdateActionFactory().create(currentGroupUpdates));
-                }
-                currentGroupUpdates = null;
+        synchronized (queueSync) {
+            final long now = System.currentTimeMillis();
+            if (stagedUpdates.isEmpty()) {
+                firstStagedMillis = now;
             }
-            currentGroup = update.getUpdateGroup();
-            if (currentGroupUpdates == null) {
-                currentGroupUpdates = new ArrayList<PendingUpdateState>();
+            lastStagedMillis = now;
+            for (PendingUpdateState update : updates) {
+                stagedUpdates.add(new StagedUpdate(project, update));
             }
-            currentGroupUpdates.add(update);
+            stagedActionCount += actionCount;
+            queueSync.notifyAll();
         }
-        if (currentGroup != null && currentGroupUpdates != null && !currentGroupUpdates.isEmpty()) {
-            queueAction(project,
-                    currentGroup.getServerUpdateActionFactory().create(currentGroupUpdates));
+    }
+
+
+    /**
+     * Turn the staged updates into actions.  Updates that were reverted while
+     * they were staged are dropped, and the rest are merged into as few
+     * actions as possible.
+     */
+    private void coalesceUpdates(@NotNull List<StagedUpdate> staged, int requestedActionCount) {
+        final Map<Project, List<PendingUpdateState>> byProject =
+                new LinkedHashMap<Project, List<PendingUpdateState>>();
+        for (StagedUpdate update : staged) {
+            List<PendingUpdateState> states = byProject.get(update.project);
+            if (states == null) {
+                states = new ArrayList<PendingUpdateState>();
+                byProject.put(update.project, states);
+            }
+            states.add(update.state);
+        }
+
+        int actionCount = 0;
+        int droppedCount = 0;
+        for (Map.Entry<Project, List<PendingUpdateState>> entry : byProject.entrySet()) {
+            final PendingUpdateCoalescer.Result result =
+                    PendingUpdateCoalescer.coalesce(entry.getValue(), cacheManager.getCachedPendingUpdates());
+            if (!result.repeated.isEmpty()) {
+                cacheManager.removePendingUpdateStates(result.repeated);
+            }
+            droppedCount += result.dropped;
+            for (List<PendingUpdateState> batch : result.batches) {
+                queueAction(entry.getKey(),
+                        batch.get(0).getUpdateGroup().getServerUpdateActionFactory().create(batch));
+                actionCount++;
+            }
         }
+
+        final int saved = Math.max(0, requestedActionCount - actionCount);
+        final int total = savedActionCount.addAndGet(saved);
+        LOG.info("Coalesced " + staged.size() + " pending updates into " + actionCount + " actions (" +
+                droppedCount + " updates dropped); saved " + saved + " actions, " + total + " in all");
+    }
+
+
+    /**
+     * Must be called while holding the queueSync lock.
+     *
+     * @return how much longer the staged updates should wait for more
+     *      updates, or 0 if they should be coalesced now.
+     */
+    private long getStagedWaitMillis() {
+        final long delay = UserProjectPreferences.getUpdateQueueDelayMillis(stagedUpdates.get(0).project);
+        final long due = Math.min(lastStagedMillis + delay, firstStagedMillis + delay * MAX_UPDATE_QUEUE_DELAYS);
+        return Math.max(0, due - System.currentTimeMillis());
     }
 
 
@@ -455,6 +625,7 @@ public class ServerConnection {
                 clientExec = null;
             }
         }
+        readConnections.disconnect();
     }
 
 
@@ -467,13 +638,36 @@ public class ServerConnection {
         } finally {
             redoLock.unlock();
         }
-        if (action == null) {
-            LOG.debug("Polling pending updates for action");
-            action = pendingUpdates.take();
+        while (action == null) {
+            final List<StagedUpdate> staged;
+            final int requestedActionCount;
+            synchronized (queueSync) {
+                action = pendingUpdates.poll();
+                if (action != null) {
+                    break;
+                }
+                if (stagedUpdates.isEmpty()) {
+                    LOG.debug("Polling pending updates for action");
+                    queueSync.wait();
+                    continue;
+                }
+                final long wait = getStagedWaitMillis();
+                if (wait > 0) {
+                    queueSync.wait(wait);
+                    continue;
+                }
+                staged = new ArrayList<StagedUpdate>(stagedUpdates);
+                stagedUpdates.clear();
+                requestedActionCount = stagedActionCount;
+                stagedActionCount = 0;
+            }
+            // The cache is checked outside the queue lock.
+            coalesceUpdates(staged, requestedActionCount);
         }
+        updateStatistics.started(System.currentTimeMillis() - action.queuedMillis);
         if (LOG.isDebugEnabled()) {
             LOG.debug("pulled action " + action + "; pending size " + pendingUpdates.size() + "; redo size " +
-                    redo.size());
+                    redo.size() + "; " + updateStatistics);
         }
         return action;
     }
@@ -487,6 +681,7 @@ public class ServerConnection {
         } finally {
             redoLock.unlock();
         }
+        updateStatistics.queued();
     }
 
 
@@ -598,9 +793,21 @@ public class ServerConnection {
     }
 
 
+    private static class StagedUpdate {
+        final Project project;
+        final PendingUpdateState state;
+
+        StagedUpdate(@NotNull Project project, @NotNull PendingUpdateState state) {
+            this.project = project;
+            this.state = state;
+        }
+    }
+
+
     private static class UpdateAction {
         final ServerUpdateAction action;
         final Project project;
+        final long queuedMillis = System.currentTimeMillis();
 
         UpdateAction(@NotNull Project project, @NotNull ServerUpdateAction action) {
             this.action = action;
@@ -199,6 +199,15 @@ class Synchronizer {
             }
 
 
+            /**
+             * Run an action that brings its own server connection, so it
+             * doesn't need to wait for the connection lock.
+             */
+            <T> T runConcurrentAction(@NotNull final ActionRunner<T> runner) throws InterruptedException {
+                return runner.perform(syncRunner);
+            }
+
+
             /**
              * @return true if the action ran, or false if a wait happened.
              */
@@ -17,17 +17,16 @@ package net.groboclown.idea.p4ic.v2.server.util;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.vcs.FilePath;
 import com.intellij.openapi.vcs.VcsException;
-import com.perforce.p4java.core.file.IExtendedFileSpec;
 import com.perforce.p4java.core.file.IFileSpec;
 import net.groboclown.idea.p4ic.P4Bundle;
+import net.groboclown.idea.p4ic.v2.server.cache.RevisionContentCache;
+import net.groboclown.idea.p4ic.v2.server.cache.RevisionContentCache.RevisionContent;
 import net.groboclown.idea.p4ic.v2.server.cache.sync.ClientCacheManager;
 import net.groboclown.idea.p4ic.v2.server.connection.*;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.Collections;
-import java.util.List;
 
 public class RemoteFileReader {
     private static final Logger LOG = Logger.getInstance(RemoteFileReader.class);
@@ -43,7 +42,34 @@ public class RemoteFileReader {
 
 
 
-    private static final class ByteReader implements ServerQuery<byte[]> {
+    /**
+     * Load the contents through the revision cache.  A spec that's already a
+     * depot path at an exact revision can be answered by the cache without
+     * going to the server at all; anything else needs the server to say which
+     * depot revision it means.
+     */
+    @Nullable
+    private static RevisionContent loadContent(@NotNull P4Exec2 exec, @NotNull IFileSpec spec)
+            throws VcsException, IOException {
+        final RevisionContentCache cache = RevisionContentCache.getInstance();
+        final String path = spec.getDepotPathString() != null
+                ? spec.getDepotPathString()
+                : spec.getOriginalPathString();
+        if (path != null && path.startsWith("//") && spec.getEndRevision() > 0 &&
+                spec.getStartRevision() == IFileSpec.NO_FILE_REVISION &&
+                spec.getChangelistId() <= 0 && spec.getLabel() == null && spec.getDate() == null) {
+            final RevisionContent cached = cache.get(exec.getServerConfig().getServerId(), path,
+                    spec.getEndRevision());
+            if (cached != null) {
+                LOG.debug("Using cached contents of " + spec);
+                return cached;
+            }
+        }
+        return exec.loadFileRevision(spec, cache);
+    }
+
+
+    private static final class ByteReader implements ReadOnlyServerQuery<byte[]> {
         private final FilePath file;
         private final IFileSpec spec;
 
@@ -61,7 +87,8 @@ public class RemoteFileReader {
                 @NotNull final AlertManager alerts)
                 throws InterruptedException {
             try {
-                return exec.loadFile(spec);
+                final RevisionContent content = loadContent(exec, spec);
+                return content == null ? null : content.getBytes();
             } catch (VcsException e) {
                 alerts.addWarning(exec.getProject(),
                         P4Bundle.message("exception.load-file.title"),
@@ -78,7 +105,7 @@ public class RemoteFileReader {
     }
 
 
-    private static final class StringReader implements ServerQuery<String> {
+    private static final class StringReader implements ReadOnlyServerQuery<String> {
         private final FilePath file;
         private final IFileSpec spec;
 
@@ -94,26 +121,20 @@ public class RemoteFileReader {
                 @NotNull final AlertManager alerts)
                 throws InterruptedException {
             try {
-                byte[] bytes = exec.loadFile(spec);
-                if (bytes == null) {
+                final RevisionContent content = loadContent(exec, spec);
+                if (content == null) {
                     return null;
                 }
-                final List<IExtendedFileSpec> es =
-                        exec.getFileStatus(Collections.singletonList(spec));
-                String encoding = null;
-                if (! es.isEmpty()) {
-                    encoding = es.get(0).getCharset();
-                }
-                if (encoding == null) {
+                if (content.getCharset() == null) {
                     LOG.debug("No known encoding for " + file + "; using utf-8");
                     //alerts.addNotice(exec.getProject(),
                     //        P4Bundle.message("exception.load-file-encoding"),
                     //        new P4FileException(file),
                     //        file);
-                    return new String(bytes, "utf-8");
+                } else {
+                    LOG.debug("reading " + file + " with encoding " + content.getCharset());
                 }
-                LOG.debug("reading " + file + " with encoding " + encoding);
-                return new String(bytes, encoding);
+                return content.getString();
             } catch (VcsException e) {
                 alerts.addWarning(exec.getProject(),
                         P4Bundle.message("exception.load-file.title"),
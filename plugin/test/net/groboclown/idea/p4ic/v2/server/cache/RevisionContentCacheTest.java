@@ -0,0 +1,97 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.cache;
+
+import net.groboclown.idea.p4ic.v2.server.cache.RevisionContentCache.RevisionContent;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class RevisionContentCacheTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+
+    @Test
+    public void testMemoryOnly() throws Exception {
+        RevisionContentCache cache = new RevisionContentCache(null, 1024, 1024);
+        assertThat(cache.get("server", "//depot/a.txt", 1), is(nullValue()));
+
+        cache.put("server", "//depot/a.txt", 1, "abc".getBytes("utf-8"), null);
+        RevisionContent content = cache.get("server", "//depot/a.txt", 1);
+        assertThat(content, notNullValue());
+        assertThat(content.getString(), is("abc"));
+        assertThat(content.getCharset(), is(nullValue()));
+
+        assertThat(cache.get("server", "//depot/a.txt", 2), is(nullValue()));
+        assertThat(cache.get("other", "//depot/a.txt", 1), is(nullValue()));
+    }
+
+
+    @Test
+    public void testGetBytesReturnsCopy() throws Exception {
+        RevisionContentCache cache = new RevisionContentCache(null, 1024, 1024);
+        cache.put("server", "//depot/a.txt", 1, "abc".getBytes("utf-8"), null);
+
+        cache.get("server", "//depot/a.txt", 1).getBytes()[0] = 'x';
+
+        assertThat(cache.get("server", "//depot/a.txt", 1).getString(), is("abc"));
+    }
+
+
+    @Test
+    public void testNoExactRevision() throws Exception {
+        RevisionContentCache cache = new RevisionContentCache(null, 1024, 1024);
+        cache.put("server", "//depot/a.txt", 0, "abc".getBytes("utf-8"), null);
+        assertThat(cache.get("server", "//depot/a.txt", 0), is(nullValue()));
+    }
+
+
+    @Test
+    public void testPersistsAcrossInstances() throws Exception {
+        File dir = tmp.newFolder("revisions");
+        RevisionContentCache first = new RevisionContentCache(dir, 1024, 1024 * 1024);
+        first.put("server", "//depot/a.txt", 3, "café".getBytes("utf-16"), "utf16");
+
+        RevisionContentCache second = new RevisionContentCache(dir, 1024, 1024 * 1024);
+        RevisionContent content = second.get("server", "//depot/a.txt", 3);
+        assertThat(content, notNullValue());
+        assertThat(content.getCharset(), is("utf16"));
+        assertThat(content.getString(), is("café"));
+        assertThat(second.get("server", "//depot/a.txt", 2), is(nullValue()));
+    }
+
+
+    @Test
+    public void testDiskLimitEvictsLeastRecentlyUsed() throws Exception {
+        File dir = tmp.newFolder("revisions");
+        byte[] contents = new byte[1000];
+        // Room on disk for two revisions, but not three; nothing in memory.
+        RevisionContentCache cache = new RevisionContentCache(dir, 0, 2500);
+        cache.put("server", "//depot/a.txt", 1, contents, null);
+        cache.put("server", "//depot/a.txt", 2, contents, null);
+        assertThat(cache.get("server", "//depot/a.txt", 1), notNullValue());
+        cache.put("server", "//depot/a.txt", 3, contents, null);
+
+        assertThat(cache.get("server", "//depot/a.txt", 1), notNullValue());
+        assertThat(cache.get("server", "//depot/a.txt", 2), is(nullValue()));
+        assertThat(cache.get("server", "//depot/a.txt", 3), notNullValue());
+        assertThat(dir.list().length, is(2));
+    }
+}
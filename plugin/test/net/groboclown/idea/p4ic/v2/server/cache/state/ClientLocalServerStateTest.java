@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.cache.state;
+
+import net.groboclown.idea.p4ic.v2.server.cache.UpdateAction;
+import net.groboclown.idea.p4ic.v2.server.cache.state.ClientLocalServerState.IntegrityChanges;
+import net.groboclown.idea.p4ic.v2.server.cache.UpdateAction.UpdateParameterNames;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class ClientLocalServerStateTest {
+    @Test
+    public void testFirstCheckIsFull() {
+        final PendingUpdateState edit = fileUpdate("/src/a.java", 1);
+        final ClientLocalServerState state = createState(edit);
+
+        assertThat(state.takeIntegrityChanges(), nullValue());
+        assertThat(state.takeIntegrityChanges().isEmpty(), is(true));
+        assertThat(state.hasPendingFileReference("/src/a.java"), is(true));
+        assertThat(state.hasPendingChangelistReference(1), is(true));
+    }
+
+
+    @Test
+    public void testChangesAreTracked() {
+        final PendingUpdateState edit1 = fileUpdate("/src/a.java", 1);
+        final PendingUpdateState edit2 = fileUpdate("/src/a.java", 2);
+        final ClientLocalServerState state = createState();
+        state.takeIntegrityChanges();
+
+        state.addPendingUpdate(edit1);
+        state.addPendingUpdate(edit2);
+        state.removePendingUpdate(edit1);
+
+        final IntegrityChanges changes = state.takeIntegrityChanges();
+        assertThat(changes.getFiles(), is(Collections.singleton("/src/a.java")));
+        assertThat(changes.getChangelists(), is((Set<Integer>) new HashSet<Integer>(Arrays.asList(1, 2))));
+        assertThat(state.takeIntegrityChanges().isEmpty(), is(true));
+        assertThat(state.hasPendingFileReference("/src/a.java"), is(true));
+        assertThat(state.hasPendingChangelistReference(1), is(false));
+        assertThat(state.hasPendingChangelistReference(2), is(true));
+
+        state.removePendingUpdate(edit2);
+        assertThat(state.hasPendingFileReference("/src/a.java"), is(false));
+    }
+
+
+    @Test
+    public void testLocalChangesAreTracked() {
+        final ClientLocalServerState state = createState();
+        state.takeIntegrityChanges();
+
+        state.markLocalFileChanged("/src/b.java");
+        state.markLocalChangelistChanged(3);
+
+        final IntegrityChanges changes = state.takeIntegrityChanges();
+        assertThat(changes.getFiles(), is(Collections.singleton("/src/b.java")));
+        assertThat(changes.getChangelists(), is(Collections.singleton(3)));
+        assertThat(state.hasPendingFileReference("/src/b.java"), is(false));
+        assertThat(state.hasPendingChangelistReference(3), is(false));
+        assertThat(state.takeIntegrityChanges().isEmpty(), is(true));
+    }
+
+
+    @NotNull
+    private static ClientLocalServerState createState(@NotNull PendingUpdateState... pending) {
+        return new ClientLocalServerState(mock(P4ClientState.class), mock(P4ClientState.class),
+                new ArrayList<PendingUpdateState>(Arrays.asList(pending)));
+    }
+
+
+    @NotNull
+    private static PendingUpdateState fileUpdate(@NotNull String file, int changelist) {
+        final Map<String, Object> params = new HashMap<String, Object>();
+        params.put(UpdateParameterNames.FILE.getKeyName(), file);
+        params.put(UpdateParameterNames.CHANGELIST.getKeyName(), changelist);
+        return new PendingUpdateState(UpdateAction.EDIT_FILE, Collections.singleton(file), params);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.cache.sync;
+
+import com.intellij.openapi.command.impl.DummyProject;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vcs.FilePath;
+import com.intellij.openapi.vfs.VirtualFile;
+import net.groboclown.idea.p4ic.config.ClientConfig;
+import net.groboclown.idea.p4ic.config.P4ServerName;
+import net.groboclown.idea.p4ic.config.ServerConfig;
+import net.groboclown.idea.p4ic.config.part.SimpleDataPart;
+import net.groboclown.idea.p4ic.v2.server.P4Server.IntegrateFile;
+import net.groboclown.idea.p4ic.v2.server.cache.ClientServerRef;
+import net.groboclown.idea.p4ic.v2.server.cache.FileUpdateAction;
+import net.groboclown.idea.p4ic.v2.server.cache.state.*;
+import net.groboclown.idea.p4ic.v2.server.util.FilePathUtil;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class ClientCacheManagerTest {
+    private final Project project = DummyProject.getInstance();
+
+    @Test
+    public void testIncrementalCheckMatchesFullCheck() {
+        final ClientLocalServerState incrementalState = createState();
+        final ClientCacheManager incremental = createManager(incrementalState);
+        final ClientLocalServerState fullState = createState();
+        final ClientCacheManager full = createManager(fullState);
+
+        // the first check is always a full one
+        incremental.checkLocalIntegrity();
+        full.checkLocalIntegrity();
+
+        changeLocalState(incremental);
+        changeLocalState(full);
+
+        incremental.checkLocalIntegrity();
+        full.checkFullLocalIntegrity();
+
+        assertThat(incremental.getIncrementalIntegrityCheckCount(), is(1L));
+        assertThat(localFiles(incrementalState), is(localFiles(fullState)));
+        assertThat(localChangelists(incrementalState), is(localChangelists(fullState)));
+        assertThat(localFiles(fullState), is(Collections.singleton(path("kept.txt"))));
+        assertThat(localChangelists(fullState), is(Collections.singleton(6)));
+    }
+
+
+    @Test
+    public void testIncrementalCheckRemovesLocalStateWithoutPendingUpdate() {
+        final ClientLocalServerState state = createState();
+        final ClientCacheManager manager = createManager(state);
+        manager.checkLocalIntegrity();
+
+        // The target is already opened for move, so the move creates the
+        // source's local state but no pending update.
+        assertThat(manager.moveFile(project, new IntegrateFile(filePath("from.txt"), filePath("moved.txt")), 1),
+                nullValue());
+        assertThat(localFiles(state), is(Collections.singleton(path("from.txt"))));
+
+        manager.checkLocalIntegrity();
+
+        assertThat(localFiles(state), is(Collections.<String>emptySet()));
+        assertThat(manager.getIncrementalIntegrityCheckCount(), is(1L));
+    }
+
+
+    private void changeLocalState(@NotNull ClientCacheManager manager) {
+        final PendingUpdateState kept = manager.deleteFile(project, filePath("kept.txt"), 1);
+        assertThat(kept, notNullValue());
+        manager.addPendingUpdateState(kept);
+
+        // The caller never registers this one.
+        assertThat(manager.deleteFile(project, filePath("dropped.txt"), 1), notNullValue());
+
+        final PendingUpdateState reverted = manager.deleteFile(project, filePath("reverted.txt"), 2);
+        assertThat(reverted, notNullValue());
+        manager.addPendingUpdateState(reverted);
+        manager.removePendingUpdateStates(Collections.singleton(reverted));
+
+        assertThat(manager.moveFile(project, new IntegrateFile(filePath("from.txt"), filePath("moved.txt")), 1),
+                nullValue());
+
+        assertThat(manager.renameChangelist(5, "dropped"), notNullValue());
+        final PendingUpdateState renamed = manager.renameChangelist(6, "kept");
+        assertThat(renamed, notNullValue());
+        manager.addPendingUpdateState(renamed);
+    }
+
+
+    @NotNull
+    private ClientCacheManager createManager(@NotNull ClientLocalServerState state) {
+        final SimpleDataPart data = new SimpleDataPart(project, Collections.<String, String>emptyMap());
+        data.setServerName("host:1234");
+        data.setClientname("abc");
+        data.setUsername("user");
+        final ClientConfig config = ClientConfig.createFrom(project, ServerConfig.createFrom(data), data,
+                Collections.<VirtualFile>emptyList());
+        return new ClientCacheManager(config, state);
+    }
+
+
+    @NotNull
+    private static ClientLocalServerState createState() {
+        final ClientLocalServerState ret = new ClientLocalServerState(createClientState(), createClientState(),
+                new ArrayList<PendingUpdateState>());
+        // The server already has the move target open for move.
+        ret.getCachedServerState().getUpdatedFiles().add(new P4FileUpdateState(
+                ret.getFileMappingRepo().getByLocation(filePath("moved.txt")),
+                1, FileUpdateAction.MOVE_FILE, true));
+        return ret;
+    }
+
+
+    @NotNull
+    private static P4ClientState createClientState() {
+        final P4ServerName serverName = P4ServerName.forPort("host:1234");
+        assertThat(serverName, notNullValue());
+        return new P4ClientState(false, new ClientServerRef(serverName, "abc"),
+                new P4WorkspaceViewState("abc"), new JobStatusListState(), new JobStateList(),
+                new UserSummaryStateList());
+    }
+
+
+    @NotNull
+    private static Set<String> localFiles(@NotNull ClientLocalServerState state) {
+        final Set<String> ret = new HashSet<String>();
+        for (P4FileUpdateState update : state.getLocalClientState().getUpdatedFiles()) {
+            ret.add(update.getLocalFilePath().getIOFile().getAbsolutePath());
+        }
+        return ret;
+    }
+
+
+    @NotNull
+    private static Set<Integer> localChangelists(@NotNull ClientLocalServerState state) {
+        final Set<Integer> ret = new HashSet<Integer>();
+        for (P4ChangeListState change : state.getLocalClientState().getChanges()) {
+            ret.add(change.getChangelistId());
+        }
+        return ret;
+    }
+
+
+    @NotNull
+    private static FilePath filePath(@NotNull String name) {
+        return FilePathUtil.getFilePath(new File(path(name)));
+    }
+
+
+    @NotNull
+    private static String path(@NotNull String name) {
+        // never exists, so nothing tries to make it writable
+        return new File("/does/not/exist", name).getAbsolutePath();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import org.junit.Test;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class LaneStatisticsTest {
+    @Test
+    public void testWaitTimesCountStartedRequests() {
+        final LaneStatistics statistics = new LaneStatistics("read");
+        statistics.queued();
+        statistics.queued();
+        statistics.queued();
+        assertThat(statistics.getQueueDepth(), is(3));
+
+        statistics.started(10);
+        statistics.started(30);
+
+        assertThat(statistics.getQueueDepth(), is(1));
+        assertThat(statistics.getStartedCount(), is(2L));
+        assertThat(statistics.getAverageWaitMillis(), is(20L));
+        assertThat(statistics.getMaxWaitMillis(), is(30L));
+    }
+
+
+    @Test
+    public void testTimeoutsAreCountedSeparately() {
+        final LaneStatistics statistics = new LaneStatistics("read");
+        statistics.queued();
+        statistics.queued();
+        statistics.queued();
+
+        statistics.started(10);
+        statistics.timedOut();
+        statistics.cancelled();
+
+        assertThat(statistics.getQueueDepth(), is(0));
+        assertThat(statistics.getStartedCount(), is(1L));
+        assertThat(statistics.getTimedOutCount(), is(1L));
+        assertThat(statistics.getAverageWaitMillis(), is(10L));
+        assertThat(statistics.getMaxWaitMillis(), is(10L));
+    }
+
+
+    @Test
+    public void testEmptyLane() {
+        final LaneStatistics statistics = new LaneStatistics("update");
+        statistics.timedOut();
+
+        assertThat(statistics.getQueueDepth(), is(0));
+        assertThat(statistics.getAverageWaitMillis(), is(0L));
+        assertThat(statistics.getName(), is("update"));
+    }
+}
@@ -0,0 +1,205 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Pair;
+import com.perforce.p4java.client.IClient;
+import com.perforce.p4java.core.IJob;
+import com.perforce.p4java.core.file.FileAction;
+import com.perforce.p4java.core.file.FileSpecOpStatus;
+import com.perforce.p4java.core.file.IExtendedFileSpec;
+import com.perforce.p4java.core.file.IFileSpec;
+import com.perforce.p4java.exception.RequestException;
+import com.perforce.p4java.impl.generic.core.file.FileSpec;
+import com.perforce.p4java.option.server.GetJobsOptions;
+import com.perforce.p4java.server.IOptionsServer;
+import net.groboclown.idea.p4ic.v2.server.cache.state.P4JobState;
+import net.groboclown.idea.p4ic.v2.server.connection.ClientExec.ServerCount;
+import net.groboclown.idea.p4ic.v2.server.connection.ClientExec.WithClient;
+import net.groboclown.idea.p4ic.v2.server.connection.ClientExec.WithServer;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.*;
+
+public class P4Exec2Test {
+    private static final int CHANGELIST_COUNT = 40;
+
+    private IOptionsServer server;
+    private IClient client;
+    private CountingServerCount count;
+    private P4Exec2 exec;
+
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        server = mock(IOptionsServer.class);
+        client = mock(IClient.class);
+        count = new CountingServerCount();
+
+        ClientExec clientExec = mock(ClientExec.class);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((WithClient<?>) invocation.getArguments()[1]).run(server, client, count);
+            }
+        }).when(clientExec).runWithClient(any(Project.class), any(WithClient.class));
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                return ((WithServer<?>) invocation.getArguments()[1]).run(server, count);
+            }
+        }).when(clientExec).runWithServer(any(Project.class), any(WithServer.class));
+        exec = new P4Exec2(mock(Project.class), clientExec);
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPendingChangelistsLoadWithFixedServerCalls() throws Exception {
+        final List<Integer> changelistIds = new ArrayList<Integer>();
+        final List<Map<String, Object>> describe = new ArrayList<Map<String, Object>>();
+        final List<IJob> jobs = new ArrayList<IJob>();
+        for (int i = 1; i <= CHANGELIST_COUNT; i++) {
+            changelistIds.add(i);
+            Map<String, Object> result = new HashMap<String, Object>();
+            result.put("change", Integer.toString(i));
+            result.put("job0", "job-" + i + "a");
+            result.put("job1", "job-" + i + "b");
+            result.put("depotFile0", "//depot/shelved/" + i + ".txt");
+            result.put("action0", "edit");
+            describe.add(result);
+            jobs.add(mockJob("job-" + i + "a"));
+            jobs.add(mockJob("job-" + i + "b"));
+        }
+        when(server.execMapCmdList(eq("describe"), any(String[].class), (Map<String, Object>) isNull()))
+                .thenReturn(describe);
+        when(client.where(anyListOf(IFileSpec.class))).thenAnswer(new Answer<List<IFileSpec>>() {
+            @Override
+            public List<IFileSpec> answer(InvocationOnMock invocation) throws Throwable {
+                List<IFileSpec> ret = new ArrayList<IFileSpec>();
+                for (IFileSpec spec : (List<IFileSpec>) invocation.getArguments()[0]) {
+                    FileSpec where = new FileSpec();
+                    where.setOpStatus(FileSpecOpStatus.VALID);
+                    where.setDepotPath(spec.getOriginalPathString());
+                    where.setLocalPath("/client" + spec.getOriginalPathString().substring(7));
+                    ret.add(where);
+                }
+                return ret;
+            }
+        });
+        when(server.getJobs((List<IFileSpec>) isNull(), any(GetJobsOptions.class))).thenReturn(jobs);
+
+        // The default changelist is never described.
+        changelistIds.add(0);
+        final Map<Integer, Pair<List<String>, List<IExtendedFileSpec>>> descriptions =
+                exec.describePendingChangelists(changelistIds);
+        final Set<String> jobIds = new HashSet<String>();
+        for (Pair<List<String>, List<IExtendedFileSpec>> description : descriptions.values()) {
+            jobIds.addAll(description.first);
+        }
+        final Map<String, P4JobState> jobStates = exec.getJobsForIds(jobIds);
+
+        assertThat(count.operations, is(Arrays.asList("describe", "where", "getJobs")));
+        verify(server, never()).getJob(anyString());
+
+        assertThat(descriptions.size(), is(CHANGELIST_COUNT));
+        final Pair<List<String>, List<IExtendedFileSpec>> description = descriptions.get(7);
+        assertThat(description, notNullValue());
+        assertThat(description.first, is(Arrays.asList("job-7a", "job-7b")));
+        assertThat(description.second.size(), is(1));
+        final IExtendedFileSpec shelved = description.second.get(0);
+        assertThat(shelved.getDepotPathString(), is("//depot/shelved/7.txt"));
+        assertThat(shelved.getClientPathString(), is("/client/shelved/7.txt"));
+        assertThat(shelved.getAction(), is(FileAction.EDIT));
+        assertThat(shelved.getChangelistId(), is(7));
+        assertThat(jobStates.size(), is(2 * CHANGELIST_COUNT));
+        assertThat(jobStates.get("job-7b").getId(), is("job-7b"));
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testJobsOutsideTheJobViewLoadSeparately() throws Exception {
+        when(server.getJobs((List<IFileSpec>) isNull(), any(GetJobsOptions.class)))
+                .thenReturn(Collections.singletonList(mockJob("job1")));
+        final IJob quoted = mockJob("job (2)");
+        when(server.getJob("job (2)")).thenReturn(quoted);
+        final IJob missing = mockJob("job3");
+        when(server.getJob("job3")).thenReturn(missing);
+
+        final Map<String, P4JobState> jobStates =
+                exec.getJobsForIds(Arrays.asList("job1", "job (2)", "job3"));
+
+        assertThat(jobStates.keySet(), is((Set<String>) new HashSet<String>(
+                Arrays.asList("job1", "job (2)", "job3"))));
+        assertThat(count.operations.size(), is(3));
+        assertThat(count.operations.get(0), is("getJobs"));
+        verify(server, never()).getJob("job1");
+    }
+
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOnlyJobsFailingOnTheirOwnAreReported() throws Exception {
+        when(server.getJobs((List<IFileSpec>) isNull(), any(GetJobsOptions.class)))
+                .thenThrow(new RequestException("bad job view"));
+        final IJob job1 = mockJob("job1");
+        when(server.getJob("job1")).thenReturn(job1);
+        final RequestException problem = new RequestException("job2 is broken");
+        when(server.getJob("job2")).thenThrow(problem);
+
+        final Map<String, Exception> failures = new HashMap<String, Exception>();
+        final Map<String, P4JobState> jobStates =
+                exec.getJobsForIds(Arrays.asList("job1", "job2"), failures);
+
+        assertThat(jobStates.keySet(), is(Collections.singleton("job1")));
+        assertThat(failures, is(Collections.<String, Exception>singletonMap("job2", problem)));
+    }
+
+
+    @NotNull
+    private static IJob mockJob(@NotNull String jobId) {
+        IJob job = mock(IJob.class);
+        when(job.getId()).thenReturn(jobId);
+        when(job.getDescription()).thenReturn("description of " + jobId);
+        return job;
+    }
+
+
+    private static class CountingServerCount implements ServerCount {
+        final List<String> operations = new ArrayList<String>();
+
+        @Override
+        public void invoke(@NotNull final String operation) {
+            operations.add(operation);
+        }
+    }
+}
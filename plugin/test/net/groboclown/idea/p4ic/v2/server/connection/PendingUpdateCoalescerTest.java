@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import net.groboclown.idea.p4ic.v2.server.cache.UpdateAction;
+import net.groboclown.idea.p4ic.v2.server.cache.UpdateAction.UpdateParameterNames;
+import net.groboclown.idea.p4ic.v2.server.cache.state.PendingUpdateState;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class PendingUpdateCoalescerTest {
+    @Test
+    public void testFileUpdatesMergeByGroup() {
+        final List<PendingUpdateState> queued = new ArrayList<PendingUpdateState>();
+        for (int i = 0; i < 500; i++) {
+            queued.add(fileUpdate(UpdateAction.ADD_EDIT_FILE, "/src/a" + i + ".java", i % 3));
+            queued.add(moveUpdate("/src/b" + i + ".java", "/src/c" + i + ".java", i % 3));
+        }
+
+        final PendingUpdateCoalescer.Result result = PendingUpdateCoalescer.coalesce(queued, queued);
+
+        assertThat(result.batches.size(), is(2));
+        assertThat(result.batches.get(0).size(), is(500));
+        assertThat(result.batches.get(1).size(), is(500));
+        assertThat(result.dropped, is(0));
+    }
+
+
+    @Test
+    public void testFileUpdateDoesNotPassUpdateOfSameFile() {
+        final PendingUpdateState edit1 = fileUpdate(UpdateAction.EDIT_FILE, "/src/a.java", 1);
+        final PendingUpdateState move = moveUpdate("/src/a.java", "/src/b.java", 1);
+        final PendingUpdateState edit2 = fileUpdate(UpdateAction.EDIT_FILE, "/src/b.java", 1);
+        final List<PendingUpdateState> queued = Arrays.asList(edit1, move, edit2);
+
+        final PendingUpdateCoalescer.Result result = PendingUpdateCoalescer.coalesce(queued, queued);
+
+        assertThat(result.batches, is(Arrays.asList(
+                Collections.singletonList(edit1),
+                Collections.singletonList(move),
+                Collections.singletonList(edit2))));
+    }
+
+
+    @Test
+    public void testFileUpdateDoesNotPassChangelistUpdate() {
+        final PendingUpdateState edit1 = fileUpdate(UpdateAction.EDIT_FILE, "/src/a.java", -2);
+        final PendingUpdateState reopen = new PendingUpdateState(UpdateAction.REOPEN_FILES_INTO_CHANGELIST,
+                Collections.singleton("-3"), params(UpdateParameterNames.CHANGELIST, -3));
+        final PendingUpdateState edit2 = fileUpdate(UpdateAction.EDIT_FILE, "/src/b.java", -3);
+        final List<PendingUpdateState> queued = Arrays.asList(edit1, reopen, edit2);
+
+        final PendingUpdateCoalescer.Result result = PendingUpdateCoalescer.coalesce(queued, queued);
+
+        assertThat(result.batches.size(), is(3));
+    }
+
+
+    @Test
+    public void testRevertedUpdatesAreDropped() {
+        final PendingUpdateState edit = fileUpdate(UpdateAction.EDIT_FILE, "/src/a.java", 1);
+        final PendingUpdateState add = fileUpdate(UpdateAction.ADD_FILE, "/src/b.java", 1);
+        final List<PendingUpdateState> queued = Arrays.asList(edit, add);
+
+        // The edit was reverted while it was queued, so it's no longer cached.
+        final PendingUpdateCoalescer.Result result =
+                PendingUpdateCoalescer.coalesce(queued, Collections.singletonList(add));
+
+        assertThat(result.batches, is(Collections.singletonList(Collections.singletonList(add))));
+        assertThat(result.dropped, is(1));
+        assertThat(result.repeated.isEmpty(), is(true));
+    }
+
+
+    @Test
+    public void testRepeatedUpdatesKeepTheLast() {
+        final PendingUpdateState first = fileUpdate(UpdateAction.EDIT_FILE, "/src/a.java", 1);
+        final PendingUpdateState second = fileUpdate(UpdateAction.EDIT_FILE, "/src/a.java", 1);
+        final List<PendingUpdateState> queued = Arrays.asList(first, second);
+
+        final PendingUpdateCoalescer.Result result = PendingUpdateCoalescer.coalesce(queued, queued);
+
+        assertThat(result.batches, is(Collections.singletonList(Collections.singletonList(second))));
+        assertThat(result.repeated, is(Collections.singletonList(first)));
+        assertThat(result.dropped, is(1));
+    }
+
+
+    @NotNull
+    private static PendingUpdateState fileUpdate(@NotNull UpdateAction action, @NotNull String file,
+            int changelist) {
+        final Map<String, Object> params = params(UpdateParameterNames.CHANGELIST, changelist);
+        params.put(UpdateParameterNames.FILE.getKeyName(), file);
+        return new PendingUpdateState(action, Collections.singleton(file), params);
+    }
+
+
+    @NotNull
+    private static PendingUpdateState moveUpdate(@NotNull String source, @NotNull String target,
+            int changelist) {
+        final Map<String, Object> params = params(UpdateParameterNames.CHANGELIST, changelist);
+        params.put(UpdateParameterNames.FILE.getKeyName(), target);
+        params.put(UpdateParameterNames.FILE_SOURCE.getKeyName(), source);
+        return new PendingUpdateState(UpdateAction.MOVE_FILE,
+                new HashSet<String>(Arrays.asList(source, target)), params);
+    }
+
+
+    @NotNull
+    private static Map<String, Object> params(@NotNull UpdateParameterNames name, @NotNull Object value) {
+        final Map<String, Object> ret = new HashMap<String, Object>();
+        ret.put(name.getKeyName(), value);
+        return ret;
+    }
+}
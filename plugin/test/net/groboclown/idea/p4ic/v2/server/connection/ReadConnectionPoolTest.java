@@ -0,0 +1,178 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.groboclown.idea.p4ic.v2.server.connection;
+
+import net.groboclown.idea.p4ic.server.exceptions.P4ConnectionDisposedException;
+import net.groboclown.idea.p4ic.server.exceptions.P4InvalidConfigException;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+public class ReadConnectionPoolTest {
+    private final MockExecFactory factory = new MockExecFactory();
+
+
+    @Test
+    public void testPoolLimitsConnections()
+            throws Exception {
+        final ReadConnectionPool pool = new ReadConnectionPool(factory, 2);
+
+        final ClientExec first = pool.checkout(1000);
+        final ClientExec second = pool.checkout(1000);
+        assertThat(first, not(sameInstance(second)));
+        try {
+            pool.checkout(10);
+            fail("checked out more connections than the pool allows");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        assertThat(factory.created.size(), is(2));
+
+        // A returned connection is reused, rather than a new one opened.
+        pool.checkin(first);
+        assertThat(pool.checkout(1000), sameInstance(first));
+        assertThat(factory.created.size(), is(2));
+    }
+
+
+    @Test
+    public void testCheckoutTimesOutAfterWait()
+            throws Exception {
+        final ReadConnectionPool pool = new ReadConnectionPool(factory, 1);
+        pool.checkout(1000);
+
+        final long start = System.currentTimeMillis();
+        try {
+            pool.checkout(200);
+            fail("checkout did not time out");
+        } catch (InterruptedException e) {
+            // expected
+        }
+        final long waited = System.currentTimeMillis() - start;
+
+        assertThat("waited " + waited + "ms", waited >= 190, is(true));
+        final LaneStatistics statistics = pool.getStatistics();
+        assertThat(statistics.getStartedCount(), is(1L));
+        assertThat(statistics.getTimedOutCount(), is(1L));
+        assertThat(statistics.getQueueDepth(), is(0));
+        // The timed out request's wait isn't counted as a start.
+        assertThat("max wait " + statistics.getMaxWaitMillis(), statistics.getMaxWaitMillis() < 190, is(true));
+    }
+
+
+    @Test
+    public void testCheckoutWaitsForCheckin()
+            throws Exception {
+        final ReadConnectionPool pool = new ReadConnectionPool(factory, 1);
+        final ClientExec exec = pool.checkout(1000);
+
+        final Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // just return it early
+                }
+                pool.checkin(exec);
+            }
+        };
+        other.start();
+
+        assertThat(pool.checkout(5000), sameInstance(exec));
+        other.join();
+        assertThat(pool.getStatistics().getStartedCount(), is(2L));
+        assertThat(pool.getStatistics().getTimedOutCount(), is(0L));
+    }
+
+
+    @Test
+    public void testCheckinAfterDisposeClosesConnection()
+            throws Exception {
+        final ReadConnectionPool pool = new ReadConnectionPool(factory, 2);
+        final ClientExec idle = pool.checkout(1000);
+        final ClientExec busy = pool.checkout(1000);
+        pool.checkin(idle);
+
+        pool.dispose();
+        verify(idle).dispose();
+        verify(busy, never()).dispose();
+
+        pool.checkin(busy);
+        verify(busy).dispose();
+        try {
+            pool.checkout(1000);
+            fail("checked out a connection from a disposed pool");
+        } catch (P4ConnectionDisposedException e) {
+            // expected
+        }
+    }
+
+
+    @Test
+    public void testDiscardClosesConnectionAndFreesSlot()
+            throws Exception {
+        final ReadConnectionPool pool = new ReadConnectionPool(factory, 1);
+        final ClientExec failed = pool.checkout(1000);
+
+        pool.discard(failed);
+
+        verify(failed).dispose();
+        final ClientExec next = pool.checkout(10);
+        assertThat(next, not(sameInstance(failed)));
+        assertThat(factory.created.size(), is(2));
+    }
+
+
+    @Test
+    public void testDisconnectClosesOnlyIdleConnections()
+            throws Exception {
+        final ReadConnectionPool pool = new ReadConnectionPool(factory, 2);
+        final ClientExec idle = pool.checkout(1000);
+        final ClientExec busy = pool.checkout(1000);
+        pool.checkin(idle);
+
+        pool.disconnect();
+
+        verify(idle).dispose();
+        verify(busy, never()).dispose();
+        pool.checkin(busy);
+        assertThat(pool.checkout(1000), sameInstance(busy));
+    }
+
+
+    private static class MockExecFactory implements ReadConnectionPool.ExecFactory {
+        final List<ClientExec> created = new ArrayList<ClientExec>();
+
+        @NotNull
+        @Override
+        public synchronized ClientExec create()
+                throws P4InvalidConfigException {
+            final ClientExec exec = mock(ClientExec.class);
+            created.add(exec);
+            return exec;
+        }
+    }
+}